@@ -0,0 +1,308 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.daemon;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ubc.cs317.xmpp.daemon.DaemonConfiguration.Account;
+import ubc.cs317.xmpp.exception.XMPPException;
+import ubc.cs317.xmpp.model.ContactStatus;
+import ubc.cs317.xmpp.model.Session;
+import ubc.cs317.xmpp.model.listener.SessionListener;
+
+/**
+ * Entry point for running accounts without a user interface (e.g., bots on a
+ * server). The accounts listed in the configuration file are logged in in
+ * parallel, and the messages they receive are passed to their message
+ * handlers by a dispatcher with its own worker threads (see
+ * MessageDispatcher). The daemon runs until all accounts are logged out, or until the
+ * process is terminated, in which case the handlers are stopped and the
+ * accounts logged out cleanly.
+ * 
+ * Nothing in this package uses AWT or Swing, so no display is needed and no
+ * user interface classes are loaded. The target is to have a few accounts
+ * online within 0.6 s of starting the process, using less than 64 MB of
+ * resident memory with the default JVM settings (see DaemonStartupBenchmark).
+ * Once online, the daemon logs its startup time and resident memory, where
+ * the system reports it.
+ * 
+ * Usage: Daemon configuration-file
+ * 
+ * @see DaemonConfiguration
+ */
+public class Daemon {
+
+	private static final int MAX_PARALLEL_LOGINS = 8;
+
+	/**
+	 * Time given to the handlers to finish the messages waiting when the
+	 * daemon shuts down, in milliseconds.
+	 */
+	private static final long SHUTDOWN_TIMEOUT = 5000;
+
+	private final DaemonConfiguration configuration;
+	private final List<RunningAccount> running = new ArrayList<RunningAccount>();
+	private CountDownLatch closed;
+
+	/**
+	 * An account that is logged in, with its handlers.
+	 */
+	private class RunningAccount implements SessionListener {
+
+		private final Account account;
+		private final Session session;
+		private final List<MessageHandler> handlers = new ArrayList<MessageHandler>();
+		private MessageDispatcher dispatcher;
+
+		private RunningAccount(Account account, Session session) {
+			this.account = account;
+			this.session = session;
+		}
+
+		@Override
+		public void readingExceptionThrown(XMPPException exception) {
+			log(account, "connection error: " + exception.getMessage());
+		}
+
+		@Override
+		public void sessionClosed() {
+			log(account, "logged out");
+			closed.countDown();
+		}
+	}
+
+	/**
+	 * Creates a daemon for the accounts of a configuration.
+	 * 
+	 * @param configuration
+	 *            Daemon configuration.
+	 */
+	public Daemon(DaemonConfiguration configuration) {
+		this.configuration = configuration;
+	}
+
+	/**
+	 * Logs in all accounts in parallel and starts their handlers. Accounts
+	 * that fail to log in are reported and skipped.
+	 * 
+	 * @return The number of accounts logged in.
+	 */
+	public synchronized int start() {
+		List<Account> accounts = configuration.getAccounts();
+		closed = new CountDownLatch(accounts.size());
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+				accounts.size(), MAX_PARALLEL_LOGINS));
+		List<Future<RunningAccount>> logins = new ArrayList<Future<RunningAccount>>();
+		for (final Account account : accounts)
+			logins.add(executor.submit(new Callable<RunningAccount>() {
+				@Override
+				public RunningAccount call() throws XMPPException {
+					return login(account);
+				}
+			}));
+		executor.shutdown();
+
+		for (int i = 0; i < accounts.size(); i++) {
+			try {
+				running.add(logins.get(i).get());
+				log(accounts.get(i), "online");
+			} catch (ExecutionException e) {
+				log(accounts.get(i), "login failed: "
+						+ e.getCause().getMessage());
+				closed.countDown();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return running.size();
+	}
+
+	/**
+	 * Logs in an account. The account is first announced as unavailable, so
+	 * that the server keeps messages sent to it while it is offline until the
+	 * handlers are started, and only then sends the configured status.
+	 */
+	private RunningAccount login(Account account) throws XMPPException {
+		Session session = new Session(account.getUser(), account.getDomain(),
+				account.getResource(), account.getPassword(),
+				ContactStatus.OFFLINE, account.getConnectionConfiguration());
+		RunningAccount runningAccount = new RunningAccount(account, session);
+		try {
+			for (String className : account.getHandlers()) {
+				MessageHandler handler = createHandler(className);
+				handler.start(session, account.getSettings());
+				runningAccount.handlers.add(handler);
+			}
+			runningAccount.dispatcher = new MessageDispatcher(session,
+					runningAccount.handlers, account.getWorkers(),
+					account.getQueueLimit());
+			session.addMessageListener(runningAccount.dispatcher);
+			session.setAndSendCurrentStatus(account.getStatus());
+			session.addSessionListener(runningAccount);
+		} catch (XMPPException e) {
+			if (runningAccount.dispatcher != null)
+				runningAccount.dispatcher.shutdown(0);
+			for (MessageHandler handler : runningAccount.handlers)
+				handler.stop();
+			session.closeConnection();
+			throw e;
+		}
+		return runningAccount;
+	}
+
+	private static MessageHandler createHandler(String className)
+			throws XMPPException {
+		try {
+			return Class.forName(className).asSubclass(MessageHandler.class)
+					.getDeclaredConstructor().newInstance();
+		} catch (ClassNotFoundException e) {
+			throw new XMPPException("Handler class not found: " + className, e);
+		} catch (ClassCastException e) {
+			throw new XMPPException(className + " is not a message handler", e);
+		} catch (NoSuchMethodException e) {
+			throw new XMPPException(className
+					+ " has no constructor without arguments", e);
+		} catch (InvocationTargetException e) {
+			throw new XMPPException("Could not create handler " + className,
+					e.getCause());
+		} catch (InstantiationException e) {
+			throw new XMPPException("Could not create handler " + className, e);
+		} catch (IllegalAccessException e) {
+			throw new XMPPException("Could not create handler " + className, e);
+		}
+	}
+
+	/**
+	 * Stops the handlers, once they finish the messages waiting, and logs out
+	 * all accounts. The statistics of the handlers are logged.
+	 */
+	public synchronized void stop() {
+		for (RunningAccount account : running) {
+			if (!account.dispatcher.shutdown(SHUTDOWN_TIMEOUT))
+				log(account.account, "handlers did not finish in time");
+			for (HandlerMetrics metrics : account.dispatcher
+					.getHandlerMetrics())
+				log(account.account, metrics.toString());
+			log(account.account, account.dispatcher.getQueueMetrics()
+					+ ", at most " + account.dispatcher.getMaxQueued()
+					+ " waiting, " + account.dispatcher.getDropped()
+					+ " dropped");
+			for (MessageHandler handler : account.handlers) {
+				try {
+					handler.stop();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+			account.session.closeConnection();
+		}
+	}
+
+	/**
+	 * Waits until all accounts are logged out.
+	 * 
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting.
+	 */
+	public void awaitTermination() throws InterruptedException {
+		closed.await();
+	}
+
+	/**
+	 * Returns the sessions of the accounts logged in.
+	 */
+	public synchronized List<Session> getSessions() {
+		List<Session> sessions = new ArrayList<Session>();
+		for (RunningAccount account : running)
+			sessions.add(account.session);
+		return sessions;
+	}
+
+	private static void log(Account account, String message) {
+		System.err.println("[" + account.getName() + "] " + message);
+	}
+
+	/**
+	 * Returns the resident memory of the process in kilobytes, as reported by
+	 * the Linux proc file system, or -1 if it is not available.
+	 */
+	static long getResidentMemory() {
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(
+					"/proc/self/status"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null)
+					if (line.startsWith("VmRSS:"))
+						return Long.parseLong(line.replaceAll("[^0-9]", ""));
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+		} catch (NumberFormatException e) {
+		}
+		return -1;
+	}
+
+	public static void main(String[] args) {
+		long start = System.nanoTime();
+		if (args.length != 1) {
+			System.err.println("Usage: Daemon configuration-file");
+			System.exit(2);
+		}
+
+		DaemonConfiguration configuration;
+		try {
+			configuration = new DaemonConfiguration(args[0]);
+		} catch (XMPPException e) {
+			System.err.println(e.getMessage());
+			System.exit(2);
+			return;
+		}
+
+		final Daemon daemon = new Daemon(configuration);
+		int online = daemon.start();
+		long rss = getResidentMemory();
+		System.err.printf("%d of %d accounts online in %d ms%s\n", online,
+				configuration.getAccounts().size(),
+				(System.nanoTime() - start) / 1000000, rss < 0 ? ""
+						: ", resident memory " + rss / 1024 + " MB");
+		if (online == 0)
+			System.exit(1);
+
+		Runtime.getRuntime().addShutdownHook(new Thread("Daemon shutdown") {
+			@Override
+			public void run() {
+				daemon.stop();
+			}
+		});
+		try {
+			daemon.awaitTermination();
+		} catch (InterruptedException e) {
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,310 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.daemon;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import ubc.cs317.xmpp.exception.XMPPException;
+import ubc.cs317.xmpp.model.ContactStatus;
+import ubc.cs317.xmpp.net.ConnectionConfiguration;
+
+/**
+ * Configuration of the daemon, read from a properties file. The
+ * <code>accounts</code> key lists the names of the accounts to log in,
+ * separated by commas; the settings of each account are prefixed by its name:
+ * 
+ * <pre>
+ * accounts = echo
+ * echo.jid = echobot@example.com
+ * echo.password = secret
+ * echo.resource = daemon
+ * echo.status = available
+ * echo.handlers = ubc.cs317.xmpp.daemon.EchoHandler
+ * echo.workers = 4
+ * echo.queueLimit = 1000
+ * echo.connection.tlsRequired = true
+ * echo.connection.sendRate = 10
+ * echo.echo.prefix = You said:
+ * </pre>
+ * 
+ * Keys starting with <code>connection.</code> are applied to the connection
+ * configuration of the account through the setter of the same name (e.g.,
+ * <code>connection.keepAliveInterval</code> calls
+ * {@link ConnectionConfiguration#setKeepAliveInterval(long)}). Other keys are
+ * left for the message handlers. The <code>workers</code> and
+ * <code>queueLimit</code> keys set the number of threads handling messages of
+ * the account and the number of messages that may wait for them.
+ */
+public class DaemonConfiguration {
+
+	/**
+	 * Settings of one account of the daemon.
+	 */
+	public static class Account {
+
+		/**
+		 * Default number of worker threads handling messages of an account.
+		 */
+		public static final int DEFAULT_WORKERS = 4;
+
+		/**
+		 * Default maximum number of messages of an account waiting to be
+		 * handled.
+		 */
+		public static final int DEFAULT_QUEUE_LIMIT = 1000;
+
+		private String name;
+		private String user;
+		private String domain;
+		private String resource;
+		private String password;
+		private ContactStatus status;
+		private List<String> handlers;
+		private int workers;
+		private int queueLimit;
+		private ConnectionConfiguration connectionConfiguration;
+		private Properties settings;
+
+		public String getName() {
+			return name;
+		}
+
+		public String getUser() {
+			return user;
+		}
+
+		public String getDomain() {
+			return domain;
+		}
+
+		public String getResource() {
+			return resource;
+		}
+
+		public String getPassword() {
+			return password;
+		}
+
+		public ContactStatus getStatus() {
+			return status;
+		}
+
+		/**
+		 * Returns the class names of the message handlers of the account.
+		 */
+		public List<String> getHandlers() {
+			return handlers;
+		}
+
+		/**
+		 * Returns the number of worker threads handling messages.
+		 */
+		public int getWorkers() {
+			return workers;
+		}
+
+		/**
+		 * Returns the maximum number of messages waiting to be handled.
+		 */
+		public int getQueueLimit() {
+			return queueLimit;
+		}
+
+		public ConnectionConfiguration getConnectionConfiguration() {
+			return connectionConfiguration;
+		}
+
+		/**
+		 * Returns all settings of the account, without the account name
+		 * prefix.
+		 */
+		public Properties getSettings() {
+			return settings;
+		}
+	}
+
+	private List<Account> accounts = new ArrayList<Account>();
+
+	/**
+	 * Reads the configuration from a file.
+	 * 
+	 * @param fileName
+	 *            Name of the properties file.
+	 * @throws XMPPException
+	 *             If the file cannot be read or is not a valid configuration.
+	 */
+	public DaemonConfiguration(String fileName) throws XMPPException {
+		Properties properties = new Properties();
+		try {
+			InputStream in = new FileInputStream(fileName);
+			try {
+				properties.load(new InputStreamReader(in, "UTF-8"));
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new XMPPException("Could not read configuration file "
+					+ fileName + " (" + e.getMessage() + ")", e);
+		}
+		load(properties);
+	}
+
+	/**
+	 * Reads the configuration from properties already loaded.
+	 * 
+	 * @param properties
+	 *            Configuration properties.
+	 * @throws XMPPException
+	 *             If the properties are not a valid configuration.
+	 */
+	public DaemonConfiguration(Properties properties) throws XMPPException {
+		load(properties);
+	}
+
+	/**
+	 * Returns the accounts to log in, in the order they are listed.
+	 */
+	public List<Account> getAccounts() {
+		return Collections.unmodifiableList(accounts);
+	}
+
+	private void load(Properties properties) throws XMPPException {
+		String names = properties.getProperty("accounts", "").trim();
+		if (names.isEmpty())
+			throw new XMPPException("No accounts configured");
+		for (String name : names.split("\\s*,\\s*"))
+			accounts.add(loadAccount(properties, name));
+	}
+
+	private static Account loadAccount(Properties properties, String name)
+			throws XMPPException {
+		Account account = new Account();
+		account.name = name;
+		account.settings = new Properties();
+		String prefix = name + ".";
+		for (String key : properties.stringPropertyNames())
+			if (key.startsWith(prefix))
+				account.settings.setProperty(key.substring(prefix.length()),
+						properties.getProperty(key).trim());
+
+		String jid = account.settings.getProperty("jid", "");
+		int at = jid.indexOf('@');
+		if (at <= 0 || at == jid.length() - 1 || jid.indexOf('/') >= 0)
+			throw new XMPPException("Account " + name
+					+ ": jid must be a bare JID (user@domain)");
+		account.user = jid.substring(0, at);
+		account.domain = jid.substring(at + 1);
+		account.password = account.settings.getProperty("password");
+		if (account.password == null)
+			throw new XMPPException("Account " + name + ": missing password");
+		account.resource = account.settings.getProperty("resource", "");
+
+		try {
+			account.status = ContactStatus.valueOf(account.settings
+					.getProperty("status", "available").toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new XMPPException("Account " + name + ": invalid status "
+					+ account.settings.getProperty("status"));
+		}
+
+		account.handlers = new ArrayList<String>();
+		String handlers = account.settings.getProperty("handlers", "").trim();
+		if (!handlers.isEmpty())
+			for (String handler : handlers.split("\\s*,\\s*"))
+				account.handlers.add(handler);
+
+		account.workers = getPositiveInt(account, "workers",
+				Account.DEFAULT_WORKERS);
+		account.queueLimit = getPositiveInt(account, "queueLimit",
+				Account.DEFAULT_QUEUE_LIMIT);
+
+		account.connectionConfiguration = new ConnectionConfiguration();
+		for (String key : account.settings.stringPropertyNames())
+			if (key.startsWith("connection.") && key.length() > 11)
+				applyConnectionSetting(account, key.substring(11),
+						account.settings.getProperty(key));
+		return account;
+	}
+
+	private static int getPositiveInt(Account account, String key,
+			int defaultValue) throws XMPPException {
+		String value = account.settings.getProperty(key);
+		if (value == null)
+			return defaultValue;
+		try {
+			int result = Integer.parseInt(value);
+			if (result > 0)
+				return result;
+		} catch (NumberFormatException e) {
+		}
+		throw new XMPPException("Account " + account.name + ": " + key
+				+ " must be a positive number");
+	}
+
+	/**
+	 * Calls the setter of the connection configuration with the given name,
+	 * converting the value to the type of its parameter.
+	 */
+	private static void applyConnectionSetting(Account account, String name,
+			String value) throws XMPPException {
+		String setter = "set" + Character.toUpperCase(name.charAt(0))
+				+ name.substring(1);
+		for (Method method : ConnectionConfiguration.class.getMethods()) {
+			if (!method.getName().equals(setter)
+					|| method.getParameterTypes().length != 1)
+				continue;
+			Class<?> type = method.getParameterTypes()[0];
+			Object argument;
+			try {
+				if (type == int.class)
+					argument = Integer.valueOf(value);
+				else if (type == long.class)
+					argument = Long.valueOf(value);
+				else if (type == boolean.class) {
+					if (!value.equalsIgnoreCase("true")
+							&& !value.equalsIgnoreCase("false"))
+						throw new IllegalArgumentException("not a boolean");
+					argument = Boolean.valueOf(value);
+				} else if (type == String.class)
+					argument = value.isEmpty() ? null : value;
+				else
+					continue;
+				method.invoke(account.connectionConfiguration, argument);
+				return;
+			} catch (IllegalArgumentException e) {
+				throw new XMPPException("Account " + account.name
+						+ ": invalid value for connection." + name + " ("
+						+ e.getMessage() + ")", e);
+			} catch (InvocationTargetException e) {
+				throw new XMPPException("Account " + account.name
+						+ ": invalid value for connection." + name + " ("
+						+ e.getCause().getMessage() + ")", e.getCause());
+			} catch (IllegalAccessException e) {
+				throw new XMPPException("Account " + account.name
+						+ ": cannot set connection." + name, e);
+			}
+		}
+		throw new XMPPException("Account " + account.name
+				+ ": unknown connection setting " + name);
+	}
+}
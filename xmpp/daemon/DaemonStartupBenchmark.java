@@ -0,0 +1,270 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.daemon;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ubc.cs317.xmpp.net.XMPPConnection;
+
+/**
+ * Measures the startup of the daemon: a new JVM runs the daemon with a
+ * configuration of several accounts, which log in to a stub server on the
+ * local XMPP port, and the time from starting the process until it reports
+ * all accounts online is measured, together with the resident memory it
+ * reports and the number of AWT and Swing classes it loaded (from the class
+ * loading log). The stub server accepts any password, binds the requested
+ * resource, closes the stream when the daemon does and ignores everything
+ * else. Needs the local XMPP port to be free.
+ * 
+ * Usage: DaemonStartupBenchmark [accounts, default 4] [runs, default 5]
+ */
+public class DaemonStartupBenchmark {
+
+	private static final String STREAM_HEADER = "<?xml version='1.0'?>"
+			+ "<stream:stream xmlns='jabber:client' "
+			+ "xmlns:stream='http://etherx.jabber.org/streams' id='stub' "
+			+ "from='localhost' version='1.0'>";
+
+	private static final Pattern IQ_ID = Pattern
+			.compile("<iq[^>]*\\sid=['\"]([^'\"]*)['\"]");
+
+	private static final Pattern RESOURCE = Pattern
+			.compile("<resource>([^<]*)</resource>");
+
+	private static final Pattern ONLINE = Pattern
+			.compile("(\\d+) of (\\d+) accounts online in (\\d+) ms"
+					+ "(, resident memory (\\d+) MB)?");
+
+	public static void main(String[] args) throws Exception {
+
+		int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		// all addresses, since localhost may resolve to IPv6
+		final ServerSocket server = new ServerSocket(
+				XMPPConnection.XMPP_DEFAULT_PORT);
+		final AtomicLong logins = new AtomicLong();
+		Thread acceptor = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (true)
+						serve(server.accept(), logins);
+				} catch (IOException e) {
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		File home = File.createTempFile("daemon", "home");
+		home.delete();
+		home.mkdir();
+		File config = new File(home, "daemon.properties");
+		PrintWriter writer = new PrintWriter(config, "UTF-8");
+		StringBuilder names = new StringBuilder();
+		for (int i = 0; i < accounts; i++) {
+			names.append(i == 0 ? "" : ", ").append("bot").append(i);
+			writer.println("bot" + i + ".jid = bot" + i + "@localhost");
+			writer.println("bot" + i + ".password = secret");
+			writer.println("bot" + i + ".resource = daemon");
+			writer.println("bot" + i + ".handlers = "
+					+ EchoHandler.class.getName());
+			writer.println("bot" + i + ".connection.reconnectEnabled = false");
+		}
+		writer.println("accounts = " + names);
+		writer.close();
+
+		List<Long> times = new ArrayList<Long>();
+		List<Long> memory = new ArrayList<Long>();
+		for (int run = 0; run < runs; run++) {
+			List<String> command = new ArrayList<String>(Arrays.asList(
+					new File(System.getProperty("java.home"), "bin/java")
+							.getPath(), "-verbose:class", "-Duser.home="
+							+ home.getPath(), "-cp", System
+							.getProperty("java.class.path"), Daemon.class
+							.getName(), config.getPath()));
+			long start = System.nanoTime();
+			Process process = new ProcessBuilder(command).start();
+			ClassCounter counter = new ClassCounter(process.getInputStream());
+			counter.start();
+
+			BufferedReader errors = new BufferedReader(new InputStreamReader(
+					process.getErrorStream(), "UTF-8"));
+			String line;
+			Matcher online = null;
+			while ((line = errors.readLine()) != null) {
+				Matcher matcher = ONLINE.matcher(line);
+				if (matcher.find()) {
+					online = matcher;
+					break;
+				}
+				// account errors
+				if (line.contains("failed"))
+					System.out.println("  " + line);
+			}
+			long elapsed = (System.nanoTime() - start) / 1000000;
+			process.destroy();
+			process.waitFor();
+			counter.join();
+			if (online == null) {
+				System.out.println("daemon did not report its startup");
+				System.exit(1);
+			}
+
+			times.add(elapsed);
+			if (online.group(5) != null)
+				memory.add(Long.valueOf(online.group(5)));
+			System.out.printf("run %d: %s of %s accounts online, %d ms from "
+					+ "process start (%s ms in main), %s MB resident, "
+					+ "%d classes loaded, %d of them AWT or Swing\n", run + 1,
+					online.group(1), online.group(2), elapsed, online
+							.group(3), online.group(5), counter.classes,
+					counter.uiClasses);
+		}
+		Collections.sort(times);
+		Collections.sort(memory);
+		System.out.printf("median: %d ms to online, %s MB resident, "
+				+ "%d logins served\n", times.get(times.size() / 2), memory
+				.isEmpty() ? "?" : memory.get(memory.size() / 2), logins.get());
+		server.close();
+	}
+
+	/**
+	 * Serves one client connection, in its own thread.
+	 */
+	private static void serve(final Socket socket, final AtomicLong logins) {
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					InputStream in = socket.getInputStream();
+					OutputStream out = socket.getOutputStream();
+					StringBuilder received = new StringBuilder();
+					byte[] buffer = new byte[4096];
+					int stage = 0;
+					int read;
+					while ((read = in.read(buffer)) >= 0) {
+						received.append(new String(buffer, 0, read, "UTF-8"));
+						String data = received.toString();
+						if (stage == 0 && data.contains("<stream:stream")) {
+							send(out, STREAM_HEADER
+									+ "<stream:features><mechanisms xmlns="
+									+ "'urn:ietf:params:xml:ns:xmpp-sasl'>"
+									+ "<mechanism>PLAIN</mechanism></mechanisms>"
+									+ "</stream:features>");
+							received.setLength(0);
+							stage = 1;
+						} else if (stage == 1 && data.contains("</auth>")) {
+							send(out, "<success xmlns="
+									+ "'urn:ietf:params:xml:ns:xmpp-sasl'/>");
+							received.setLength(0);
+							stage = 2;
+						} else if (stage == 2
+								&& data.contains("<stream:stream")) {
+							send(out, STREAM_HEADER
+									+ "<stream:features><bind xmlns="
+									+ "'urn:ietf:params:xml:ns:xmpp-bind'/>"
+									+ "</stream:features>");
+							received.setLength(0);
+							stage = 3;
+						} else if (stage == 3 && data.contains("</iq>")) {
+							Matcher id = IQ_ID.matcher(data);
+							Matcher resource = RESOURCE.matcher(data);
+							id.find();
+							send(out, "<iq type='result' id='" + id.group(1)
+									+ "'><bind xmlns='urn:ietf:params:xml:"
+									+ "ns:xmpp-bind'><jid>bot@localhost/"
+									+ (resource.find() ? resource.group(1)
+											: "stub") + "</jid></bind></iq>");
+							received.setLength(0);
+							logins.incrementAndGet();
+							stage = 4;
+						} else if (stage == 4) {
+							if (data.contains("</stream:stream>")) {
+								send(out, "</stream:stream>");
+								break;
+							}
+							// keeps the end of the data, in case the closing
+							// tag is split between reads
+							received.delete(0, Math.max(0,
+									received.length() - 16));
+						}
+					}
+					socket.close();
+				} catch (IOException e) {
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static void send(OutputStream out, String data)
+			throws IOException {
+		out.write(data.getBytes("UTF-8"));
+		out.flush();
+	}
+
+	/**
+	 * Counts the classes in the class loading log of the daemon.
+	 */
+	private static class ClassCounter extends Thread {
+
+		private final InputStream in;
+		private int classes = 0;
+		private int uiClasses = 0;
+
+		private ClassCounter(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public void run() {
+			try {
+				BufferedReader reader = new BufferedReader(
+						new InputStreamReader(in, "UTF-8"));
+				String line;
+				while ((line = reader.readLine()) != null) {
+					// "[Loaded name from ...]" up to Java 8, "[...][class,load]
+					// name source: ..." after that
+					if (!line.startsWith("[Loaded ")
+							&& !line.contains("[class,load]"))
+						continue;
+					classes++;
+					if (line.contains(" java.awt.")
+							|| line.contains(" javax.swing.")
+							|| line.contains(" sun.awt."))
+						uiClasses++;
+				}
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.daemon;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ubc.cs317.xmpp.model.Contact;
+import ubc.cs317.xmpp.model.Message;
+import ubc.cs317.xmpp.model.Session;
+
+/**
+ * Measures the message dispatcher with a handler that takes a few milliseconds
+ * per message (standing in for a call to another service): several contacts
+ * send interleaved bursts of messages, and the time until all are handled is
+ * measured for one worker, which is what handling messages in the listening
+ * thread amounts to, and for more workers. The handler checks that each
+ * contact's messages arrive in order and never two at a time. Finally a
+ * burst larger than the queue limit is sent, to count the messages dropped
+ * and the longest time the listening thread was held. No connection is
+ * needed.
+ * 
+ * Usage: DispatcherBenchmark [contacts, default 50] [messages per contact,
+ * default 40] [handler time in ms, default 5]
+ */
+public class DispatcherBenchmark {
+
+	/**
+	 * Handler that sleeps for each message and counts messages of a contact
+	 * handled out of order or at the same time as another of the same contact.
+	 */
+	private static class SlowHandler implements MessageHandler {
+
+		private final long delay;
+		private final Map<Contact, Integer> last = new ConcurrentHashMap<Contact, Integer>();
+		private final Map<Contact, AtomicInteger> running = new ConcurrentHashMap<Contact, AtomicInteger>();
+		private final AtomicInteger violations = new AtomicInteger();
+		private CountDownLatch done;
+
+		private SlowHandler(long delay, List<Contact> contacts) {
+			this.delay = delay;
+			for (Contact contact : contacts) {
+				last.put(contact, -1);
+				running.put(contact, new AtomicInteger());
+			}
+		}
+
+		@Override
+		public void start(Session session, Properties settings) {
+		}
+
+		@Override
+		public void messageReceived(Session session, Message message) {
+			Contact contact = message.getFrom();
+			if (running.get(contact).incrementAndGet() != 1)
+				violations.incrementAndGet();
+			int index = Integer.parseInt(message.getTextMessage());
+			if (index != last.get(contact) + 1)
+				violations.incrementAndGet();
+			last.put(contact, index);
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			running.get(contact).decrementAndGet();
+			done.countDown();
+		}
+
+		@Override
+		public void stop() {
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		int contactCount = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		int perContact = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+		long delay = args.length > 2 ? Long.parseLong(args[2]) : 5;
+
+		List<Contact> contacts = new ArrayList<Contact>();
+		for (int i = 0; i < contactCount; i++)
+			contacts.add(new Contact("user" + i + "@example.com", null));
+
+		System.out.printf("%d contacts, %d messages each, handler takes "
+				+ "%d ms%n", contactCount, perContact, delay);
+		for (int workers : new int[] { 1, 4, 16 }) {
+			SlowHandler handler = new SlowHandler(delay, contacts);
+			handler.done = new CountDownLatch(contactCount * perContact);
+			MessageDispatcher dispatcher = new MessageDispatcher(null,
+					Collections.<MessageHandler> singletonList(handler),
+					workers, contactCount * perContact);
+			long start = System.nanoTime();
+			for (int i = 0; i < perContact; i++)
+				for (Contact contact : contacts)
+					dispatcher.messageReceived(new Message(contact, null,
+							Integer.toString(i)));
+			handler.done.await();
+			long elapsed = System.nanoTime() - start;
+			dispatcher.shutdown(1000);
+			System.out.printf("%2d workers: %6d ms, %6.0f messages/s, "
+					+ "%d order violations, %d dropped%n", workers,
+					TimeUnit.NANOSECONDS.toMillis(elapsed), contactCount
+							* perContact / (elapsed / 1e9),
+					handler.violations.get(), dispatcher.getDropped());
+			System.out.println("    " + dispatcher.getHandlerMetrics().get(0));
+			System.out.println("    " + dispatcher.getQueueMetrics());
+		}
+
+		// a burst ten times the queue limit, from a single contact
+		int limit = 100;
+		SlowHandler handler = new SlowHandler(delay, contacts);
+		handler.done = new CountDownLatch(0);
+		MessageDispatcher dispatcher = new MessageDispatcher(null,
+				Collections.<MessageHandler> singletonList(handler), 4, limit);
+		long longest = 0;
+		for (int i = 0; i < limit * 10; i++) {
+			long start = System.nanoTime();
+			dispatcher.messageReceived(new Message(contacts.get(0), null,
+					Integer.toString(i)));
+			longest = Math.max(longest, System.nanoTime() - start);
+		}
+		dispatcher.shutdown(limit * delay * 2);
+		System.out.printf("burst of %d with a queue limit of %d: %d dropped, "
+				+ "%d handled, at most %d waiting, listening thread held "
+				+ "at most %.3f ms%n", limit * 10, limit,
+				dispatcher.getDropped(), dispatcher.getHandlerMetrics().get(0)
+						.getCount(), dispatcher.getMaxQueued(), longest / 1e6);
+	}
+}
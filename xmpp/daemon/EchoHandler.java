@@ -0,0 +1,47 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.daemon;
+
+import java.util.Properties;
+
+import ubc.cs317.xmpp.exception.XMPPException;
+import ubc.cs317.xmpp.model.Message;
+import ubc.cs317.xmpp.model.Session;
+
+/**
+ * Message handler that replies to each message with the same text, preceded
+ * by the optional <code>echo.prefix</code> setting of the account. Useful to
+ * check that an account of the daemon is online.
+ */
+public class EchoHandler implements MessageHandler {
+
+	private String prefix = "";
+
+	@Override
+	public void start(Session session, Properties settings) {
+		prefix = settings.getProperty("echo.prefix", "");
+	}
+
+	@Override
+	public void messageReceived(Session session, Message message)
+			throws XMPPException {
+		session.getConversation(message.getFrom()).addOutgoingMessage(
+				new Message(null, message.getFrom(), prefix
+						+ message.getTextMessage()));
+	}
+
+	@Override
+	public void stop() {
+	}
+}
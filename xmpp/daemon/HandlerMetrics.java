@@ -0,0 +1,112 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.daemon;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency statistics of a message handler: how many messages it handled, how
+ * many failed, and how long it took to handle them. Latencies are counted in
+ * buckets growing by powers of two from one microsecond, so percentiles are
+ * approximate (within a factor of two) but recording is cheap and uses
+ * constant memory. Thread-safe.
+ */
+public class HandlerMetrics {
+
+	private static final int BUCKETS = 40;
+
+	private final String name;
+	private long count = 0;
+	private long errors = 0;
+	private long totalNanos = 0;
+	private long maxNanos = 0;
+	private final long[] buckets = new long[BUCKETS];
+
+	/**
+	 * Creates empty statistics.
+	 * 
+	 * @param name
+	 *            Name of what is measured, used in the string representation.
+	 */
+	public HandlerMetrics(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Records a message handled.
+	 * 
+	 * @param nanos
+	 *            Time taken to handle the message, in nanoseconds.
+	 * @param failed
+	 *            <code>true</code> if the handler failed.
+	 */
+	public synchronized void record(long nanos, boolean failed) {
+		count++;
+		if (failed)
+			errors++;
+		totalNanos += nanos;
+		maxNanos = Math.max(maxNanos, nanos);
+		long micros = Math.max(1, TimeUnit.NANOSECONDS.toMicros(nanos));
+		buckets[Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros))]++;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	public synchronized long getErrors() {
+		return errors;
+	}
+
+	public synchronized double getMeanMillis() {
+		return count == 0 ? 0 : totalNanos / 1e6 / count;
+	}
+
+	public synchronized double getMaxMillis() {
+		return maxNanos / 1e6;
+	}
+
+	/**
+	 * Returns an approximate percentile of the latency: the upper bound of the
+	 * bucket where the percentile falls, capped by the maximum latency.
+	 * 
+	 * @param percentile
+	 *            Percentile, between 0 and 100.
+	 * @return Latency in milliseconds, or 0 if nothing was recorded.
+	 */
+	public synchronized double getPercentileMillis(double percentile) {
+		if (count == 0)
+			return 0;
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets[i];
+			if (seen >= rank && seen > 0)
+				return Math.min((1L << (i + 1)) / 1e3, getMaxMillis());
+		}
+		return getMaxMillis();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%s: %d handled, %d failed, mean %.2f ms, "
+				+ "p50 %.2f ms, p99 %.2f ms, max %.2f ms", name, count,
+				errors, getMeanMillis(), getPercentileMillis(50),
+				getPercentileMillis(99), getMaxMillis());
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.daemon;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ubc.cs317.xmpp.exception.XMPPException;
+import ubc.cs317.xmpp.model.Contact;
+import ubc.cs317.xmpp.model.Conversation;
+import ubc.cs317.xmpp.model.Message;
+import ubc.cs317.xmpp.model.Session;
+import ubc.cs317.xmpp.model.listener.MessageListener;
+
+/**
+ * Passes the messages received by a session to message handlers in a pool of
+ * worker threads, so that slow handlers do not hold the connection's
+ * listening thread. Messages from the same contact are handled in the order
+ * they were received, one at a time, while messages from different contacts
+ * are handled in parallel, up to the number of workers.
+ * 
+ * Each contact with messages waiting has a queue; a contact's queue is given
+ * to a worker when its first message arrives, and the worker handles one
+ * message and gives the queue back to the pool if more messages are waiting,
+ * so a busy contact does not keep a worker from the others. The number of
+ * messages waiting in all queues is limited: messages arriving over the limit
+ * are dropped and counted, since blocking the listening thread would also
+ * stop keep-alives and other stanzas.
+ */
+public class MessageDispatcher implements MessageListener {
+
+	private final Session session;
+	private final List<MessageHandler> handlers;
+	private final List<HandlerMetrics> metrics = new ArrayList<HandlerMetrics>();
+	private final HandlerMetrics queueMetrics = new HandlerMetrics("queue wait");
+	private final int queueLimit;
+	private final ExecutorService workers;
+
+	/**
+	 * Messages waiting per contact, guarded by its own lock. A contact has a
+	 * queue only while it has messages waiting or being handled.
+	 */
+	private final Map<Contact, ConversationQueue> queues = new HashMap<Contact, ConversationQueue>();
+	private int queued = 0;
+	private int maxQueued = 0;
+	private long dropped = 0;
+	private boolean closed = false;
+
+	/**
+	 * Messages of a contact waiting to be handled.
+	 */
+	private class ConversationQueue implements Runnable {
+
+		private final Contact contact;
+		private final Queue<Message> messages = new ArrayDeque<Message>();
+		private final Queue<Long> arrivals = new ArrayDeque<Long>();
+
+		private ConversationQueue(Contact contact) {
+			this.contact = contact;
+		}
+
+		@Override
+		public void run() {
+			Message message;
+			long arrival;
+			synchronized (queues) {
+				message = messages.peek();
+				arrival = arrivals.peek();
+			}
+			queueMetrics.record(System.nanoTime() - arrival, false);
+			try {
+				handle(message);
+			} finally {
+				// even if a handler threw an Error, the message is done and
+				// the contact's queue moves on
+				next();
+			}
+		}
+
+		private void next() {
+			synchronized (queues) {
+				messages.poll();
+				arrivals.poll();
+				queued--;
+				if (messages.isEmpty()) {
+					queues.remove(contact);
+					queues.notifyAll();
+					return;
+				}
+			}
+			// the next message of this contact waits for its turn
+			try {
+				workers.execute(this);
+			} catch (RejectedExecutionException e) {
+				// shut down before the queue was emptied
+				synchronized (queues) {
+					dropped += messages.size();
+					queued -= messages.size();
+					queues.remove(contact);
+					queues.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates a dispatcher for the messages of a session. The dispatcher must
+	 * still be added as a message listener of the session.
+	 * 
+	 * @param session
+	 *            Session passed to the handlers.
+	 * @param handlers
+	 *            Handlers called for each message, in order.
+	 * @param workers
+	 *            Number of worker threads.
+	 * @param queueLimit
+	 *            Maximum number of messages waiting to be handled.
+	 */
+	public MessageDispatcher(Session session, List<MessageHandler> handlers,
+			int workers, int queueLimit) {
+		if (workers < 1)
+			throw new IllegalArgumentException(
+					"The number of workers must be positive");
+		if (queueLimit < 1)
+			throw new IllegalArgumentException(
+					"The queue limit must be positive");
+		this.session = session;
+		this.handlers = new ArrayList<MessageHandler>(handlers);
+		for (MessageHandler handler : handlers)
+			metrics.add(new HandlerMetrics(handler.getClass().getName()));
+		this.queueLimit = queueLimit;
+		final AtomicInteger threads = new AtomicInteger();
+		this.workers = Executors.newFixedThreadPool(workers,
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Message worker "
+								+ threads.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	@Override
+	public void messageReceived(Message message) {
+		ConversationQueue queue;
+		synchronized (queues) {
+			if (closed || queued >= queueLimit) {
+				dropped++;
+				return;
+			}
+			queue = queues.get(message.getFrom());
+			boolean idle = queue == null;
+			if (idle) {
+				queue = new ConversationQueue(message.getFrom());
+				queues.put(message.getFrom(), queue);
+			}
+			queue.messages.add(message);
+			queue.arrivals.add(System.nanoTime());
+			queued++;
+			maxQueued = Math.max(maxQueued, queued);
+			if (!idle)
+				return;
+		}
+		workers.execute(queue);
+	}
+
+	@Override
+	public void messageSent(Message message) {
+	}
+
+	@Override
+	public void archivedMessagesLoaded(Conversation conversation,
+			List<Message> messages) {
+	}
+
+	private void handle(Message message) {
+		for (int i = 0; i < handlers.size(); i++) {
+			long start = System.nanoTime();
+			boolean failed = true;
+			try {
+				handlers.get(i).messageReceived(session, message);
+				failed = false;
+			} catch (XMPPException e) {
+				System.err.println("Handler " + metrics.get(i).getName()
+						+ " failed: " + e.getMessage());
+			} catch (RuntimeException e) {
+				// a failing handler does not stop the others
+				System.err.println("Handler " + metrics.get(i).getName()
+						+ " failed: " + e);
+				e.printStackTrace();
+			} finally {
+				metrics.get(i).record(System.nanoTime() - start, failed);
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting messages and waits for the messages already waiting to
+	 * be handled.
+	 * 
+	 * @param timeout
+	 *            Maximum time to wait, in milliseconds.
+	 * @return <code>true</code> if all waiting messages were handled.
+	 */
+	public boolean shutdown(long timeout) {
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(timeout);
+		boolean empty;
+		synchronized (queues) {
+			closed = true;
+			try {
+				long remaining;
+				while (!queues.isEmpty()
+						&& (remaining = deadline - System.nanoTime()) > 0)
+					TimeUnit.NANOSECONDS.timedWait(queues, remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			empty = queues.isEmpty();
+		}
+		workers.shutdown();
+		return empty;
+	}
+
+	/**
+	 * Returns the latency statistics of each handler, in the order of the
+	 * handlers.
+	 */
+	public List<HandlerMetrics> getHandlerMetrics() {
+		return Collections.unmodifiableList(metrics);
+	}
+
+	/**
+	 * Returns the statistics of the time messages waited before being
+	 * handled.
+	 */
+	public HandlerMetrics getQueueMetrics() {
+		return queueMetrics;
+	}
+
+	/**
+	 * Returns the number of messages dropped because the queue limit was
+	 * reached, or because they arrived after the dispatcher was shut down.
+	 */
+	public long getDropped() {
+		synchronized (queues) {
+			return dropped;
+		}
+	}
+
+	/**
+	 * Returns the largest number of messages waiting at the same time.
+	 */
+	public int getMaxQueued() {
+		synchronized (queues) {
+			return maxQueued;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.daemon;
+
+import java.util.Properties;
+
+import ubc.cs317.xmpp.exception.XMPPException;
+import ubc.cs317.xmpp.model.Message;
+import ubc.cs317.xmpp.model.Session;
+
+/**
+ * Handles messages received by an account of the daemon. Handlers are listed
+ * by class name in the daemon configuration, and are created with their
+ * public constructor without arguments, one instance per account.
+ * 
+ * Handlers are called from worker threads: messages from the same contact
+ * are handled one at a time, in the order they were received, but messages
+ * from different contacts may be handled at the same time, so handlers must
+ * be thread-safe.
+ */
+public interface MessageHandler {
+
+	/**
+	 * Called once the account is logged in, before any message is handled.
+	 * 
+	 * @param session
+	 *            Session of the account.
+	 * @param settings
+	 *            Settings of the account, with the account name prefix
+	 *            removed from the keys (e.g., <code>echo.prefix</code> in the
+	 *            configuration of the account <code>bot</code> is available
+	 *            as <code>echo.prefix</code> for the key
+	 *            <code>bot.echo.prefix</code>).
+	 * @throws XMPPException
+	 *             If the handler cannot be started; the account is logged out.
+	 */
+	public void start(Session session, Properties settings)
+			throws XMPPException;
+
+	/**
+	 * Called for each message received by the account.
+	 * 
+	 * @param session
+	 *            Session of the account.
+	 * @param message
+	 *            Message received.
+	 * @throws XMPPException
+	 *             If the message could not be handled; the error is logged and
+	 *             the next messages are still handled.
+	 */
+	public void messageReceived(Session session, Message message)
+			throws XMPPException;
+
+	/**
+	 * Called when the daemon shuts down, before the account is logged out.
+	 */
+	public void stop();
+}
@@ -0,0 +1,340 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ubc.cs317.xmpp.exception.XMPPException;
+import ubc.cs317.xmpp.model.listener.ChatRoomListener;
+import ubc.cs317.xmpp.net.HashedWheelTimer;
+
+/**
+ * This class represents a multi-user chat room (XEP-0045) joined in a session.
+ * 
+ * Occupants are kept in a concurrent map sorted by nickname, so they can be
+ * looked up, added and removed in logarithmic time and listed in order without
+ * locking, even in rooms with thousands of occupants. Presence changes are
+ * applied to the map immediately, but listeners are notified in batches: all
+ * changes received within a short interval are reported in a single event,
+ * and an occupant that changes several times in that interval is reported
+ * only once, with its latest state.
+ * 
+ * Messages are kept in a ring buffer of fixed size, so the memory used by a
+ * busy room does not grow over time.
+ */
+public class ChatRoom {
+
+	/**
+	 * Default number of messages kept in the room history.
+	 */
+	public static final int DEFAULT_HISTORY_SIZE = 500;
+
+	/**
+	 * Interval during which presence changes are collected before listeners
+	 * are notified, in milliseconds.
+	 */
+	private static final long PRESENCE_COALESCE_MILLIS = 250;
+
+	private Session session;
+	private String roomJid;
+	private volatile String nick;
+	private volatile String subject;
+	private volatile boolean joined = false;
+
+	private final ConcurrentSkipListMap<String, Occupant> occupants = new ConcurrentSkipListMap<String, Occupant>();
+	private final AtomicInteger occupantCount = new AtomicInteger();
+	private final RingBuffer<RoomMessage> history;
+
+	private final Set<String> pendingNicks = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+	private Set<ChatRoomListener> listeners = new CopyOnWriteArraySet<ChatRoomListener>();
+
+	/**
+	 * Creates a room in the specified session. The room is only joined once
+	 * the session sends the corresponding presence.
+	 * 
+	 * @param session
+	 *            Session object used for communication with the server.
+	 * @param roomJid
+	 *            Bare JID of the room.
+	 * @param nick
+	 *            Nickname used by the local user in the room.
+	 * @param historySize
+	 *            Number of messages kept in the room history.
+	 */
+	public ChatRoom(Session session, String roomJid, String nick,
+			int historySize) {
+		if (session == null || roomJid == null || nick == null)
+			throw new NullPointerException();
+		this.session = session;
+		this.roomJid = roomJid;
+		this.nick = nick;
+		this.history = new RingBuffer<RoomMessage>(historySize);
+	}
+
+	/**
+	 * Adds a listener to be called when there is an event in this room.
+	 * 
+	 * @param listener
+	 *            Listener to be called for room events.
+	 */
+	public void addChatRoomListener(ChatRoomListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Removes a listener previously added to this room.
+	 * 
+	 * @param listener
+	 *            Listener to be removed.
+	 */
+	public void removeChatRoomListener(ChatRoomListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Returns the bare JID of the room.
+	 * 
+	 * @return JID of the room.
+	 */
+	public String getRoomJid() {
+		return roomJid;
+	}
+
+	/**
+	 * Returns the nickname used by the local user in the room.
+	 * 
+	 * @return Nickname of the local user.
+	 */
+	public String getNick() {
+		return nick;
+	}
+
+	/**
+	 * Returns the current subject of the room.
+	 * 
+	 * @return Subject of the room, or null if none was received.
+	 */
+	public String getSubject() {
+		return subject;
+	}
+
+	/**
+	 * Indicates if the room was joined, i.e., if the room confirmed the
+	 * presence of the local user.
+	 * 
+	 * @return <code>true</code> if the room is joined.
+	 */
+	public boolean isJoined() {
+		return joined;
+	}
+
+	/**
+	 * Returns the current occupants of the room, sorted by nickname. The
+	 * returned collection is a live, unmodifiable view, and can be iterated
+	 * while it is changed by incoming presence.
+	 * 
+	 * @return Occupants of the room.
+	 */
+	public Collection<Occupant> getOccupants() {
+		return Collections.unmodifiableCollection(occupants.values());
+	}
+
+	/**
+	 * Returns the occupant with a specific nickname.
+	 * 
+	 * @param nick
+	 *            Nickname of the occupant.
+	 * @return The occupant, or null if there is no occupant with this
+	 *         nickname.
+	 */
+	public Occupant getOccupant(String nick) {
+		return occupants.get(nick);
+	}
+
+	/**
+	 * Returns the number of occupants in the room. Unlike the size of the
+	 * occupant map, this count is kept up to date and returned in constant
+	 * time.
+	 * 
+	 * @return Number of occupants.
+	 */
+	public int getOccupantCount() {
+		return occupantCount.get();
+	}
+
+	/**
+	 * Returns the buffer with the most recent messages in the room.
+	 * 
+	 * @return The room history.
+	 */
+	public RingBuffer<RoomMessage> getHistory() {
+		return history;
+	}
+
+	/**
+	 * Sends a message to all occupants of the room. The message is not added
+	 * to the history directly, since the room reflects it back to the sender.
+	 * 
+	 * @param text
+	 *            Body of the message.
+	 * @throws XMPPException
+	 *             If there is a problem sending the message.
+	 */
+	public void sendMessage(String text) throws XMPPException {
+		session.sendRoomMessage(this, text);
+	}
+
+	/**
+	 * Updates an occupant based on a presence received from the room.
+	 * 
+	 * @param occupant
+	 *            The occupant, as described by the presence.
+	 */
+	public void occupantPresence(Occupant occupant) {
+		if (occupants.put(occupant.getNick(), occupant) == null)
+			occupantCount.incrementAndGet();
+		presenceChanged(occupant.getNick());
+	}
+
+	/**
+	 * Removes an occupant that left the room.
+	 * 
+	 * @param nick
+	 *            Nickname of the occupant.
+	 */
+	public void occupantLeft(String nick) {
+		if (occupants.remove(nick) != null)
+			occupantCount.decrementAndGet();
+		presenceChanged(nick);
+	}
+
+	private void presenceChanged(String nick) {
+		pendingNicks.add(nick);
+		if (flushScheduled.compareAndSet(false, true))
+			HashedWheelTimer.getSharedTimer().schedule(new Runnable() {
+				@Override
+				public void run() {
+					flushPresence();
+				}
+			}, PRESENCE_COALESCE_MILLIS);
+	}
+
+	private void flushPresence() {
+		// cleared before draining, so a change received during the flush
+		// schedules a new one
+		flushScheduled.set(false);
+
+		List<Occupant> present = new ArrayList<Occupant>();
+		List<String> left = new ArrayList<String>();
+		Iterator<String> iterator = pendingNicks.iterator();
+		while (iterator.hasNext()) {
+			String pendingNick = iterator.next();
+			iterator.remove();
+			Occupant occupant = occupants.get(pendingNick);
+			if (occupant == null)
+				left.add(pendingNick);
+			else
+				present.add(occupant);
+		}
+		if (present.isEmpty() && left.isEmpty())
+			return;
+
+		for (ChatRoomListener listener : listeners)
+			listener.occupantsChanged(this, present, left);
+	}
+
+	/**
+	 * Adds a message received from the room to the history.
+	 * 
+	 * @param message
+	 *            The received message.
+	 */
+	public void addIncomingMessage(RoomMessage message) {
+		history.add(message);
+		for (ChatRoomListener listener : listeners)
+			listener.roomMessageReceived(this, message);
+	}
+
+	/**
+	 * Changes the subject of the room.
+	 * 
+	 * @param subject
+	 *            The new subject.
+	 */
+	public void setSubject(String subject) {
+		this.subject = subject;
+		for (ChatRoomListener listener : listeners)
+			listener.subjectChanged(this, subject);
+	}
+
+	/**
+	 * Marks the room as joined. This method is called when the room sends the
+	 * presence of the local user.
+	 * 
+	 * @param nick
+	 *            Nickname assigned by the room to the local user, which may
+	 *            differ from the requested one.
+	 */
+	public void joined(String nick) {
+		this.nick = nick;
+		if (joined)
+			return;
+		joined = true;
+		for (ChatRoomListener listener : listeners)
+			listener.roomJoined(this);
+	}
+
+	/**
+	 * Marks the room as left, either because the local user left it or
+	 * because the room removed the user (or refused the join request).
+	 * 
+	 * @param reason
+	 *            Reason for leaving, or null if the user left voluntarily.
+	 */
+	public void left(String reason) {
+		joined = false;
+		clearOccupants();
+		for (ChatRoomListener listener : listeners)
+			listener.roomLeft(this, reason);
+	}
+
+	/**
+	 * Removes all occupants, e.g., because the room is being joined again
+	 * after the connection was re-established. Listeners are notified as for
+	 * any other occupant that left.
+	 */
+	public void clearOccupants() {
+		joined = false;
+		for (String occupantNick : occupants.keySet())
+			occupantLeft(occupantNick);
+	}
+
+	@Override
+	public String toString() {
+		return roomJid;
+	}
+}
@@ -14,10 +14,13 @@
 package ubc.cs317.xmpp.model;
 
 import java.security.InvalidParameterException;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 import ubc.cs317.xmpp.model.listener.ContactListener;
 
@@ -35,6 +38,11 @@ public class Contact implements Comparable<Contact> {
 	 * Alias used to represent this contact to the user.
 	 */
 	private String alias;
+	/**
+	 * Names of the roster groups the contact belongs to (RFC 6121, section
+	 * 2.1.2.5). Empty if the contact is not in any group.
+	 */
+	private volatile Set<String> groups = Collections.emptySet();
 	/**
 	 * A mapping between different resources associated to the user and their
 	 * last advertised status.
@@ -69,6 +77,21 @@ public class Contact implements Comparable<Contact> {
 		setAlias(alias);
 	}
 
+	/**
+	 * Creates a contact with the provided JID, alias and roster groups.
+	 * 
+	 * @param bareJid
+	 *            Bare JID (without resource) of the contact.
+	 * @param alias
+	 *            Alias for the contact.
+	 * @param groups
+	 *            Names of the groups the contact belongs to.
+	 */
+	public Contact(String bareJid, String alias, Collection<String> groups) {
+		this(bareJid, alias);
+		setGroupsWithoutNotification(groups);
+	}
+
 	/**
 	 * Returns the alias for the contact.
 	 * 
@@ -89,6 +112,55 @@ public class Contact implements Comparable<Contact> {
 		triggerContactChanged();
 	}
 
+	/**
+	 * Sets a new alias for the contact without calling the contact listeners.
+	 * Used by the session when the change is reported as part of a batch.
+	 * 
+	 * @param alias
+	 *            New alias of the contact.
+	 */
+	void setAliasWithoutNotification(String alias) {
+		this.alias = alias;
+	}
+
+	/**
+	 * Returns the names of the roster groups the contact belongs to.
+	 * 
+	 * @return Unmodifiable set of group names, empty if the contact is not in
+	 *         any group.
+	 */
+	public Set<String> getGroups() {
+		return groups;
+	}
+
+	/**
+	 * Sets the roster groups the contact belongs to. Empty names are ignored.
+	 * 
+	 * @param groups
+	 *            Names of the groups.
+	 */
+	public void setGroups(Collection<String> groups) {
+		setGroupsWithoutNotification(groups);
+		triggerContactChanged();
+	}
+
+	/**
+	 * Sets the roster groups of the contact without calling the contact
+	 * listeners. Used by the session when the change is reported as part of a
+	 * batch.
+	 * 
+	 * @param groups
+	 *            Names of the groups.
+	 */
+	void setGroupsWithoutNotification(Collection<String> groups) {
+		Set<String> names = new TreeSet<String>();
+		for (String group : groups)
+			if (group != null && !group.trim().isEmpty())
+				names.add(group.trim());
+		this.groups = names.isEmpty() ? Collections.<String> emptySet()
+				: Collections.unmodifiableSet(names);
+	}
+
 	/**
 	 * Returns the bare JID (without resource) of the contact.
 	 * 
@@ -114,6 +186,26 @@ public class Contact implements Comparable<Contact> {
 			return bareJid + "/" + lockedResource;
 	}
 
+	/**
+	 * Returns a full JID of the contact that can receive requests addressed
+	 * to a specific resource, such as file transfers. The locked resource is
+	 * preferred; otherwise the most available resource is used.
+	 * 
+	 * @return Full JID of the contact, or null if no resource is available.
+	 */
+	public synchronized String getAvailableFullJid() {
+		if (lockedResource != null)
+			return bareJid + "/" + lockedResource;
+		String resource = null;
+		ContactStatus best = ContactStatus.OFFLINE;
+		for (Map.Entry<String, ContactStatus> entry : resourceStatus.entrySet())
+			if (entry.getKey() != null && entry.getValue().compareTo(best) < 0) {
+				resource = entry.getKey();
+				best = entry.getValue();
+			}
+		return resource == null ? null : bareJid + "/" + resource;
+	}
+
 	/**
 	 * Locks the current resource of the contact. This method is called when a
 	 * new message is received from this contact. Any future communication to
@@ -17,11 +17,14 @@ import java.security.InvalidParameterException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import ubc.cs317.xmpp.exception.XMPPException;
 import ubc.cs317.xmpp.model.listener.MessageListener;
+import ubc.cs317.xmpp.net.ArchivePage;
 
 /**
  * This class represents a conversation thread with a specific contact.
@@ -48,6 +51,43 @@ public class Conversation {
 	 */
 	private Set<MessageListener> messageListeners = new HashSet<MessageListener>();
 
+	/**
+	 * Maximum number of message ids remembered by a conversation.
+	 */
+	public static final int KNOWN_IDS_CAPACITY = 2000;
+
+	/**
+	 * Ids (archive and origin ids) of the most recent messages added to this
+	 * conversation, used to discard messages retrieved from the archive, or
+	 * copies received from other resources, that are already in the
+	 * conversation. Copies and archived messages only overlap with recent
+	 * messages (archived pages are loaded backwards, and only the first ones
+	 * overlap with the messages received live), so the ids used least
+	 * recently are forgotten first, and memory does not grow with the length
+	 * of the conversation.
+	 */
+	private Map<String, Boolean> knownIds = new LinkedHashMap<String, Boolean>(
+			KNOWN_IDS_CAPACITY * 4 / 3 + 1, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > KNOWN_IDS_CAPACITY;
+		}
+	};
+
+	/**
+	 * State of the retrieval of older messages from the server archive. Pages
+	 * are requested backwards from the most recent message. Once a page is
+	 * displayed, the next one is requested in the background, so it is ready
+	 * when the user scrolls to it.
+	 */
+	private String archiveCursor = "";
+	private boolean archiveComplete = false;
+	private boolean archiveRequestPending = false;
+	private boolean archivePageWanted = false;
+	private ArchivePage prefetchedPage;
+
 	/**
 	 * Creates a conversation for a specific contact in the specified session.
 	 * 
@@ -89,7 +129,34 @@ public class Conversation {
 			throw new InvalidParameterException(
 					"Message not associated to this conversation.");
 		session.sendMessage(message);
-		this.messageList.add(message);
+		synchronized (this) {
+			this.messageList.add(message);
+			rememberIds(message);
+		}
+
+		for (MessageListener listener : messageListeners)
+			listener.messageSent(message);
+	}
+
+	/**
+	 * Adds a message sent from the user to the contact by another resource of
+	 * the account (a carbon copy) to the list of messages. The message is not
+	 * sent again, and is ignored if it is already in the conversation.
+	 * 
+	 * @param message
+	 *            Message to be added.
+	 */
+	public void addSentCopy(Message message) {
+		if (message.getFrom() != null || !contact.equals(message.getTo()))
+			throw new InvalidParameterException(
+					"Message not associated to this conversation.");
+
+		synchronized (this) {
+			if (isKnown(message))
+				return;
+			this.messageList.add(message);
+			rememberIds(message);
+		}
 
 		for (MessageListener listener : messageListeners)
 			listener.messageSent(message);
@@ -97,7 +164,7 @@ public class Conversation {
 
 	/**
 	 * Adds a message received from the contact to the user to the list of
-	 * messages.
+	 * messages. The message is ignored if it is already in the conversation.
 	 * 
 	 * @param message
 	 *            Message to be added.
@@ -110,7 +177,12 @@ public class Conversation {
 			throw new InvalidParameterException(
 					"Message not associated to this conversation.");
 
-		this.messageList.add(message);
+		synchronized (this) {
+			if (isKnown(message))
+				return;
+			this.messageList.add(message);
+			rememberIds(message);
+		}
 		message.getFrom().lockResource(resource);
 
 		for (MessageListener listener : messageListeners)
@@ -131,7 +203,143 @@ public class Conversation {
 	 * 
 	 * @return List of messages in this conversation.
 	 */
-	public List<Message> getMessageList() {
-		return Collections.unmodifiableList(this.messageList);
+	public synchronized List<Message> getMessageList() {
+		// a copy, since archived messages may be added while it is iterated
+		return Collections.unmodifiableList(new ArrayList<Message>(
+				this.messageList));
+	}
+
+	/**
+	 * Indicates if there may be older messages in the server archive that
+	 * were not yet loaded.
+	 * 
+	 * @return <code>false</code> if all archived messages were loaded or the
+	 *         archive is not available.
+	 */
+	public synchronized boolean hasOlderMessages() {
+		return !archiveComplete || prefetchedPage != null;
+	}
+
+	/**
+	 * Requests that the next page of older messages be added to the beginning
+	 * of this conversation. If the page was already prefetched, it is added
+	 * immediately; otherwise it is requested from the server and added once
+	 * received. Listeners are notified through
+	 * <code>archivedMessagesLoaded</code>. Calling this method while a page is
+	 * being loaded has no additional effect.
+	 */
+	public void loadOlderMessages() {
+		ArchivePage page;
+		synchronized (this) {
+			page = prefetchedPage;
+			prefetchedPage = null;
+			if (page == null)
+				archivePageWanted = true;
+		}
+		if (page == null)
+			requestArchivePage();
+		else
+			addArchivedPage(page);
+	}
+
+	/**
+	 * Requests the next page of older messages, unless it was already
+	 * requested or received. Must not be called while holding the lock of
+	 * this conversation: sending the request waits for the connection's write
+	 * lock, which the listening thread may hold while it adds a received
+	 * message to this conversation.
+	 */
+	private void requestArchivePage() {
+		String cursor;
+		synchronized (this) {
+			if (archiveComplete || archiveRequestPending
+					|| prefetchedPage != null)
+				return;
+			archiveRequestPending = true;
+			cursor = archiveCursor;
+		}
+		try {
+			session.requestArchivePage(contact, cursor,
+					new ArchivePage.Callback() {
+						@Override
+						public void pageReceived(ArchivePage page) {
+							archivePageReceived(page);
+						}
+
+						@Override
+						public void pageFailed(XMPPException exception) {
+							synchronized (Conversation.this) {
+								archiveRequestPending = false;
+								// the archive is not available (or not
+								// supported), so it is not requested again
+								archiveComplete = true;
+							}
+							System.out.println("\n" + "Could not load archived messages: "
+									+ exception.getMessage());
+						}
+					});
+		} catch (XMPPException e) {
+			synchronized (this) {
+				archiveRequestPending = false;
+				archiveComplete = true;
+			}
+		}
+	}
+
+	private void archivePageReceived(ArchivePage page) {
+		boolean display;
+		synchronized (this) {
+			archiveRequestPending = false;
+			if (page.getFirstId() != null)
+				archiveCursor = page.getFirstId();
+			archiveComplete = page.isComplete() || page.getFirstId() == null;
+			display = archivePageWanted;
+			archivePageWanted = false;
+			if (!display)
+				prefetchedPage = page;
+		}
+		if (display)
+			addArchivedPage(page);
+	}
+
+	/**
+	 * Adds a page of archived messages to the beginning of the conversation,
+	 * discarding messages already known, and prefetches the next page.
+	 */
+	private void addArchivedPage(ArchivePage page) {
+		List<Message> added = new ArrayList<Message>();
+		synchronized (this) {
+			for (Message message : page.getMessages())
+				if (!isKnown(message)) {
+					added.add(message);
+					rememberIds(message);
+				}
+			this.messageList.addAll(0, added);
+
+			if (added.isEmpty() && !archiveComplete) {
+				// all messages were duplicates, so the next page is shown
+				// instead
+				archivePageWanted = true;
+			}
+		}
+		requestArchivePage();
+
+		if (!added.isEmpty())
+			for (MessageListener listener : messageListeners)
+				listener.archivedMessagesLoaded(this, added);
+	}
+
+	private boolean isKnown(Message message) {
+		return (message.getStanzaId() != null && knownIds.containsKey(message
+				.getStanzaId()))
+				|| (message.getOriginId() != null && knownIds
+						.containsKey(message.getOriginId()));
+	}
+
+	private void rememberIds(Message message) {
+		if (message.getStanzaId() != null)
+			knownIds.put(message.getStanzaId(), Boolean.TRUE);
+		if (message.getOriginId() != null)
+			knownIds.put(message.getOriginId(), Boolean.TRUE);
 	}
 }
@@ -40,6 +40,16 @@ public class Message {
 	 * Date/time when the message was sent or received.
 	 */
 	private Date timestamp;
+	/**
+	 * Id assigned to the message by the server archive (XEP-0359 stanza-id),
+	 * if known.
+	 */
+	private String stanzaId;
+	/**
+	 * Id assigned to the message by the client that sent it (XEP-0359
+	 * origin-id), if known.
+	 */
+	private String originId;
 
 	/**
 	 * Creates a new message with the provided contacts, text message and
@@ -85,6 +95,33 @@ public class Message {
 		this(from, to, textMessage, new Date());
 	}
 
+	/**
+	 * Creates a new message with the provided contacts, text message,
+	 * timestamp and unique ids. The ids are used to recognise the same message
+	 * when it is received both live and from the server archive.
+	 * 
+	 * @param from
+	 *            Contact that sent the message. Should be null if the local
+	 *            user sent the message.
+	 * @param to
+	 *            Contact to whom the message was intended. Should be null if
+	 *            the message was sent to the local user.
+	 * @param textMessage
+	 *            Body of the message.
+	 * @param timestamp
+	 *            Date/time when the message was sent or received.
+	 * @param stanzaId
+	 *            Id assigned by the server archive, or null if unknown.
+	 * @param originId
+	 *            Id assigned by the sending client, or null if unknown.
+	 */
+	public Message(Contact from, Contact to, String textMessage,
+			Date timestamp, String stanzaId, String originId) {
+		this(from, to, textMessage, timestamp);
+		this.stanzaId = stanzaId;
+		this.originId = originId;
+	}
+
 	/**
 	 * Returns the contact that sent the message.
 	 * 
@@ -122,4 +159,33 @@ public class Message {
 	public Date getTimestamp() {
 		return timestamp;
 	}
+
+	/**
+	 * Returns the id assigned to the message by the server archive.
+	 * 
+	 * @return The archive id, or null if unknown.
+	 */
+	public String getStanzaId() {
+		return stanzaId;
+	}
+
+	/**
+	 * Returns the id assigned to the message by the client that sent it.
+	 * 
+	 * @return The origin id, or null if unknown.
+	 */
+	public String getOriginId() {
+		return originId;
+	}
+
+	/**
+	 * Sets the id assigned to the message by the client that sent it. Used for
+	 * outgoing messages, whose id is only assigned when they are sent.
+	 * 
+	 * @param originId
+	 *            The origin id.
+	 */
+	public void setOriginId(String originId) {
+		this.originId = originId;
+	}
 }
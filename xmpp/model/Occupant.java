@@ -0,0 +1,110 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.model;
+
+/**
+ * An occupant of a multi-user chat room, as described by the last presence
+ * received for it. Instances are immutable: a new presence replaces the
+ * occupant in the room.
+ */
+public class Occupant implements Comparable<Occupant> {
+
+	private String nick;
+	private String role;
+	private String affiliation;
+	private String jid;
+	private ContactStatus status;
+
+	/**
+	 * Creates an occupant.
+	 * 
+	 * @param nick
+	 *            Nickname of the occupant in the room.
+	 * @param role
+	 *            Role of the occupant (e.g., moderator, participant).
+	 * @param affiliation
+	 *            Affiliation of the occupant (e.g., owner, member, none).
+	 * @param jid
+	 *            Real JID of the occupant, or null if the room does not
+	 *            disclose it.
+	 * @param status
+	 *            Presence status of the occupant.
+	 */
+	public Occupant(String nick, String role, String affiliation, String jid,
+			ContactStatus status) {
+		if (nick == null || status == null)
+			throw new NullPointerException();
+		this.nick = nick;
+		this.role = role;
+		this.affiliation = affiliation;
+		this.jid = jid;
+		this.status = status;
+	}
+
+	/**
+	 * Returns the nickname of the occupant in the room.
+	 * 
+	 * @return Nickname of the occupant.
+	 */
+	public String getNick() {
+		return nick;
+	}
+
+	/**
+	 * Returns the role of the occupant in the room.
+	 * 
+	 * @return Role of the occupant, or null if not informed.
+	 */
+	public String getRole() {
+		return role;
+	}
+
+	/**
+	 * Returns the affiliation of the occupant with the room.
+	 * 
+	 * @return Affiliation of the occupant, or null if not informed.
+	 */
+	public String getAffiliation() {
+		return affiliation;
+	}
+
+	/**
+	 * Returns the real JID of the occupant.
+	 * 
+	 * @return Real JID of the occupant, or null if the room does not disclose
+	 *         it.
+	 */
+	public String getJid() {
+		return jid;
+	}
+
+	/**
+	 * Returns the presence status of the occupant.
+	 * 
+	 * @return Status of the occupant.
+	 */
+	public ContactStatus getStatus() {
+		return status;
+	}
+
+	@Override
+	public String toString() {
+		return nick;
+	}
+
+	@Override
+	public int compareTo(Occupant other) {
+		return this.nick.compareTo(other.nick);
+	}
+}
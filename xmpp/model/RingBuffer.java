@@ -0,0 +1,115 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bounded buffer that keeps the most recent elements added to it. When the
+ * buffer is full, adding an element discards the oldest one, so memory use is
+ * constant regardless of how many elements are added. Every element receives
+ * a sequence number (starting at zero), which allows consumers to retrieve
+ * only the elements added since they last looked at the buffer.
+ * 
+ * @param <E>
+ *            Type of the elements in the buffer.
+ */
+public class RingBuffer<E> {
+
+	private Object[] elements;
+	private long nextSequence = 0;
+
+	/**
+	 * Creates an empty buffer.
+	 * 
+	 * @param capacity
+	 *            Maximum number of elements kept in the buffer.
+	 */
+	public RingBuffer(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive.");
+		this.elements = new Object[capacity];
+	}
+
+	/**
+	 * Adds an element to the buffer, discarding the oldest element if the
+	 * buffer is full.
+	 * 
+	 * @param element
+	 *            Element to be added.
+	 * @return The sequence number of the added element.
+	 */
+	public synchronized long add(E element) {
+		elements[(int) (nextSequence % elements.length)] = element;
+		return nextSequence++;
+	}
+
+	/**
+	 * Returns all elements in the buffer, from the oldest to the most recent.
+	 * 
+	 * @return A new list with the elements in the buffer.
+	 */
+	public synchronized List<E> toList() {
+		return getSince(0);
+	}
+
+	/**
+	 * Returns the elements whose sequence number is equal to or larger than
+	 * the specified one, from the oldest to the most recent. Elements already
+	 * discarded from the buffer are not included.
+	 * 
+	 * @param sequence
+	 *            Sequence number of the first element to be returned.
+	 * @return A new list with the requested elements.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized List<E> getSince(long sequence) {
+		long first = Math.max(sequence, nextSequence - elements.length);
+		first = Math.max(first, 0);
+		List<E> result = new ArrayList<E>((int) Math.max(0, nextSequence
+				- first));
+		for (long i = first; i < nextSequence; i++)
+			result.add((E) elements[(int) (i % elements.length)]);
+		return result;
+	}
+
+	/**
+	 * Returns the sequence number that will be assigned to the next element,
+	 * which is also the total number of elements ever added.
+	 * 
+	 * @return The next sequence number.
+	 */
+	public synchronized long getNextSequence() {
+		return nextSequence;
+	}
+
+	/**
+	 * Returns the number of elements currently in the buffer.
+	 * 
+	 * @return Number of elements in the buffer.
+	 */
+	public synchronized int size() {
+		return (int) Math.min(nextSequence, elements.length);
+	}
+
+	/**
+	 * Returns the maximum number of elements kept in the buffer.
+	 * 
+	 * @return Capacity of the buffer.
+	 */
+	public int getCapacity() {
+		return elements.length;
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.model;
+
+import java.util.Date;
+
+/**
+ * A message sent to a multi-user chat room. Messages sent by the local user
+ * are reflected by the room, so they are received as any other message.
+ */
+public class RoomMessage {
+
+	private String nick;
+	private String textMessage;
+	private Date timestamp;
+	private boolean delayed;
+
+	/**
+	 * Creates a room message.
+	 * 
+	 * @param nick
+	 *            Nickname of the occupant that sent the message, or null if
+	 *            the message was sent by the room itself.
+	 * @param textMessage
+	 *            Body of the message.
+	 * @param timestamp
+	 *            Date/time when the message was sent.
+	 * @param delayed
+	 *            <code>true</code> if the message is part of the history sent
+	 *            by the room when it was joined.
+	 */
+	public RoomMessage(String nick, String textMessage, Date timestamp,
+			boolean delayed) {
+		if (textMessage == null || timestamp == null)
+			throw new NullPointerException();
+		this.nick = nick;
+		this.textMessage = textMessage;
+		this.timestamp = timestamp;
+		this.delayed = delayed;
+	}
+
+	/**
+	 * Returns the nickname of the occupant that sent the message.
+	 * 
+	 * @return Nickname of the sender, or null if the message was sent by the
+	 *         room itself.
+	 */
+	public String getNick() {
+		return nick;
+	}
+
+	/**
+	 * Returns the body of the message.
+	 * 
+	 * @return Body of the message.
+	 */
+	public String getTextMessage() {
+		return textMessage;
+	}
+
+	/**
+	 * Returns the date/time when the message was sent.
+	 * 
+	 * @return Date/time of the message.
+	 */
+	public Date getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Indicates if the message is part of the room history.
+	 * 
+	 * @return <code>true</code> if the message was sent before the room was
+	 *         joined.
+	 */
+	public boolean isDelayed() {
+		return delayed;
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.model;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class stores a local copy of the list of contacts (roster) on disk,
+ * together with the roster version (XEP-0237) sent by the server. This allows
+ * the list of contacts to be shown as soon as the application starts, and the
+ * server to send only the changes since the stored version, instead of the
+ * entire roster.
+ * 
+ * The file contains the version in the first line, followed by one line per
+ * contact with the bare JID, the alias and the names of the contact's groups,
+ * if any, separated by tabs.
+ * 
+ * Changes pushed by the server are saved shortly after they are received,
+ * in a background thread, so that they are not lost if the process ends
+ * without closing the session; changes received within the delay are saved
+ * together.
+ */
+public class RosterCache {
+
+	/**
+	 * Delay before changes are saved, in milliseconds.
+	 */
+	public static final long SAVE_DELAY = 2000;
+
+	private static final ScheduledExecutorService writer = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Roster cache writer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private File cacheFile;
+
+	private String pendingVersion;
+	private Collection<Contact> pendingContacts = null;
+	private long saveCount = 0;
+
+	private final Runnable saveTask = new Runnable() {
+		@Override
+		public void run() {
+			savePending();
+		}
+	};
+
+	/**
+	 * Creates a roster cache for a specific user. The cache is stored in the
+	 * user's home directory.
+	 * 
+	 * @param userBareJid
+	 *            Bare JID of the logged in user.
+	 */
+	public RosterCache(String userBareJid) {
+		this(new File(System.getProperty("user.home"), ".simplechat-roster-"
+				+ userBareJid.replaceAll("[^A-Za-z0-9@._-]", "_") + ".txt"));
+	}
+
+	/**
+	 * Creates a roster cache stored in a specific file.
+	 * 
+	 * @param cacheFile
+	 *            File where the cache is stored.
+	 */
+	public RosterCache(File cacheFile) {
+		this.cacheFile = cacheFile;
+	}
+
+	/**
+	 * Loads the stored contacts into the provided collection.
+	 * 
+	 * @param contacts
+	 *            Collection where loaded contacts are added.
+	 * @return The stored roster version, or null if there is no valid cache.
+	 */
+	public synchronized String load(Collection<Contact> contacts) {
+		if (!cacheFile.exists())
+			return null;
+
+		List<Contact> loaded = new ArrayList<Contact>();
+		String version;
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(cacheFile), "UTF-8"));
+			try {
+				version = reader.readLine();
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] fields = line.split("\t");
+					try {
+						loaded.add(new Contact(fields[0],
+								fields.length > 1 ? fields[1] : "", Arrays
+										.asList(fields).subList(
+												Math.min(2, fields.length),
+												fields.length)));
+					} catch (InvalidParameterException e) {
+						// Ignore invalid entries
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (Exception e) {
+			// A corrupted cache is ignored, the full roster will be requested
+			e.printStackTrace();
+			return null;
+		}
+
+		contacts.addAll(loaded);
+		return version;
+	}
+
+	/**
+	 * Stores the provided contacts and roster version, replacing any
+	 * previously stored data.
+	 * 
+	 * @param version
+	 *            Roster version associated to the contacts, or null if the
+	 *            server does not support roster versioning.
+	 * @param contacts
+	 *            Contacts to be stored.
+	 */
+	public synchronized void save(String version, Collection<Contact> contacts) {
+		// replaces any save still waiting
+		pendingContacts = null;
+		saveCount++;
+		File tempFile = new File(cacheFile.getPath() + ".tmp");
+		try {
+			PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+					new FileOutputStream(tempFile), "UTF-8"));
+			writer.println(version == null ? "" : version);
+			for (Contact contact : contacts) {
+				String alias = contact.getAlias() == null ? "" : contact
+						.getAlias().replaceAll("[\t\r\n]", " ");
+				StringBuilder line = new StringBuilder(contact.getBareJid())
+						.append('\t').append(alias);
+				for (String group : contact.getGroups())
+					line.append('\t').append(
+							group.replaceAll("[\t\r\n]", " "));
+				writer.println(line);
+			}
+			writer.close();
+
+			// replaces the file only once it is complete, so that a crash
+			// while saving does not leave a truncated roster behind
+			if (!tempFile.renameTo(cacheFile)) {
+				cacheFile.delete();
+				tempFile.renameTo(cacheFile);
+			}
+		} catch (Exception e) {
+			// Ignore, the cache is an optimisation only
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stores the provided contacts and roster version after the save delay,
+	 * unless the cache is saved before that. If a save is already waiting, the
+	 * new contacts replace the ones it would have stored. The collection must
+	 * not be modified afterwards.
+	 * 
+	 * @param version
+	 *            Roster version associated to the contacts, or null if the
+	 *            server does not support roster versioning.
+	 * @param contacts
+	 *            Contacts to be stored.
+	 */
+	public synchronized void saveLater(String version,
+			Collection<Contact> contacts) {
+		boolean scheduled = pendingContacts != null;
+		pendingVersion = version;
+		pendingContacts = contacts;
+		if (!scheduled)
+			writer.schedule(saveTask, SAVE_DELAY, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized void savePending() {
+		if (pendingContacts != null)
+			save(pendingVersion, pendingContacts);
+	}
+
+	/**
+	 * Returns the number of times the cache was written to disk.
+	 */
+	public synchronized long getSaveCount() {
+		return saveCount;
+	}
+}
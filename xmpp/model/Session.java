@@ -13,19 +13,37 @@
 
 package ubc.cs317.xmpp.model;
 
+import java.io.File;
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import ubc.cs317.xmpp.exception.XMPPException;
+import ubc.cs317.xmpp.model.listener.ChatRoomListener;
+import ubc.cs317.xmpp.model.listener.ContactBatchListener;
 import ubc.cs317.xmpp.model.listener.ContactListener;
+import ubc.cs317.xmpp.model.listener.FileTransferListener;
 import ubc.cs317.xmpp.model.listener.MessageListener;
 import ubc.cs317.xmpp.model.listener.SessionListener;
 import ubc.cs317.xmpp.model.listener.SubscriptionRequestListener;
+import ubc.cs317.xmpp.net.ArchivePage;
+import ubc.cs317.xmpp.net.ConnectionConfiguration;
+import ubc.cs317.xmpp.net.ConnectionProgress;
+import ubc.cs317.xmpp.net.EntityCapsManager;
+import ubc.cs317.xmpp.net.FileTransfer;
+import ubc.cs317.xmpp.net.FileTransferManager;
+import ubc.cs317.xmpp.net.ReconnectManager;
+import ubc.cs317.xmpp.net.RosterBatchResult;
 import ubc.cs317.xmpp.net.XMPPConnection;
 
 /**
@@ -39,17 +57,51 @@ public class Session {
 	private XMPPConnection connection;
 	private boolean isConnectionClosed = false;
 
-	private Map<String, Contact> contacts = new HashMap<String, Contact>();
+	/**
+	 * Contacts by bare JID. Changed by the listening thread, and read by the
+	 * connection's writer and by the event dispatch thread.
+	 */
+	private Map<String, Contact> contacts = new ConcurrentHashMap<String, Contact>();
 	private Map<Contact, Conversation> conversations = new HashMap<Contact, Conversation>();
+	private Map<String, ChatRoom> rooms = new ConcurrentHashMap<String, ChatRoom>();
 
 	private Set<ContactListener> contactListeners = new HashSet<ContactListener>();
 	private Set<SubscriptionRequestListener> subscriptionRequestListeners = new HashSet<SubscriptionRequestListener>();
 	private Set<MessageListener> messageListeners = new HashSet<MessageListener>();
 	private Set<SessionListener> sessionListeners = new HashSet<SessionListener>();
+	private Set<ChatRoomListener> chatRoomListeners = new HashSet<ChatRoomListener>();
 
 	private String userJid;
 	private ContactStatus status;
 
+	private RosterCache rosterCache;
+	private String rosterVersion;
+
+	private final Object contactBatchLock = new Object();
+	private List<ContactBatch> contactBatches = new ArrayList<ContactBatch>();
+
+	/**
+	 * Changes to the list of contacts collected while a batch is in progress.
+	 * A batch covers either every contact, or only the contacts included in a
+	 * bulk roster operation, so that changes to other contacts are still
+	 * reported as they happen.
+	 */
+	public static class ContactBatch {
+
+		private final Set<String> bareJids;
+		private Set<Contact> added = new LinkedHashSet<Contact>();
+		private Set<Contact> changed = new LinkedHashSet<Contact>();
+		private Set<Contact> removed = new LinkedHashSet<Contact>();
+
+		private ContactBatch(Set<String> bareJids) {
+			this.bareJids = bareJids;
+		}
+
+		private boolean covers(Contact contact) {
+			return bareJids == null || bareJids.contains(contact.getBareJid());
+		}
+	}
+
 	/**
 	 * Creates a new XMPP session. This constructor will create a new
 	 * XMPPConnection instance, which will handle the connection establishment.
@@ -74,11 +126,83 @@ public class Session {
 	 */
 	public Session(String jidUser, String jidDomain, String resource,
 			String password, ContactStatus status) throws XMPPException {
+		this(jidUser, jidDomain, resource, password, status,
+				new ConnectionConfiguration());
+	}
+
+	/**
+	 * Creates a new XMPP session using the provided connection configuration.
+	 * This constructor behaves like the one above, but allows optional
+	 * connection features (such as stream management) to be configured.
+	 * 
+	 * @param jidUser
+	 *            Local part of the user JID.
+	 * @param jidDomain
+	 *            Domain part of the user JID.
+	 * @param resource
+	 *            Specific resource name to be used in this session. Optional,
+	 *            if resource is null or empty, a resource name will be
+	 *            generated by the server.
+	 * @param password
+	 *            User password.
+	 * @param status
+	 *            Initial status.
+	 * @param configuration
+	 *            Optional settings for the connection.
+	 * @throws XMPPException
+	 *             If it was not possible to establish the connection, or if
+	 *             there was a problem trying to send initial messages.
+	 */
+	public Session(String jidUser, String jidDomain, String resource,
+			String password, ContactStatus status,
+			ConnectionConfiguration configuration) throws XMPPException {
+		this(jidUser, jidDomain, resource, password, status, configuration,
+				null);
+	}
+
+	/**
+	 * Creates a new XMPP session, reporting the progress of the connection.
+	 * This constructor behaves like the one above, but each stage of the
+	 * connection is reported to the progress object, through which the attempt
+	 * may also be cancelled from another thread.
+	 * 
+	 * @param jidUser
+	 *            Local part of the user JID.
+	 * @param jidDomain
+	 *            Domain part of the user JID.
+	 * @param resource
+	 *            Specific resource name to be used in this session. Optional,
+	 *            if resource is null or empty, a resource name will be
+	 *            generated by the server.
+	 * @param password
+	 *            User password.
+	 * @param status
+	 *            Initial status.
+	 * @param configuration
+	 *            Optional settings for the connection.
+	 * @param progress
+	 *            Progress of the connection, or null.
+	 * @throws XMPPException
+	 *             If it was not possible to establish the connection, if there
+	 *             was a problem trying to send initial messages, or if the
+	 *             attempt was cancelled.
+	 */
+	public Session(String jidUser, String jidDomain, String resource,
+			String password, ContactStatus status,
+			ConnectionConfiguration configuration, ConnectionProgress progress)
+			throws XMPPException {
 
 		this.setUserJid(jidUser + "@" + jidDomain);
 
+		/*
+		 * The cached contact list is loaded before connecting, so that it is
+		 * available immediately, and so that only changes since the cached
+		 * version need to be received from the server.
+		 */
+		loadCachedRoster();
+
 		connection = new XMPPConnection(jidUser, jidDomain, resource, password,
-				this);
+				this, configuration, progress);
 
 		/*
 		 * Session requests for the contact list, but doesn't wait until it is
@@ -173,12 +297,227 @@ public class Session {
 			throw new InvalidParameterException("Contact already exists.");
 
 		contacts.put(contact.getBareJid(), contact);
+		synchronized (contactBatchLock) {
+			ContactBatch batch = findContactBatch(contact);
+			if (batch != null) {
+				for (ContactListener listener : contactListeners)
+					contact.addContactListener(listener);
+				batch.added.add(contact);
+				return;
+			}
+		}
 		for (ContactListener listener : contactListeners) {
 			listener.contactAdded(contact);
 			contact.addContactListener(listener);
 		}
 	}
 
+	/**
+	 * Changes the alias of a contact in the local list of contacts, as
+	 * received from the server.
+	 * 
+	 * @param contact
+	 *            Contact to be changed.
+	 * @param alias
+	 *            New alias of the contact.
+	 */
+	public void updateReceivedContact(Contact contact, String alias) {
+		updateReceivedContact(contact, alias, contact.getGroups());
+	}
+
+	/**
+	 * Changes the alias and roster groups of a contact in the local list of
+	 * contacts, as received from the server.
+	 * 
+	 * @param contact
+	 *            Contact to be changed.
+	 * @param alias
+	 *            New alias of the contact.
+	 * @param groups
+	 *            Names of the groups the contact now belongs to.
+	 */
+	public void updateReceivedContact(Contact contact, String alias,
+			Collection<String> groups) {
+		synchronized (contactBatchLock) {
+			ContactBatch batch = findContactBatch(contact);
+			if (batch != null) {
+				contact.setAliasWithoutNotification(alias);
+				contact.setGroupsWithoutNotification(groups);
+				if (!batch.added.contains(contact))
+					batch.changed.add(contact);
+				return;
+			}
+		}
+		// a single change event for both the alias and the groups
+		contact.setGroupsWithoutNotification(groups);
+		contact.setAlias(alias);
+	}
+
+	/**
+	 * Returns the names of all roster groups used by the contacts in the list.
+	 * 
+	 * @return Sorted set of group names.
+	 */
+	public SortedSet<String> getGroups() {
+		SortedSet<String> groups = new TreeSet<String>(
+				String.CASE_INSENSITIVE_ORDER);
+		for (Contact contact : getContacts())
+			groups.addAll(contact.getGroups());
+		return groups;
+	}
+
+	/**
+	 * Starts a batch of changes to the whole list of contacts. Until the
+	 * matching call to <code>endContactBatch</code>, contacts added, changed
+	 * or removed are not reported individually to the contact listeners, but
+	 * collected and reported in a single event.
+	 * 
+	 * @return The batch, to be passed to <code>endContactBatch</code>.
+	 */
+	public ContactBatch beginContactBatch() {
+		return beginContactBatch(null);
+	}
+
+	/**
+	 * Starts a batch of changes to some of the contacts, e.g., those included
+	 * in a bulk roster operation. Changes to other contacts are still reported
+	 * as they happen.
+	 * 
+	 * @param batchContacts
+	 *            Contacts covered by the batch, or null for every contact.
+	 * @return The batch, to be passed to <code>endContactBatch</code>.
+	 */
+	public ContactBatch beginContactBatch(Collection<Contact> batchContacts) {
+		Set<String> bareJids = null;
+		if (batchContacts != null) {
+			bareJids = new HashSet<String>();
+			for (Contact contact : batchContacts)
+				bareJids.add(contact.getBareJid());
+		}
+		ContactBatch batch = new ContactBatch(bareJids);
+		synchronized (contactBatchLock) {
+			contactBatches.add(batch);
+		}
+		return batch;
+	}
+
+	/**
+	 * Ends a batch of changes to the list of contacts. If any change happened,
+	 * listeners that implement ContactBatchListener are called once with all
+	 * changes, and other listeners once per contact.
+	 * 
+	 * @param batch
+	 *            The batch returned by <code>beginContactBatch</code>.
+	 */
+	public void endContactBatch(ContactBatch batch) {
+		synchronized (contactBatchLock) {
+			if (!contactBatches.remove(batch))
+				throw new IllegalStateException("Batch not in progress.");
+			if (batch.added.isEmpty() && batch.changed.isEmpty()
+					&& batch.removed.isEmpty())
+				return;
+		}
+		List<Contact> added = Collections.unmodifiableList(new ArrayList<Contact>(batch.added));
+		List<Contact> changed = Collections.unmodifiableList(new ArrayList<Contact>(batch.changed));
+		List<Contact> removed = Collections.unmodifiableList(new ArrayList<Contact>(batch.removed));
+		for (ContactListener listener : contactListeners) {
+			if (listener instanceof ContactBatchListener) {
+				((ContactBatchListener) listener).contactsUpdated(added,
+						changed, removed);
+				continue;
+			}
+			for (Contact contact : added)
+				listener.contactAdded(contact);
+			for (Contact contact : changed)
+				listener.contactChanged(contact);
+			for (Contact contact : removed)
+				listener.contactRemoved(contact);
+		}
+	}
+
+	/**
+	 * Returns the batch in progress that covers a contact. Must be called
+	 * while holding the batch lock.
+	 */
+	private ContactBatch findContactBatch(Contact contact) {
+		for (ContactBatch batch : contactBatches)
+			if (batch.covers(contact))
+				return batch;
+		return null;
+	}
+
+	/**
+	 * Removes all contacts whose JID is not included in the provided set. This
+	 * method is called when a complete list of contacts is received from the
+	 * server, to discard contacts loaded from the local cache that were removed
+	 * while the user was offline.
+	 * 
+	 * @param bareJids
+	 *            Bare JIDs of all contacts that should be kept.
+	 */
+	public void retainContacts(Set<String> bareJids) {
+		for (Contact contact : new ArrayList<Contact>(contacts.values()))
+			if (!bareJids.contains(contact.getBareJid()))
+				removeContact(contact);
+	}
+
+	/**
+	 * Returns the version of the local copy of the list of contacts, as
+	 * provided by the server (XEP-0237).
+	 * 
+	 * @return The roster version, or null if the version is not known.
+	 */
+	public String getRosterVersion() {
+		return rosterVersion;
+	}
+
+	/**
+	 * Sets the version of the local copy of the list of contacts. This method
+	 * should be called every time the server sends a new version, either with
+	 * a complete list of contacts or with a change to it.
+	 * 
+	 * @param version
+	 *            The new roster version.
+	 */
+	public void setRosterVersion(String version) {
+		this.rosterVersion = version;
+	}
+
+	/**
+	 * Stores the current list of contacts and its version in the local roster
+	 * cache, so that it can be used the next time the user logs in.
+	 */
+	public void saveRosterCache() {
+		rosterCache.save(rosterVersion, new ArrayList<Contact>(contacts.values()));
+	}
+
+	/**
+	 * Stores the current list of contacts and its version in the local roster
+	 * cache after a short delay, so that a change pushed by the server is kept
+	 * even if the session is not closed, while several changes in a row are
+	 * written only once.
+	 */
+	public void saveRosterCacheLater() {
+		rosterCache.saveLater(rosterVersion, new ArrayList<Contact>(contacts.values()));
+	}
+
+	/**
+	 * Returns the local roster cache.
+	 * 
+	 * @return The roster cache of the logged in user.
+	 */
+	public RosterCache getRosterCache() {
+		return rosterCache;
+	}
+
+	private void loadCachedRoster() {
+		rosterCache = new RosterCache(getUserBareJid());
+		List<Contact> cachedContacts = new ArrayList<Contact>();
+		rosterVersion = rosterCache.load(cachedContacts);
+		for (Contact contact : cachedContacts)
+			contacts.put(contact.getBareJid(), contact);
+	}
+
 	/**
 	 * Returns the current local copy of the list of contacts (roster). This
 	 * method returns an unmodifiable list, so the result of this function
@@ -227,7 +566,10 @@ public class Session {
 
 	/**
 	 * Sets the current status of the user to a new value, and sends this new
-	 * status to the server to be broadcast to subscribed contacts.
+	 * status to the server to be broadcast to subscribed contacts. A status
+	 * equal to the one already sent is not sent again, and changes following
+	 * shortly after another may be held and combined (see
+	 * ConnectionConfiguration#setPresenceDebounce(long)).
 	 * 
 	 * @param status
 	 *            The user's new status.
@@ -364,6 +706,118 @@ public class Session {
 		connection.removeAndUnsubscribeContact(contact);
 	}
 
+	/**
+	 * Sends requests to add many contacts to the list of contacts and
+	 * subscribe to them. Requests are pipelined, with a bounded number of them
+	 * waiting for a response at any time. This method does not wait for the
+	 * responses, so it may be called in any thread; once all requests are
+	 * answered, the result is completed and the resulting changes to the list
+	 * of contacts are reported to the contact listeners in a single event.
+	 * Changes to other contacts are reported as they happen meanwhile.
+	 * 
+	 * @param contacts
+	 *            Contacts to be added to the list of contacts.
+	 * @return The outcome of the request for each contact.
+	 */
+	public RosterBatchResult sendNewContactRequests(Collection<Contact> contacts) {
+		return endContactBatchWhenDone(beginContactBatch(contacts),
+				connection.sendNewContactRequests(contacts));
+	}
+
+	/**
+	 * Sends requests to change the alias of many contacts in the list of
+	 * contacts stored in the server. Requests are pipelined as in
+	 * <code>sendNewContactRequests</code>.
+	 * 
+	 * @param contacts
+	 *            Contacts with their new aliases.
+	 * @return The outcome of the request for each contact.
+	 */
+	public RosterBatchResult sendContactUpdates(Collection<Contact> contacts) {
+		return endContactBatchWhenDone(beginContactBatch(contacts),
+				connection.sendContactUpdates(contacts));
+	}
+
+	/**
+	 * Sends requests to remove many contacts from the list of contacts, which
+	 * also cancels the subscriptions in both directions. Requests are
+	 * pipelined as in <code>sendNewContactRequests</code>.
+	 * 
+	 * @param contacts
+	 *            Contacts to be removed.
+	 * @return The outcome of the request for each contact.
+	 */
+	public RosterBatchResult sendRequestsToRemoveContacts(
+			Collection<Contact> contacts) {
+		return endContactBatchWhenDone(beginContactBatch(contacts),
+				connection.removeAndUnsubscribeContacts(contacts));
+	}
+
+	private RosterBatchResult endContactBatchWhenDone(final ContactBatch batch,
+			RosterBatchResult result) {
+		result.addCallback(new RosterBatchResult.Callback() {
+			@Override
+			public void completed(RosterBatchResult result) {
+				endContactBatch(batch);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Requests a page of the messages exchanged with a contact and stored in
+	 * the server archive. Used by conversations to load older messages.
+	 * 
+	 * @param contact
+	 *            Contact whose messages are requested.
+	 * @param before
+	 *            Archive id of the oldest message already retrieved, or an
+	 *            empty string to request the most recent messages.
+	 * @param callback
+	 *            Callback called when the page is received.
+	 * @throws XMPPException
+	 *             If there is a problem sending the request.
+	 */
+	public void requestArchivePage(Contact contact, String before,
+			ArchivePage.Callback callback) throws XMPPException {
+		connection.requestArchivePage(contact, before, callback);
+	}
+
+	/**
+	 * Offers a file to a contact. The contact must be online, since the offer
+	 * is sent to one of its resources.
+	 * 
+	 * @param contact
+	 *            Contact receiving the file.
+	 * @param file
+	 *            File to send.
+	 * @return The transfer, which starts once the contact accepts it.
+	 * @throws XMPPException
+	 *             If the contact is offline, the file cannot be read, or the
+	 *             offer cannot be sent.
+	 */
+	public FileTransfer sendFile(Contact contact, File file)
+			throws XMPPException {
+		String fullJid = contact.getAvailableFullJid();
+		if (fullJid == null)
+			throw new XMPPException(contact + " is not online.");
+		if (connection.getEntityCapsManager().isKnownUnsupported(fullJid,
+				FileTransferManager.SI_FILE_NAMESPACE))
+			throw new XMPPException(contact + " does not support file transfers.");
+		return connection.getFileTransferManager().sendFile(fullJid, file);
+	}
+
+	/**
+	 * Adds a listener notified of files offered by other entities. If no
+	 * listener is registered, offers are rejected.
+	 * 
+	 * @param listener
+	 *            The listener.
+	 */
+	public void addFileTransferListener(FileTransferListener listener) {
+		connection.getFileTransferManager().addFileTransferListener(listener);
+	}
+
 	/**
 	 * Processes an exception received by the connection handler and not
 	 * otherwise handled by other functions, most notably exceptions that happen
@@ -377,6 +831,183 @@ public class Session {
 			listener.readingExceptionThrown(exception);
 	}
 
+	/**
+	 * Handles a connection that was re-established with a new login after
+	 * being lost (as opposed to a resumed stream, which keeps the server-side
+	 * session). Since presence information received before the connection was
+	 * lost may be outdated, all contacts are marked as offline until the server
+	 * sends their current presence. The contact list is requested again and the
+	 * current status is sent. Contacts, conversations and listeners are kept,
+	 * so user interfaces don't need to be rebuilt.
+	 * 
+	 * @throws XMPPException
+	 *             If there was a problem sending the initial requests.
+	 */
+	public void connectionReestablished() throws XMPPException {
+		for (Contact contact : contacts.values())
+			contact.setStatus(null, ContactStatus.OFFLINE);
+		connection.sendRequestForContactList();
+		connection.sendCurrentStatus();
+		// the new server-side session is not in any room, so rooms are joined again
+		for (ChatRoom room : rooms.values()) {
+			room.clearOccupants();
+			connection.sendRoomJoin(room);
+		}
+	}
+
+	/**
+	 * Adds a listener to be called every time an event happens in any room,
+	 * including rooms joined after the listener is added.
+	 * 
+	 * @param listener
+	 *            A ChatRoomListener to be called when a room event happens.
+	 */
+	public synchronized void addChatRoomListener(ChatRoomListener listener) {
+		chatRoomListeners.add(listener);
+		for (ChatRoom room : rooms.values())
+			room.addChatRoomListener(listener);
+	}
+
+	/**
+	 * Joins a multi-user chat room (XEP-0045), keeping the default number of
+	 * messages in its history. See <code>joinRoom(String, String, int)</code>.
+	 * 
+	 * @param roomJid
+	 *            Bare JID of the room.
+	 * @param nick
+	 *            Nickname to be used in the room.
+	 * @return The room being joined.
+	 * @throws XMPPException
+	 *             If there is a problem sending the request.
+	 */
+	public ChatRoom joinRoom(String roomJid, String nick) throws XMPPException {
+		return joinRoom(roomJid, nick, ChatRoom.DEFAULT_HISTORY_SIZE);
+	}
+
+	/**
+	 * Joins a multi-user chat room (XEP-0045). The room is returned
+	 * immediately, and its listeners are called once the room confirms the
+	 * join. If the room was already joined, the existing room is returned.
+	 * 
+	 * @param roomJid
+	 *            Bare JID of the room.
+	 * @param nick
+	 *            Nickname to be used in the room.
+	 * @param historySize
+	 *            Number of messages kept in the room history. The same
+	 *            number of past messages is requested from the room.
+	 * @return The room being joined.
+	 * @throws XMPPException
+	 *             If there is a problem sending the request.
+	 */
+	public synchronized ChatRoom joinRoom(String roomJid, String nick,
+			int historySize) throws XMPPException {
+		ChatRoom room = rooms.get(roomJid);
+		if (room != null)
+			return room;
+
+		room = new ChatRoom(this, roomJid, nick, historySize);
+		for (ChatRoomListener listener : chatRoomListeners)
+			room.addChatRoomListener(listener);
+		rooms.put(roomJid, room);
+		try {
+			connection.sendRoomJoin(room);
+		} catch (XMPPException e) {
+			rooms.remove(roomJid);
+			throw e;
+		}
+		return room;
+	}
+
+	/**
+	 * Leaves a multi-user chat room.
+	 * 
+	 * @param room
+	 *            The room to be left.
+	 * @throws XMPPException
+	 *             If there is a problem sending the request.
+	 */
+	public void leaveRoom(ChatRoom room) throws XMPPException {
+		if (rooms.remove(room.getRoomJid()) == null)
+			return;
+		try {
+			connection.sendRoomLeave(room);
+		} finally {
+			room.left(null);
+		}
+	}
+
+	/**
+	 * Handles a room that was left without a request from the user, e.g.,
+	 * because the user was kicked or the join request was refused.
+	 * 
+	 * @param room
+	 *            The room that was left.
+	 * @param reason
+	 *            Reason provided by the room, if any.
+	 */
+	public void handleRoomLeft(ChatRoom room, String reason) {
+		if (rooms.remove(room.getRoomJid()) != null)
+			room.left(reason);
+	}
+
+	/**
+	 * Sends a message to all occupants of a room.
+	 * 
+	 * @param room
+	 *            The room where the message is sent.
+	 * @param text
+	 *            Body of the message.
+	 * @throws XMPPException
+	 *             If there is a problem sending the message.
+	 */
+	public void sendRoomMessage(ChatRoom room, String text)
+			throws XMPPException {
+		connection.sendRoomMessage(room, text);
+	}
+
+	/**
+	 * Returns a room joined in this session.
+	 * 
+	 * @param roomJid
+	 *            Bare JID of the room.
+	 * @return The room, or null if the room is not joined.
+	 */
+	public ChatRoom getRoom(String roomJid) {
+		return rooms.get(roomJid);
+	}
+
+	/**
+	 * Returns the rooms joined in this session.
+	 * 
+	 * @return An unmodifiable collection with the joined rooms.
+	 */
+	public Collection<ChatRoom> getRooms() {
+		return Collections.unmodifiableCollection(rooms.values());
+	}
+
+	/**
+	 * Returns the manager of automatic reconnections of this session's
+	 * connection, which keeps metrics such as the number of reconnections and
+	 * the time taken to recover.
+	 * 
+	 * @return The reconnect manager of the connection.
+	 */
+	public ReconnectManager getReconnectManager() {
+		return connection.getReconnectManager();
+	}
+
+	/**
+	 * Returns the entity capabilities manager of this session's connection,
+	 * which knows the features supported by contacts' resources and keeps
+	 * statistics about its cache.
+	 * 
+	 * @return The entity capabilities manager of the connection.
+	 */
+	public EntityCapsManager getEntityCapsManager() {
+		return connection.getEntityCapsManager();
+	}
+
 	/**
 	 * Closes the connection, if it is not yet closed.
 	 */
@@ -391,6 +1022,7 @@ public class Session {
 			connection.closeConnection();
 			isConnectionClosed = true;
 		}
+		saveRosterCache();
 		
 		for (SessionListener listener : sessionListeners)
 			listener.sessionClosed();
@@ -398,6 +1030,16 @@ public class Session {
 
 	public void removeContact(Contact contact) {
 		contacts.remove(contact.getBareJid());
+		synchronized (contactBatchLock) {
+			ContactBatch batch = findContactBatch(contact);
+			if (batch != null) {
+				batch.changed.remove(contact);
+				// a contact added and removed in the same batch is not reported
+				if (!batch.added.remove(contact))
+					batch.removed.add(contact);
+				return;
+			}
+		}
 		for (ContactListener listener : contactListeners)
 			listener.contactRemoved(contact);
 	}
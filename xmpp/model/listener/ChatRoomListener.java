@@ -0,0 +1,34 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.model.listener;
+
+import java.util.Collection;
+
+import ubc.cs317.xmpp.model.ChatRoom;
+import ubc.cs317.xmpp.model.Occupant;
+import ubc.cs317.xmpp.model.RoomMessage;
+
+public interface ChatRoomListener {
+
+	public void roomJoined(ChatRoom room);
+
+	public void roomLeft(ChatRoom room, String reason);
+
+	public void occupantsChanged(ChatRoom room, Collection<Occupant> present,
+			Collection<String> left);
+
+	public void roomMessageReceived(ChatRoom room, RoomMessage message);
+
+	public void subjectChanged(ChatRoom room, String subject);
+}
@@ -0,0 +1,42 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.model.listener;
+
+import java.util.Collection;
+
+import ubc.cs317.xmpp.model.Contact;
+
+/**
+ * Contact listener that is told about a batch of changes to the list of
+ * contacts in a single call. Listeners that only implement ContactListener
+ * are told about each contact of a batch individually instead.
+ */
+public interface ContactBatchListener extends ContactListener {
+
+	/**
+	 * Called once for a batch of changes to the list of contacts, such as a
+	 * complete list received from the server or the pushes caused by a bulk
+	 * roster operation. Contacts included in a batch are not reported
+	 * individually through the other methods.
+	 * 
+	 * @param added
+	 *            Contacts added to the list.
+	 * @param changed
+	 *            Contacts whose information (e.g., alias) was changed.
+	 * @param removed
+	 *            Contacts removed from the list.
+	 */
+	public void contactsUpdated(Collection<Contact> added,
+			Collection<Contact> changed, Collection<Contact> removed);
+}
@@ -0,0 +1,30 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.model.listener;
+
+import ubc.cs317.xmpp.net.FileTransfer;
+
+public interface FileTransferListener {
+
+	/**
+	 * Called when another entity offers a file. The offer must be answered
+	 * with <code>accept</code> or <code>reject</code>; since this method is
+	 * called from the listening thread, it must not block while waiting for
+	 * the user's answer.
+	 * 
+	 * @param transfer
+	 *            The offered transfer.
+	 */
+	public void fileTransferRequested(FileTransfer transfer);
+}
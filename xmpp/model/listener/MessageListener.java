@@ -13,6 +13,9 @@
 
 package ubc.cs317.xmpp.model.listener;
 
+import java.util.List;
+
+import ubc.cs317.xmpp.model.Conversation;
 import ubc.cs317.xmpp.model.Message;
 
 public interface MessageListener {
@@ -20,4 +23,7 @@ public interface MessageListener {
 	public void messageReceived(Message message);
 
 	public void messageSent(Message message);
+
+	public void archivedMessagesLoaded(Conversation conversation,
+			List<Message> messages);
 }
@@ -0,0 +1,101 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.util.Collections;
+import java.util.List;
+
+import ubc.cs317.xmpp.exception.XMPPException;
+import ubc.cs317.xmpp.model.Message;
+
+/**
+ * A page of messages retrieved from the server archive (XEP-0313). Pages are
+ * requested from the most recent messages backwards, using result set
+ * management (XEP-0059): the id of the oldest message in a page is used as the
+ * cursor to request the page before it.
+ */
+public class ArchivePage {
+
+	/**
+	 * Callback called when a requested page is received, or when the request
+	 * fails.
+	 */
+	public interface Callback {
+
+		/**
+		 * Called when a page is received.
+		 * 
+		 * @param page
+		 *            The received page.
+		 */
+		public void pageReceived(ArchivePage page);
+
+		/**
+		 * Called when the request for a page fails.
+		 * 
+		 * @param exception
+		 *            Exception describing the failure.
+		 */
+		public void pageFailed(XMPPException exception);
+	}
+
+	private List<Message> messages;
+	private String firstId;
+	private boolean complete;
+
+	/**
+	 * Creates a page.
+	 * 
+	 * @param messages
+	 *            Messages in the page, from the oldest to the most recent.
+	 * @param firstId
+	 *            Archive id of the oldest message in the page, or null if the
+	 *            page is empty.
+	 * @param complete
+	 *            <code>true</code> if this is the oldest page in the archive.
+	 */
+	public ArchivePage(List<Message> messages, String firstId, boolean complete) {
+		this.messages = Collections.unmodifiableList(messages);
+		this.firstId = firstId;
+		this.complete = complete;
+	}
+
+	/**
+	 * Returns the messages in the page.
+	 * 
+	 * @return Messages in the page, from the oldest to the most recent.
+	 */
+	public List<Message> getMessages() {
+		return messages;
+	}
+
+	/**
+	 * Returns the archive id of the oldest message in the page, which is the
+	 * cursor used to request the previous page.
+	 * 
+	 * @return The id of the oldest message, or null if the page is empty.
+	 */
+	public String getFirstId() {
+		return firstId;
+	}
+
+	/**
+	 * Indicates if there are no older messages in the archive.
+	 * 
+	 * @return <code>true</code> if this is the oldest page.
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+}
@@ -0,0 +1,400 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ubc.cs317.xmpp.model.Contact;
+import ubc.cs317.xmpp.model.ContactStatus;
+import ubc.cs317.xmpp.model.Conversation;
+import ubc.cs317.xmpp.model.Message;
+import ubc.cs317.xmpp.model.Session;
+import ubc.cs317.xmpp.model.listener.MessageListener;
+
+/**
+ * Measures scrolling back through a long conversation loaded from the server
+ * archive (XEP-0313), against a stub server on the local XMPP port whose
+ * archive holds the given number of messages with a contact. The user
+ * scrolls to the top of the conversation, waits for the older messages to be
+ * shown, reads them for a while, and scrolls again, until the whole archive
+ * is loaded. Meanwhile the contact keeps sending messages, which the
+ * listening thread adds to the same conversation. For each scroll, the time
+ * until the older messages are shown is measured (a page prefetched while
+ * the user was reading is shown immediately); the average and maximum wait,
+ * the number of pages shown from the prefetch, the total time, the messages
+ * in the conversation and the heap in use at the end are reported. Needs the
+ * local XMPP port to be free.
+ * 
+ * Usage: ArchiveScrollBenchmark [archived messages, default 100000] [reading
+ * time per page in ms, default 20]
+ */
+public class ArchiveScrollBenchmark {
+
+	private static final String STREAM_HEADER = "<?xml version='1.0'?>"
+			+ "<stream:stream xmlns='jabber:client' "
+			+ "xmlns:stream='http://etherx.jabber.org/streams' id='stub' "
+			+ "from='localhost' version='1.0'>";
+
+	private static final String CONTACT = "contact@example.com";
+
+	/**
+	 * Interval between live messages sent by the contact, in milliseconds.
+	 */
+	private static final long LIVE_MESSAGE_INTERVAL = 10;
+
+	private static final Pattern TAG_NAME = Pattern.compile("<([^\\s/>]+)");
+
+	private static final Pattern ID = Pattern
+			.compile("\\sid=['\"]([^'\"]*)['\"]");
+
+	private static final Pattern QUERY_ID = Pattern
+			.compile("queryid=['\"]([^'\"]*)['\"]");
+
+	private static final Pattern MAX = Pattern.compile("<max>(\\d+)</max>");
+
+	private static final Pattern BEFORE = Pattern
+			.compile("<before>m?(\\d*)</before>|<before/>");
+
+	/**
+	 * Records the pages shown in the conversation.
+	 */
+	private static class PageListener implements MessageListener {
+
+		private int pages = 0;
+		private int received = 0;
+
+		@Override
+		public synchronized void messageReceived(Message message) {
+			received++;
+		}
+
+		@Override
+		public void messageSent(Message message) {
+		}
+
+		@Override
+		public synchronized void archivedMessagesLoaded(
+				Conversation conversation, List<Message> messages) {
+			pages++;
+			this.notifyAll();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		final int archived = args.length > 0 ? Integer.parseInt(args[0])
+				: 100000;
+		long readingTime = args.length > 1 ? Long.parseLong(args[1]) : 20;
+
+		// the roster cache is kept in the home directory
+		File home = File.createTempFile("archive", "home");
+		home.delete();
+		home.mkdir();
+		System.setProperty("user.home", home.getPath());
+
+		final ServerSocket server = new ServerSocket(
+				XMPPConnection.XMPP_DEFAULT_PORT);
+		Thread acceptor = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (true)
+						serve(server.accept(), archived);
+				} catch (IOException e) {
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		// the connection logs every stanza
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+
+		ConnectionConfiguration configuration = new ConnectionConfiguration();
+		configuration.setTlsEnabled(false);
+		Session session = new Session("user", "localhost", "bench", "secret",
+				ContactStatus.AVAILABLE, configuration, null);
+		Contact contact = null;
+		while ((contact = session.getContact(CONTACT)) == null)
+			Thread.sleep(10);
+		Conversation conversation = session.getConversation(contact);
+		PageListener listener = new PageListener();
+		conversation.addMessageListener(listener);
+
+		long start = System.nanoTime();
+		long totalWait = 0, maxWait = 0;
+		int scrolls = 0, prefetched = 0;
+		while (conversation.hasOlderMessages()) {
+			long scrolled = System.nanoTime();
+			int shown;
+			synchronized (listener) {
+				shown = listener.pages;
+			}
+			conversation.loadOlderMessages();
+			synchronized (listener) {
+				while (listener.pages == shown
+						&& conversation.hasOlderMessages())
+					listener.wait(100);
+				if (listener.pages == shown)
+					break;
+			}
+			long wait = System.nanoTime() - scrolled;
+			scrolls++;
+			totalWait += wait;
+			maxWait = Math.max(maxWait, wait);
+			if (wait < 1000000)
+				prefetched++;
+			Thread.sleep(readingTime);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		System.gc();
+		Runtime runtime = Runtime.getRuntime();
+		int live;
+		synchronized (listener) {
+			live = listener.received;
+		}
+		out.printf("%d archived messages, page of %d, %d ms reading each "
+				+ "page\n", archived, configuration.getArchivePageSize(),
+				readingTime);
+		out.printf("%d scrolls in %.1f s: wait %.2f ms on average, %.1f ms "
+				+ "at most, %d pages shown from the prefetch\n", scrolls,
+				elapsed / 1e9, totalWait / 1e6 / Math.max(1, scrolls),
+				maxWait / 1e6, prefetched);
+		out.printf("%d messages in the conversation (%d received live "
+				+ "while scrolling), %d MB heap in use after GC\n",
+				conversation.getMessageList().size(), live,
+				(runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024));
+		session.closeConnection();
+		server.close();
+		System.setOut(out);
+		System.exit(0);
+	}
+
+	/**
+	 * Serves one client connection, in its own thread, and sends live
+	 * messages from the contact in another.
+	 */
+	private static void serve(final Socket socket, final int archived) {
+		final OutputStream out;
+		try {
+			out = socket.getOutputStream();
+		} catch (IOException e) {
+			return;
+		}
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					serveConnection(socket, out, archived);
+				} catch (IOException e) {
+				} finally {
+					try {
+						socket.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+
+		Thread sender = new Thread() {
+			@Override
+			public void run() {
+				try {
+					// after the login
+					Thread.sleep(500);
+					for (int i = 0; !socket.isClosed(); i++) {
+						send(out, "<message from='" + CONTACT + "/phone' "
+								+ "to='user@localhost/bench' type='chat' "
+								+ "id='live" + i + "'><body>Live message " + i
+								+ "</body></message>");
+						Thread.sleep(LIVE_MESSAGE_INTERVAL);
+					}
+				} catch (IOException e) {
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		sender.setDaemon(true);
+		sender.start();
+	}
+
+	private static void serveConnection(Socket socket, OutputStream out,
+			int archived) throws IOException {
+		InputStream in = socket.getInputStream();
+		StringBuilder received = new StringBuilder();
+		byte[] buffer = new byte[4096];
+		boolean authenticated = false;
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			received.append(new String(buffer, 0, read, "UTF-8"));
+			String element;
+			while ((element = nextElement(received)) != null) {
+				if (element.startsWith("<stream:stream")) {
+					send(out, STREAM_HEADER + "<stream:features>"
+							+ (authenticated ? "<bind xmlns='urn:ietf:params:"
+									+ "xml:ns:xmpp-bind'/>"
+									: "<mechanisms xmlns='urn:ietf:params:"
+											+ "xml:ns:xmpp-sasl'><mechanism>"
+											+ "PLAIN</mechanism></mechanisms>")
+							+ "</stream:features>");
+				} else if (element.startsWith("</stream:stream")) {
+					send(out, "</stream:stream>");
+					return;
+				} else if (element.startsWith("<auth")) {
+					authenticated = true;
+					send(out, "<success xmlns='urn:ietf:params:xml:"
+							+ "ns:xmpp-sasl'/>");
+				} else if (element.startsWith("<iq")) {
+					processIQ(element, out, archived);
+				}
+			}
+		}
+	}
+
+	private static void processIQ(String element, OutputStream out,
+			int archived) throws IOException {
+		Matcher id = ID.matcher(element);
+		if (!id.find())
+			return;
+		if (element.contains("urn:ietf:params:xml:ns:xmpp-bind")) {
+			send(out, "<iq type='result' id='" + id.group(1)
+					+ "'><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'>"
+					+ "<jid>user@localhost/bench</jid></bind></iq>");
+		} else if (element.contains("jabber:iq:roster")
+				&& element.contains("type=\"get\"")) {
+			send(out, "<iq type='result' id='" + id.group(1)
+					+ "'><query xmlns='jabber:iq:roster'><item jid='"
+					+ CONTACT + "' name='Contact' subscription='both'/>"
+					+ "</query></iq>");
+		} else if (element.contains("urn:xmpp:mam:2")) {
+			sendArchivePage(element, id.group(1), out, archived);
+		} else if (!element.contains("type=\"result\"")
+				&& !element.contains("type=\"error\"")) {
+			send(out, "<iq type='result' id='" + id.group(1) + "'/>");
+		}
+	}
+
+	/**
+	 * Sends the page of archived messages before the requested one (or the
+	 * most recent page), one message per result, followed by the iq result
+	 * with the archive id of the first message.
+	 */
+	private static void sendArchivePage(String element, String id,
+			OutputStream out, int archived) throws IOException {
+		Matcher queryId = QUERY_ID.matcher(element);
+		Matcher max = MAX.matcher(element);
+		Matcher before = BEFORE.matcher(element);
+		queryId.find();
+		max.find();
+		int end = archived;
+		if (before.find() && before.group(1) != null
+				&& before.group(1).length() > 0)
+			end = Integer.parseInt(before.group(1));
+		int first = Math.max(0, end - Integer.parseInt(max.group(1)));
+
+		StringBuilder page = new StringBuilder();
+		for (int i = first; i < end; i++) {
+			boolean outgoing = i % 3 == 0;
+			page.append("<message to='user@localhost/bench'><result xmlns='"
+					+ "urn:xmpp:mam:2' queryid='" + queryId.group(1)
+					+ "' id='m" + i + "'><forwarded xmlns='urn:xmpp:"
+					+ "forward:0'><delay xmlns='urn:xmpp:delay' stamp='"
+					+ "2012-01-01T00:00:00Z'/><message type='chat' from='"
+					+ (outgoing ? "user@localhost/bench" : CONTACT
+							+ "/phone") + "' to='"
+					+ (outgoing ? CONTACT : "user@localhost")
+					+ "'><body>Archived message " + i
+					+ ", about the assignment due tomorrow</body></message>"
+					+ "</forwarded></result></message>");
+		}
+		page.append("<iq type='result' id='" + id + "'><fin xmlns='urn:xmpp:"
+				+ "mam:2' complete='" + (first == 0) + "'><set xmlns='"
+				+ "http://jabber.org/protocol/rsm'>"
+				+ (first < end ? "<first>m" + first + "</first><last>m"
+						+ (end - 1) + "</last>" : "") + "</set></fin></iq>");
+		send(out, page.toString());
+	}
+
+	/**
+	 * Removes the next complete element (or stream tag) from the received
+	 * data.
+	 * 
+	 * @return The element, or null if no element is complete yet.
+	 */
+	private static String nextElement(StringBuilder received) {
+		int start = 0;
+		while (start < received.length()
+				&& Character.isWhitespace(received.charAt(start)))
+			start++;
+		if (received.indexOf("<?xml", start) == start) {
+			int end = received.indexOf("?>", start);
+			if (end < 0)
+				return null;
+			start = end + 2;
+		}
+		received.delete(0, start);
+		if (received.length() == 0)
+			return null;
+
+		int tagEnd = received.indexOf(">");
+		if (tagEnd < 0)
+			return null;
+		String element;
+		if (received.indexOf("<stream:stream") == 0
+				|| received.indexOf("</") == 0
+				|| received.charAt(tagEnd - 1) == '/') {
+			element = received.substring(0, tagEnd + 1);
+		} else {
+			Matcher tag = TAG_NAME.matcher(received);
+			tag.find();
+			String close = "</" + tag.group(1) + ">";
+			int end = received.indexOf(close);
+			if (end < 0)
+				return null;
+			element = received.substring(0, end + close.length());
+		}
+		received.delete(0, element.length());
+		return element;
+	}
+
+	private static void send(OutputStream out, String data) throws IOException {
+		byte[] bytes = data.getBytes("UTF-8");
+		// the stub and the live messages write from different threads
+		synchronized (out) {
+			out.write(bytes);
+			out.flush();
+		}
+	}
+}
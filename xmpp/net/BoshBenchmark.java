@@ -0,0 +1,238 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Compares the latency and throughput of the BOSH transport with a raw TCP
+ * connection, using local stub servers that echo every stanza back. The
+ * BOSH stub holds requests like a connection manager, answering the oldest
+ * held request as soon as there is something to send or a newer request
+ * arrives.
+ * 
+ * Usage: BoshBenchmark [round trips, default 2000] [stanzas, default 20000]
+ */
+public class BoshBenchmark {
+
+	private static final String STANZA = "<message to='me@example.com/SimpleChat' "
+			+ "type='chat' id='ID1'><body>are you coming to the lab tomorrow?"
+			+ "</body></message>";
+
+	public static void main(String[] args) throws Exception {
+
+		int roundTrips = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int stanzas = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+		ServerSocket echoServer = new ServerSocket(0);
+		startTcpEcho(echoServer);
+		TcpTransport tcp = new TcpTransport("127.0.0.1",
+				echoServer.getLocalPort(), 0);
+		tcp.connect();
+		System.out.println("TCP:");
+		benchmark(tcp.getInputStream(), tcp.getOutputStream(),
+				STANZA.getBytes("UTF-8").length, roundTrips, stanzas);
+		tcp.close();
+		echoServer.close();
+
+		BoshStub stub = new BoshStub();
+		BoshTransport bosh = new BoshTransport(new URL("http://127.0.0.1:"
+				+ stub.getPort() + "/http-bind"), "example.com", 1, 60, 0);
+		bosh.connect();
+		InputStream in = bosh.getInputStream();
+		// the stream header has two closing brackets, one in the declaration
+		for (int brackets = 0; brackets < 2;)
+			if (in.read() == '>')
+				brackets++;
+		System.out.println("BOSH (hold 1):");
+		long requests = bosh.getRequestsSent();
+		benchmark(in, bosh.getOutputStream(), BoshTransport
+				.addStanzaNamespace(STANZA).getBytes("UTF-8").length,
+				roundTrips, stanzas);
+		requests = bosh.getRequestsSent() - requests;
+		System.out.printf("  %d HTTP requests, %.2f stanzas per request\n",
+				requests, 2.0 * (roundTrips + stanzas) / requests);
+		bosh.close();
+		stub.stop();
+	}
+
+	private static void benchmark(InputStream in, final OutputStream out,
+			int echoLength, int roundTrips, final int stanzas)
+			throws Exception {
+		final byte[] stanza = STANZA.getBytes("UTF-8");
+		byte[] echo = new byte[echoLength];
+
+		long start = System.nanoTime();
+		for (int i = 0; i < roundTrips; i++) {
+			out.write(stanza);
+			out.flush();
+			readFully(in, echo);
+		}
+		double latency = (System.nanoTime() - start) / 1e3 / roundTrips;
+
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < stanzas; i++) {
+						out.write(stanza);
+						out.flush();
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		start = System.nanoTime();
+		writer.start();
+		for (int i = 0; i < stanzas; i++)
+			readFully(in, echo);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		writer.join();
+
+		System.out.printf("  round trip %.1f us, %.0f stanzas/s echoed\n",
+				latency, stanzas / seconds);
+	}
+
+	private static void readFully(InputStream in, byte[] buffer)
+			throws IOException {
+		int offset = 0;
+		while (offset < buffer.length) {
+			int read = in.read(buffer, offset, buffer.length - offset);
+			if (read < 0)
+				throw new EOFException();
+			offset += read;
+		}
+	}
+
+	private static void startTcpEcho(final ServerSocket server) {
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Socket socket = server.accept();
+					InputStream in = socket.getInputStream();
+					OutputStream out = socket.getOutputStream();
+					byte[] buffer = new byte[8192];
+					int read;
+					while ((read = in.read(buffer)) >= 0)
+						out.write(buffer, 0, read);
+					socket.close();
+				} catch (IOException e) {
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Connection manager stub holding one request and echoing stanzas.
+	 */
+	private static class BoshStub implements HttpHandler {
+
+		private HttpServer server;
+		private ExecutorService executor = Executors.newCachedThreadPool();
+		private final LinkedList<HttpExchange> held = new LinkedList<HttpExchange>();
+		private final LinkedList<CountDownLatch> answered = new LinkedList<CountDownLatch>();
+		private final StringBuilder outbox = new StringBuilder();
+
+		private BoshStub() throws IOException {
+			// like real connection managers, answer without waiting for
+			// delayed acks
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+			server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0),
+					50);
+			server.createContext("/http-bind", this);
+			server.setExecutor(executor);
+			server.start();
+		}
+
+		private int getPort() {
+			return server.getAddress().getPort();
+		}
+
+		private void stop() {
+			server.stop(0);
+			executor.shutdownNow();
+		}
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			InputStream in = exchange.getRequestBody();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) >= 0)
+				data.write(buffer, 0, read);
+			String request = data.toString("UTF-8");
+			Map<String, String> attributes = BoshTransport
+					.getBodyAttributes(request);
+
+			if (attributes.get("sid") == null) {
+				respond(exchange, "<body sid='stub' wait='60' hold='1' "
+						+ "requests='2' from='example.com' xmlns='"
+						+ BoshTransport.NAMESPACE + "'/>");
+				return;
+			}
+
+			CountDownLatch latch = new CountDownLatch(1);
+			synchronized (this) {
+				outbox.append(BoshTransport.getBodyContent(request));
+				held.add(exchange);
+				answered.add(latch);
+				while (held.size() > 1 || (outbox.length() > 0 && !held.isEmpty())) {
+					String content = outbox.toString();
+					outbox.setLength(0);
+					respond(held.removeFirst(), "<body xmlns='"
+							+ BoshTransport.NAMESPACE + "'>" + content
+							+ "</body>");
+					answered.removeFirst().countDown();
+				}
+			}
+			try {
+				latch.await();
+			} catch (InterruptedException e) {
+			}
+		}
+
+		private void respond(HttpExchange exchange, String body)
+				throws IOException {
+			byte[] data = body.getBytes("UTF-8");
+			exchange.getResponseHeaders().set("Content-Type",
+					"text/xml; charset=utf-8");
+			exchange.sendResponseHeaders(200, data.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(data);
+			out.close();
+		}
+	}
+}
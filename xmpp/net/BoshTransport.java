@@ -0,0 +1,645 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.DatagramSocket;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ubc.cs317.xmpp.exception.XMPPException;
+
+/**
+ * Transport over BOSH (XEP-0124 and XEP-0206), for networks where only HTTP
+ * is allowed through. The stream is carried in HTTP requests, each with a
+ * body wrapping the stanzas sent, answered with a body wrapping the stanzas
+ * received. The connection manager holds requests until it has something to
+ * send, so that stanzas can be pushed to the client.
+ * 
+ * Stanzas written while all allowed requests are in flight are queued and
+ * sent together in the next body. Up to the number of requests allowed by
+ * the connection manager are kept in flight, and responses are delivered in
+ * the order of their request ids even if they arrive out of order. Requests
+ * are sent with HttpURLConnection, which reuses a small pool of persistent
+ * connections and honours the proxy settings of the JVM. A request that
+ * fails is retried with the same request id, which lets the connection
+ * manager resend its response if the request was lost after being received.
+ * 
+ * As with WebSocket, the stream header and closing tag written by the
+ * connection are translated into session requests (restart and terminate),
+ * and responses are presented to the reader as a single XMPP stream.
+ */
+public class BoshTransport implements Transport {
+
+	public static final String NAMESPACE = "http://jabber.org/protocol/httpbind";
+	public static final String XBOSH_NAMESPACE = "urn:xmpp:xbosh";
+
+	private static final int MAX_RETRIES = 3;
+	private static final long RETRY_DELAY = 1000;
+
+	private static final Pattern ATTRIBUTE_PATTERN = Pattern
+			.compile("([\\w:.-]+)\\s*=\\s*(?:'([^']*)'|\"([^\"]*)\")");
+
+	private static final byte[] END_OF_STREAM = new byte[0];
+
+	/**
+	 * A request sent to the connection manager, and its response.
+	 */
+	private class Request implements Runnable {
+
+		private long rid;
+		private String body;
+		private boolean restart;
+		private boolean terminate;
+		private String response;
+
+		private Request(long rid, String body) {
+			this.rid = rid;
+			this.body = body;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (polling > 0 && body.indexOf('>') == body.length() - 1)
+					// in polling sessions, empty requests must be spaced
+					Thread.sleep(polling * 1000L);
+				response = send(rid, body);
+			} catch (IOException e) {
+				fail(e);
+				return;
+			} catch (InterruptedException e) {
+				fail(new InterruptedIOException("Interrupted."));
+				return;
+			}
+			responseReceived(this);
+		}
+	}
+
+	private URL url;
+	private String domain;
+	private int hold;
+	private int wait;
+	private int connectTimeout;
+
+	private ExecutorService executor;
+	private InetAddress localAddress;
+	private final BlockingQueue<byte[]> received = new LinkedBlockingQueue<byte[]>();
+	private volatile IOException failure;
+	private volatile boolean closed = false;
+
+	private InputStream inputStream = new BoshInputStream();
+	private OutputStream outputStream = new BoshOutputStream();
+
+	// session state, guarded by this
+	private String sid;
+	private long nextRid;
+	private int maxRequests;
+	private int polling;
+	private int inFlight = 0;
+	private boolean headerWritten = false;
+	private final StringBuilder pending = new StringBuilder();
+	private boolean restartPending = false;
+	private boolean terminatePending = false;
+	private boolean terminated = false;
+	private long nextDeliveredRid;
+	private final Map<Long, Request> completed = new TreeMap<Long, Request>();
+
+	private long requestsSent = 0;
+	private long retries = 0;
+
+	/**
+	 * Creates a BOSH transport.
+	 * 
+	 * @param url
+	 *            URL of the BOSH connection manager (http or https).
+	 * @param domain
+	 *            Domain of the XMPP server.
+	 * @param hold
+	 *            Maximum number of requests the connection manager may keep
+	 *            waiting; 0 turns the session into polling.
+	 * @param wait
+	 *            Longest time, in seconds, the connection manager may keep a
+	 *            request waiting.
+	 * @param connectTimeout
+	 *            Time to wait for each HTTP connection to be established, in
+	 *            milliseconds, or zero to wait indefinitely.
+	 */
+	public BoshTransport(URL url, String domain, int hold, int wait,
+			int connectTimeout) {
+		this.url = url;
+		this.domain = domain;
+		this.hold = hold;
+		this.wait = wait;
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * Creates the BOSH session. The response, which may already contain the
+	 * stream features, is made available to the reader after the stream
+	 * header.
+	 */
+	@Override
+	public void connect() throws XMPPException {
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "BOSH request");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		// request ids must leave room to be incremented during the session
+		long rid = (new SecureRandom().nextLong() >>> 12) & ((1L << 50) - 1);
+		String body = "<body content='text/xml; charset=utf-8' hold='" + hold
+				+ "' rid='" + rid + "' to='" + domain + "' wait='" + wait
+				+ "' ver='1.6' xml:lang='en' xmpp:version='1.0' xmlns='"
+				+ NAMESPACE + "' xmlns:xmpp='" + XBOSH_NAMESPACE + "'/>";
+		String response;
+		try {
+			response = send(rid, body);
+		} catch (IOException e) {
+			executor.shutdownNow();
+			throw new XMPPException("Coudn't get I/O for the connection to: "
+					+ url.getHost() + " (" + e.getMessage() + ")", e);
+		}
+
+		Map<String, String> attributes = getBodyAttributes(response);
+		if ("terminate".equals(attributes.get("type"))
+				|| attributes.get("sid") == null) {
+			executor.shutdownNow();
+			throw new XMPPException("BOSH session refused: "
+					+ attributes.get("condition"));
+		}
+
+		synchronized (this) {
+			sid = attributes.get("sid");
+			hold = getInt(attributes, "hold", hold);
+			wait = getInt(attributes, "wait", wait);
+			polling = hold == 0 ? getInt(attributes, "polling", 0) : 0;
+			maxRequests = Math.max(getInt(attributes, "requests", hold + 1), 1);
+			nextRid = rid + 1;
+			nextDeliveredRid = rid + 1;
+			deliver(createStreamHeader());
+			deliver(getBodyContent(response));
+			schedule();
+		}
+
+		try {
+			// the local address of the route to the connection manager; no
+			// packet is sent
+			DatagramSocket probe = new DatagramSocket();
+			try {
+				probe.connect(InetAddress.getByName(url.getHost()),
+						url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+				localAddress = probe.getLocalAddress();
+			} finally {
+				probe.close();
+			}
+		} catch (IOException e) {
+			try {
+				localAddress = InetAddress.getLocalHost();
+			} catch (IOException e1) {
+				localAddress = InetAddress.getLoopbackAddress();
+			}
+		}
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return inputStream;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return outputStream;
+	}
+
+	@Override
+	public boolean isSecure() {
+		return "https".equalsIgnoreCase(url.getProtocol());
+	}
+
+	@Override
+	public boolean supportsStreamLayers() {
+		return false;
+	}
+
+	@Override
+	public void startTls(String host) throws IOException {
+		throw new IOException("STARTTLS is not supported over BOSH.");
+	}
+
+	@Override
+	public InetAddress getLocalAddress() {
+		return localAddress;
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		if (executor != null)
+			executor.shutdownNow();
+		fail(new IOException("BOSH session closed."));
+	}
+
+	/**
+	 * Returns the number of HTTP requests sent, including retries.
+	 */
+	public synchronized long getRequestsSent() {
+		return requestsSent;
+	}
+
+	/**
+	 * Returns the number of requests that had to be sent again after a
+	 * failure.
+	 */
+	public synchronized long getRetries() {
+		return retries;
+	}
+
+	/**
+	 * Sends the requests possible with the current state: a restart or
+	 * terminate request if one was asked for, the queued stanzas, or an empty
+	 * request so that the connection manager can push stanzas.
+	 */
+	private synchronized void schedule() {
+		while (!closed && !terminated && inFlight < maxRequests) {
+			Request request;
+			if (restartPending) {
+				request = new Request(nextRid, "<body rid='" + nextRid
+						+ "' sid='" + sid + "' to='" + domain
+						+ "' xml:lang='en' xmpp:restart='true' xmlns='"
+						+ NAMESPACE + "' xmlns:xmpp='" + XBOSH_NAMESPACE + "'/>");
+				request.restart = true;
+				restartPending = false;
+			} else if (terminatePending) {
+				request = new Request(nextRid, "<body rid='" + nextRid
+						+ "' sid='" + sid + "' type='terminate' xmlns='"
+						+ NAMESPACE + "'>" + pending + "</body>");
+				request.terminate = true;
+				pending.setLength(0);
+				terminated = true;
+			} else if (pending.length() > 0) {
+				request = new Request(nextRid, "<body rid='" + nextRid
+						+ "' sid='" + sid + "' xmlns='" + NAMESPACE + "'>"
+						+ pending + "</body>");
+				pending.setLength(0);
+			} else if (inFlight < Math.max(hold, 1)) {
+				request = new Request(nextRid, "<body rid='" + nextRid
+						+ "' sid='" + sid + "' xmlns='" + NAMESPACE + "'/>");
+			} else
+				break;
+			nextRid++;
+			inFlight++;
+			executor.execute(request);
+		}
+	}
+
+	/**
+	 * Processes a response, and delivers all responses received so far in
+	 * the order of their request ids.
+	 */
+	private synchronized void responseReceived(Request request) {
+		inFlight--;
+		if (closed)
+			return;
+		completed.put(request.rid, request);
+		Request next;
+		while ((next = completed.remove(nextDeliveredRid)) != null) {
+			nextDeliveredRid++;
+			Map<String, String> attributes = getBodyAttributes(next.response);
+			if (next.restart)
+				deliver(createStreamHeader());
+			deliver(getBodyContent(next.response));
+			if (next.terminate || "terminate".equals(attributes.get("type"))) {
+				String condition = attributes.get("condition");
+				if (condition != null && !next.terminate)
+					System.out.println("BOSH session terminated: " + condition);
+				terminated = true;
+				deliver("</stream:stream>");
+				received.add(END_OF_STREAM);
+				closed = true;
+				executor.shutdownNow();
+				return;
+			}
+		}
+		schedule();
+	}
+
+	/**
+	 * Posts a body to the connection manager, retrying with the same request
+	 * id if the request fails.
+	 * 
+	 * @return The body received in response.
+	 */
+	private String send(long rid, String body) throws IOException {
+		byte[] data = body.getBytes("UTF-8");
+		IOException lastFailure = null;
+		for (int attempt = 0; attempt <= MAX_RETRIES && !closed; attempt++) {
+			if (attempt > 0) {
+				synchronized (this) {
+					retries++;
+				}
+				try {
+					Thread.sleep(RETRY_DELAY * attempt);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted.");
+				}
+			}
+			synchronized (this) {
+				requestsSent++;
+			}
+			try {
+				return post(data);
+			} catch (ProtocolException e) {
+				// the connection manager does not accept the request, so
+				// sending it again will not help
+				throw e;
+			} catch (IOException e) {
+				lastFailure = e;
+			}
+		}
+		throw lastFailure != null ? lastFailure : new IOException(
+				"BOSH session closed.");
+	}
+
+	private String post(byte[] data) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout((wait + 10) * 1000);
+		connection.setRequestMethod("POST");
+		connection.setRequestProperty("Content-Type", "text/xml; charset=utf-8");
+		// without streaming mode, the body is buffered and sent in the same
+		// packet as the headers, which avoids waiting for a delayed ack
+		connection.setDoOutput(true);
+		OutputStream out = connection.getOutputStream();
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+
+		int status = connection.getResponseCode();
+		if (status != HttpURLConnection.HTTP_OK) {
+			// reading the error stream lets the connection be reused
+			InputStream error = connection.getErrorStream();
+			if (error != null)
+				readFully(error);
+			if (status >= 400 && status < 500)
+				throw new ProtocolException("HTTP error " + status);
+			throw new IOException("HTTP error " + status);
+		}
+		return new String(readFully(connection.getInputStream()), "UTF-8");
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		try {
+			int read;
+			while ((read = in.read(buffer)) >= 0)
+				data.write(buffer, 0, read);
+		} finally {
+			in.close();
+		}
+		return data.toByteArray();
+	}
+
+	private void deliver(String data) {
+		if (data.isEmpty())
+			return;
+		try {
+			received.add(data.getBytes("UTF-8"));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void fail(IOException e) {
+		if (failure == null)
+			failure = e;
+		received.add(END_OF_STREAM);
+	}
+
+	private String createStreamHeader() {
+		return "<?xml version='1.0'?><stream:stream xmlns='jabber:client' "
+				+ "xmlns:stream='http://etherx.jabber.org/streams' from='"
+				+ domain + "' id='" + sid + "' version='1.0'>";
+	}
+
+	/**
+	 * Returns the attributes of the body element of a response.
+	 */
+	static Map<String, String> getBodyAttributes(String response) {
+		Map<String, String> attributes = new HashMap<String, String>();
+		int start = response.indexOf("<body");
+		if (start < 0)
+			return attributes;
+		Matcher matcher = ATTRIBUTE_PATTERN.matcher(response);
+		matcher.region(start, getStartTagEnd(response, start));
+		while (matcher.find()) {
+			String value = matcher.group(2) != null ? matcher.group(2)
+					: matcher.group(3);
+			attributes.put(matcher.group(1), value);
+		}
+		return attributes;
+	}
+
+	/**
+	 * Returns the children of the body element of a response, as they were
+	 * received.
+	 */
+	static String getBodyContent(String response) {
+		int start = response.indexOf("<body");
+		if (start < 0)
+			return "";
+		int end = getStartTagEnd(response, start);
+		if (response.charAt(end - 1) == '/')
+			return "";
+		int close = response.lastIndexOf("</body>");
+		return close > end ? response.substring(end + 1, close) : "";
+	}
+
+	/**
+	 * Returns the position of the '>' closing a start tag.
+	 */
+	private static int getStartTagEnd(String text, int start) {
+		char quote = 0;
+		for (int i = start; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (quote != 0) {
+				if (c == quote)
+					quote = 0;
+			} else if (c == '\'' || c == '"')
+				quote = c;
+			else if (c == '>')
+				return i;
+		}
+		return text.length() - 1;
+	}
+
+	/**
+	 * Adds the jabber:client namespace to a stanza that does not declare
+	 * one, since the default namespace inside a body is the BOSH one.
+	 */
+	static String addStanzaNamespace(String stanza) {
+		int end = getStartTagEnd(stanza, 0);
+		if (stanza.lastIndexOf("xmlns=", end) >= 0)
+			return stanza;
+		int name = 1;
+		while (name < end && !Character.isWhitespace(stanza.charAt(name))
+				&& stanza.charAt(name) != '/' && stanza.charAt(name) != '>')
+			name++;
+		return stanza.substring(0, name) + " xmlns='jabber:client'"
+				+ stanza.substring(name);
+	}
+
+	private static int getInt(Map<String, String> attributes, String name,
+			int defaultValue) {
+		try {
+			String value = attributes.get(name);
+			return value == null ? defaultValue : Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Queues the units of the XMPP stream written by the connection.
+	 */
+	private class BoshOutputStream extends OutputStream {
+
+		private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+				1024);
+
+		@Override
+		public synchronized void write(int b) {
+			buffer.write(b);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			buffer.write(b, off, len);
+		}
+
+		@Override
+		public synchronized void flush() throws IOException {
+			if (buffer.size() == 0)
+				return;
+			String unit = buffer.toString("UTF-8").trim();
+			buffer.reset();
+			if (closed)
+				throw new IOException("BOSH session closed.");
+			// whitespace keepalives are not needed, since a request is
+			// always waiting at the connection manager
+			if (unit.isEmpty())
+				return;
+			synchronized (BoshTransport.this) {
+				if (unit.contains("<stream:stream")) {
+					// the session was created when connecting
+					if (headerWritten)
+						restartPending = true;
+					headerWritten = true;
+				} else if (unit.equals("</stream:stream>"))
+					terminatePending = true;
+				else
+					pending.append(addStanzaNamespace(unit));
+				schedule();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+
+	/**
+	 * Presents the responses received as a continuous XMPP stream.
+	 */
+	private class BoshInputStream extends InputStream {
+
+		private ByteBuffer current = ByteBuffer.allocate(0);
+
+		private boolean fill() throws IOException {
+			while (!current.hasRemaining()) {
+				byte[] data;
+				try {
+					data = received.take();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted.");
+				}
+				if (data == END_OF_STREAM) {
+					// keep the marker for later reads
+					received.add(END_OF_STREAM);
+					if (failure != null)
+						throw new IOException(failure.getMessage(), failure);
+					return false;
+				}
+				current = ByteBuffer.wrap(data);
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!fill())
+				return -1;
+			return current.get() & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!fill())
+				return -1;
+			int count = Math.min(len, current.remaining());
+			current.get(b, off, count);
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return current.remaining();
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures stream compression (XEP-0138) on representative traffic: chat
+ * messages of varying length, presence updates from contacts with status
+ * text and entity capabilities, and a few roster pushes. Each stanza is
+ * written and flushed on its own, as the stream writer does, so each costs
+ * a SYNC_FLUSH. The compression ratio, the bytes per stanza with and without
+ * compression, and the CPU time per stanza to compress and to decompress
+ * (with the data checked after decompression) are reported. The whole run
+ * is repeated to warm up, and the last one is reported.
+ * 
+ * Usage: CompressionBenchmark [stanzas, default 20000] [runs, default 5]
+ */
+public class CompressionBenchmark {
+
+	private static final String[] WORDS = { "the", "lab", "is", "due",
+			"tomorrow", "did", "you", "finish", "assignment", "socket", "I",
+			"think", "we", "should", "meet", "at", "noon", "library", "ok",
+			"thanks", "see", "later", "server", "client", "stanza", "roster",
+			"can", "send", "me", "notes", "from", "lecture", "about", "TCP" };
+
+	private static final String[] SHOWS = { "away", "dnd", "xa", "chat" };
+
+	public static void main(String[] args) throws Exception {
+
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		List<byte[]> stanzas = createTraffic(count, new Random(317));
+		long rawBytes = 0;
+		for (byte[] stanza : stanzas)
+			rawBytes += stanza.length;
+
+		for (int run = 1; run <= runs; run++) {
+			// compression, one flush per stanza
+			StreamCompression sender = new StreamCompression();
+			ByteArrayOutputStream wire = new ByteArrayOutputStream();
+			OutputStream out = sender.wrapOutputStream(wire);
+			long start = System.nanoTime();
+			for (byte[] stanza : stanzas) {
+				out.write(stanza);
+				out.flush();
+			}
+			long compressNanos = System.nanoTime() - start;
+			byte[] compressed = wire.toByteArray();
+
+			// decompression, reading as the stream reader does
+			StreamCompression receiver = new StreamCompression();
+			InputStream in = receiver.wrapInputStream(new ByteArrayInputStream(
+					compressed));
+			ByteArrayOutputStream restored = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			start = System.nanoTime();
+			// the stream is never finished, only flushed
+			int read;
+			while (restored.size() < rawBytes
+					&& (read = in.read(buffer)) > 0)
+				restored.write(buffer, 0, read);
+			long decompressNanos = System.nanoTime() - start;
+
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			for (byte[] stanza : stanzas)
+				expected.write(stanza);
+			boolean intact = Arrays.equals(expected.toByteArray(),
+					restored.toByteArray());
+
+			if (run == runs) {
+				System.out.printf("%d stanzas, %.1f bytes each uncompressed, "
+						+ "%.1f compressed: ratio %.2f (incoming %.2f)\n",
+						count, (double) rawBytes / count,
+						(double) compressed.length / count,
+						sender.getOutgoingCompressionRatio(),
+						receiver.getIncomingCompressionRatio());
+				System.out.printf("compression %.2f us per stanza (%.2f us "
+						+ "measured by the layer), decompression %.2f us per "
+						+ "stanza, data %s\n", compressNanos / 1e3 / count,
+						sender.getAverageCompressionNanosPerStanza() / 1e3,
+						decompressNanos / 1e3 / count, intact ? "intact"
+								: "CORRUPTED");
+			}
+			sender.end();
+			receiver.end();
+		}
+	}
+
+	/**
+	 * Creates the traffic: about 60% messages, 35% presence and 5% roster
+	 * pushes, between a few dozen contacts.
+	 */
+	private static List<byte[]> createTraffic(int count, Random random)
+			throws Exception {
+		List<byte[]> stanzas = new ArrayList<byte[]>();
+		for (int i = 0; i < count; i++) {
+			String contact = "contact" + random.nextInt(40) + "@example.com";
+			int kind = random.nextInt(100);
+			String stanza;
+			if (kind < 60) {
+				String id = Long.toString(random.nextLong() & Long.MAX_VALUE,
+						36);
+				stanza = "<message to=\"" + contact + "/SimpleChat\" from=\""
+						+ "me@example.com/SimpleChat\" type=\"chat\" id=\"" + id
+						+ "\" xml:lang=\"en\"><body>"
+						+ createText(random, 3 + random.nextInt(25))
+						+ "</body><origin-id xmlns=\"urn:xmpp:sid:0\" id=\""
+						+ id + "\"/></message>";
+			} else if (kind < 95) {
+				stanza = "<presence from=\"" + contact + "/laptop\" to=\""
+						+ "me@example.com/SimpleChat\"><show>"
+						+ SHOWS[random.nextInt(SHOWS.length)]
+						+ "</show><status>"
+						+ createText(random, random.nextInt(6))
+						+ "</status><c xmlns=\"http://jabber.org/protocol/"
+						+ "caps\" hash=\"sha-1\" node=\"http://pidgin.im/\" "
+						+ "ver=\"AcN1/PEN8nq7AHD+9jpxMV4U6YM=\"/></presence>";
+			} else {
+				stanza = "<iq type=\"set\" id=\"push" + i + "\"><query "
+						+ "xmlns=\"jabber:iq:roster\" ver=\"ver" + i
+						+ "\"><item jid=\"" + contact + "\" name=\""
+						+ createText(random, 2) + "\" subscription=\"both\">"
+						+ "<group>Friends</group></item></query></iq>";
+			}
+			stanzas.add(stanza.getBytes("UTF-8"));
+		}
+		return stanzas;
+	}
+
+	private static String createText(Random random, int words) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < words; i++)
+			text.append(i == 0 ? "" : " ").append(
+					WORDS[random.nextInt(WORDS.length)]);
+		return text.toString();
+	}
+}
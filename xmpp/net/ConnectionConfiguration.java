@@ -0,0 +1,947 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * This class holds the optional settings used by an XMPP connection. An
+ * instance created with the default constructor contains sensible defaults, so
+ * callers only need to change the settings they are interested in.
+ */
+public class ConnectionConfiguration {
+
+	/**
+	 * Default number of outgoing stanzas kept while waiting for an
+	 * acknowledgement from the server.
+	 */
+	public static final int DEFAULT_UNACKED_BUFFER_SIZE = 500;
+
+	/**
+	 * Default number of outgoing stanzas sent before an acknowledgement is
+	 * requested from the server.
+	 */
+	public static final int DEFAULT_ACK_REQUEST_INTERVAL = 5;
+
+	/**
+	 * Default delay before the first reconnection attempt, in milliseconds.
+	 */
+	public static final long DEFAULT_RECONNECT_INITIAL_DELAY = 1000;
+
+	/**
+	 * Default maximum delay between reconnection attempts, in milliseconds.
+	 */
+	public static final long DEFAULT_RECONNECT_MAX_DELAY = 60000;
+
+	/**
+	 * Default time without receiving data before a keepalive is sent, in
+	 * milliseconds.
+	 */
+	public static final long DEFAULT_KEEPALIVE_INTERVAL = 60000;
+
+	/**
+	 * Default time to wait for a response to a ping before the connection is
+	 * considered dead, in milliseconds.
+	 */
+	public static final long DEFAULT_PING_TIMEOUT = 30000;
+
+	/**
+	 * Default time to wait for the response to an iq request, in
+	 * milliseconds.
+	 */
+	public static final long DEFAULT_IQ_TIMEOUT = 30000;
+
+	/**
+	 * Default maximum number of roster requests of a bulk operation waiting
+	 * for a response at the same time.
+	 */
+	public static final int DEFAULT_ROSTER_BATCH_WINDOW = 50;
+
+	/**
+	 * Default number of messages requested in each page of the server
+	 * message archive.
+	 */
+	public static final int DEFAULT_ARCHIVE_PAGE_SIZE = 50;
+
+	/**
+	 * Default size, in bytes, of the blocks sent in in-band file transfers
+	 * (XEP-0047), before base64 encoding.
+	 */
+	public static final int DEFAULT_IBB_BLOCK_SIZE = 4096;
+
+	/**
+	 * Default maximum number of file transfers running at the same time.
+	 */
+	public static final int DEFAULT_MAX_CONCURRENT_TRANSFERS = 4;
+
+	/**
+	 * Default maximum number of entity capabilities kept in memory.
+	 */
+	public static final int DEFAULT_CAPS_CACHE_SIZE = 1000;
+
+	/**
+	 * Default number of requests the BOSH connection manager may hold.
+	 */
+	public static final int DEFAULT_BOSH_HOLD = 1;
+
+	/**
+	 * Default longest time, in seconds, a BOSH request may be held.
+	 */
+	public static final int DEFAULT_BOSH_WAIT = 60;
+
+	/**
+	 * Default number of recent message ids remembered to drop duplicates.
+	 */
+	public static final int DEFAULT_MESSAGE_DEDUP_SIZE = 2000;
+
+	/**
+	 * Default time, in milliseconds, to wait for the connection to the server
+	 * to be established.
+	 */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+	/**
+	 * Default number of stanzas that may be sent at once before the send rate
+	 * applies.
+	 */
+	public static final int DEFAULT_SEND_BURST = 20;
+
+	/**
+	 * Default time, in milliseconds, during which changes of the user's status
+	 * after a presence is sent are combined.
+	 */
+	public static final long DEFAULT_PRESENCE_DEBOUNCE = 1000;
+
+	private boolean streamManagementEnabled = true;
+	private int unackedBufferSize = DEFAULT_UNACKED_BUFFER_SIZE;
+	private int ackRequestInterval = DEFAULT_ACK_REQUEST_INTERVAL;
+
+	private boolean reconnectEnabled = false;
+	private long reconnectInitialDelay = DEFAULT_RECONNECT_INITIAL_DELAY;
+	private long reconnectMaxDelay = DEFAULT_RECONNECT_MAX_DELAY;
+	private int maxReconnectAttempts = 0;
+
+	private boolean compressionEnabled = false;
+
+	private boolean tlsEnabled = true;
+	private boolean tlsRequired = false;
+
+	private long keepAliveInterval = DEFAULT_KEEPALIVE_INTERVAL;
+	private long pingTimeout = DEFAULT_PING_TIMEOUT;
+	private boolean keepAlivePing = true;
+
+	private long iqTimeout = DEFAULT_IQ_TIMEOUT;
+	private int rosterBatchWindow = DEFAULT_ROSTER_BATCH_WINDOW;
+
+	private int archivePageSize = DEFAULT_ARCHIVE_PAGE_SIZE;
+
+	private boolean socks5Enabled = true;
+	private int ibbBlockSize = DEFAULT_IBB_BLOCK_SIZE;
+	private int maxConcurrentTransfers = DEFAULT_MAX_CONCURRENT_TRANSFERS;
+
+	private int capsCacheSize = DEFAULT_CAPS_CACHE_SIZE;
+
+	private String webSocketUri = null;
+	private boolean webSocketCompressionEnabled = true;
+
+	private String boshUrl = null;
+	private int boshHold = DEFAULT_BOSH_HOLD;
+	private int boshWait = DEFAULT_BOSH_WAIT;
+
+	private boolean carbonsEnabled = true;
+	private int messageDedupSize = DEFAULT_MESSAGE_DEDUP_SIZE;
+
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+	private int sendRate = 0;
+	private int sendBurst = DEFAULT_SEND_BURST;
+
+	private long presenceDebounce = DEFAULT_PRESENCE_DEBOUNCE;
+
+	/**
+	 * Indicates if stream management (XEP-0198) should be negotiated with
+	 * servers that support it.
+	 * 
+	 * @return <code>true</code> if stream management should be used,
+	 *         <code>false</code> otherwise.
+	 */
+	public boolean isStreamManagementEnabled() {
+		return streamManagementEnabled;
+	}
+
+	/**
+	 * Sets if stream management (XEP-0198) should be negotiated with servers
+	 * that support it.
+	 * 
+	 * @param enabled
+	 *            <code>true</code> if stream management should be used,
+	 *            <code>false</code> otherwise.
+	 */
+	public void setStreamManagementEnabled(boolean enabled) {
+		this.streamManagementEnabled = enabled;
+	}
+
+	/**
+	 * Returns the maximum number of outgoing stanzas kept while waiting for an
+	 * acknowledgement from the server.
+	 * 
+	 * @return Maximum size of the unacknowledged stanza buffer.
+	 */
+	public int getUnackedBufferSize() {
+		return unackedBufferSize;
+	}
+
+	/**
+	 * Sets the maximum number of outgoing stanzas kept while waiting for an
+	 * acknowledgement from the server. If this limit is exceeded the stream can
+	 * no longer be resumed, since some stanzas could not be retransmitted.
+	 * 
+	 * @param size
+	 *            Maximum size of the unacknowledged stanza buffer.
+	 */
+	public void setUnackedBufferSize(int size) {
+		if (size <= 0)
+			throw new IllegalArgumentException("Buffer size must be positive.");
+		this.unackedBufferSize = size;
+	}
+
+	/**
+	 * Returns the number of outgoing stanzas sent before an acknowledgement is
+	 * requested from the server.
+	 * 
+	 * @return Number of stanzas between acknowledgement requests.
+	 */
+	public int getAckRequestInterval() {
+		return ackRequestInterval;
+	}
+
+	/**
+	 * Sets the number of outgoing stanzas sent before an acknowledgement is
+	 * requested from the server.
+	 * 
+	 * @param interval
+	 *            Number of stanzas between acknowledgement requests.
+	 */
+	public void setAckRequestInterval(int interval) {
+		if (interval <= 0)
+			throw new IllegalArgumentException("Interval must be positive.");
+		this.ackRequestInterval = interval;
+	}
+
+	/**
+	 * Indicates if the connection should be automatically re-established
+	 * (with a new login) when it is lost and the stream cannot be resumed.
+	 * 
+	 * @return <code>true</code> if automatic reconnection is enabled,
+	 *         <code>false</code> otherwise.
+	 */
+	public boolean isReconnectEnabled() {
+		return reconnectEnabled;
+	}
+
+	/**
+	 * Sets if the connection should be automatically re-established (with a
+	 * new login) when it is lost and the stream cannot be resumed. If
+	 * disabled, a lost connection closes the session.
+	 * 
+	 * @param enabled
+	 *            <code>true</code> if automatic reconnection is enabled,
+	 *            <code>false</code> otherwise.
+	 */
+	public void setReconnectEnabled(boolean enabled) {
+		this.reconnectEnabled = enabled;
+	}
+
+	/**
+	 * Returns the base delay used for the first reconnection attempt. Further
+	 * attempts double this delay, up to the maximum delay.
+	 * 
+	 * @return Initial reconnection delay, in milliseconds.
+	 */
+	public long getReconnectInitialDelay() {
+		return reconnectInitialDelay;
+	}
+
+	/**
+	 * Sets the base delay used for the first reconnection attempt.
+	 * 
+	 * @param delay
+	 *            Initial reconnection delay, in milliseconds.
+	 */
+	public void setReconnectInitialDelay(long delay) {
+		if (delay <= 0)
+			throw new IllegalArgumentException("Delay must be positive.");
+		this.reconnectInitialDelay = delay;
+	}
+
+	/**
+	 * Returns the maximum delay between reconnection attempts.
+	 * 
+	 * @return Maximum reconnection delay, in milliseconds.
+	 */
+	public long getReconnectMaxDelay() {
+		return reconnectMaxDelay;
+	}
+
+	/**
+	 * Sets the maximum delay between reconnection attempts.
+	 * 
+	 * @param delay
+	 *            Maximum reconnection delay, in milliseconds.
+	 */
+	public void setReconnectMaxDelay(long delay) {
+		if (delay <= 0)
+			throw new IllegalArgumentException("Delay must be positive.");
+		this.reconnectMaxDelay = delay;
+	}
+
+	/**
+	 * Returns the maximum number of reconnection attempts after the connection
+	 * is lost. Zero means there is no limit.
+	 * 
+	 * @return Maximum number of attempts.
+	 */
+	public int getMaxReconnectAttempts() {
+		return maxReconnectAttempts;
+	}
+
+	/**
+	 * Sets the maximum number of reconnection attempts after the connection is
+	 * lost. Zero means there is no limit.
+	 * 
+	 * @param attempts
+	 *            Maximum number of attempts.
+	 */
+	public void setMaxReconnectAttempts(int attempts) {
+		if (attempts < 0)
+			throw new IllegalArgumentException(
+					"Number of attempts cannot be negative.");
+		this.maxReconnectAttempts = attempts;
+	}
+
+	/**
+	 * Indicates if stream compression (XEP-0138) should be negotiated with
+	 * servers that support it.
+	 * 
+	 * @return <code>true</code> if compression should be used,
+	 *         <code>false</code> otherwise.
+	 */
+	public boolean isCompressionEnabled() {
+		return compressionEnabled;
+	}
+
+	/**
+	 * Sets if stream compression (XEP-0138) should be negotiated with servers
+	 * that support it. Compression reduces bandwidth usage considerably on
+	 * slow links, at the cost of some CPU time.
+	 * 
+	 * @param enabled
+	 *            <code>true</code> if compression should be used,
+	 *            <code>false</code> otherwise.
+	 */
+	public void setCompressionEnabled(boolean enabled) {
+		this.compressionEnabled = enabled;
+	}
+
+	/**
+	 * Indicates if TLS should be negotiated (using STARTTLS) with servers that
+	 * support it.
+	 * 
+	 * @return <code>true</code> if TLS should be used, <code>false</code>
+	 *         otherwise.
+	 */
+	public boolean isTlsEnabled() {
+		return tlsEnabled;
+	}
+
+	/**
+	 * Sets if TLS should be negotiated (using STARTTLS) with servers that
+	 * support it. Without TLS, credentials are sent to the server in clear
+	 * text.
+	 * 
+	 * @param enabled
+	 *            <code>true</code> if TLS should be used, <code>false</code>
+	 *            otherwise.
+	 */
+	public void setTlsEnabled(boolean enabled) {
+		this.tlsEnabled = enabled;
+	}
+
+	/**
+	 * Indicates if the connection should be refused when TLS cannot be
+	 * negotiated.
+	 * 
+	 * @return <code>true</code> if TLS is required, <code>false</code>
+	 *         otherwise.
+	 */
+	public boolean isTlsRequired() {
+		return tlsRequired;
+	}
+
+	/**
+	 * Sets if the connection should be refused when TLS cannot be negotiated,
+	 * instead of sending credentials in clear text. Setting this to
+	 * <code>true</code> also enables TLS.
+	 * 
+	 * @param required
+	 *            <code>true</code> if TLS is required, <code>false</code>
+	 *            otherwise.
+	 */
+	public void setTlsRequired(boolean required) {
+		this.tlsRequired = required;
+		if (required)
+			this.tlsEnabled = true;
+	}
+
+	/**
+	 * Returns the time without receiving any data from the server after which
+	 * a keepalive is sent.
+	 * 
+	 * @return Keepalive interval, in milliseconds, or zero if keepalives are
+	 *         disabled.
+	 */
+	public long getKeepAliveInterval() {
+		return keepAliveInterval;
+	}
+
+	/**
+	 * Sets the time without receiving any data from the server after which a
+	 * keepalive is sent. Zero disables keepalives and dead connection
+	 * detection.
+	 * 
+	 * @param interval
+	 *            Keepalive interval, in milliseconds.
+	 */
+	public void setKeepAliveInterval(long interval) {
+		if (interval < 0)
+			throw new IllegalArgumentException("Interval cannot be negative.");
+		this.keepAliveInterval = interval;
+	}
+
+	/**
+	 * Returns the time to wait for any data after a ping is sent before the
+	 * connection is considered dead.
+	 * 
+	 * @return Ping timeout, in milliseconds.
+	 */
+	public long getPingTimeout() {
+		return pingTimeout;
+	}
+
+	/**
+	 * Sets the time to wait for any data after a ping is sent before the
+	 * connection is considered dead.
+	 * 
+	 * @param timeout
+	 *            Ping timeout, in milliseconds.
+	 */
+	public void setPingTimeout(long timeout) {
+		if (timeout <= 0)
+			throw new IllegalArgumentException("Timeout must be positive.");
+		this.pingTimeout = timeout;
+	}
+
+	/**
+	 * Indicates if keepalives are sent as XMPP pings (XEP-0199), which allow
+	 * dead connections to be detected, or as whitespace.
+	 * 
+	 * @return <code>true</code> if pings are used, <code>false</code> if
+	 *         whitespace keepalives are used.
+	 */
+	public boolean isKeepAlivePing() {
+		return keepAlivePing;
+	}
+
+	/**
+	 * Sets if keepalives are sent as XMPP pings (XEP-0199) or as whitespace.
+	 * Whitespace keepalives are cheaper, but since the server does not respond
+	 * to them, a ping is still sent after a few intervals without receiving
+	 * anything, to detect a dead connection.
+	 * 
+	 * @param ping
+	 *            <code>true</code> if pings should be used, <code>false</code>
+	 *            if whitespace keepalives should be used.
+	 */
+	public void setKeepAlivePing(boolean ping) {
+		this.keepAlivePing = ping;
+	}
+
+	/**
+	 * Returns the time to wait for the response to an iq request before the
+	 * request fails.
+	 * 
+	 * @return Timeout, in milliseconds.
+	 */
+	public long getIqTimeout() {
+		return iqTimeout;
+	}
+
+	/**
+	 * Sets the time to wait for the response to an iq request before the
+	 * request fails.
+	 * 
+	 * @param timeout
+	 *            Timeout, in milliseconds.
+	 */
+	public void setIqTimeout(long timeout) {
+		if (timeout <= 0)
+			throw new IllegalArgumentException("Timeout must be positive.");
+		this.iqTimeout = timeout;
+	}
+
+	/**
+	 * Returns the maximum number of roster requests of a bulk operation that
+	 * may be waiting for a response at the same time.
+	 * 
+	 * @return Size of the window of in-flight requests.
+	 */
+	public int getRosterBatchWindow() {
+		return rosterBatchWindow;
+	}
+
+	/**
+	 * Sets the maximum number of roster requests of a bulk operation that may
+	 * be waiting for a response at the same time. Larger windows make bulk
+	 * operations faster, but increase the burst of traffic sent to the server.
+	 * 
+	 * @param window
+	 *            Size of the window of in-flight requests.
+	 */
+	public void setRosterBatchWindow(int window) {
+		if (window <= 0)
+			throw new IllegalArgumentException("Window must be positive.");
+		this.rosterBatchWindow = window;
+	}
+
+	/**
+	 * Returns the number of messages requested in each page of the server
+	 * message archive.
+	 * 
+	 * @return Size of an archive page.
+	 */
+	public int getArchivePageSize() {
+		return archivePageSize;
+	}
+
+	/**
+	 * Sets the number of messages requested in each page of the server
+	 * message archive. Smaller pages are displayed sooner, larger pages need
+	 * fewer round trips to scroll through a long history.
+	 * 
+	 * @param size
+	 *            Size of an archive page.
+	 */
+	public void setArchivePageSize(int size) {
+		if (size <= 0)
+			throw new IllegalArgumentException("Page size must be positive.");
+		this.archivePageSize = size;
+	}
+
+	/**
+	 * Indicates if file transfers may use direct SOCKS5 bytestreams
+	 * (XEP-0065). If disabled, files are always sent in-band.
+	 * 
+	 * @return <code>true</code> if SOCKS5 bytestreams are enabled.
+	 */
+	public boolean isSocks5Enabled() {
+		return socks5Enabled;
+	}
+
+	/**
+	 * Enables or disables direct SOCKS5 bytestreams for file transfers. Direct
+	 * connections are much faster, but require the peers to reach each other,
+	 * which is often not possible behind NAT.
+	 * 
+	 * @param enabled
+	 *            <code>true</code> to enable SOCKS5 bytestreams.
+	 */
+	public void setSocks5Enabled(boolean enabled) {
+		this.socks5Enabled = enabled;
+	}
+
+	/**
+	 * Returns the size of the blocks sent in in-band file transfers.
+	 * 
+	 * @return Block size in bytes, before base64 encoding.
+	 */
+	public int getIbbBlockSize() {
+		return ibbBlockSize;
+	}
+
+	/**
+	 * Sets the size of the blocks sent in in-band file transfers. XEP-0047
+	 * limits blocks to 65535 bytes; servers may enforce smaller stanza sizes.
+	 * 
+	 * @param size
+	 *            Block size in bytes, before base64 encoding.
+	 */
+	public void setIbbBlockSize(int size) {
+		if (size <= 0 || size > 65535)
+			throw new IllegalArgumentException(
+					"Block size must be between 1 and 65535.");
+		this.ibbBlockSize = size;
+	}
+
+	/**
+	 * Returns the maximum number of file transfers running at the same time.
+	 * 
+	 * @return Maximum number of concurrent transfers.
+	 */
+	public int getMaxConcurrentTransfers() {
+		return maxConcurrentTransfers;
+	}
+
+	/**
+	 * Sets the maximum number of file transfers running at the same time.
+	 * Further transfers wait until a running transfer finishes.
+	 * 
+	 * @param transfers
+	 *            Maximum number of concurrent transfers.
+	 */
+	public void setMaxConcurrentTransfers(int transfers) {
+		if (transfers <= 0)
+			throw new IllegalArgumentException(
+					"Number of transfers must be positive.");
+		this.maxConcurrentTransfers = transfers;
+	}
+
+	/**
+	 * Returns the maximum number of entity capabilities kept in memory.
+	 * 
+	 * @return Size of the in-memory capabilities cache.
+	 */
+	public int getCapsCacheSize() {
+		return capsCacheSize;
+	}
+
+	/**
+	 * Sets the maximum number of entity capabilities kept in memory. Each
+	 * entry is shared by all resources running the same client version, so a
+	 * small cache covers large rosters; entries evicted from memory remain on
+	 * disk until the file is compacted. The cache is shared by all accounts,
+	 * and holds as many entries as the largest size among their
+	 * configurations.
+	 * 
+	 * @param size
+	 *            Size of the in-memory capabilities cache.
+	 */
+	public void setCapsCacheSize(int size) {
+		if (size <= 0)
+			throw new IllegalArgumentException("Cache size must be positive.");
+		this.capsCacheSize = size;
+	}
+
+	/**
+	 * Returns the URI of the WebSocket endpoint (RFC 7395) used to connect to
+	 * the server.
+	 * 
+	 * @return URI with scheme ws or wss, or null if the client connects over
+	 *         TCP.
+	 */
+	public String getWebSocketUri() {
+		return webSocketUri;
+	}
+
+	/**
+	 * Sets the URI of the WebSocket endpoint (RFC 7395) used to connect to
+	 * the server, for networks where only HTTP ports are reachable. With wss,
+	 * the connection is encrypted before the XMPP stream starts, and STARTTLS
+	 * is not used.
+	 * 
+	 * @param uri
+	 *            URI with scheme ws or wss, or null to connect over TCP.
+	 */
+	public void setWebSocketUri(String uri) {
+		if (uri != null) {
+			URI parsed;
+			try {
+				parsed = new URI(uri);
+			} catch (URISyntaxException e) {
+				throw new IllegalArgumentException("Invalid URI: " + uri, e);
+			}
+			if (!"ws".equalsIgnoreCase(parsed.getScheme())
+					&& !"wss".equalsIgnoreCase(parsed.getScheme()))
+				throw new IllegalArgumentException(
+						"WebSocket URI must use the ws or wss scheme.");
+			if (parsed.getHost() == null)
+				throw new IllegalArgumentException("WebSocket URI has no host.");
+		}
+		this.webSocketUri = uri;
+	}
+
+	/**
+	 * Indicates if per-message compression (permessage-deflate) is offered
+	 * when connecting over WebSocket.
+	 * 
+	 * @return <code>true</code> if compression is offered,
+	 *         <code>false</code> otherwise.
+	 */
+	public boolean isWebSocketCompressionEnabled() {
+		return webSocketCompressionEnabled;
+	}
+
+	/**
+	 * Sets if per-message compression (permessage-deflate) is offered when
+	 * connecting over WebSocket. Stream compression (XEP-0138) is not
+	 * available over WebSocket, so this is the only way to compress the
+	 * stream.
+	 * 
+	 * @param enabled
+	 *            <code>true</code> if compression is offered,
+	 *            <code>false</code> otherwise.
+	 */
+	public void setWebSocketCompressionEnabled(boolean enabled) {
+		this.webSocketCompressionEnabled = enabled;
+	}
+
+	/**
+	 * Returns the URL of the BOSH connection manager (XEP-0206) used to
+	 * connect to the server.
+	 * 
+	 * @return URL with scheme http or https, or null if BOSH is not used.
+	 */
+	public String getBoshUrl() {
+		return boshUrl;
+	}
+
+	/**
+	 * Sets the URL of the BOSH connection manager (XEP-0206) used to connect
+	 * to the server, for networks where only HTTP, possibly through a proxy,
+	 * is allowed. A WebSocket endpoint, if also set, takes precedence.
+	 * 
+	 * @param url
+	 *            URL with scheme http or https, or null to not use BOSH.
+	 */
+	public void setBoshUrl(String url) {
+		if (url != null) {
+			URI parsed;
+			try {
+				parsed = new URI(url);
+			} catch (URISyntaxException e) {
+				throw new IllegalArgumentException("Invalid URL: " + url, e);
+			}
+			if (!"http".equalsIgnoreCase(parsed.getScheme())
+					&& !"https".equalsIgnoreCase(parsed.getScheme()))
+				throw new IllegalArgumentException(
+						"BOSH URL must use the http or https scheme.");
+			if (parsed.getHost() == null)
+				throw new IllegalArgumentException("BOSH URL has no host.");
+		}
+		this.boshUrl = url;
+	}
+
+	/**
+	 * Returns the number of requests the BOSH connection manager is asked to
+	 * hold.
+	 * 
+	 * @return Number of held requests.
+	 */
+	public int getBoshHold() {
+		return boshHold;
+	}
+
+	/**
+	 * Sets the number of requests the BOSH connection manager is asked to
+	 * hold. The client keeps up to one more request than this in flight, so
+	 * stanzas can be sent while the connection manager holds the others.
+	 * Zero turns the session into polling, which adds latency but works with
+	 * proxies that do not allow long requests.
+	 * 
+	 * @param hold
+	 *            Number of held requests.
+	 */
+	public void setBoshHold(int hold) {
+		if (hold < 0)
+			throw new IllegalArgumentException("Hold must not be negative.");
+		this.boshHold = hold;
+	}
+
+	/**
+	 * Returns the longest time a BOSH request may be held by the connection
+	 * manager.
+	 * 
+	 * @return Wait time, in seconds.
+	 */
+	public int getBoshWait() {
+		return boshWait;
+	}
+
+	/**
+	 * Sets the longest time a BOSH request may be held by the connection
+	 * manager. Proxies that close idle HTTP requests require shorter waits.
+	 * 
+	 * @param wait
+	 *            Wait time, in seconds.
+	 */
+	public void setBoshWait(int wait) {
+		if (wait <= 0)
+			throw new IllegalArgumentException("Wait must be positive.");
+		this.boshWait = wait;
+	}
+
+	/**
+	 * Indicates if message carbons (XEP-0280) should be enabled with servers
+	 * that support them.
+	 * 
+	 * @return <code>true</code> if carbons should be enabled,
+	 *         <code>false</code> otherwise.
+	 */
+	public boolean isCarbonsEnabled() {
+		return carbonsEnabled;
+	}
+
+	/**
+	 * Sets if message carbons (XEP-0280) should be enabled with servers that
+	 * support them. With carbons, messages sent and received by other
+	 * resources of the same account also appear in this client's
+	 * conversations.
+	 * 
+	 * @param enabled
+	 *            <code>true</code> if carbons should be enabled,
+	 *            <code>false</code> otherwise.
+	 */
+	public void setCarbonsEnabled(boolean enabled) {
+		this.carbonsEnabled = enabled;
+	}
+
+	/**
+	 * Returns the number of recent message ids remembered to recognise
+	 * messages received more than once.
+	 * 
+	 * @return Number of ids remembered.
+	 */
+	public int getMessageDedupSize() {
+		return messageDedupSize;
+	}
+
+	/**
+	 * Sets the number of recent message ids remembered to recognise messages
+	 * received more than once (e.g., directly and as a carbon copy, or again
+	 * after a stream is resumed). Duplicates are only recognised while their
+	 * first copy is remembered, so this should cover the messages received in
+	 * a few minutes.
+	 * 
+	 * @param size
+	 *            Number of ids remembered.
+	 */
+	public void setMessageDedupSize(int size) {
+		if (size <= 0)
+			throw new IllegalArgumentException("Size must be positive.");
+		this.messageDedupSize = size;
+	}
+
+	/**
+	 * Returns the time to wait for the connection to the server to be
+	 * established.
+	 * 
+	 * @return Connect timeout, in milliseconds, or zero to wait indefinitely.
+	 */
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * Sets the time to wait for the connection to the server to be
+	 * established. Without a timeout, connecting to an unreachable server may
+	 * block for minutes, until the operating system gives up.
+	 * 
+	 * @param timeout
+	 *            Connect timeout, in milliseconds, or zero to wait
+	 *            indefinitely.
+	 */
+	public void setConnectTimeout(int timeout) {
+		if (timeout < 0)
+			throw new IllegalArgumentException("Timeout must not be negative.");
+		this.connectTimeout = timeout;
+	}
+
+	/**
+	 * Returns the maximum sustained number of stanzas sent per second.
+	 * 
+	 * @return Stanzas per second, or zero if sending is not limited.
+	 */
+	public int getSendRate() {
+		return sendRate;
+	}
+
+	/**
+	 * Sets the maximum sustained number of stanzas sent per second. Servers
+	 * throttle or disconnect clients that send too fast, so bots sending many
+	 * messages should stay below the server's limit. Stanzas over the rate
+	 * wait in the outbound queue, where requests and presence go ahead of
+	 * messages (see OutboundQueue).
+	 * 
+	 * @param rate
+	 *            Stanzas per second, or zero to not limit sending.
+	 */
+	public void setSendRate(int rate) {
+		if (rate < 0)
+			throw new IllegalArgumentException("Rate must not be negative.");
+		this.sendRate = rate;
+	}
+
+	/**
+	 * Returns the number of stanzas that may be sent at once before the send
+	 * rate applies.
+	 * 
+	 * @return Number of stanzas.
+	 */
+	public int getSendBurst() {
+		return sendBurst;
+	}
+
+	/**
+	 * Sets the number of stanzas that may be sent at once, after a quiet
+	 * period, before the send rate applies. Ignored if sending is not
+	 * limited.
+	 * 
+	 * @param burst
+	 *            Number of stanzas.
+	 */
+	public void setSendBurst(int burst) {
+		if (burst <= 0)
+			throw new IllegalArgumentException("Burst must be positive.");
+		this.sendBurst = burst;
+	}
+
+	/**
+	 * Returns the time during which changes of the user's status after a
+	 * presence is sent are combined.
+	 * 
+	 * @return Debounce window, in milliseconds, or zero if every change is
+	 *         sent at once.
+	 */
+	public long getPresenceDebounce() {
+		return presenceDebounce;
+	}
+
+	/**
+	 * Sets the time during which changes of the user's status after a
+	 * presence is sent are combined. The server broadcasts every presence to
+	 * all subscribed contacts, so a user flipping through statuses costs one
+	 * broadcast per change; with a window, only the last status chosen within
+	 * it is sent, when it ends. Going online or offline is always sent at
+	 * once.
+	 * 
+	 * @param window
+	 *            Debounce window, in milliseconds, or zero to send every
+	 *            change at once.
+	 */
+	public void setPresenceDebounce(long window) {
+		if (window < 0)
+			throw new IllegalArgumentException("Window must not be negative.");
+		this.presenceDebounce = window;
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.io.IOException;
+
+import ubc.cs317.xmpp.exception.XMPPException;
+
+/**
+ * Follows the establishment of a connection, reporting each stage of the
+ * handshake to a listener, and allows the attempt to be cancelled from
+ * another thread. Cancelling closes the transport, which interrupts any
+ * blocking connect or read, so the thread establishing the connection fails
+ * promptly with an exception.
+ */
+public class ConnectionProgress {
+
+	public enum Stage {
+		CONNECTING("Connecting to server"), SECURING("Negotiating encryption"), AUTHENTICATING(
+				"Authenticating"), BINDING("Binding resource"), ESTABLISHED(
+				"Connected");
+
+		private String description;
+
+		private Stage(String description) {
+			this.description = description;
+		}
+
+		@Override
+		public String toString() {
+			return description;
+		}
+	}
+
+	/**
+	 * Listener notified when the connection reaches a new stage. Listeners
+	 * are called from the thread establishing the connection.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called when the connection reaches a new stage.
+		 * 
+		 * @param stage
+		 *            The stage reached.
+		 */
+		public void stageReached(Stage stage);
+	}
+
+	private Listener listener;
+	private volatile Stage stage;
+	private volatile boolean cancelled = false;
+	private Transport transport;
+
+	/**
+	 * Creates a progress tracker.
+	 * 
+	 * @param listener
+	 *            Listener notified of each stage, or null.
+	 */
+	public ConnectionProgress(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Returns the last stage reached.
+	 * 
+	 * @return Current stage, or null if the connection was not started.
+	 */
+	public Stage getStage() {
+		return stage;
+	}
+
+	/**
+	 * Checks if the connection attempt was cancelled.
+	 * 
+	 * @return <code>true</code> if {@link #cancel()} was called.
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Cancels the connection attempt. The transport is closed, and the
+	 * connection fails at the next blocking operation or stage.
+	 */
+	public void cancel() {
+		Transport current;
+		synchronized (this) {
+			cancelled = true;
+			current = transport;
+		}
+		if (current != null) {
+			try {
+				current.close();
+			} catch (IOException e) {
+				// the attempt fails anyway
+			}
+		}
+	}
+
+	/**
+	 * Records the transport being connected, so that it can be closed if the
+	 * attempt is cancelled.
+	 * 
+	 * @throws XMPPException
+	 *             If the attempt was already cancelled.
+	 */
+	void setTransport(Transport transport) throws XMPPException {
+		synchronized (this) {
+			this.transport = transport;
+		}
+		checkCancelled();
+	}
+
+	/**
+	 * Reports that a new stage was reached.
+	 * 
+	 * @throws XMPPException
+	 *             If the attempt was cancelled.
+	 */
+	void stageReached(Stage stage) throws XMPPException {
+		checkCancelled();
+		this.stage = stage;
+		if (listener != null)
+			listener.stageReached(stage);
+	}
+
+	private void checkCancelled() throws XMPPException {
+		if (cancelled)
+			throw new XMPPException("Connection cancelled.");
+	}
+}
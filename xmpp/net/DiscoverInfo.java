@@ -0,0 +1,91 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Identities and features of an entity, as returned by service discovery
+ * (XEP-0030) or found in the entity capabilities cache (XEP-0115).
+ */
+public class DiscoverInfo {
+
+	/**
+	 * An identity of an entity, such as client/pc.
+	 */
+	public static class Identity {
+
+		private String category;
+		private String type;
+		private String lang;
+		private String name;
+
+		public Identity(String category, String type, String lang, String name) {
+			this.category = category;
+			this.type = type;
+			this.lang = lang == null ? "" : lang;
+			this.name = name == null ? "" : name;
+		}
+
+		public String getCategory() {
+			return category;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public String getLang() {
+			return lang;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public String toString() {
+			return category + "/" + type + "/" + lang + "/" + name;
+		}
+	}
+
+	private List<Identity> identities;
+	private Set<String> features;
+
+	public DiscoverInfo(List<Identity> identities, Set<String> features) {
+		this.identities = Collections.unmodifiableList(identities);
+		this.features = Collections.unmodifiableSet(features);
+	}
+
+	public List<Identity> getIdentities() {
+		return identities;
+	}
+
+	public Set<String> getFeatures() {
+		return features;
+	}
+
+	/**
+	 * Indicates if the entity supports a feature.
+	 * 
+	 * @param feature
+	 *            Feature, usually a protocol namespace.
+	 * @return <code>true</code> if the feature is supported.
+	 */
+	public boolean hasFeature(String feature) {
+		return features.contains(feature);
+	}
+}
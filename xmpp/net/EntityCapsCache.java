@@ -0,0 +1,220 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache of the capabilities (XEP-0115) of other entities, indexed by their
+ * verification string. Since a verification string is a hash of the
+ * identities and features it stands for, entries never become stale and can
+ * be shared by all contacts and accounts. The most recently used entries are
+ * kept in memory, and all verified entries are stored on disk, so they are
+ * available when the application starts again.
+ * 
+ * The file contains one line per entry, with the verification string,
+ * identities and features separated by tabs. Identities are separated by
+ * '&lt;' and features by spaces. New entries are appended, and the file is
+ * rewritten with only the entries in memory when it becomes too large.
+ * 
+ * Only one instance may use a file, since instances do not see each other's
+ * changes: all connections in the application share the cache returned by
+ * getSharedCache.
+ */
+public class EntityCapsCache {
+
+	private static EntityCapsCache sharedCache;
+
+	private File cacheFile;
+	private int capacity;
+	private int storedLines = 0;
+	private Map<String, DiscoverInfo> entries;
+
+	/**
+	 * Returns the cache stored in the user's home directory, shared by all
+	 * connections. It is created and loaded the first time it is requested.
+	 * If a larger capacity is requested later, e.g., by the configuration of
+	 * another account, the shared cache grows to it.
+	 * 
+	 * @param capacity
+	 *            Minimum number of entries kept in memory.
+	 * @return The shared cache.
+	 */
+	public static synchronized EntityCapsCache getSharedCache(int capacity) {
+		if (sharedCache == null)
+			sharedCache = new EntityCapsCache(new File(
+					System.getProperty("user.home"), ".simplechat-caps.txt"),
+					capacity);
+		else
+			sharedCache.ensureCapacity(capacity);
+		return sharedCache;
+	}
+
+	/**
+	 * Creates a cache stored in a specific file, and loads its entries.
+	 * 
+	 * @param cacheFile
+	 *            File where the cache is stored.
+	 * @param capacity
+	 *            Maximum number of entries kept in memory.
+	 */
+	public EntityCapsCache(File cacheFile, int capacity) {
+		this.cacheFile = cacheFile;
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<String, DiscoverInfo>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, DiscoverInfo> eldest) {
+				return size() > EntityCapsCache.this.capacity;
+			}
+		};
+		load();
+	}
+
+	/**
+	 * Returns the capabilities associated to a verification string.
+	 * 
+	 * @param ver
+	 *            Verification string.
+	 * @return The capabilities, or null if they are not in the cache.
+	 */
+	public synchronized DiscoverInfo get(String ver) {
+		return entries.get(ver);
+	}
+
+	/**
+	 * Adds verified capabilities to the cache, and stores them on disk.
+	 * 
+	 * @param ver
+	 *            Verification string, already checked against the
+	 *            capabilities.
+	 * @param info
+	 *            The capabilities.
+	 */
+	public synchronized void put(String ver, DiscoverInfo info) {
+		if (entries.put(ver, info) != null)
+			return;
+		if (storedLines >= 2 * capacity) {
+			rewrite();
+			return;
+		}
+		try {
+			PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+					new FileOutputStream(cacheFile, true), "UTF-8"));
+			writer.println(format(ver, info));
+			writer.close();
+			storedLines++;
+		} catch (Exception e) {
+			// Ignore, the entry will be queried again next time
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns the number of entries in memory.
+	 * 
+	 * @return Number of cached entries.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private synchronized void ensureCapacity(int capacity) {
+		if (capacity > this.capacity)
+			this.capacity = capacity;
+	}
+
+	private void load() {
+		if (!cacheFile.exists())
+			return;
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(cacheFile), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					storedLines++;
+					String[] fields = line.split("\t", -1);
+					if (fields.length != 3)
+						continue;
+					List<DiscoverInfo.Identity> identities = new ArrayList<DiscoverInfo.Identity>();
+					for (String identity : fields[1].split("<"))
+						if (!identity.equals("")) {
+							String[] parts = identity.split("/", 4);
+							if (parts.length == 4)
+								identities.add(new DiscoverInfo.Identity(
+										parts[0], parts[1], parts[2], parts[3]));
+						}
+					Set<String> features = new LinkedHashSet<String>();
+					for (String feature : fields[2].split(" "))
+						if (!feature.equals(""))
+							features.add(feature);
+					entries.put(fields[0], new DiscoverInfo(identities, features));
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (Exception e) {
+			// A corrupted cache is ignored, capabilities will be queried
+			e.printStackTrace();
+		}
+		if (storedLines > 2 * capacity)
+			rewrite();
+	}
+
+	/**
+	 * Replaces the file with the entries currently in memory.
+	 */
+	private void rewrite() {
+		File tempFile = new File(cacheFile.getPath() + ".tmp");
+		try {
+			PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+					new FileOutputStream(tempFile), "UTF-8"));
+			for (Map.Entry<String, DiscoverInfo> entry : entries.entrySet())
+				writer.println(format(entry.getKey(), entry.getValue()));
+			writer.close();
+			if (!tempFile.renameTo(cacheFile)) {
+				cacheFile.delete();
+				tempFile.renameTo(cacheFile);
+			}
+			storedLines = entries.size();
+		} catch (Exception e) {
+			// Ignore, the cache is an optimisation only
+			e.printStackTrace();
+		}
+	}
+
+	private static String format(String ver, DiscoverInfo info) {
+		StringBuilder line = new StringBuilder(ver).append('\t');
+		for (DiscoverInfo.Identity identity : info.getIdentities())
+			line.append(identity.toString().replaceAll("[\t\r\n<]", " "))
+					.append('<');
+		line.append('\t');
+		for (String feature : info.getFeatures())
+			line.append(feature.replaceAll("[\t\r\n ]", "")).append(' ');
+		return line.toString();
+	}
+}
@@ -0,0 +1,481 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import ubc.cs317.xmpp.exception.XMPPException;
+
+/**
+ * Entity capabilities (XEP-0115). Other entities advertise a hash of their
+ * identities and features in their presence; the features behind a hash are
+ * looked up in an EntityCapsCache, and service discovery (XEP-0030) is only
+ * used when the hash is not cached. Queries for a hash that is already being
+ * queried are not repeated: the resources advertising it wait for the same
+ * response. Responses are only cached if they match the advertised hash.
+ * 
+ * This class also advertises the capabilities of this client, and answers
+ * the service discovery requests of other entities.
+ */
+public class EntityCapsManager {
+
+	public static final String CAPS_NAMESPACE = "http://jabber.org/protocol/caps";
+	public static final String DISCO_INFO_NAMESPACE = "http://jabber.org/protocol/disco#info";
+	private static final String DATA_NAMESPACE = "jabber:x:data";
+
+	private static final String NODE = "http://www.cs.ubc.ca/~cs317/simplechat";
+	private static final String HASH = "sha-1";
+
+	private static final DiscoverInfo.Identity IDENTITY = new DiscoverInfo.Identity(
+			"client", "pc", null, "Simple Chat Client");
+	private static final String[] FEATURES = { CAPS_NAMESPACE,
+			DISCO_INFO_NAMESPACE, "urn:xmpp:ping",
+			"http://jabber.org/protocol/muc", FileTransferManager.SI_NAMESPACE,
+			FileTransferManager.SI_FILE_NAMESPACE, Socks5Bytestream.NAMESPACE,
+			FileTransferManager.IBB_NAMESPACE };
+
+	private static final Comparator<Element> IDENTITY_ORDER = new Comparator<Element>() {
+		@Override
+		public int compare(Element a, Element b) {
+			int result = a.getAttribute("category").compareTo(
+					b.getAttribute("category"));
+			if (result == 0)
+				result = a.getAttribute("type").compareTo(b.getAttribute("type"));
+			if (result == 0)
+				result = a.getAttribute("xml:lang").compareTo(
+						b.getAttribute("xml:lang"));
+			return result;
+		}
+	};
+
+	private XMPPConnection connection;
+	private EntityCapsCache cache;
+	private String ownVer;
+
+	private final ConcurrentMap<String, DiscoverInfo> resourceInfo = new ConcurrentHashMap<String, DiscoverInfo>();
+	private final Map<String, List<String>> pendingQueries = new HashMap<String, List<String>>();
+
+	private int cacheHits = 0;
+	private int cacheMisses = 0;
+	private int queriesSent = 0;
+	private int queriesDeduplicated = 0;
+	private int verificationFailures = 0;
+
+	EntityCapsManager(XMPPConnection connection, EntityCapsCache cache) {
+		this.connection = connection;
+		this.cache = cache;
+	}
+
+	/**
+	 * Returns the capabilities of a resource, if known.
+	 * 
+	 * @param fullJid
+	 *            Full JID of the resource.
+	 * @return The capabilities, or null if the resource did not advertise
+	 *         them or they are still being queried.
+	 */
+	public DiscoverInfo getDiscoverInfo(String fullJid) {
+		return resourceInfo.get(fullJid);
+	}
+
+	/**
+	 * Indicates if a resource is known not to support a feature.
+	 * 
+	 * @param fullJid
+	 *            Full JID of the resource.
+	 * @param feature
+	 *            The feature.
+	 * @return <code>true</code> if the capabilities of the resource are known
+	 *         and do not include the feature, <code>false</code> if the
+	 *         feature is supported or the capabilities are unknown.
+	 */
+	public boolean isKnownUnsupported(String fullJid, String feature) {
+		DiscoverInfo info = resourceInfo.get(fullJid);
+		return info != null && !info.hasFeature(feature);
+	}
+
+	/**
+	 * Processes the capabilities advertised in an available presence.
+	 * 
+	 * @param fullJid
+	 *            Full JID of the resource that sent the presence.
+	 * @param caps
+	 *            The caps element of the presence.
+	 */
+	void processCaps(final String fullJid, Element caps) {
+		final String ver = caps.getAttribute("ver");
+		// legacy caps, without a hash, cannot be verified nor cached
+		if (ver.equals("") || getDigestAlgorithm(caps.getAttribute("hash")) == null)
+			return;
+
+		DiscoverInfo info = cache.get(ver);
+		synchronized (this) {
+			if (info != null) {
+				cacheHits++;
+			} else {
+				cacheMisses++;
+				List<String> waiting = pendingQueries.get(ver);
+				if (waiting != null) {
+					queriesDeduplicated++;
+					waiting.add(fullJid);
+					return;
+				}
+				waiting = new ArrayList<String>();
+				waiting.add(fullJid);
+				pendingQueries.put(ver, waiting);
+				queriesSent++;
+			}
+		}
+		if (info != null) {
+			resourceInfo.put(fullJid, info);
+			return;
+		}
+
+		final String hash = caps.getAttribute("hash");
+		Element iq = connection.createElement("iq");
+		iq.setAttribute("type", "get");
+		iq.setAttribute("to", fullJid);
+		Element query = connection.createElement("query");
+		query.setAttribute("xmlns", DISCO_INFO_NAMESPACE);
+		query.setAttribute("node", caps.getAttribute("node") + "#" + ver);
+		iq.appendChild(query);
+		try {
+			connection.sendIQ(iq).addCallback(new IQFuture.Callback() {
+				@Override
+				public void completed(Element result) {
+					discoInfoReceived(fullJid, ver, hash, result);
+				}
+
+				@Override
+				public void failed(XMPPException exception) {
+					discoInfoReceived(fullJid, ver, hash, null);
+				}
+			});
+		} catch (XMPPException e) {
+			discoInfoReceived(fullJid, ver, hash, null);
+		}
+	}
+
+	/**
+	 * Forgets the capabilities of a resource that became unavailable.
+	 * 
+	 * @param fullJid
+	 *            Full JID of the resource.
+	 */
+	void resourceUnavailable(String fullJid) {
+		resourceInfo.remove(fullJid);
+	}
+
+	private void discoInfoReceived(String fullJid, String ver, String hash,
+			Element result) {
+
+		Element query = result == null ? null : getChildElement(result,
+				"query", DISCO_INFO_NAMESPACE);
+		DiscoverInfo info = query == null ? null : parse(query);
+		boolean verified = info != null
+				&& ver.equals(computeVer(query, hash));
+
+		List<String> waiting;
+		synchronized (this) {
+			waiting = pendingQueries.remove(ver);
+			if (info != null && !verified)
+				verificationFailures++;
+		}
+		if (verified) {
+			cache.put(ver, info);
+			for (String jid : waiting)
+				resourceInfo.put(jid, info);
+		} else if (info != null) {
+			// the response only describes the resource that sent it; other
+			// resources advertising the same hash will be queried again
+			resourceInfo.put(fullJid, info);
+		}
+	}
+
+	/**
+	 * Creates the caps element added to the presence sent by this client.
+	 * 
+	 * @return The caps element.
+	 */
+	Element createCapsElement() {
+		Element caps = connection.createElement("c");
+		caps.setAttribute("xmlns", CAPS_NAMESPACE);
+		caps.setAttribute("hash", HASH);
+		caps.setAttribute("node", NODE);
+		caps.setAttribute("ver", getOwnVer());
+		return caps;
+	}
+
+	/**
+	 * Answers a disco#info request with the identity and features of this
+	 * client.
+	 * 
+	 * @param iq
+	 *            The request.
+	 * @throws XMPPException
+	 *             If the response cannot be sent.
+	 */
+	void processDiscoInfoRequest(Element iq) throws XMPPException {
+		Element request = getChildElement(iq, "query", DISCO_INFO_NAMESPACE);
+		String node = request.getAttribute("node");
+		if (!node.equals("") && !node.equals(NODE + "#" + getOwnVer())) {
+			connection.sendIQError(iq, "item-not-found");
+			return;
+		}
+		Element result = connection.createElement("iq");
+		result.setAttribute("type", "result");
+		result.setAttribute("id", iq.getAttribute("id"));
+		if (iq.hasAttribute("from"))
+			result.setAttribute("to", iq.getAttribute("from"));
+		result.appendChild(createOwnInfo(node));
+		connection.sendStanza(result);
+	}
+
+	private Element createOwnInfo(String node) {
+		Element query = connection.createElement("query");
+		query.setAttribute("xmlns", DISCO_INFO_NAMESPACE);
+		if (node != null && !node.equals(""))
+			query.setAttribute("node", node);
+		Element identity = connection.createElement("identity");
+		identity.setAttribute("category", IDENTITY.getCategory());
+		identity.setAttribute("type", IDENTITY.getType());
+		identity.setAttribute("name", IDENTITY.getName());
+		query.appendChild(identity);
+		for (String feature : FEATURES) {
+			Element element = connection.createElement("feature");
+			element.setAttribute("var", feature);
+			query.appendChild(element);
+		}
+		return query;
+	}
+
+	private synchronized String getOwnVer() {
+		if (ownVer == null)
+			ownVer = computeVer(createOwnInfo(null), HASH);
+		return ownVer;
+	}
+
+	/**
+	 * Returns the number of advertised hashes found in the cache.
+	 */
+	public synchronized int getCacheHits() {
+		return cacheHits;
+	}
+
+	/**
+	 * Returns the number of advertised hashes not found in the cache.
+	 */
+	public synchronized int getCacheMisses() {
+		return cacheMisses;
+	}
+
+	/**
+	 * Returns the fraction of advertised hashes found in the cache.
+	 * 
+	 * @return Hit ratio, between 0 and 1, or 0 if no hash was advertised.
+	 */
+	public synchronized double getHitRatio() {
+		int total = cacheHits + cacheMisses;
+		return total == 0 ? 0 : (double) cacheHits / total;
+	}
+
+	/**
+	 * Returns the number of disco#info requests sent.
+	 */
+	public synchronized int getQueriesSent() {
+		return queriesSent;
+	}
+
+	/**
+	 * Returns the number of disco#info requests that were not needed, either
+	 * because the hash was cached or because it was already being queried.
+	 */
+	public synchronized int getQueriesAvoided() {
+		return cacheHits + queriesDeduplicated;
+	}
+
+	/**
+	 * Returns the number of responses that did not match the advertised hash,
+	 * and were therefore not cached.
+	 */
+	public synchronized int getVerificationFailures() {
+		return verificationFailures;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(
+				"%d hits, %d misses (%.1f%% hit ratio), %d queries sent, %d avoided, %d failed verification",
+				cacheHits, cacheMisses, getHitRatio() * 100, queriesSent,
+				getQueriesAvoided(), verificationFailures);
+	}
+
+	private static DiscoverInfo parse(Element query) {
+		List<DiscoverInfo.Identity> identities = new ArrayList<DiscoverInfo.Identity>();
+		Set<String> features = new LinkedHashSet<String>();
+		for (Node node = query.getFirstChild(); node != null; node = node.getNextSibling()) {
+			if (!(node instanceof Element))
+				continue;
+			Element child = (Element) node;
+			if (child.getTagName().equals("identity"))
+				identities.add(new DiscoverInfo.Identity(child
+						.getAttribute("category"), child.getAttribute("type"),
+						child.getAttribute("xml:lang"), child
+								.getAttribute("name")));
+			else if (child.getTagName().equals("feature"))
+				features.add(child.getAttribute("var"));
+		}
+		return new DiscoverInfo(identities, features);
+	}
+
+	/**
+	 * Computes the verification string of a disco#info response, as
+	 * described in section 5 of XEP-0115.
+	 * 
+	 * @return The verification string, or null if the response is invalid
+	 *         (e.g., duplicate features) or the hash is not supported.
+	 */
+	private static String computeVer(Element query, String hash) {
+		String algorithm = getDigestAlgorithm(hash);
+		if (algorithm == null)
+			return null;
+
+		List<Element> identities = new ArrayList<Element>();
+		List<String> features = new ArrayList<String>();
+		Map<String, Element> forms = new TreeMap<String, Element>();
+		for (Node node = query.getFirstChild(); node != null; node = node.getNextSibling()) {
+			if (!(node instanceof Element))
+				continue;
+			Element child = (Element) node;
+			if (child.getTagName().equals("identity"))
+				identities.add(child);
+			else if (child.getTagName().equals("feature"))
+				features.add(child.getAttribute("var"));
+			else if (child.getTagName().equals("x")
+					&& DATA_NAMESPACE.equals(child.getAttribute("xmlns"))) {
+				String formType = getFormType(child);
+				if (formType != null && forms.put(formType, child) != null)
+					return null;
+			}
+		}
+
+		StringBuilder s = new StringBuilder();
+		Collections.sort(identities, IDENTITY_ORDER);
+		for (int i = 0; i < identities.size(); i++) {
+			Element identity = identities.get(i);
+			if (i > 0 && IDENTITY_ORDER.compare(identities.get(i - 1), identity) == 0
+					&& identities.get(i - 1).getAttribute("name")
+							.equals(identity.getAttribute("name")))
+				return null;
+			s.append(identity.getAttribute("category")).append('/')
+					.append(identity.getAttribute("type")).append('/')
+					.append(identity.getAttribute("xml:lang")).append('/')
+					.append(identity.getAttribute("name")).append('<');
+		}
+		Collections.sort(features);
+		for (int i = 0; i < features.size(); i++) {
+			if (i > 0 && features.get(i - 1).equals(features.get(i)))
+				return null;
+			s.append(features.get(i)).append('<');
+		}
+		for (Map.Entry<String, Element> form : forms.entrySet()) {
+			s.append(form.getKey()).append('<');
+			Map<String, List<String>> fields = new TreeMap<String, List<String>>();
+			for (Node node = form.getValue().getFirstChild(); node != null; node = node.getNextSibling()) {
+				if (!(node instanceof Element)
+						|| !((Element) node).getTagName().equals("field"))
+					continue;
+				Element field = (Element) node;
+				if (field.getAttribute("var").equals("FORM_TYPE"))
+					continue;
+				List<String> values = new ArrayList<String>();
+				for (Node value = field.getFirstChild(); value != null; value = value.getNextSibling())
+					if (value instanceof Element
+							&& ((Element) value).getTagName().equals("value"))
+						values.add(value.getTextContent());
+				Collections.sort(values);
+				fields.put(field.getAttribute("var"), values);
+			}
+			for (Map.Entry<String, List<String>> field : fields.entrySet()) {
+				s.append(field.getKey()).append('<');
+				for (String value : field.getValue())
+					s.append(value).append('<');
+			}
+		}
+
+		try {
+			MessageDigest digest = MessageDigest.getInstance(algorithm);
+			return DatatypeConverter.printBase64Binary(digest.digest(s
+					.toString().getBytes("UTF-8")));
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		} catch (UnsupportedEncodingException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the value of the hidden FORM_TYPE field of a data form, or null
+	 * if the form has no such field.
+	 */
+	private static String getFormType(Element form) {
+		for (Node node = form.getFirstChild(); node != null; node = node.getNextSibling())
+			if (node instanceof Element
+					&& ((Element) node).getTagName().equals("field")
+					&& ((Element) node).getAttribute("var").equals("FORM_TYPE")) {
+				Element value = getChildElement((Element) node, "value", null);
+				return value == null ? null : value.getTextContent();
+			}
+		return null;
+	}
+
+	private static String getDigestAlgorithm(String hash) {
+		if (hash.equals("sha-1"))
+			return "SHA-1";
+		if (hash.equals("sha-256"))
+			return "SHA-256";
+		if (hash.equals("sha-512"))
+			return "SHA-512";
+		return null;
+	}
+
+	private static Element getChildElement(Element parent, String tagName,
+			String namespace) {
+		for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling())
+			if (node instanceof Element
+					&& ((Element) node).getTagName().equals(tagName)
+					&& (namespace == null || namespace.equals(((Element) node)
+							.getAttribute("xmlns"))))
+				return (Element) node;
+		return null;
+	}
+}
@@ -0,0 +1,319 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.io.File;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ubc.cs317.xmpp.exception.XMPPException;
+
+/**
+ * A file being sent to or received from another entity (XEP-0096). The
+ * transfer keeps track of its progress and throughput, which are reported to
+ * listeners at most a few times per second, and of the method used to move
+ * the data: a direct SOCKS5 bytestream (XEP-0065) or, if no direct connection
+ * is possible, an in-band bytestream (XEP-0047).
+ */
+public class FileTransfer {
+
+	public enum State {
+		NEGOTIATING, IN_PROGRESS, COMPLETED, FAILED, REJECTED, CANCELLED
+	}
+
+	/**
+	 * Listener notified of the progress of a transfer. Listeners are called
+	 * from the thread moving the data, and must not block.
+	 */
+	public interface ProgressListener {
+
+		/**
+		 * Called periodically while data is transferred, and once more when
+		 * the transfer finishes.
+		 * 
+		 * @param transfer
+		 *            The transfer.
+		 */
+		public void progressChanged(FileTransfer transfer);
+
+		/**
+		 * Called when the state of the transfer changes.
+		 * 
+		 * @param transfer
+		 *            The transfer.
+		 */
+		public void stateChanged(FileTransfer transfer);
+	}
+
+	public static final String METHOD_SOCKS5 = "SOCKS5";
+	public static final String METHOD_IN_BAND = "in-band";
+
+	private static final long PROGRESS_INTERVAL = TimeUnit.MILLISECONDS
+			.toNanos(250);
+
+	private FileTransferManager manager;
+	private String sid;
+	private String peerJid;
+	private boolean incoming;
+	private String fileName;
+	private long size;
+	private volatile File file;
+
+	private volatile State state = State.NEGOTIATING;
+	private volatile String method;
+	private volatile String failureReason;
+
+	private final AtomicLong transferred = new AtomicLong();
+	private volatile long startTime;
+	private volatile long endTime;
+	private volatile long lastProgressTime;
+
+	private Set<ProgressListener> listeners = new CopyOnWriteArraySet<ProgressListener>();
+
+	FileTransfer(FileTransferManager manager, String sid, String peerJid,
+			boolean incoming, File file, String fileName, long size) {
+		this.manager = manager;
+		this.sid = sid;
+		this.peerJid = peerJid;
+		this.incoming = incoming;
+		this.file = file;
+		this.fileName = fileName;
+		this.size = size;
+	}
+
+	public void addProgressListener(ProgressListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeProgressListener(ProgressListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Returns the stream id identifying this transfer.
+	 * 
+	 * @return Stream id.
+	 */
+	public String getSid() {
+		return sid;
+	}
+
+	/**
+	 * Returns the full JID of the other party of the transfer.
+	 * 
+	 * @return Full JID of the sender or recipient.
+	 */
+	public String getPeerJid() {
+		return peerJid;
+	}
+
+	/**
+	 * Indicates if the file is being received.
+	 * 
+	 * @return <code>true</code> if the file is received, <code>false</code>
+	 *         if it is sent.
+	 */
+	public boolean isIncoming() {
+		return incoming;
+	}
+
+	/**
+	 * Returns the name of the file, as announced by the sender.
+	 * 
+	 * @return Name of the file.
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * Returns the size of the file, as announced by the sender.
+	 * 
+	 * @return Size of the file in bytes.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the local file being sent or written. For incoming transfers,
+	 * this is null until the transfer is accepted.
+	 * 
+	 * @return Local file.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * Returns the method used to transfer the data.
+	 * 
+	 * @return METHOD_SOCKS5 or METHOD_IN_BAND, or null if the data transfer
+	 *         has not started.
+	 */
+	public String getMethod() {
+		return method;
+	}
+
+	/**
+	 * Returns the reason why the transfer failed.
+	 * 
+	 * @return Description of the failure, or null if the transfer did not
+	 *         fail.
+	 */
+	public String getFailureReason() {
+		return failureReason;
+	}
+
+	/**
+	 * Returns the number of bytes transferred so far.
+	 * 
+	 * @return Bytes transferred.
+	 */
+	public long getTransferred() {
+		return transferred.get();
+	}
+
+	/**
+	 * Returns the fraction of the file transferred so far.
+	 * 
+	 * @return Progress, between 0 and 1.
+	 */
+	public double getProgress() {
+		return size == 0 ? (state == State.COMPLETED ? 1 : 0)
+				: (double) transferred.get() / size;
+	}
+
+	/**
+	 * Returns the average throughput since the data transfer started, up to
+	 * now or, if the transfer is finished, up to its end.
+	 * 
+	 * @return Throughput in bytes per second, or 0 if the data transfer has
+	 *         not started.
+	 */
+	public long getThroughput() {
+		long start = startTime;
+		if (start == 0)
+			return 0;
+		long end = endTime == 0 ? System.nanoTime() : endTime;
+		long elapsed = Math.max(end - start, 1);
+		return (long) (transferred.get() * (double) TimeUnit.SECONDS.toNanos(1) / elapsed);
+	}
+
+	/**
+	 * Indicates if the transfer is finished, successfully or not.
+	 * 
+	 * @return <code>true</code> if the transfer is finished.
+	 */
+	public boolean isDone() {
+		State current = state;
+		return current != State.NEGOTIATING && current != State.IN_PROGRESS;
+	}
+
+	/**
+	 * Accepts an incoming file offer.
+	 * 
+	 * @param destination
+	 *            File where the received data is written.
+	 * @throws XMPPException
+	 *             If the offer was already answered, or the answer cannot be
+	 *             sent.
+	 */
+	public void accept(File destination) throws XMPPException {
+		manager.acceptTransfer(this, destination);
+	}
+
+	/**
+	 * Rejects an incoming file offer.
+	 * 
+	 * @throws XMPPException
+	 *             If the offer was already answered.
+	 */
+	public void reject() throws XMPPException {
+		manager.rejectTransfer(this);
+	}
+
+	/**
+	 * Cancels the transfer. The data transfer is interrupted, and a partially
+	 * received file is left as is.
+	 */
+	public void cancel() {
+		if (finish(State.CANCELLED, null))
+			manager.transferCancelled(this);
+	}
+
+	void setFile(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Marks the start of the data transfer.
+	 */
+	void started(String method) {
+		this.method = method;
+		this.startTime = System.nanoTime();
+		this.lastProgressTime = startTime;
+		if (!isDone()) {
+			state = State.IN_PROGRESS;
+			for (ProgressListener listener : listeners)
+				listener.stateChanged(this);
+		}
+	}
+
+	/**
+	 * Adds bytes to the transferred count. Listeners are notified if enough
+	 * time passed since the last notification.
+	 */
+	void addTransferred(long bytes) {
+		transferred.addAndGet(bytes);
+		long now = System.nanoTime();
+		if (now - lastProgressTime >= PROGRESS_INTERVAL) {
+			lastProgressTime = now;
+			for (ProgressListener listener : listeners)
+				listener.progressChanged(this);
+		}
+	}
+
+	/**
+	 * Moves the transfer to a final state, unless it is already finished.
+	 * 
+	 * @return <code>true</code> if the state was changed.
+	 */
+	boolean finish(State finalState, String reason) {
+		synchronized (this) {
+			if (isDone())
+				return false;
+			endTime = System.nanoTime();
+			failureReason = reason;
+			state = finalState;
+		}
+		for (ProgressListener listener : listeners) {
+			listener.progressChanged(this);
+			listener.stateChanged(this);
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return (incoming ? "Receiving " : "Sending ") + fileName + " ("
+				+ state + ")";
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Measures the throughput of the data paths used by file transfers, without
+ * a server: a SOCKS5 bytestream over the loopback interface, using the same
+ * handshake and zero-copy transfer as real transfers, and the base64
+ * encoding and decoding of in-band blocks, read and converted as real
+ * transfers do.
+ * 
+ * Usage: FileTransferBenchmark [size in MB, default 1024] [directory]
+ */
+public class FileTransferBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		long size = (args.length > 0 ? Long.parseLong(args[0]) : 1024) * 1024 * 1024;
+		File directory = new File(args.length > 1 ? args[1]
+				: System.getProperty("java.io.tmpdir"));
+
+		File source = File.createTempFile("transfer", ".in", directory);
+		File destination = File.createTempFile("transfer", ".out", directory);
+		source.deleteOnExit();
+		destination.deleteOnExit();
+		try {
+			createFile(source, size);
+			System.out.println("SOCKS5 over loopback: "
+					+ format(benchmarkSocks5(source, destination, size)));
+			System.out.println("In-band encoding: "
+					+ format(benchmarkEncoding(source)));
+		} finally {
+			source.delete();
+			destination.delete();
+		}
+	}
+
+	private static void createFile(File file, long size) throws IOException {
+		byte[] block = new byte[1024 * 1024];
+		new Random(317).nextBytes(block);
+		RandomAccessFile output = new RandomAccessFile(file, "rw");
+		try {
+			for (long written = 0; written < size; written += block.length)
+				output.write(block, 0, (int) Math.min(block.length, size - written));
+		} finally {
+			output.close();
+		}
+	}
+
+	private static long benchmarkSocks5(final File source, File destination,
+			final long size) throws Exception {
+
+		final String address = Socks5Bytestream.getDestinationAddress("sid",
+				"sender@localhost/a", "receiver@localhost/b");
+		final ServerSocketChannel server = ServerSocketChannel.open();
+		server.socket().bind(
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		Future<Void> sender = executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				SocketChannel channel = server.accept();
+				FileInputStream input = new FileInputStream(source);
+				try {
+					Socks5Bytestream.acceptConnection(channel, address);
+					Socks5Bytestream.sendFile(input.getChannel(), channel,
+							size, null);
+				} finally {
+					input.close();
+					channel.close();
+				}
+				return null;
+			}
+		});
+
+		long start = System.nanoTime();
+		SocketChannel channel = SocketChannel.open(server.socket()
+				.getLocalSocketAddress());
+		FileOutputStream output = new FileOutputStream(destination);
+		try {
+			Socks5Bytestream.connect(channel, address);
+			Socks5Bytestream.receiveFile(channel, output.getChannel(), size,
+					null);
+		} finally {
+			output.close();
+			channel.close();
+		}
+		sender.get();
+		long elapsed = System.nanoTime() - start;
+		executor.shutdown();
+		server.close();
+		return throughput(size, elapsed);
+	}
+
+	private static long benchmarkEncoding(File source) throws IOException {
+
+		int blockSize = ConnectionConfiguration.DEFAULT_IBB_BLOCK_SIZE;
+		byte[] block = new byte[blockSize];
+		long total = 0;
+
+		FileInputStream input = new FileInputStream(source);
+		long start = System.nanoTime();
+		try {
+			while (true) {
+				int length = 0;
+				int read;
+				while (length < blockSize
+						&& (read = input.read(block, length, blockSize - length)) >= 0)
+					length += read;
+				if (length == 0)
+					break;
+				String text = DatatypeConverter.printBase64Binary(
+						length == blockSize ? block : Arrays.copyOf(block, length));
+				DatatypeConverter.parseBase64Binary(text);
+				total += length;
+			}
+		} finally {
+			input.close();
+		}
+		return throughput(total, System.nanoTime() - start);
+	}
+
+	private static long throughput(long bytes, long nanos) {
+		return (long) (bytes * 1e9 / nanos);
+	}
+
+	private static String format(long bytesPerSecond) {
+		return String.format("%.1f MB/s", bytesPerSecond / (1024.0 * 1024));
+	}
+}
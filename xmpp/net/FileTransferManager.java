@@ -0,0 +1,818 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import ubc.cs317.xmpp.exception.XMPPException;
+import ubc.cs317.xmpp.model.listener.FileTransferListener;
+
+/**
+ * Handles file transfers (XEP-0096) for a connection. Files are offered with
+ * a stream initiation request; once the recipient accepts, the sender acts as
+ * the stream host of a direct SOCKS5 bytestream (XEP-0065), or the file is
+ * sent in-band (XEP-0047) through the server if either side disables SOCKS5.
+ * When both methods are offered, the recipient selects both, as other
+ * clients do, and the sender falls back to in-band if the recipient cannot
+ * connect to the stream host; a transfer is never moved to a method the
+ * recipient did not select.
+ * 
+ * Transfers run concurrently on their own threads, up to the maximum set in
+ * the connection configuration for outgoing transfers; the pace of incoming
+ * transfers is set by their senders.
+ */
+public class FileTransferManager {
+
+	public static final String SI_NAMESPACE = "http://jabber.org/protocol/si";
+	public static final String SI_FILE_NAMESPACE = "http://jabber.org/protocol/si/profile/file-transfer";
+	public static final String IBB_NAMESPACE = "http://jabber.org/protocol/ibb";
+	private static final String FEATURE_NEG_NAMESPACE = "http://jabber.org/protocol/feature-neg";
+	private static final String DATA_NAMESPACE = "jabber:x:data";
+
+	private static final String STREAM_METHOD = "stream-method";
+
+	/**
+	 * Time to wait for the recipient to connect to the stream host, and for
+	 * connections to stream hosts, in milliseconds.
+	 */
+	private static final int SOCKET_TIMEOUT = 30000;
+
+	/**
+	 * Number of in-band blocks that may be waiting for an acknowledgement.
+	 */
+	private static final int IBB_WINDOW = 8;
+
+	private XMPPConnection connection;
+	private ConnectionConfiguration configuration;
+
+	private final ConcurrentMap<String, FileTransfer> transfers = new ConcurrentHashMap<String, FileTransfer>();
+	private final ConcurrentMap<String, Offer> offers = new ConcurrentHashMap<String, Offer>();
+	private final ConcurrentMap<String, InBandStream> inBandStreams = new ConcurrentHashMap<String, InBandStream>();
+	private final ConcurrentMap<String, Set<String>> acceptedMethods = new ConcurrentHashMap<String, Set<String>>();
+	private final Set<FileTransferListener> listeners = new CopyOnWriteArraySet<FileTransferListener>();
+
+	private final ExecutorService executor;
+	private final Semaphore outgoingSlots;
+
+	/**
+	 * A received offer not yet answered.
+	 */
+	private static class Offer {
+		private Element request;
+		private boolean socks5;
+		private boolean inBand;
+	}
+
+	/**
+	 * State of an in-band bytestream being received.
+	 */
+	private static class InBandStream {
+		private FileTransfer transfer;
+		private FileOutputStream output;
+		private int blockSize;
+		private int nextSeq = 0;
+	}
+
+	FileTransferManager(XMPPConnection connection,
+			ConnectionConfiguration configuration) {
+		this.connection = connection;
+		this.configuration = configuration;
+		this.outgoingSlots = new Semaphore(
+				configuration.getMaxConcurrentTransfers());
+		this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "File transfer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public void addFileTransferListener(FileTransferListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeFileTransferListener(FileTransferListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Offers a file to another entity. The method returns once the offer is
+	 * sent; the transfer starts when the recipient accepts it.
+	 * 
+	 * @param peerJid
+	 *            Full JID of the recipient.
+	 * @param file
+	 *            File to send.
+	 * @return The transfer.
+	 * @throws XMPPException
+	 *             If the file cannot be read, or the offer cannot be sent.
+	 */
+	public FileTransfer sendFile(String peerJid, File file)
+			throws XMPPException {
+
+		if (!file.isFile() || !file.canRead())
+			throw new XMPPException("Cannot read file " + file + ".");
+
+		String sid = connection.getStanzaIdValue();
+		final FileTransfer transfer = new FileTransfer(this, sid, peerJid,
+				false, file, file.getName(), file.length());
+
+		Element iq = createIQ("set", peerJid);
+		Element si = createElement("si", SI_NAMESPACE);
+		si.setAttribute("id", sid);
+		si.setAttribute("profile", SI_FILE_NAMESPACE);
+		si.setAttribute("mime-type", "application/octet-stream");
+		Element fileElement = createElement("file", SI_FILE_NAMESPACE);
+		fileElement.setAttribute("name", file.getName());
+		fileElement.setAttribute("size", String.valueOf(file.length()));
+		si.appendChild(fileElement);
+		Element field = connection.createElement("field");
+		field.setAttribute("var", STREAM_METHOD);
+		field.setAttribute("type", "list-single");
+		if (configuration.isSocks5Enabled())
+			field.appendChild(createOption(Socks5Bytestream.NAMESPACE));
+		field.appendChild(createOption(IBB_NAMESPACE));
+		si.appendChild(createFeature("form", field));
+		iq.appendChild(si);
+
+		transfers.put(sid, transfer);
+		final IQFuture response;
+		try {
+			response = connection.sendIQ(iq);
+		} catch (XMPPException e) {
+			transfers.remove(sid);
+			throw e;
+		}
+		response.addCallback(new IQFuture.Callback() {
+
+			@Override
+			public void completed(Element result) {
+				Set<String> methods = getStreamMethods(result);
+				final boolean socks5 = configuration.isSocks5Enabled()
+						&& methods.contains(Socks5Bytestream.NAMESPACE);
+				final boolean inBand = methods.contains(IBB_NAMESPACE);
+				if (!socks5 && !inBand) {
+					finish(transfer, FileTransfer.State.FAILED,
+							"No common transfer method.");
+					return;
+				}
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						runOutgoing(transfer, socks5, inBand);
+					}
+				});
+			}
+
+			@Override
+			public void failed(XMPPException exception) {
+				Element error = response.getErrorResponse();
+				if (error != null
+						&& error.getElementsByTagName("forbidden").getLength() > 0)
+					finish(transfer, FileTransfer.State.REJECTED, null);
+				else
+					finish(transfer, FileTransfer.State.FAILED,
+							exception.getMessage());
+			}
+		});
+		return transfer;
+	}
+
+	/**
+	 * Processes an iq request of type set. Requests related to file
+	 * transfers are handled and answered, other requests are ignored.
+	 * 
+	 * @param iq
+	 *            The request.
+	 * @return <code>true</code> if the request was handled.
+	 */
+	boolean processIQ(Element iq) {
+		Element child = getFirstChildElement(iq);
+		if (child == null)
+			return false;
+		String namespace = child.getAttribute("xmlns");
+		String tag = child.getTagName();
+		if (SI_NAMESPACE.equals(namespace) && tag.equals("si"))
+			processOffer(iq, child);
+		else if (Socks5Bytestream.NAMESPACE.equals(namespace)
+				&& tag.equals("query"))
+			processStreamHosts(iq, child);
+		else if (IBB_NAMESPACE.equals(namespace) && tag.equals("open"))
+			processInBandOpen(iq, child);
+		else if (IBB_NAMESPACE.equals(namespace) && tag.equals("data"))
+			processInBandData(iq, child);
+		else if (IBB_NAMESPACE.equals(namespace) && tag.equals("close"))
+			processInBandClose(iq, child);
+		else
+			return false;
+		return true;
+	}
+
+	/**
+	 * Fails all running transfers and stops their threads. Called when the
+	 * connection is closed.
+	 */
+	void shutdown() {
+		executor.shutdownNow();
+		for (FileTransfer transfer : transfers.values())
+			finish(transfer, FileTransfer.State.FAILED, "Connection closed.");
+		offers.clear();
+		for (InBandStream stream : inBandStreams.values())
+			closeQuietly(stream.output);
+		inBandStreams.clear();
+	}
+
+	void acceptTransfer(FileTransfer transfer, File destination)
+			throws XMPPException {
+
+		Offer offer = offers.remove(transfer.getSid());
+		if (offer == null)
+			throw new XMPPException("The offer was already answered.");
+
+		// both methods are selected when possible, so that the sender may
+		// fall back to in-band if this client cannot connect to its host
+		Set<String> methods = new HashSet<String>();
+		if (offer.socks5 && configuration.isSocks5Enabled())
+			methods.add(Socks5Bytestream.NAMESPACE);
+		if (offer.inBand)
+			methods.add(IBB_NAMESPACE);
+		if (methods.isEmpty()) {
+			connection.sendIQError(offer.request, "bad-request");
+			finish(transfer, FileTransfer.State.FAILED,
+					"No common transfer method.");
+			throw new XMPPException("No common transfer method.");
+		}
+
+		transfer.setFile(destination);
+		acceptedMethods.put(transfer.getSid(), methods);
+		Element result = createIQ("result", offer.request.getAttribute("from"));
+		result.setAttribute("id", offer.request.getAttribute("id"));
+		Element si = createElement("si", SI_NAMESPACE);
+		Element field = connection.createElement("field");
+		field.setAttribute("var", STREAM_METHOD);
+		for (String method : methods) {
+			Element value = connection.createElement("value");
+			value.setTextContent(method);
+			field.appendChild(value);
+		}
+		si.appendChild(createFeature("submit", field));
+		result.appendChild(si);
+		connection.sendStanza(result);
+	}
+
+	void rejectTransfer(FileTransfer transfer) throws XMPPException {
+		Offer offer = offers.remove(transfer.getSid());
+		if (offer == null)
+			throw new XMPPException("The offer was already answered.");
+		connection.sendIQError(offer.request, "forbidden");
+		finish(transfer, FileTransfer.State.REJECTED, null);
+	}
+
+	void transferCancelled(FileTransfer transfer) {
+		transfers.remove(transfer.getSid());
+		Offer offer = offers.remove(transfer.getSid());
+		if (offer != null)
+			connection.sendIQError(offer.request, "forbidden");
+		InBandStream stream = inBandStreams.remove(transfer.getSid());
+		if (stream != null)
+			closeQuietly(stream.output);
+		// SOCKS5 transfers stop at the next chunk, and outgoing in-band
+		// transfers before the next block
+	}
+
+	private void runOutgoing(FileTransfer transfer, boolean socks5,
+			boolean inBand) {
+		try {
+			outgoingSlots.acquire();
+		} catch (InterruptedException e) {
+			finish(transfer, FileTransfer.State.FAILED, "Interrupted.");
+			return;
+		}
+		try {
+			if (socks5) {
+				try {
+					sendSocks5(transfer);
+					finish(transfer, FileTransfer.State.COMPLETED, null);
+					return;
+				} catch (IOException e) {
+					// the recipient could not connect: fall back to in-band
+					// if it was selected too, unless data was already sent
+					if (!inBand || transfer.isDone()
+							|| transfer.getTransferred() > 0) {
+						finish(transfer, FileTransfer.State.FAILED,
+								e.getMessage());
+						return;
+					}
+				}
+			}
+			sendInBand(transfer);
+			finish(transfer, FileTransfer.State.COMPLETED, null);
+		} catch (IOException e) {
+			finish(transfer, FileTransfer.State.FAILED, e.getMessage());
+		} catch (XMPPException e) {
+			finish(transfer, FileTransfer.State.FAILED, e.getMessage());
+		} finally {
+			outgoingSlots.release();
+		}
+	}
+
+	/**
+	 * Sends a file through a direct bytestream, offering this client as the
+	 * only stream host.
+	 */
+	private void sendSocks5(FileTransfer transfer) throws IOException,
+			XMPPException {
+
+		InetAddress address = connection.getLocalAddress();
+		final ServerSocketChannel server = ServerSocketChannel.open();
+		try {
+			server.socket().bind(new InetSocketAddress(address, 0));
+			server.socket().setSoTimeout(SOCKET_TIMEOUT);
+
+			Element iq = createIQ("set", transfer.getPeerJid());
+			Element query = createElement("query", Socks5Bytestream.NAMESPACE);
+			query.setAttribute("sid", transfer.getSid());
+			query.setAttribute("mode", "tcp");
+			Element streamHost = connection.createElement("streamhost");
+			streamHost.setAttribute("jid", connection.getLocalJid());
+			streamHost.setAttribute("host", address.getHostAddress());
+			streamHost.setAttribute("port",
+					String.valueOf(server.socket().getLocalPort()));
+			query.appendChild(streamHost);
+			iq.appendChild(query);
+
+			IQFuture response = connection.sendIQ(iq, SOCKET_TIMEOUT * 2);
+			response.addCallback(new IQFuture.Callback() {
+				@Override
+				public void completed(Element result) {
+				}
+
+				@Override
+				public void failed(XMPPException exception) {
+					// no connection is coming; stops waiting for it
+					closeQuietly(server);
+				}
+			});
+
+			SocketChannel channel;
+			try {
+				channel = server.socket().accept().getChannel();
+			} catch (SocketTimeoutException e) {
+				throw new IOException("Recipient did not connect.");
+			}
+			FileInputStream input = null;
+			try {
+				Socks5Bytestream.acceptConnection(channel,
+						Socks5Bytestream.getDestinationAddress(
+								transfer.getSid(), connection.getLocalJid(),
+								transfer.getPeerJid()));
+				// the recipient confirms the stream host before data is sent
+				try {
+					response.get();
+				} catch (ExecutionException e) {
+					throw new IOException(e.getCause().getMessage());
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted.");
+				}
+				input = new FileInputStream(transfer.getFile());
+				transfer.started(FileTransfer.METHOD_SOCKS5);
+				Socks5Bytestream.sendFile(input.getChannel(), channel,
+						transfer.getSize(), transfer);
+			} finally {
+				closeQuietly(input);
+				closeQuietly(channel);
+			}
+		} finally {
+			closeQuietly(server);
+		}
+	}
+
+	/**
+	 * Sends a file in-band, in base64-encoded blocks. Up to IBB_WINDOW
+	 * blocks may be waiting for an acknowledgement, so the transfer is not
+	 * limited by the round trip time to the recipient.
+	 */
+	private void sendInBand(FileTransfer transfer) throws IOException,
+			XMPPException {
+
+		int blockSize = configuration.getIbbBlockSize();
+		Element open = createIQ("set", transfer.getPeerJid());
+		Element openElement = createElement("open", IBB_NAMESPACE);
+		openElement.setAttribute("sid", transfer.getSid());
+		openElement.setAttribute("block-size", String.valueOf(blockSize));
+		openElement.setAttribute("stanza", "iq");
+		open.appendChild(openElement);
+		waitForResult(connection.sendIQ(open));
+
+		final Semaphore window = new Semaphore(IBB_WINDOW);
+		final AtomicReference<XMPPException> error = new AtomicReference<XMPPException>();
+		IQFuture.Callback acknowledgement = new IQFuture.Callback() {
+			@Override
+			public void completed(Element result) {
+				window.release();
+			}
+
+			@Override
+			public void failed(XMPPException exception) {
+				error.compareAndSet(null, exception);
+				window.release();
+			}
+		};
+
+		byte[] block = new byte[blockSize];
+		FileInputStream input = new FileInputStream(transfer.getFile());
+		try {
+			transfer.started(FileTransfer.METHOD_IN_BAND);
+			int seq = 0;
+			while (true) {
+				if (transfer.isDone())
+					throw new IOException("Transfer was " + transfer.getState() + ".");
+				int length = 0;
+				int read;
+				while (length < blockSize
+						&& (read = input.read(block, length, blockSize - length)) >= 0)
+					length += read;
+				if (length == 0)
+					break;
+				String encoded = DatatypeConverter.printBase64Binary(
+						length == blockSize ? block : Arrays.copyOf(block, length));
+
+				window.acquire();
+				if (error.get() != null)
+					throw error.get();
+				Element iq = createIQ("set", transfer.getPeerJid());
+				Element data = createElement("data", IBB_NAMESPACE);
+				data.setAttribute("sid", transfer.getSid());
+				data.setAttribute("seq", String.valueOf(seq));
+				data.setTextContent(encoded);
+				iq.appendChild(data);
+				connection.sendIQ(iq).addCallback(acknowledgement);
+				transfer.addTransferred(length);
+				seq = (seq + 1) & 0xffff;
+			}
+			window.acquire(IBB_WINDOW);
+			if (error.get() != null)
+				throw error.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted.");
+		} finally {
+			closeQuietly(input);
+		}
+
+		Element close = createIQ("set", transfer.getPeerJid());
+		Element closeElement = createElement("close", IBB_NAMESPACE);
+		closeElement.setAttribute("sid", transfer.getSid());
+		close.appendChild(closeElement);
+		waitForResult(connection.sendIQ(close));
+	}
+
+	private void processOffer(Element iq, Element si) {
+		String sid = si.getAttribute("id");
+		Element fileElement = getChildElement(si, "file", SI_FILE_NAMESPACE);
+		if (sid.equals("") || fileElement == null || transfers.containsKey(sid)) {
+			connection.sendIQError(iq, "bad-request");
+			return;
+		}
+		long size;
+		try {
+			size = Long.parseLong(fileElement.getAttribute("size"));
+		} catch (NumberFormatException e) {
+			connection.sendIQError(iq, "bad-request");
+			return;
+		}
+		if (listeners.isEmpty()) {
+			connection.sendIQError(iq, "forbidden");
+			return;
+		}
+
+		Offer offer = new Offer();
+		offer.request = iq;
+		NodeList values = si.getElementsByTagName("value");
+		for (int i = 0; i < values.getLength(); i++) {
+			String method = values.item(i).getTextContent().trim();
+			if (method.equals(Socks5Bytestream.NAMESPACE))
+				offer.socks5 = true;
+			else if (method.equals(IBB_NAMESPACE))
+				offer.inBand = true;
+		}
+
+		// only the file name is used, never a path chosen by the sender
+		String name = new File(fileElement.getAttribute("name")).getName();
+		FileTransfer transfer = new FileTransfer(this, sid,
+				iq.getAttribute("from"), true, null, name, size);
+		transfers.put(sid, transfer);
+		offers.put(sid, offer);
+		for (FileTransferListener listener : listeners)
+			listener.fileTransferRequested(transfer);
+	}
+
+	private void processStreamHosts(final Element iq, Element query) {
+		final FileTransfer transfer = getAcceptedTransfer(iq, query);
+		Set<String> methods = transfer == null ? null : acceptedMethods
+				.get(transfer.getSid());
+		if (methods == null || !methods.contains(Socks5Bytestream.NAMESPACE)) {
+			connection.sendIQError(iq, "not-acceptable");
+			return;
+		}
+		final List<Element> streamHosts = new ArrayList<Element>();
+		for (Node node = query.getFirstChild(); node != null; node = node.getNextSibling())
+			if (node instanceof Element
+					&& ((Element) node).getTagName().equals("streamhost"))
+				streamHosts.add((Element) node);
+
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				receiveSocks5(iq, transfer, streamHosts);
+			}
+		});
+	}
+
+	private void receiveSocks5(Element iq, FileTransfer transfer,
+			List<Element> streamHosts) {
+
+		String destination = Socks5Bytestream.getDestinationAddress(
+				transfer.getSid(), transfer.getPeerJid(),
+				connection.getLocalJid());
+		SocketChannel channel = null;
+		String usedJid = null;
+		for (Element streamHost : streamHosts) {
+			try {
+				channel = SocketChannel.open();
+				channel.socket().connect(
+						new InetSocketAddress(streamHost.getAttribute("host"),
+								Integer.parseInt(streamHost.getAttribute("port"))),
+						SOCKET_TIMEOUT);
+				Socks5Bytestream.connect(channel, destination);
+				usedJid = streamHost.getAttribute("jid");
+				break;
+			} catch (IOException e) {
+				closeQuietly(channel);
+				channel = null;
+			} catch (NumberFormatException e) {
+				closeQuietly(channel);
+				channel = null;
+			}
+		}
+		if (channel == null) {
+			// the sender falls back to an in-band bytestream if it was
+			// selected, or fails the transfer
+			connection.sendIQError(iq, "item-not-found");
+			return;
+		}
+
+		FileOutputStream output = null;
+		try {
+			Element result = createIQ("result", iq.getAttribute("from"));
+			result.setAttribute("id", iq.getAttribute("id"));
+			Element query = createElement("query", Socks5Bytestream.NAMESPACE);
+			query.setAttribute("sid", transfer.getSid());
+			Element used = connection.createElement("streamhost-used");
+			used.setAttribute("jid", usedJid);
+			query.appendChild(used);
+			result.appendChild(query);
+
+			output = new FileOutputStream(transfer.getFile());
+			connection.sendStanza(result);
+			transfer.started(FileTransfer.METHOD_SOCKS5);
+			Socks5Bytestream.receiveFile(channel, output.getChannel(),
+					transfer.getSize(), transfer);
+			finish(transfer, FileTransfer.State.COMPLETED, null);
+		} catch (IOException e) {
+			finish(transfer, FileTransfer.State.FAILED, e.getMessage());
+		} catch (XMPPException e) {
+			finish(transfer, FileTransfer.State.FAILED, e.getMessage());
+		} finally {
+			closeQuietly(output);
+			closeQuietly(channel);
+		}
+	}
+
+	private void processInBandOpen(Element iq, Element open) {
+		FileTransfer transfer = getAcceptedTransfer(iq, open);
+		Set<String> methods = transfer == null ? null : acceptedMethods
+				.get(transfer.getSid());
+		int blockSize;
+		try {
+			blockSize = Integer.parseInt(open.getAttribute("block-size"));
+		} catch (NumberFormatException e) {
+			blockSize = 0;
+		}
+		if (methods == null || !methods.contains(IBB_NAMESPACE)
+				|| blockSize <= 0 || blockSize > 65535
+				|| open.getAttribute("stanza").equals("message")) {
+			connection.sendIQError(iq, "not-acceptable");
+			return;
+		}
+		InBandStream stream = new InBandStream();
+		stream.transfer = transfer;
+		stream.blockSize = blockSize;
+		try {
+			stream.output = new FileOutputStream(transfer.getFile());
+		} catch (IOException e) {
+			connection.sendIQError(iq, "not-acceptable");
+			finish(transfer, FileTransfer.State.FAILED, e.getMessage());
+			return;
+		}
+		InBandStream previous = inBandStreams.put(transfer.getSid(), stream);
+		if (previous != null)
+			closeQuietly(previous.output);
+		transfer.started(FileTransfer.METHOD_IN_BAND);
+		connection.sendIQResult(iq);
+	}
+
+	private void processInBandData(Element iq, Element data) {
+		InBandStream stream = inBandStreams.get(data.getAttribute("sid"));
+		if (stream == null) {
+			connection.sendIQError(iq, "item-not-found");
+			return;
+		}
+		FileTransfer transfer = stream.transfer;
+		String text = data.getTextContent();
+		String failure = null;
+		if (!String.valueOf(stream.nextSeq).equals(data.getAttribute("seq")))
+			failure = "Block out of sequence.";
+		else if (text.length() > (stream.blockSize + 2) / 3 * 4 + 64)
+			failure = "Block larger than the negotiated size.";
+		else {
+			try {
+				byte[] block = DatatypeConverter.parseBase64Binary(text);
+				if (block.length > stream.blockSize)
+					failure = "Block larger than the negotiated size.";
+				else {
+					stream.output.write(block);
+					stream.nextSeq = (stream.nextSeq + 1) & 0xffff;
+					transfer.addTransferred(block.length);
+				}
+			} catch (IllegalArgumentException e) {
+				failure = "Invalid block.";
+			} catch (IOException e) {
+				failure = e.getMessage();
+			}
+		}
+		if (failure != null) {
+			inBandStreams.remove(transfer.getSid());
+			closeQuietly(stream.output);
+			connection.sendIQError(iq, "not-acceptable");
+			finish(transfer, FileTransfer.State.FAILED, failure);
+		} else
+			connection.sendIQResult(iq);
+	}
+
+	private void processInBandClose(Element iq, Element close) {
+		InBandStream stream = inBandStreams.remove(close.getAttribute("sid"));
+		if (stream == null) {
+			connection.sendIQError(iq, "item-not-found");
+			return;
+		}
+		closeQuietly(stream.output);
+		connection.sendIQResult(iq);
+		FileTransfer transfer = stream.transfer;
+		if (transfer.getTransferred() == transfer.getSize())
+			finish(transfer, FileTransfer.State.COMPLETED, null);
+		else
+			finish(transfer, FileTransfer.State.FAILED,
+					"Transfer closed before the file was complete.");
+	}
+
+	/**
+	 * Returns the accepted incoming transfer a bytestream request refers to.
+	 */
+	private FileTransfer getAcceptedTransfer(Element iq, Element request) {
+		FileTransfer transfer = transfers.get(request.getAttribute("sid"));
+		if (transfer == null || !transfer.isIncoming()
+				|| transfer.getFile() == null || transfer.isDone()
+				|| !transfer.getPeerJid().equals(iq.getAttribute("from")))
+			return null;
+		return transfer;
+	}
+
+	private void finish(FileTransfer transfer, FileTransfer.State state,
+			String reason) {
+		transfers.remove(transfer.getSid());
+		acceptedMethods.remove(transfer.getSid());
+		transfer.finish(state, reason);
+	}
+
+	private static void waitForResult(IQFuture response) throws IOException,
+			XMPPException {
+		try {
+			response.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof XMPPException)
+				throw (XMPPException) e.getCause();
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted.");
+		}
+	}
+
+	private static Set<String> getStreamMethods(Element result) {
+		Set<String> methods = new HashSet<String>();
+		NodeList values = result.getElementsByTagName("value");
+		for (int i = 0; i < values.getLength(); i++)
+			methods.add(values.item(i).getTextContent().trim());
+		return methods;
+	}
+
+	private Element createIQ(String type, String to) {
+		Element iq = connection.createElement("iq");
+		iq.setAttribute("type", type);
+		iq.setAttribute("to", to);
+		return iq;
+	}
+
+	private Element createElement(String tagName, String namespace) {
+		Element element = connection.createElement(tagName);
+		element.setAttribute("xmlns", namespace);
+		return element;
+	}
+
+	private Element createOption(String method) {
+		Element option = connection.createElement("option");
+		Element value = connection.createElement("value");
+		value.setTextContent(method);
+		option.appendChild(value);
+		return option;
+	}
+
+	/**
+	 * Creates the feature negotiation (XEP-0020) element containing a data
+	 * form with a single field.
+	 */
+	private Element createFeature(String formType, Element field) {
+		Element feature = createElement("feature", FEATURE_NEG_NAMESPACE);
+		Element form = createElement("x", DATA_NAMESPACE);
+		form.setAttribute("type", formType);
+		form.appendChild(field);
+		feature.appendChild(form);
+		return feature;
+	}
+
+	private static Element getFirstChildElement(Element parent) {
+		for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling())
+			if (node instanceof Element)
+				return (Element) node;
+		return null;
+	}
+
+	private static Element getChildElement(Element parent, String tagName,
+			String namespace) {
+		for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling())
+			if (node instanceof Element
+					&& ((Element) node).getTagName().equals(tagName)
+					&& namespace.equals(((Element) node).getAttribute("xmlns")))
+				return (Element) node;
+		return null;
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null)
+			try {
+				closeable.close();
+			} catch (IOException e) {
+			}
+	}
+}
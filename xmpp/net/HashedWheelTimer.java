@@ -0,0 +1,178 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * This class implements a hashed timing wheel: a single thread that runs
+ * scheduled tasks with a fixed tick resolution. Scheduling and cancelling a
+ * task take constant time regardless of how many tasks are pending, which
+ * makes it suitable for per-connection timers (keepalives, request timeouts)
+ * in processes with many connections. Tasks are run in the timer thread, and
+ * should therefore be short and not block; in particular, they must not write
+ * to a connection, which may block on a full socket buffer, but hand the
+ * write to the connection's writer (see <code>SerialExecutor</code>).
+ * 
+ * A single shared instance is available through <code>getSharedTimer</code>.
+ */
+public class HashedWheelTimer {
+
+	private static final long DEFAULT_TICK_MILLIS = 100;
+	private static final int DEFAULT_WHEEL_SIZE = 512;
+
+	private static HashedWheelTimer sharedTimer;
+
+	/**
+	 * Handle of a scheduled task, which can be used to cancel it.
+	 */
+	public static class Timeout {
+
+		private Runnable task;
+		private long remainingRounds;
+		private volatile boolean cancelled = false;
+
+		private Timeout(Runnable task, long remainingRounds) {
+			this.task = task;
+			this.remainingRounds = remainingRounds;
+		}
+
+		/**
+		 * Cancels the task. If the task is already running or has already
+		 * run, this method has no effect.
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+
+		/**
+		 * Indicates if the task was cancelled.
+		 * 
+		 * @return <code>true</code> if the task was cancelled.
+		 */
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+
+	private final long tickMillis;
+	private final List<List<Timeout>> wheel;
+	private long currentTick = 0;
+	private Thread workerThread;
+
+	/**
+	 * Returns the timer shared by all connections, starting it if needed.
+	 * 
+	 * @return The shared timer.
+	 */
+	public static synchronized HashedWheelTimer getSharedTimer() {
+		if (sharedTimer == null)
+			sharedTimer = new HashedWheelTimer(DEFAULT_TICK_MILLIS,
+					DEFAULT_WHEEL_SIZE);
+		return sharedTimer;
+	}
+
+	/**
+	 * Creates and starts a new timer.
+	 * 
+	 * @param tickMillis
+	 *            Duration of a tick, i.e., the resolution of the timer, in
+	 *            milliseconds.
+	 * @param wheelSize
+	 *            Number of buckets in the wheel.
+	 */
+	public HashedWheelTimer(long tickMillis, int wheelSize) {
+		if (tickMillis <= 0 || wheelSize <= 0)
+			throw new IllegalArgumentException();
+		this.tickMillis = tickMillis;
+		this.wheel = new ArrayList<List<Timeout>>(wheelSize);
+		for (int i = 0; i < wheelSize; i++)
+			wheel.add(new LinkedList<Timeout>());
+
+		workerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				timerProcess();
+			}
+		}, "HashedWheelTimer");
+		workerThread.setDaemon(true);
+		workerThread.start();
+	}
+
+	/**
+	 * Schedules a task to run once after the specified delay. The task runs
+	 * at the first tick after the delay expires.
+	 * 
+	 * @param task
+	 *            Task to be run.
+	 * @param delayMillis
+	 *            Delay before the task is run, in milliseconds.
+	 * @return A handle that can be used to cancel the task.
+	 */
+	public Timeout schedule(Runnable task, long delayMillis) {
+		long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+		synchronized (this) {
+			long targetTick = currentTick + ticks;
+			Timeout timeout = new Timeout(task, (ticks - 1) / wheel.size());
+			wheel.get((int) (targetTick % wheel.size())).add(timeout);
+			return timeout;
+		}
+	}
+
+	private void timerProcess() {
+		long nextTickTime = System.currentTimeMillis() + tickMillis;
+		while (true) {
+			long sleepTime = nextTickTime - System.currentTimeMillis();
+			if (sleepTime > 0) {
+				try {
+					Thread.sleep(sleepTime);
+				} catch (InterruptedException e) {
+				}
+				continue;
+			}
+			nextTickTime += tickMillis;
+
+			List<Timeout> expired = new LinkedList<Timeout>();
+			synchronized (this) {
+				currentTick++;
+				Iterator<Timeout> iterator = wheel.get(
+						(int) (currentTick % wheel.size())).iterator();
+				while (iterator.hasNext()) {
+					Timeout timeout = iterator.next();
+					if (timeout.cancelled) {
+						iterator.remove();
+					} else if (timeout.remainingRounds <= 0) {
+						iterator.remove();
+						expired.add(timeout);
+					} else {
+						timeout.remainingRounds--;
+					}
+				}
+			}
+
+			for (Timeout timeout : expired) {
+				if (timeout.cancelled)
+					continue;
+				try {
+					timeout.task.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,250 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.w3c.dom.Element;
+
+import ubc.cs317.xmpp.exception.XMPPException;
+
+/**
+ * This class represents the pending response to an iq request. It is
+ * completed with the result element when a response of type result arrives,
+ * and fails with an XMPPException when a response of type error arrives, the
+ * request times out or the connection is closed. Callers may either block
+ * waiting for the response (using <code>get</code>) or register callbacks, which
+ * allows many requests to be in flight at the same time.
+ */
+public class IQFuture implements Future<Element> {
+
+	/**
+	 * Callback called when the response to an iq request is received, or when
+	 * the request fails.
+	 */
+	public interface Callback {
+
+		/**
+		 * Called when a response of type result is received.
+		 * 
+		 * @param result
+		 *            The iq result element.
+		 */
+		public void completed(Element result);
+
+		/**
+		 * Called when a response of type error is received, or when the
+		 * request fails for any other reason (e.g., timeout).
+		 * 
+		 * @param exception
+		 *            Exception describing the failure.
+		 */
+		public void failed(XMPPException exception);
+	}
+
+	private String id;
+	private Element result;
+	private Element errorResponse;
+	private XMPPException failure;
+	private boolean done = false;
+	private boolean cancelled = false;
+	private List<Callback> callbacks = new ArrayList<Callback>();
+	private Runnable cancelAction;
+
+	/**
+	 * Creates a pending response for a request.
+	 * 
+	 * @param id
+	 *            Id of the iq request.
+	 */
+	public IQFuture(String id) {
+		this.id = id;
+	}
+
+	/**
+	 * Returns the id of the iq request.
+	 * 
+	 * @return The request id.
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Adds a callback to be called when the response is received or the
+	 * request fails. If this has already happened, the callback is called
+	 * immediately in the calling thread. Otherwise, it is called in the thread
+	 * that completes the request (usually the connection's listening thread),
+	 * so callbacks should not block.
+	 * 
+	 * @param callback
+	 *            The callback to be called.
+	 */
+	public void addCallback(Callback callback) {
+		synchronized (this) {
+			if (!done) {
+				callbacks.add(callback);
+				return;
+			}
+		}
+		notifyCallback(callback);
+	}
+
+	/**
+	 * Completes the request with a response of type result.
+	 * 
+	 * @param result
+	 *            The iq result element.
+	 * @return <code>true</code> if the request was completed by this call,
+	 *         <code>false</code> if it was already completed.
+	 */
+	public boolean complete(Element result) {
+		return finish(result, null, null);
+	}
+
+	/**
+	 * Fails the request because a response of type error was received.
+	 * 
+	 * @param errorResponse
+	 *            The iq error element.
+	 * @param exception
+	 *            Exception describing the error.
+	 * @return <code>true</code> if the request was completed by this call,
+	 *         <code>false</code> if it was already completed.
+	 */
+	public boolean fail(Element errorResponse, XMPPException exception) {
+		return finish(null, errorResponse, exception);
+	}
+
+	/**
+	 * Fails the request for a reason other than an error response (e.g.,
+	 * timeout or closed connection).
+	 * 
+	 * @param exception
+	 *            Exception describing the failure.
+	 * @return <code>true</code> if the request was completed by this call,
+	 *         <code>false</code> if it was already completed.
+	 */
+	public boolean fail(XMPPException exception) {
+		return finish(null, null, exception);
+	}
+
+	private boolean finish(Element result, Element errorResponse,
+			XMPPException failure) {
+		List<Callback> toNotify;
+		synchronized (this) {
+			if (done)
+				return false;
+			this.done = true;
+			this.result = result;
+			this.errorResponse = errorResponse;
+			this.failure = failure;
+			this.notifyAll();
+			toNotify = callbacks;
+			callbacks = null;
+		}
+		for (Callback callback : toNotify)
+			notifyCallback(callback);
+		return true;
+	}
+
+	private void notifyCallback(Callback callback) {
+		try {
+			if (failure == null)
+				callback.completed(result);
+			else
+				callback.failed(failure);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns the error response received for this request, if any.
+	 * 
+	 * @return The iq error element, or null if the request did not receive an
+	 *         error response.
+	 */
+	public synchronized Element getErrorResponse() {
+		return errorResponse;
+	}
+
+	/**
+	 * Sets the action run when the request is cancelled, e.g., to stop
+	 * waiting for its response.
+	 * 
+	 * @param cancelAction
+	 *            Action run by a successful cancel.
+	 */
+	synchronized void setCancelAction(Runnable cancelAction) {
+		this.cancelAction = cancelAction;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (finish(null, null, new XMPPException("Request cancelled."))) {
+			Runnable action;
+			synchronized (this) {
+				cancelled = true;
+				action = cancelAction;
+			}
+			if (action != null)
+				action.run();
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	@Override
+	public synchronized Element get() throws InterruptedException,
+			ExecutionException {
+		while (!done)
+			this.wait();
+		return getResult();
+	}
+
+	@Override
+	public synchronized Element get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!done) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0)
+				throw new TimeoutException();
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return getResult();
+	}
+
+	private Element getResult() throws ExecutionException {
+		if (failure != null)
+			throw new ExecutionException(failure.getMessage(), failure);
+		return result;
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import ubc.cs317.xmpp.exception.XMPPException;
+
+/**
+ * This class generates unique stanza ids and correlates iq requests with their
+ * responses. Each request is registered with its id and the entity it was
+ * sent to in a concurrent map, and the corresponding future is completed when
+ * a result or error with the same id is received from that entity (RFC 6120,
+ * section 8.1.2.1); responses from anyone else are ignored. Requests that do
+ * not receive a response within their timeout are expired using the shared
+ * hashed wheel timer.
+ * 
+ * Iq ids are a prefix and a counter, so they are only used for requests.
+ * Stanzas seen by other entities (messages, presences, stream ids of file
+ * transfers) get random ids from nextStanzaId, from which the ids of pending
+ * requests cannot be guessed.
+ */
+public class IQTracker {
+
+	private static final Random random = new Random();
+	private static final SecureRandom stanzaIdRandom = new SecureRandom();
+
+	private final String idPrefix;
+	private final AtomicLong idCounter = new AtomicLong();
+
+	private final ConcurrentMap<String, PendingRequest> pendingRequests = new ConcurrentHashMap<String, PendingRequest>();
+	private final HashedWheelTimer timer = HashedWheelTimer.getSharedTimer();
+
+	private static class PendingRequest {
+		private String responder;
+		private IQFuture future;
+		private HashedWheelTimer.Timeout timeout;
+	}
+
+	/**
+	 * Creates a new tracker. Ids generated by different trackers use different
+	 * random prefixes, so they are unique across connections.
+	 */
+	public IQTracker() {
+		synchronized (random) {
+			idPrefix = Long.toString(random.nextLong() & Long.MAX_VALUE, 36)
+					+ "-";
+		}
+	}
+
+	/**
+	 * Returns a new stanza id, unique for this tracker. This method is thread
+	 * safe.
+	 * 
+	 * @return A new unique id.
+	 */
+	public String nextId() {
+		return idPrefix + idCounter.incrementAndGet();
+	}
+
+	/**
+	 * Returns a new random id for a stanza other than an iq request. This
+	 * method is thread safe.
+	 * 
+	 * @return A new unique id.
+	 */
+	public String nextStanzaId() {
+		return new BigInteger(96, stanzaIdRandom).toString(36);
+	}
+
+	/**
+	 * Registers a request that was (or is about to be) sent, so that its
+	 * response can be matched.
+	 * 
+	 * @param id
+	 *            Id of the iq request.
+	 * @param to
+	 *            Entity the request is sent to, or null or an empty string if
+	 *            it is sent to the user's own account (e.g., roster and
+	 *            archive requests).
+	 * @param timeoutMillis
+	 *            Time to wait for a response before the request fails, in
+	 *            milliseconds.
+	 * @return The future that will be completed with the response.
+	 */
+	public IQFuture register(final String id, String to, long timeoutMillis) {
+		final PendingRequest request = new PendingRequest();
+		request.responder = to == null || to.isEmpty() ? null : to;
+		request.future = new IQFuture(id);
+		pendingRequests.put(id, request);
+		request.timeout = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (pendingRequests.remove(id, request))
+					request.future.fail(new XMPPException(
+							"No response received for request " + id));
+			}
+		}, timeoutMillis);
+		// a cancelled request no longer waits for its response
+		request.future.setCancelAction(new Runnable() {
+			@Override
+			public void run() {
+				if (pendingRequests.remove(id, request))
+					request.timeout.cancel();
+			}
+		});
+		return request.future;
+	}
+
+	/**
+	 * Removes a registered request without completing it, e.g., because it
+	 * could not be sent.
+	 * 
+	 * @param id
+	 *            Id of the iq request.
+	 */
+	public void unregister(String id) {
+		PendingRequest request = pendingRequests.remove(id);
+		if (request != null)
+			request.timeout.cancel();
+	}
+
+	/**
+	 * Handles a received iq response (of type result or error). If there is a
+	 * pending request with the same id, sent to the entity the response comes
+	 * from, its future is completed.
+	 * 
+	 * @param iq
+	 *            The received iq element.
+	 * @param userJid
+	 *            Full JID of the user, whose account answers requests sent
+	 *            without a recipient.
+	 * @return <code>true</code> if the response matched a pending request,
+	 *         <code>false</code> otherwise.
+	 */
+	public boolean handleResponse(Element iq, String userJid) {
+		String id = iq.getAttribute("id");
+		PendingRequest request = pendingRequests.get(id);
+		if (request == null
+				|| !isResponder(request, iq.getAttribute("from"), userJid)
+				|| !pendingRequests.remove(id, request))
+			return false;
+		request.timeout.cancel();
+
+		if (iq.getAttribute("type").equals("error"))
+			request.future.fail(iq, new XMPPException("Request failed: "
+					+ getErrorCondition(iq)));
+		else
+			request.future.complete(iq);
+		return true;
+	}
+
+	/**
+	 * Fails all pending requests, e.g., because the connection was closed.
+	 * 
+	 * @param exception
+	 *            Exception describing the failure.
+	 */
+	public void failAll(XMPPException exception) {
+		for (String id : new ArrayList<String>(pendingRequests.keySet())) {
+			PendingRequest request = pendingRequests.remove(id);
+			if (request != null) {
+				request.timeout.cancel();
+				request.future.fail(exception);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of requests waiting for a response.
+	 * 
+	 * @return Number of pending requests.
+	 */
+	public int getPendingCount() {
+		return pendingRequests.size();
+	}
+
+	/**
+	 * Indicates if a response comes from the entity a request was sent to. A
+	 * request sent without a recipient, or to the user's bare JID, is
+	 * answered by the server on behalf of the account: without a sender, or
+	 * from the user's bare or full JID.
+	 */
+	private static boolean isResponder(PendingRequest request, String from,
+			String userJid) {
+		String bareJid = userJid == null ? null : userJid.split("/", 2)[0];
+		String responder = request.responder;
+		if (responder == null || responder.equalsIgnoreCase(bareJid))
+			return from.isEmpty() || from.equalsIgnoreCase(bareJid)
+					|| from.equalsIgnoreCase(userJid);
+		return from.equalsIgnoreCase(responder);
+	}
+
+	private static String getErrorCondition(Element iq) {
+		for (Node node = iq.getFirstChild(); node != null; node = node
+				.getNextSibling()) {
+			if (node instanceof Element
+					&& ((Element) node).getTagName().equals("error")) {
+				for (Node condition = node.getFirstChild(); condition != null; condition = condition
+						.getNextSibling())
+					if (condition instanceof Element)
+						return ((Element) condition).getTagName();
+			}
+		}
+		return "unknown error";
+	}
+}
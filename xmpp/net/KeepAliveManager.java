@@ -0,0 +1,219 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.util.concurrent.Executor;
+
+/**
+ * This class keeps a connection alive and detects dead connections. If
+ * nothing is received from the server for a configured interval, a keepalive
+ * is sent: either an XMPP ping (XEP-0199) or a single whitespace character.
+ * When nothing at all is received within the ping timeout after a ping, the
+ * connection is declared dead, so that it can be closed and recovered instead
+ * of waiting for the operating system to notice a half-open TCP connection.
+ * Whitespace keepalives are not answered, so when they are used and nothing
+ * has been received for several intervals, a ping is sent to probe the
+ * connection.
+ * 
+ * All checks run in the shared hashed wheel timer, with a single pending
+ * timeout per connection, so the overhead per connection is constant and no
+ * thread is created per connection. The timer only decides what to do:
+ * keepalives are written by the connection's writer, and dead connections are
+ * closed in the writers' shared pool, so a connection whose socket blocks
+ * does not delay the checks of the others.
+ */
+public class KeepAliveManager {
+
+	/**
+	 * Operations performed by the keepalive manager on the connection.
+	 */
+	public interface KeepAliveTarget {
+
+		/**
+		 * Indicates if the connection is currently able to send keepalives.
+		 * While this returns <code>false</code> (e.g., while the connection is
+		 * being re-established), no keepalive is sent and the connection is
+		 * never declared dead.
+		 * 
+		 * @return <code>true</code> if the connection is established.
+		 */
+		public boolean isEstablished();
+
+		/**
+		 * Sends a keepalive to the server. This method is called by the
+		 * connection's writer, and may block while the socket does.
+		 * 
+		 * @param ping
+		 *            <code>true</code> if an XMPP ping should be sent,
+		 *            <code>false</code> if a whitespace keepalive should be
+		 *            sent.
+		 */
+		public void sendKeepAlive(boolean ping);
+
+		/**
+		 * Called when a ping was not answered in time. The connection should
+		 * be closed so that it can be recovered. This method is not called by
+		 * the connection's writer, which may be blocked writing to the dead
+		 * connection.
+		 */
+		public void connectionDead();
+	}
+
+	/**
+	 * Number of keepalive intervals without receiving anything after which a
+	 * connection using whitespace keepalives is probed with a ping.
+	 */
+	public static final int WHITESPACE_PROBE_INTERVALS = 3;
+
+	private KeepAliveTarget target;
+	private ConnectionConfiguration configuration;
+	private HashedWheelTimer timer;
+	private Executor writer;
+
+	private volatile long lastActivity;
+	private long pingSentAt = 0;
+	private HashedWheelTimer.Timeout pendingCheck;
+	private boolean stopped = true;
+
+	/**
+	 * Creates a keepalive manager for a connection.
+	 * 
+	 * @param target
+	 *            Connection to be kept alive.
+	 * @param configuration
+	 *            Configuration with the keepalive interval and ping timeout.
+	 * @param writer
+	 *            Writer of the connection, which sends the keepalives.
+	 */
+	public KeepAliveManager(KeepAliveTarget target,
+			ConnectionConfiguration configuration, Executor writer) {
+		this.target = target;
+		this.configuration = configuration;
+		this.timer = HashedWheelTimer.getSharedTimer();
+		this.writer = writer;
+	}
+
+	/**
+	 * Starts sending keepalives. Has no effect if the keepalive interval in
+	 * the configuration is zero.
+	 */
+	public synchronized void start() {
+		if (configuration.getKeepAliveInterval() <= 0)
+			return;
+		stopped = false;
+		pingSentAt = 0;
+		activity();
+		schedule(configuration.getKeepAliveInterval());
+	}
+
+	/**
+	 * Stops sending keepalives.
+	 */
+	public synchronized void stop() {
+		stopped = true;
+		if (pendingCheck != null)
+			pendingCheck.cancel();
+		pendingCheck = null;
+	}
+
+	/**
+	 * Registers that data was received from the server. This method should be
+	 * called for every element received, and is cheap enough to be called
+	 * often.
+	 */
+	public void activity() {
+		lastActivity = System.currentTimeMillis();
+	}
+
+	private void schedule(long delay) {
+		pendingCheck = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				check();
+			}
+		}, delay);
+	}
+
+	private void check() {
+		boolean dead = false;
+		boolean sendPing = false;
+		boolean sendWhitespace = false;
+
+		synchronized (this) {
+			if (stopped)
+				return;
+
+			long now = System.currentTimeMillis();
+			long interval = configuration.getKeepAliveInterval();
+			long timeout = configuration.getPingTimeout();
+
+			if (!target.isEstablished()) {
+				pingSentAt = 0;
+				schedule(interval);
+				return;
+			}
+
+			if (pingSentAt != 0) {
+				if (lastActivity >= pingSentAt)
+					pingSentAt = 0;
+				else if (now - pingSentAt >= timeout) {
+					dead = true;
+					pingSentAt = 0;
+				} else {
+					schedule(timeout - (now - pingSentAt));
+					return;
+				}
+			}
+
+			if (!dead) {
+				long idle = now - lastActivity;
+				if (idle < interval) {
+					schedule(interval - idle);
+					return;
+				}
+				if (configuration.isKeepAlivePing()
+						|| idle >= WHITESPACE_PROBE_INTERVALS * interval) {
+					sendPing = true;
+					pingSentAt = now;
+					schedule(timeout);
+				} else {
+					sendWhitespace = true;
+					schedule(interval);
+				}
+			} else {
+				schedule(interval);
+			}
+		}
+
+		// calls to the connection are done outside the lock and the timer
+		// thread, since they may block
+		if (dead) {
+			System.out.println("\n" + "No response from server, connection is dead.");
+			SerialExecutor.getSharedPool().execute(new Runnable() {
+				@Override
+				public void run() {
+					target.connectionDead();
+				}
+			});
+		} else if (sendPing || sendWhitespace) {
+			final boolean ping = sendPing;
+			writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					target.sendKeepAlive(ping);
+				}
+			});
+		}
+	}
+}
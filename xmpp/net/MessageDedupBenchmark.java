@@ -0,0 +1,72 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.util.Random;
+
+/**
+ * Measures the cost of recognising duplicate messages with the recent id
+ * filter, at several filter sizes. The simulated traffic mixes messages from
+ * many contacts, each identified by the same three ids used by the
+ * connection, with a fraction received twice (directly and as a carbon copy)
+ * a few messages apart.
+ * 
+ * Usage: MessageDedupBenchmark [messages, default 2000000] [duplicate
+ * fraction, default 0.3]
+ */
+public class MessageDedupBenchmark {
+
+	public static void main(String[] args) {
+
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		double duplicateFraction = args.length > 1 ? Double
+				.parseDouble(args[1]) : 0.3;
+
+		for (int capacity : new int[] { 500, 2000, 20000, 200000 }) {
+			// warm up, then measure
+			run(capacity, messages / 4, duplicateFraction);
+			long start = System.nanoTime();
+			RecentIdFilter filter = run(capacity, messages, duplicateFraction);
+			long elapsed = System.nanoTime() - start;
+			System.out.printf("capacity %6d: %5.0f ns/message, %5.2f M "
+					+ "messages/s, %d of %d duplicates dropped\n", capacity,
+					(double) elapsed / messages, messages * 1e3 / elapsed,
+					filter.getDuplicates(), filter.getChecked() - messages);
+		}
+	}
+
+	private static RecentIdFilter run(int capacity, int messages,
+			double duplicateFraction) {
+		RecentIdFilter filter = new RecentIdFilter(capacity);
+		Random random = new Random(317);
+		int[] pending = new int[16];
+		int pendingCount = 0;
+		for (int i = 0; i < messages; i++) {
+			check(filter, i);
+			if (random.nextDouble() < duplicateFraction
+					&& pendingCount < pending.length)
+				pending[pendingCount++] = i;
+			// the second copy arrives a few messages later
+			if (pendingCount > 0 && random.nextInt(4) == 0)
+				check(filter, pending[--pendingCount]);
+		}
+		return filter;
+	}
+
+	private static boolean check(RecentIdFilter filter, int message) {
+		String sender = "user" + (message % 500) + "@example.com";
+		return filter.isDuplicate("s " + Integer.toHexString(message * 31),
+				"o " + sender + " " + message, "i " + sender + " ID" + message);
+	}
+}
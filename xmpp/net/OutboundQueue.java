@@ -0,0 +1,452 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import org.w3c.dom.Element;
+
+import ubc.cs317.xmpp.exception.XMPPException;
+
+/**
+ * Limits the rate at which stanzas are sent, so that a client sending many
+ * messages is not throttled or disconnected by the server. A token bucket
+ * allows bursts of a configured size and a sustained rate; stanzas over the
+ * rate wait in a queue and are written by the connection's writer as tokens
+ * become available; the shared timer only hands the writing over to it.
+ * 
+ * Waiting stanzas are sent by priority: requests (iq, including roster
+ * changes and responses to the server) first, then presence, then messages,
+ * so a bot flooding messages still answers pings and updates its status on
+ * time. Requests and presence are sent in order. Messages are queued per
+ * recipient and the recipients take turns, one message each, so a long
+ * conversation does not hold back the others; the messages of each
+ * recipient are still sent in order. Stanzas of different classes may
+ * overtake each other.
+ * 
+ * A stanza that can be sent at once is written in the caller's thread, as
+ * without a limit, and errors are thrown to the caller. Errors writing
+ * queued stanzas cannot be reported to their sender; the stanzas are counted
+ * as failed and the broken connection is left to the listening thread.
+ * The queue has its own lock, which is never held while writing, so sending
+ * a stanza never waits for another one to be written just to be queued.
+ */
+public class OutboundQueue {
+
+	/**
+	 * Classes of stanzas, in the order they are sent.
+	 */
+	public enum Priority {
+		IQ, PRESENCE, MESSAGE
+	}
+
+	/**
+	 * Operations performed by the queue on the connection.
+	 */
+	interface StanzaTarget {
+
+		/**
+		 * Indicates if stanzas can currently be written. While this returns
+		 * <code>false</code> (e.g., while the connection is being
+		 * re-established), queued stanzas are kept.
+		 * 
+		 * @return <code>true</code> if the connection is established.
+		 */
+		public boolean isWritable();
+
+		/**
+		 * Writes a stanza to the stream, without any rate limit.
+		 * 
+		 * @param stanza
+		 *            Stanza to be written.
+		 * @throws XMPPException
+		 *             If the stanza could not be written.
+		 */
+		public void writeStanza(Element stanza) throws XMPPException;
+	}
+
+	/**
+	 * Delay before checking again if queued stanzas can be written, while the
+	 * connection is not writable.
+	 */
+	private static final long RETRY_DELAY = 500;
+
+	private static class QueuedStanza {
+		private final Element stanza;
+		private final long queuedAt;
+
+		private QueuedStanza(Element stanza, long queuedAt) {
+			this.stanza = stanza;
+			this.queuedAt = queuedAt;
+		}
+	}
+
+	private final StanzaTarget target;
+	private final Object lock = new Object();
+	private final HashedWheelTimer timer;
+	private final Executor writer;
+	private final double rate;
+	private final double burst;
+
+	private double tokens;
+	private long lastRefill;
+
+	private final Queue<QueuedStanza> requests = new ArrayDeque<QueuedStanza>();
+	private final Queue<QueuedStanza> presences = new ArrayDeque<QueuedStanza>();
+	private final Map<String, Queue<QueuedStanza>> messages = new HashMap<String, Queue<QueuedStanza>>();
+	private final Queue<String> recipients = new ArrayDeque<String>();
+	private volatile int pending = 0;
+	// stanzas taken from the queue that are still being written
+	private int writing = 0;
+	private boolean drainScheduled = false;
+	private final Runnable drainTask = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+	private final Runnable scheduledDrainTask = new Runnable() {
+		@Override
+		public void run() {
+			writer.execute(drainTask);
+		}
+	};
+
+	private final long[] sent = new long[Priority.values().length];
+	private final long[] delayed = new long[Priority.values().length];
+	private final long[] totalDelay = new long[Priority.values().length];
+	private final long[] maxDelay = new long[Priority.values().length];
+	private int maxPending = 0;
+	private long failed = 0;
+
+	/**
+	 * Creates a queue for a connection.
+	 * 
+	 * @param target
+	 *            Connection the stanzas are written to.
+	 * @param configuration
+	 *            Configuration with the send rate and burst.
+	 * @param writer
+	 *            Executor of the connection's writes, used to write queued
+	 *            stanzas.
+	 */
+	OutboundQueue(StanzaTarget target, ConnectionConfiguration configuration,
+			Executor writer) {
+		this(target, configuration.getSendRate(), configuration.getSendBurst(),
+				HashedWheelTimer.getSharedTimer(), writer);
+	}
+
+	/**
+	 * Creates a queue with the given limits.
+	 * 
+	 * @param target
+	 *            Connection the stanzas are written to.
+	 * @param rate
+	 *            Stanzas per second, or zero to not limit sending.
+	 * @param burst
+	 *            Number of stanzas that may be sent at once.
+	 * @param timer
+	 *            Timer used to wait for tokens.
+	 * @param writer
+	 *            Executor used to write queued stanzas.
+	 */
+	OutboundQueue(StanzaTarget target, int rate, int burst,
+			HashedWheelTimer timer, Executor writer) {
+		this.target = target;
+		this.rate = rate;
+		this.burst = burst;
+		this.timer = timer;
+		this.writer = writer;
+		this.tokens = burst;
+		this.lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Sends a stanza: writes it at once if the rate allows and nothing of the
+	 * same or a higher priority is waiting, or queues it otherwise.
+	 * 
+	 * @param stanza
+	 *            Stanza to be sent.
+	 * @throws XMPPException
+	 *             If the stanza was written at once and there was a problem
+	 *             writing it.
+	 */
+	public void send(Element stanza) throws XMPPException {
+		if (rate == 0) {
+			synchronized (lock) {
+				sent[getPriority(stanza).ordinal()]++;
+			}
+			target.writeStanza(stanza);
+			return;
+		}
+		synchronized (lock) {
+			Priority priority = getPriority(stanza);
+			if (hasPending(priority) || !takeToken()) {
+				enqueue(stanza, priority);
+				return;
+			}
+			sent[priority.ordinal()]++;
+		}
+		target.writeStanza(stanza);
+	}
+
+	private void enqueue(Element stanza, Priority priority) {
+		QueuedStanza queued = new QueuedStanza(stanza, System.nanoTime());
+		switch (priority) {
+		case IQ:
+			requests.add(queued);
+			break;
+		case PRESENCE:
+			presences.add(queued);
+			break;
+		default:
+			String recipient = stanza.getAttribute("to");
+			Queue<QueuedStanza> queue = messages.get(recipient);
+			if (queue == null) {
+				queue = new ArrayDeque<QueuedStanza>();
+				messages.put(recipient, queue);
+				recipients.add(recipient);
+			}
+			queue.add(queued);
+		}
+		pending++;
+		maxPending = Math.max(maxPending, pending);
+		if (!drainScheduled)
+			scheduleDrain();
+	}
+
+	/**
+	 * Writes all queued stanzas at once, regardless of the rate. Used before
+	 * the stream is closed, so stanzas already sent by the user are not lost.
+	 */
+	public void flush() {
+		List<QueuedStanza> batch = new ArrayList<QueuedStanza>();
+		synchronized (lock) {
+			// a drain still scheduled will find nothing to write
+			QueuedStanza next;
+			while ((next = poll()) != null)
+				batch.add(next);
+		}
+		write(batch);
+	}
+
+	private static Priority getPriority(Element stanza) {
+		if (stanza.getTagName().equals("iq"))
+			return Priority.IQ;
+		if (stanza.getTagName().equals("presence"))
+			return Priority.PRESENCE;
+		return Priority.MESSAGE;
+	}
+
+	private boolean hasPending(Priority priority) {
+		// stanzas being written by the writer must not be overtaken
+		if (writing > 0)
+			return true;
+		switch (priority) {
+		case IQ:
+			return !requests.isEmpty();
+		case PRESENCE:
+			return !requests.isEmpty() || !presences.isEmpty();
+		default:
+			return pending > 0;
+		}
+	}
+
+	private boolean takeToken() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+		lastRefill = now;
+		if (tokens < 1)
+			return false;
+		tokens--;
+		return true;
+	}
+
+	private void scheduleDrain() {
+		long delay = (long) Math.ceil((1 - tokens) * 1000 / rate);
+		drainScheduled = true;
+		timer.schedule(scheduledDrainTask, Math.max(1, delay));
+	}
+
+	/**
+	 * Writes the queued stanzas the rate allows, in the connection's writer.
+	 * The stanzas are taken from the queue with the lock held, and written
+	 * after releasing it.
+	 */
+	private void drain() {
+		List<QueuedStanza> batch = new ArrayList<QueuedStanza>();
+		synchronized (lock) {
+			drainScheduled = false;
+			if (pending > 0 && !target.isWritable()) {
+				drainScheduled = true;
+				timer.schedule(scheduledDrainTask, RETRY_DELAY);
+				return;
+			}
+			while (pending > 0 && takeToken())
+				batch.add(poll());
+			writing += batch.size();
+		}
+		write(batch);
+		synchronized (lock) {
+			writing -= batch.size();
+			if (pending > 0 && !drainScheduled)
+				scheduleDrain();
+		}
+	}
+
+	/**
+	 * Removes the next stanza to be sent from the queues.
+	 */
+	private QueuedStanza poll() {
+		QueuedStanza next = requests.poll();
+		if (next == null)
+			next = presences.poll();
+		if (next == null && !recipients.isEmpty()) {
+			// the recipient goes to the end of the line if it has more
+			String recipient = recipients.poll();
+			Queue<QueuedStanza> queue = messages.get(recipient);
+			next = queue.poll();
+			if (queue.isEmpty())
+				messages.remove(recipient);
+			else
+				recipients.add(recipient);
+		}
+		if (next != null)
+			pending--;
+		return next;
+	}
+
+	/**
+	 * Writes stanzas taken from the queue. Must be called without the lock.
+	 */
+	private void write(List<QueuedStanza> batch) {
+		synchronized (lock) {
+			long now = System.nanoTime();
+			for (QueuedStanza queued : batch) {
+				int priority = getPriority(queued.stanza).ordinal();
+				long delay = now - queued.queuedAt;
+				sent[priority]++;
+				delayed[priority]++;
+				totalDelay[priority] += delay;
+				maxDelay[priority] = Math.max(maxDelay[priority], delay);
+			}
+		}
+		int errors = 0;
+		for (QueuedStanza queued : batch)
+			try {
+				target.writeStanza(queued.stanza);
+			} catch (XMPPException e) {
+				// the listening thread will detect the broken connection
+				errors++;
+			}
+		if (errors > 0)
+			synchronized (lock) {
+				failed += errors;
+			}
+	}
+
+	/**
+	 * Returns the number of stanzas currently waiting to be sent.
+	 */
+	public int getPendingCount() {
+		synchronized (lock) {
+			return pending;
+		}
+	}
+
+	/**
+	 * Returns the largest number of stanzas that waited at the same time.
+	 */
+	public int getMaxPendingCount() {
+		synchronized (lock) {
+			return maxPending;
+		}
+	}
+
+	/**
+	 * Returns the number of stanzas of a class sent, whether at once or after
+	 * waiting in the queue.
+	 */
+	public long getSentCount(Priority priority) {
+		synchronized (lock) {
+			return sent[priority.ordinal()];
+		}
+	}
+
+	/**
+	 * Returns the number of stanzas of a class that had to wait in the queue.
+	 */
+	public long getDelayedCount(Priority priority) {
+		synchronized (lock) {
+			return delayed[priority.ordinal()];
+		}
+	}
+
+	/**
+	 * Returns the mean time stanzas of a class waited in the queue, counting
+	 * only those that waited.
+	 * 
+	 * @return Mean delay, in milliseconds.
+	 */
+	public double getMeanDelayMillis(Priority priority) {
+		synchronized (lock) {
+			int i = priority.ordinal();
+			return delayed[i] == 0 ? 0 : totalDelay[i] / 1e6 / delayed[i];
+		}
+	}
+
+	/**
+	 * Returns the longest time a stanza of a class waited in the queue.
+	 * 
+	 * @return Maximum delay, in milliseconds.
+	 */
+	public double getMaxDelayMillis(Priority priority) {
+		synchronized (lock) {
+			return maxDelay[priority.ordinal()] / 1e6;
+		}
+	}
+
+	/**
+	 * Returns the number of queued stanzas that could not be written.
+	 */
+	public long getFailedCount() {
+		synchronized (lock) {
+			return failed;
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized (lock) {
+			if (rate == 0)
+				return "not limited";
+			StringBuilder result = new StringBuilder();
+			for (Priority priority : Priority.values())
+				result.append(String.format("%s: %d sent, %d delayed "
+						+ "(mean %.1f ms, max %.1f ms); ", priority.name()
+						.toLowerCase(), getSentCount(priority),
+						getDelayedCount(priority), getMeanDelayMillis(priority),
+						getMaxDelayMillis(priority)));
+			return result.append(pending).append(" waiting, at most ")
+					.append(maxPending).append(", ").append(failed)
+					.append(" failed").toString();
+		}
+	}
+}
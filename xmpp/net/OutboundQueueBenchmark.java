@@ -0,0 +1,191 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Measures the outbound queue with a simulated bot: one conversation floods
+ * messages, then many other contacts get a few replies each, and finally a
+ * presence update and a response to the server are sent. The stanzas are
+ * written to a target that records when each one was written, and the
+ * benchmark reports the largest number written in any second (which must
+ * stay within the rate plus the burst), how long the presence and the
+ * response waited, when the last reply to the other contacts went out, and
+ * whether each recipient's messages kept their order. For comparison, the
+ * delays of a single first-in first-out queue at the same rate are computed
+ * from the position of each stanza. The overhead of the queue when sending
+ * is not limited is also measured.
+ * 
+ * Usage: OutboundQueueBenchmark [rate, default 50] [burst, default 20]
+ * [flood, default 300] [contacts, default 50]
+ */
+public class OutboundQueueBenchmark {
+
+	private static class RecordingTarget implements OutboundQueue.StanzaTarget {
+
+		private final List<Element> written = new ArrayList<Element>();
+		private final List<Long> times = new ArrayList<Long>();
+
+		@Override
+		public boolean isWritable() {
+			return true;
+		}
+
+		@Override
+		public void writeStanza(Element stanza) {
+			synchronized (written) {
+				written.add(stanza);
+				times.add(System.nanoTime());
+				written.notifyAll();
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		int rate = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		int burst = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		int flood = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+		int contacts = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+		int replies = 4;
+
+		Document document = DocumentBuilderFactory.newInstance()
+				.newDocumentBuilder().newDocument();
+
+		List<Element> stanzas = new ArrayList<Element>();
+		for (int i = 0; i < flood; i++)
+			stanzas.add(createMessage(document, "contact0@example.com", i));
+		for (int i = 0; i < replies; i++)
+			for (int c = 1; c < contacts; c++)
+				stanzas.add(createMessage(document, "contact" + c
+						+ "@example.com", i));
+		Element presence = document.createElement("presence");
+		stanzas.add(presence);
+		Element iq = document.createElement("iq");
+		iq.setAttribute("type", "result");
+		stanzas.add(iq);
+
+		RecordingTarget target = new RecordingTarget();
+		OutboundQueue queue = new OutboundQueue(target, rate, burst,
+				HashedWheelTimer.getSharedTimer(), new SerialExecutor());
+		long start = System.nanoTime();
+		for (Element stanza : stanzas)
+			queue.send(stanza);
+		synchronized (target.written) {
+			while (target.written.size() < stanzas.size())
+				target.written.wait();
+		}
+		long elapsed = System.nanoTime() - start;
+
+		// largest number of stanzas written within any second
+		int maxPerSecond = 0;
+		for (int i = 0, j = 0; j < target.times.size(); j++) {
+			while (target.times.get(j) - target.times.get(i) >= 1000000000L)
+				i++;
+			maxPerSecond = Math.max(maxPerSecond, j - i + 1);
+		}
+
+		// order of each recipient's messages, and when the quiet ones finished
+		Map<String, Integer> last = new HashMap<String, Integer>();
+		int violations = 0;
+		long lastQuiet = 0;
+		for (int i = 0; i < target.written.size(); i++) {
+			Element stanza = target.written.get(i);
+			if (!stanza.getTagName().equals("message"))
+				continue;
+			String to = stanza.getAttribute("to");
+			int index = Integer.parseInt(stanza.getAttribute("id"));
+			Integer previous = last.put(to, index);
+			if (index != (previous == null ? 0 : previous + 1))
+				violations++;
+			if (!to.equals("contact0@example.com"))
+				lastQuiet = target.times.get(i);
+		}
+
+		System.out.printf("%d stanzas at %d/s with a burst of %d: sent in "
+				+ "%.2f s, at most %d in one second, %d order violations\n",
+				stanzas.size(), rate, burst, elapsed / 1e9, maxPerSecond,
+				violations);
+		System.out.printf("presence waited %.0f ms, response %.0f ms "
+				+ "(first-in first-out: %.0f ms and %.0f ms)\n",
+				writtenAt(target, presence, start), writtenAt(target, iq,
+						start), fifoDelay(stanzas.size() - 2, rate, burst),
+				fifoDelay(stanzas.size() - 1, rate, burst));
+		System.out.printf("last reply to the other %d contacts after %.0f ms "
+				+ "(first-in first-out: %.0f ms)\n", contacts - 1,
+				(lastQuiet - start) / 1e6, fifoDelay(stanzas.size() - 3,
+						rate, burst));
+		System.out.println(queue);
+
+		// cost of going through the queue when sending is not limited
+		int sends = 2000000;
+		OutboundQueue.StanzaTarget discard = new OutboundQueue.StanzaTarget() {
+			@Override
+			public boolean isWritable() {
+				return true;
+			}
+
+			@Override
+			public void writeStanza(Element stanza) {
+			}
+		};
+		for (int limited = 0; limited < 2; limited++) {
+			OutboundQueue unlimited = new OutboundQueue(discard,
+					limited == 0 ? 0 : Integer.MAX_VALUE, Integer.MAX_VALUE,
+					HashedWheelTimer.getSharedTimer(), new SerialExecutor());
+			for (int i = 0; i < sends; i++)
+				unlimited.send(iq);
+			start = System.nanoTime();
+			for (int i = 0; i < sends; i++)
+				unlimited.send(iq);
+			System.out.printf("%s: %.0f ns per stanza\n",
+					limited == 0 ? "not limited" : "limit never reached",
+					(double) (System.nanoTime() - start) / sends);
+		}
+	}
+
+	private static Element createMessage(Document document, String to,
+			int index) {
+		Element message = document.createElement("message");
+		message.setAttribute("to", to);
+		message.setAttribute("id", Integer.toString(index));
+		message.setAttribute("type", "chat");
+		Element body = document.createElement("body");
+		body.setTextContent("reply " + index);
+		message.appendChild(body);
+		return message;
+	}
+
+	private static double writtenAt(RecordingTarget target, Element stanza,
+			long start) {
+		return (target.times.get(target.written.indexOf(stanza)) - start) / 1e6;
+	}
+
+	/**
+	 * Time at which the stanza at a position would be written by a single
+	 * queue with the same token bucket.
+	 */
+	private static double fifoDelay(int position, int rate, int burst) {
+		return Math.max(0, (position + 1 - burst) * 1000.0 / rate);
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ubc.cs317.xmpp.model.ContactStatus;
+
+/**
+ * Measures the presences saved by the presence debouncer on a scripted
+ * session: the initial status, the status box selecting the same status
+ * again several times, the user scrolling through the statuses, a change
+ * reverted shortly after, and logging out. The script is replayed in real
+ * time without a limit, with duplicates suppressed only, and with the
+ * default window, reporting the presences sent, the broadcasts they cause
+ * for a roster of the given size, how long the status chosen after scrolling waited,
+ * and whether the server ended up with the statuses the user chose.
+ * 
+ * Usage: PresenceBenchmark [roster size, default 500] [window in ms, default
+ * 1000]
+ */
+public class PresenceBenchmark {
+
+	private static class RecordingTarget implements
+			PresenceDebouncer.PresenceTarget {
+
+		private final int subscribers;
+		private final List<ContactStatus> sent = new ArrayList<ContactStatus>();
+		private final List<Long> times = new ArrayList<Long>();
+
+		private RecordingTarget(int subscribers) {
+			this.subscribers = subscribers;
+		}
+
+		@Override
+		public boolean isWritable() {
+			return true;
+		}
+
+		@Override
+		public synchronized void sendPresence(ContactStatus status) {
+			sent.add(status);
+			times.add(System.nanoTime());
+		}
+
+		@Override
+		public int getSubscriberCount() {
+			return subscribers;
+		}
+	}
+
+	/**
+	 * Time of each step of the script, in milliseconds from the start, and the
+	 * status set at that time.
+	 */
+	private static final long[] SCRIPT_TIMES = { 0, 0, 100, 150, 200, 250,
+			300, 350, 400, 450, 600, 650, 700, 750, 2500, 2600, 2700, 4000 };
+	private static final ContactStatus[] SCRIPT_STATUSES = {
+			ContactStatus.OFFLINE, ContactStatus.AVAILABLE,
+			ContactStatus.AVAILABLE, ContactStatus.AVAILABLE,
+			ContactStatus.AVAILABLE, ContactStatus.AVAILABLE,
+			ContactStatus.AVAILABLE, ContactStatus.AVAILABLE,
+			ContactStatus.AVAILABLE, ContactStatus.AVAILABLE,
+			ContactStatus.AWAY, ContactStatus.DND, ContactStatus.AVAILABLE,
+			ContactStatus.AWAY, ContactStatus.DND, ContactStatus.AWAY,
+			ContactStatus.DND, ContactStatus.OFFLINE };
+
+	/**
+	 * Indexes in the script of the last status chosen before a pause, which
+	 * the server must have when the next step starts.
+	 */
+	private static final int SCROLL_END = 13;
+	private static final int REVERT_END = 16;
+
+	public static void main(String[] args) throws Exception {
+
+		int roster = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		long window = args.length > 1 ? Long.parseLong(args[1])
+				: ConnectionConfiguration.DEFAULT_PRESENCE_DEBOUNCE;
+
+		System.out.printf("%d status changes, roster of %d contacts\n",
+				SCRIPT_TIMES.length, roster);
+		// every change sent, as before the debouncer
+		System.out.printf("%-16s %2d presences sent, %5d broadcasts\n",
+				"no suppression:", SCRIPT_TIMES.length, SCRIPT_TIMES.length
+						* roster);
+		for (long w : new long[] { 0, window })
+			run(roster, w);
+	}
+
+	private static void run(int roster, long window) throws Exception {
+		RecordingTarget target = new RecordingTarget(roster);
+		PresenceDebouncer debouncer = new PresenceDebouncer(target, window,
+				HashedWheelTimer.getSharedTimer(), new SerialExecutor());
+		long start = System.nanoTime();
+		long[] stepTimes = new long[SCRIPT_TIMES.length];
+		for (int i = 0; i < SCRIPT_TIMES.length; i++) {
+			long wait = start + SCRIPT_TIMES[i] * 1000000 - System.nanoTime();
+			if (wait > 0)
+				Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+			stepTimes[i] = System.nanoTime();
+			debouncer.statusChanged(SCRIPT_STATUSES[i]);
+		}
+
+		// the server must have the status chosen before each pause
+		boolean correct = true;
+		long scrollDelay = 0;
+		synchronized (target) {
+			for (int end : new int[] { SCROLL_END, REVERT_END }) {
+				int last = -1;
+				for (int i = 0; i < target.sent.size(); i++)
+					if (target.times.get(i) < stepTimes[end + 1])
+						last = i;
+				correct &= target.sent.get(last) == SCRIPT_STATUSES[end];
+				if (end == SCROLL_END)
+					scrollDelay = Math.max(0, target.times.get(last)
+							- stepTimes[end]);
+			}
+			correct &= target.sent.get(target.sent.size() - 1) == ContactStatus.OFFLINE;
+		}
+
+		System.out.printf("%-16s %2d presences sent, %5d broadcasts (%d "
+				+ "avoided), %d duplicates, %d combined, status after "
+				+ "scrolling sent after %.0f ms, %s\n", "window " + window
+				+ " ms:", debouncer.getSentCount(),
+				debouncer.getBroadcastCount(),
+				debouncer.getBroadcastsAvoided(),
+				debouncer.getDuplicateCount(), debouncer.getCombinedCount(),
+				scrollDelay / 1e6, correct ? "final statuses correct"
+						: "FINAL STATUSES WRONG " + target.sent);
+	}
+}
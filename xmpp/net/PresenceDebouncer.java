@@ -0,0 +1,357 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import ubc.cs317.xmpp.exception.XMPPException;
+import ubc.cs317.xmpp.model.ContactStatus;
+
+/**
+ * Decides when the user's status is sent to the server. The server
+ * broadcasts each presence to every subscribed contact, so a presence that
+ * does not change anything costs one stanza per contact for nothing:
+ * 
+ * <ul>
+ * <li>A status equal to the one last sent is not sent again. Before any
+ * presence is sent the user is offline, so an initial unavailable presence
+ * is not sent either.</li>
+ * <li>After a presence is sent, changes between online statuses (e.g.,
+ * available, away, do not disturb) within the debounce window are held, and
+ * only the last one is sent when the window ends, if it still differs from
+ * the status sent.</li>
+ * <li>Going online or offline is sent at once, and replaces any change
+ * held.</li>
+ * </ul>
+ * 
+ * The number of presences requested, sent, suppressed as duplicates and
+ * combined within the window is recorded, together with the number of
+ * broadcasts they caused or avoided, estimated from the size of the roster
+ * (the subscription state of each contact is not kept).
+ * 
+ * Presences are never written while holding the debouncer's lock, so reading
+ * its counters never waits for the connection. A change sent at once is
+ * written in the caller's thread, and a held change in the connection's
+ * writer; presences are written one at a time, in the order they were
+ * decided.
+ */
+public class PresenceDebouncer {
+
+	/**
+	 * Operations performed by the debouncer on the connection.
+	 */
+	interface PresenceTarget {
+
+		/**
+		 * Indicates if a presence can currently be sent. While this returns
+		 * <code>false</code> (e.g., while the connection is being
+		 * re-established), a held change is kept.
+		 * 
+		 * @return <code>true</code> if the connection is established.
+		 */
+		public boolean isWritable();
+
+		/**
+		 * Sends a presence with the given status.
+		 * 
+		 * @param status
+		 *            Status to be sent.
+		 * @throws XMPPException
+		 *             If there was a problem sending the presence.
+		 */
+		public void sendPresence(ContactStatus status) throws XMPPException;
+
+		/**
+		 * Returns the number of contacts a presence is broadcast to.
+		 * 
+		 * @return Number of contacts.
+		 */
+		public int getSubscriberCount();
+	}
+
+	/**
+	 * Delay before trying again to send a held change, while the connection is
+	 * not writable.
+	 */
+	private static final long RETRY_DELAY = 500;
+
+	private final PresenceTarget target;
+	private final HashedWheelTimer timer;
+	private final Executor writer;
+	private final long window;
+
+	private ContactStatus lastSent = ContactStatus.OFFLINE;
+	private long lastSentAt;
+	private ContactStatus held = null;
+	private boolean flushScheduled = false;
+	// a presence is being written, outside the lock
+	private boolean writing = false;
+	// incremented by reset, so a write finishing afterwards is not recorded
+	private int resets = 0;
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+	private final Runnable scheduledFlushTask = new Runnable() {
+		@Override
+		public void run() {
+			writer.execute(flushTask);
+		}
+	};
+
+	private long requested = 0;
+	private long sent = 0;
+	private long duplicates = 0;
+	private long combined = 0;
+	private long failed = 0;
+	private long broadcasts = 0;
+	private long broadcastsAvoided = 0;
+
+	/**
+	 * Creates a debouncer for a connection.
+	 * 
+	 * @param target
+	 *            Connection the presences are sent to.
+	 * @param configuration
+	 *            Configuration with the debounce window.
+	 * @param writer
+	 *            Executor of the connection's writes, used to send held
+	 *            changes.
+	 */
+	PresenceDebouncer(PresenceTarget target,
+			ConnectionConfiguration configuration, Executor writer) {
+		this(target, configuration.getPresenceDebounce(), HashedWheelTimer
+				.getSharedTimer(), writer);
+	}
+
+	/**
+	 * Creates a debouncer with the given window.
+	 * 
+	 * @param target
+	 *            Connection the presences are sent to.
+	 * @param window
+	 *            Debounce window, in milliseconds, or zero to send every
+	 *            change at once.
+	 * @param timer
+	 *            Timer used to wait for the end of the window.
+	 * @param writer
+	 *            Executor used to send held changes.
+	 */
+	PresenceDebouncer(PresenceTarget target, long window,
+			HashedWheelTimer timer, Executor writer) {
+		this.target = target;
+		this.window = window;
+		this.timer = timer;
+		this.writer = writer;
+		this.lastSentAt = System.nanoTime()
+				- TimeUnit.MILLISECONDS.toNanos(window);
+	}
+
+	/**
+	 * Requests that a status be sent: sends it at once, holds it until the
+	 * window ends, or drops it if it is the status last sent.
+	 * 
+	 * @param status
+	 *            The user's new status.
+	 * @throws XMPPException
+	 *             If the status was sent at once and there was a problem
+	 *             sending it.
+	 */
+	public void statusChanged(ContactStatus status) throws XMPPException {
+		int subscribers = target.getSubscriberCount();
+		int resets;
+		synchronized (this) {
+			// the presence being written is sent before this one is decided
+			while (writing)
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new XMPPException("Interrupted.");
+				}
+			requested++;
+			if (held != null) {
+				// superseded by this status before it was sent
+				combined++;
+				broadcastsAvoided += subscribers;
+				held = null;
+			}
+			if (status == lastSent) {
+				duplicates++;
+				broadcastsAvoided += subscribers;
+				return;
+			}
+			long elapsed = System.nanoTime() - lastSentAt;
+			long remaining = TimeUnit.MILLISECONDS.toNanos(window) - elapsed;
+			if (status.isOnline() == lastSent.isOnline() && remaining > 0) {
+				held = status;
+				if (!flushScheduled)
+					scheduleFlush();
+				return;
+			}
+			writing = true;
+			resets = this.resets;
+		}
+		send(status, subscribers, resets);
+	}
+
+	/**
+	 * Forgets the status last sent, since a new server-side session starts
+	 * offline. Any held change is dropped, as the current status is sent
+	 * again once the session is established.
+	 */
+	public synchronized void reset() {
+		resets++;
+		lastSent = ContactStatus.OFFLINE;
+		lastSentAt = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(window);
+		held = null;
+	}
+
+	/**
+	 * Schedules the held change to be sent when the window ends. Must be
+	 * called with the lock held.
+	 */
+	private void scheduleFlush() {
+		long elapsed = System.nanoTime() - lastSentAt;
+		long remaining = TimeUnit.MILLISECONDS.toNanos(window) - elapsed;
+		flushScheduled = true;
+		timer.schedule(scheduledFlushTask,
+				Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+	}
+
+	/**
+	 * Sends the held change, if any, when the window ends. Runs in the
+	 * connection's writer.
+	 */
+	private void flush() {
+		ContactStatus status;
+		int subscribers = target.getSubscriberCount();
+		int resets;
+		synchronized (this) {
+			flushScheduled = false;
+			// a presence being written reschedules the held change when done
+			if (held == null || writing)
+				return;
+			if (!target.isWritable()) {
+				flushScheduled = true;
+				timer.schedule(scheduledFlushTask, RETRY_DELAY);
+				return;
+			}
+			status = held;
+			held = null;
+			writing = true;
+			resets = this.resets;
+		}
+		try {
+			send(status, subscribers, resets);
+		} catch (XMPPException e) {
+			// the listening thread will detect the broken connection
+			synchronized (this) {
+				failed++;
+			}
+		}
+	}
+
+	/**
+	 * Writes a presence, without the lock, and records it once written.
+	 */
+	private void send(ContactStatus status, int subscribers, int resets)
+			throws XMPPException {
+		boolean written = false;
+		try {
+			target.sendPresence(status);
+			written = true;
+		} finally {
+			synchronized (this) {
+				writing = false;
+				if (written) {
+					sent++;
+					broadcasts += subscribers;
+					// after a reset the status is sent again anyway
+					if (resets == this.resets) {
+						lastSent = status;
+						lastSentAt = System.nanoTime();
+					}
+				}
+				notifyAll();
+				if (held != null && !flushScheduled)
+					scheduleFlush();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of times the user's status was set.
+	 */
+	public synchronized long getRequestedCount() {
+		return requested;
+	}
+
+	/**
+	 * Returns the number of presences sent.
+	 */
+	public synchronized long getSentCount() {
+		return sent;
+	}
+
+	/**
+	 * Returns the number of statuses not sent because they were equal to the
+	 * status last sent.
+	 */
+	public synchronized long getDuplicateCount() {
+		return duplicates;
+	}
+
+	/**
+	 * Returns the number of statuses held within the window and replaced by
+	 * a later one before being sent.
+	 */
+	public synchronized long getCombinedCount() {
+		return combined;
+	}
+
+	/**
+	 * Returns the estimated number of presence stanzas broadcast by the
+	 * server to contacts because of the presences sent.
+	 */
+	public synchronized long getBroadcastCount() {
+		return broadcasts;
+	}
+
+	/**
+	 * Returns the estimated number of broadcasts avoided by not sending
+	 * duplicate or combined statuses.
+	 */
+	public synchronized long getBroadcastsAvoided() {
+		return broadcastsAvoided;
+	}
+
+	/**
+	 * Returns the number of held changes that could not be sent.
+	 */
+	public synchronized long getFailedCount() {
+		return failed;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return requested + " status changes, " + sent + " presences sent, "
+				+ duplicates + " duplicates and " + combined
+				+ " combined changes suppressed, " + broadcasts
+				+ " broadcasts to contacts (" + broadcastsAvoided
+				+ " avoided)";
+	}
+}
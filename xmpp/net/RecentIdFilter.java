@@ -0,0 +1,87 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the ids of the most recent messages, to recognise a message
+ * received more than once: directly and as a carbon copy (XEP-0280), or
+ * again after a stream is resumed. The number of ids kept is bounded; the
+ * ids seen least recently are forgotten first. Checking and recording a
+ * message takes constant time, and memory does not grow with the number of
+ * messages received.
+ */
+class RecentIdFilter {
+
+	private final Map<String, Boolean> ids;
+
+	private long checked = 0;
+	private long duplicates = 0;
+
+	/**
+	 * Creates a filter.
+	 * 
+	 * @param capacity
+	 *            Maximum number of ids remembered.
+	 */
+	RecentIdFilter(final int capacity) {
+		this.ids = new LinkedHashMap<String, Boolean>(
+				capacity * 4 / 3 + 1, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Checks if a message was seen recently, and records its ids. A message
+	 * may be identified by several ids (e.g., the id assigned by the server
+	 * and the one assigned by the sender), not all of which are present in
+	 * every copy; the message is a duplicate if any of its ids was seen.
+	 * 
+	 * @param keys
+	 *            Ids of the message; null values are ignored.
+	 * @return <code>true</code> if the message was seen recently,
+	 *         <code>false</code> if it is new or has no ids.
+	 */
+	synchronized boolean isDuplicate(String... keys) {
+		checked++;
+		boolean seen = false;
+		for (String key : keys)
+			if (key != null && ids.put(key, Boolean.TRUE) != null)
+				seen = true;
+		if (seen)
+			duplicates++;
+		return seen;
+	}
+
+	synchronized long getChecked() {
+		return checked;
+	}
+
+	synchronized long getDuplicates() {
+		return duplicates;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return checked + " messages checked, " + duplicates
+				+ " duplicates dropped, " + ids.size() + " ids remembered";
+	}
+}
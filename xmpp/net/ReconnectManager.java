@@ -0,0 +1,260 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+
+import ubc.cs317.xmpp.exception.XMPPException;
+
+/**
+ * This class controls automatic reconnection of an XMPP connection after the
+ * connection with the server is lost. Attempts are spaced using exponential
+ * backoff with full jitter, so that many clients disconnected at the same time
+ * (e.g., by a server restart) do not reconnect in lockstep. Additionally, the
+ * number of logins in progress at any given time (initial logins as well as
+ * reconnections) is limited across all connections in this JVM, protecting
+ * the server from reconnect storms when a process runs many accounts.
+ * 
+ * Metrics about reconnections (number of reconnections, failed attempts and
+ * time to recover) are kept for each connection.
+ */
+public class ReconnectManager {
+
+	/**
+	 * Default maximum number of logins in progress at the same time, across
+	 * all connections.
+	 */
+	public static final int DEFAULT_MAX_CONCURRENT_LOGINS = 4;
+
+	/**
+	 * Task that performs a single reconnection attempt.
+	 */
+	public interface ReconnectTask {
+
+		/**
+		 * Attempts to re-establish the connection.
+		 * 
+		 * @throws XMPPException
+		 *             If the attempt was not successful.
+		 */
+		public void reconnect() throws XMPPException;
+	}
+
+	private static Semaphore loginPermits = new Semaphore(
+			DEFAULT_MAX_CONCURRENT_LOGINS, true);
+
+	private ConnectionConfiguration configuration;
+	private Random random = new Random();
+
+	private boolean cancelled = false;
+	private boolean reconnecting = false;
+
+	private int reconnectCount = 0;
+	private int failedAttempts = 0;
+	private long lastTimeToRecover = 0;
+	private long totalTimeToRecover = 0;
+
+	/**
+	 * Creates a reconnect manager for a connection.
+	 * 
+	 * @param configuration
+	 *            Configuration containing the backoff settings.
+	 */
+	public ReconnectManager(ConnectionConfiguration configuration) {
+		this.configuration = configuration;
+	}
+
+	/**
+	 * Sets the maximum number of logins in progress at the same time, across
+	 * all connections. This method should be called before any connection is
+	 * created.
+	 * 
+	 * @param maxLogins
+	 *            Maximum number of simultaneous logins.
+	 */
+	public static void setMaxConcurrentLogins(int maxLogins) {
+		if (maxLogins <= 0)
+			throw new IllegalArgumentException(
+					"Number of logins must be positive.");
+		loginPermits = new Semaphore(maxLogins, true);
+	}
+
+	/**
+	 * Waits until a new login may start, so that no more than the maximum
+	 * number of logins are in progress at the same time across all
+	 * connections. The returned permits must be released once the login
+	 * completes or fails.
+	 * 
+	 * @return The permits a login permit was taken from.
+	 * @throws XMPPException
+	 *             If the thread was interrupted while waiting.
+	 */
+	static Semaphore acquireLoginPermit() throws XMPPException {
+		Semaphore permits = loginPermits;
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new XMPPException("Interrupted while waiting to log in.", e);
+		}
+		return permits;
+	}
+
+	/**
+	 * Repeatedly runs the reconnection task until it succeeds, the maximum
+	 * number of attempts is reached or the manager is cancelled. This method
+	 * blocks the calling thread while waiting between attempts.
+	 * 
+	 * @param task
+	 *            Task that performs a single reconnection attempt.
+	 * @return <code>true</code> if the connection was re-established,
+	 *         <code>false</code> otherwise.
+	 */
+	public boolean reconnect(ReconnectTask task) {
+
+		long lostAt = System.currentTimeMillis();
+		int maxAttempts = configuration.getMaxReconnectAttempts();
+
+		synchronized (this) {
+			reconnecting = true;
+		}
+		try {
+			for (int attempt = 0; maxAttempts <= 0 || attempt < maxAttempts; attempt++) {
+
+				if (!waitBeforeAttempt(attempt))
+					return false;
+
+				try {
+					if (isCancelled())
+						return false;
+					System.out.println("\n" + "Reconnection attempt "
+							+ (attempt + 1));
+					// the task takes a login permit for the login itself
+					task.reconnect();
+				} catch (XMPPException e) {
+					synchronized (this) {
+						failedAttempts++;
+					}
+					continue;
+				}
+
+				synchronized (this) {
+					reconnectCount++;
+					lastTimeToRecover = System.currentTimeMillis() - lostAt;
+					totalTimeToRecover += lastTimeToRecover;
+				}
+				return true;
+			}
+			return false;
+		} finally {
+			synchronized (this) {
+				reconnecting = false;
+			}
+		}
+	}
+
+	/**
+	 * Cancels any ongoing or future reconnection. Used when the connection is
+	 * deliberately closed.
+	 */
+	public synchronized void cancel() {
+		cancelled = true;
+		this.notifyAll();
+	}
+
+	/**
+	 * Returns the delay before a specific attempt, using exponential backoff
+	 * with full jitter: a random value between zero and the exponentially
+	 * growing (but capped) backoff.
+	 * 
+	 * @param attempt
+	 *            Number of previous attempts.
+	 * @return Delay in milliseconds.
+	 */
+	private long computeDelay(int attempt) {
+		long maxDelay = configuration.getReconnectMaxDelay();
+		long backoff = configuration.getReconnectInitialDelay();
+		for (int i = 0; i < attempt && backoff < maxDelay; i++)
+			backoff *= 2;
+		backoff = Math.min(backoff, maxDelay);
+		return (long) (random.nextDouble() * backoff);
+	}
+
+	private synchronized boolean waitBeforeAttempt(int attempt) {
+		long wakeUp = System.currentTimeMillis() + computeDelay(attempt);
+		long now;
+		while (!cancelled && (now = System.currentTimeMillis()) < wakeUp) {
+			try {
+				this.wait(wakeUp - now);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+		return !cancelled;
+	}
+
+	private synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Indicates if a reconnection is currently in progress.
+	 * 
+	 * @return <code>true</code> if the connection is being re-established.
+	 */
+	public synchronized boolean isReconnecting() {
+		return reconnecting;
+	}
+
+	/**
+	 * Returns the number of times the connection was successfully
+	 * re-established.
+	 * 
+	 * @return Number of successful reconnections.
+	 */
+	public synchronized int getReconnectCount() {
+		return reconnectCount;
+	}
+
+	/**
+	 * Returns the number of reconnection attempts that failed.
+	 * 
+	 * @return Number of failed attempts.
+	 */
+	public synchronized int getFailedAttempts() {
+		return failedAttempts;
+	}
+
+	/**
+	 * Returns the time between the detection of the last connection loss and
+	 * the connection being re-established.
+	 * 
+	 * @return Last time to recover, in milliseconds.
+	 */
+	public synchronized long getLastTimeToRecover() {
+		return lastTimeToRecover;
+	}
+
+	/**
+	 * Returns the average time between the detection of a connection loss and
+	 * the connection being re-established.
+	 * 
+	 * @return Average time to recover, in milliseconds, or zero if no
+	 *         reconnection happened.
+	 */
+	public synchronized long getAverageTimeToRecover() {
+		return reconnectCount == 0 ? 0 : totalTimeToRecover / reconnectCount;
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ubc.cs317.xmpp.exception.XMPPException;
+
+/**
+ * This class collects the outcome of a bulk roster operation, i.e., which
+ * contacts were successfully added, changed or removed by the server, and
+ * why the request failed for the remaining ones. The operation runs in the
+ * background; callers may either block until it completes (using
+ * <code>waitForCompletion</code>) or register callbacks.
+ */
+public class RosterBatchResult {
+
+	/**
+	 * Callback called when every request of the operation was answered or
+	 * failed.
+	 */
+	public interface Callback {
+
+		/**
+		 * Called when the operation completes.
+		 * 
+		 * @param result
+		 *            The outcome of the operation.
+		 */
+		public void completed(RosterBatchResult result);
+	}
+
+	private List<String> succeeded = new ArrayList<String>();
+	private Map<String, XMPPException> failed = new LinkedHashMap<String, XMPPException>();
+	private boolean done = false;
+	private List<Callback> callbacks = new ArrayList<Callback>();
+
+	synchronized void addSuccess(String jid) {
+		succeeded.add(jid);
+	}
+
+	synchronized void addFailure(String jid, XMPPException exception) {
+		failed.put(jid, exception);
+	}
+
+	void complete() {
+		List<Callback> toNotify;
+		synchronized (this) {
+			if (done)
+				return;
+			done = true;
+			this.notifyAll();
+			toNotify = callbacks;
+			callbacks = null;
+		}
+		for (Callback callback : toNotify)
+			notifyCallback(callback);
+	}
+
+	private void notifyCallback(Callback callback) {
+		try {
+			callback.completed(this);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Adds a callback to be called when the operation completes. If it has
+	 * already completed, the callback is called immediately in the calling
+	 * thread. Otherwise, it is called in the connection's writer, so
+	 * callbacks should not block.
+	 * 
+	 * @param callback
+	 *            The callback to be called.
+	 */
+	public void addCallback(Callback callback) {
+		synchronized (this) {
+			if (!done) {
+				callbacks.add(callback);
+				return;
+			}
+		}
+		notifyCallback(callback);
+	}
+
+	/**
+	 * Indicates if every request of the operation was answered or failed.
+	 * 
+	 * @return <code>true</code> if the operation completed.
+	 */
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Blocks until every request of the operation was answered or failed.
+	 * This method must not be called in the connection's listening thread,
+	 * which receives the answers.
+	 * 
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting.
+	 */
+	public synchronized void waitForCompletion() throws InterruptedException {
+		while (!done)
+			this.wait();
+	}
+
+	/**
+	 * Returns the JIDs of the contacts whose request succeeded.
+	 * 
+	 * @return List of bare JIDs.
+	 */
+	public synchronized List<String> getSucceeded() {
+		return new ArrayList<String>(succeeded);
+	}
+
+	/**
+	 * Returns the JIDs of the contacts whose request failed, with the
+	 * exception describing each failure.
+	 * 
+	 * @return Map from bare JID to the failure.
+	 */
+	public synchronized Map<String, XMPPException> getFailures() {
+		return new LinkedHashMap<String, XMPPException>(failed);
+	}
+
+	/**
+	 * Indicates if the requests for all contacts succeeded.
+	 * 
+	 * @return <code>true</code> if no request failed, <code>false</code>
+	 *         otherwise.
+	 */
+	public synchronized boolean isSuccessful() {
+		return failed.isEmpty();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return succeeded.size() + " succeeded, " + failed.size() + " failed";
+	}
+}
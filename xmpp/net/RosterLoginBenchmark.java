@@ -0,0 +1,345 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ubc.cs317.xmpp.model.Contact;
+import ubc.cs317.xmpp.model.ContactStatus;
+import ubc.cs317.xmpp.model.RosterCache;
+import ubc.cs317.xmpp.model.Session;
+
+/**
+ * Measures logins with a large roster, against a stub server on the local
+ * XMPP port that supports roster versioning (XEP-0237). The user logs in
+ * three times: without a local roster cache, so the whole roster is sent;
+ * with the cache up to date, so the server sends an empty result; and after
+ * the roster changed on the server, so the server sends an empty result
+ * followed by a push per change. For each login, the time from creating the
+ * session until the contacts are available (loaded from the cache, or
+ * received) and until the roster is up to date, and the bytes sent and
+ * received by the client, are reported. After the last login the session is
+ * left open for longer than the save delay of the cache, and the file is
+ * read back to check that the pushed changes were saved without closing the
+ * session. Needs the local XMPP port to be free.
+ * 
+ * Usage: RosterLoginBenchmark [contacts, default 20000] [changes, default 20]
+ */
+public class RosterLoginBenchmark {
+
+	private static final String STREAM_HEADER = "<?xml version='1.0'?>"
+			+ "<stream:stream xmlns='jabber:client' "
+			+ "xmlns:stream='http://etherx.jabber.org/streams' id='stub' "
+			+ "from='localhost' version='1.0'>";
+
+	private static final Pattern TAG_NAME = Pattern.compile("<([^\\s/>]+)");
+
+	private static final Pattern ID = Pattern
+			.compile("\\sid=['\"]([^'\"]*)['\"]");
+
+	private static final Pattern VER = Pattern
+			.compile("\\sver=['\"]([^'\"]*)['\"]");
+
+	/**
+	 * Roster kept by the stub, and measurements of the current login.
+	 */
+	private static class ServerState {
+
+		private final int contacts;
+		private int changes = 0;
+
+		private long bytesIn = 0;
+		private long bytesOut = 0;
+		private long readyAt = 0;
+
+		private ServerState(int contacts) {
+			this.contacts = contacts;
+		}
+
+		private String getVersion() {
+			return "v" + changes;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		int contacts = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int changes = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		// the roster cache is kept in the home directory
+		File home = File.createTempFile("roster", "home");
+		home.delete();
+		home.mkdir();
+		System.setProperty("user.home", home.getPath());
+
+		final ServerState state = new ServerState(contacts);
+		final ServerSocket server = new ServerSocket(
+				XMPPConnection.XMPP_DEFAULT_PORT);
+		Thread acceptor = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (true)
+						serve(server.accept(), state);
+				} catch (IOException e) {
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		// the connection logs every stanza
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+
+		out.printf("roster of %d contacts, %d changes\n", contacts, changes);
+		login(out, state, "no cache:").closeConnection();
+		login(out, state, "cache up to date:").closeConnection();
+		synchronized (state) {
+			state.changes = changes;
+		}
+		Session session = login(out, state, "cache outdated:");
+
+		// the pushes must reach the disk without closing the session
+		Thread.sleep(RosterCache.SAVE_DELAY + 500);
+		List<Contact> saved = new ArrayList<Contact>();
+		String version = new RosterCache(session.getUserBareJid())
+				.load(saved);
+		out.printf("%d ms after the pushes, without closing the session: "
+				+ "cache at version %s with %d contacts (expected %s with "
+				+ "%d), %d writes\n", RosterCache.SAVE_DELAY + 500, version,
+				saved.size(), state.getVersion(), contacts + changes, session
+						.getRosterCache().getSaveCount());
+		session.closeConnection();
+		server.close();
+		System.setOut(out);
+		System.exit(0);
+	}
+
+	private static Session login(PrintStream out, ServerState state,
+			String name) throws Exception {
+		synchronized (state) {
+			state.bytesIn = 0;
+			state.bytesOut = 0;
+			state.readyAt = 0;
+		}
+		ConnectionConfiguration configuration = new ConnectionConfiguration();
+		configuration.setTlsEnabled(false);
+		long start = System.nanoTime();
+		Session session = new Session("user", "localhost", "bench", "secret",
+				ContactStatus.AVAILABLE, configuration, null);
+		// the cached contacts are loaded before connecting
+		int cached = session.getContacts().size();
+		long created = System.nanoTime();
+		synchronized (state) {
+			while (state.readyAt == 0)
+				state.wait();
+			out.printf("%-18s %6d contacts cached, session created in "
+					+ "%4.0f ms, roster up to date after %5.0f ms, %8d "
+					+ "bytes received, %5d sent\n", name, cached,
+					(created - start) / 1e6, (state.readyAt - start) / 1e6,
+					state.bytesOut, state.bytesIn);
+		}
+		return session;
+	}
+
+	/**
+	 * Serves one client connection, in its own thread.
+	 */
+	private static void serve(final Socket socket, final ServerState state) {
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					serveConnection(socket, state);
+				} catch (IOException e) {
+				} finally {
+					try {
+						socket.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static void serveConnection(Socket socket, ServerState state)
+			throws IOException {
+		InputStream in = socket.getInputStream();
+		OutputStream out = socket.getOutputStream();
+		StringBuilder received = new StringBuilder();
+		byte[] buffer = new byte[4096];
+		boolean authenticated = false;
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			received.append(new String(buffer, 0, read, "UTF-8"));
+			synchronized (state) {
+				state.bytesIn += read;
+			}
+			String element;
+			while ((element = nextElement(received)) != null) {
+				if (element.startsWith("<stream:stream")) {
+					send(out, state, STREAM_HEADER + "<stream:features>"
+							+ (authenticated ? "<bind xmlns='urn:ietf:params:"
+									+ "xml:ns:xmpp-bind'/><ver xmlns='urn:"
+									+ "xmpp:features:rosterver'/>"
+									: "<mechanisms xmlns='urn:ietf:params:"
+											+ "xml:ns:xmpp-sasl'><mechanism>"
+											+ "PLAIN</mechanism></mechanisms>")
+							+ "</stream:features>");
+				} else if (element.startsWith("</stream:stream")) {
+					send(out, state, "</stream:stream>");
+					return;
+				} else if (element.startsWith("<auth")) {
+					authenticated = true;
+					send(out, state, "<success xmlns='urn:ietf:params:xml:"
+							+ "ns:xmpp-sasl'/>");
+				} else if (element.startsWith("<iq")) {
+					processIQ(element, out, state);
+				}
+			}
+		}
+	}
+
+	private static void processIQ(String element, OutputStream out,
+			ServerState state) throws IOException {
+		Matcher id = ID.matcher(element);
+		if (!id.find())
+			return;
+		if (id.group(1).equals("ready")) {
+			// the client answers after it has processed the roster
+			synchronized (state) {
+				state.readyAt = System.nanoTime();
+				state.notifyAll();
+			}
+		} else if (element.contains("urn:ietf:params:xml:ns:xmpp-bind")) {
+			send(out, state, "<iq type='result' id='" + id.group(1)
+					+ "'><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'>"
+					+ "<jid>user@localhost/bench</jid></bind></iq>");
+		} else if (element.contains("jabber:iq:roster")
+				&& element.contains("type=\"get\"")) {
+			Matcher ver = VER.matcher(element);
+			String known = ver.find() ? ver.group(1) : "";
+			int changes;
+			synchronized (state) {
+				changes = state.changes;
+			}
+			int knownChanges = known.matches("v\\d+") ? Integer
+					.parseInt(known.substring(1)) : -1;
+			StringBuilder reply = new StringBuilder();
+			if (knownChanges >= 0 && knownChanges <= changes) {
+				// only the changes since the known version, as pushes
+				reply.append("<iq type='result' id='" + id.group(1) + "'/>");
+				for (int i = knownChanges; i < changes; i++)
+					reply.append("<iq type='set' id='push").append(i).append(
+							"'><query xmlns='jabber:iq:roster' ver='v").append(
+							i + 1).append("'>").append(createItem("new", i))
+							.append("</query></iq>");
+			} else {
+				reply.append("<iq type='result' id='" + id.group(1)
+						+ "'><query xmlns='jabber:iq:roster' ver='v"
+						+ changes + "'>");
+				for (int i = 0; i < state.contacts; i++)
+					reply.append(createItem("contact", i));
+				for (int i = 0; i < changes; i++)
+					reply.append(createItem("new", i));
+				reply.append("</query></iq>");
+			}
+			reply.append("<iq type='get' id='ready'><ping xmlns='"
+					+ "urn:xmpp:ping'/></iq>");
+			send(out, state, reply.toString());
+		} else if (!element.contains("type=\"result\"")
+				&& !element.contains("type=\"error\"")) {
+			send(out, state, "<iq type='result' id='" + id.group(1) + "'/>");
+		}
+	}
+
+	private static String createItem(String prefix, int index) {
+		return "<item jid='" + prefix + index + "@example.com' name='"
+				+ prefix + " " + index + "' subscription='both'><group>Group "
+				+ (index % 20) + "</group></item>";
+	}
+
+	/**
+	 * Removes the next complete element (or stream tag) from the received
+	 * data.
+	 * 
+	 * @return The element, or null if no element is complete yet.
+	 */
+	private static String nextElement(StringBuilder received) {
+		int start = 0;
+		while (start < received.length()
+				&& Character.isWhitespace(received.charAt(start)))
+			start++;
+		if (received.indexOf("<?xml", start) == start) {
+			int end = received.indexOf("?>", start);
+			if (end < 0)
+				return null;
+			start = end + 2;
+		}
+		received.delete(0, start);
+		if (received.length() == 0)
+			return null;
+
+		int tagEnd = received.indexOf(">");
+		if (tagEnd < 0)
+			return null;
+		String element;
+		if (received.indexOf("<stream:stream") == 0
+				|| received.indexOf("</") == 0
+				|| received.charAt(tagEnd - 1) == '/') {
+			element = received.substring(0, tagEnd + 1);
+		} else {
+			Matcher tag = TAG_NAME.matcher(received);
+			tag.find();
+			String close = "</" + tag.group(1) + ">";
+			int end = received.indexOf(close);
+			if (end < 0)
+				return null;
+			element = received.substring(0, end + close.length());
+		}
+		received.delete(0, element.length());
+		return element;
+	}
+
+	private static void send(OutputStream out, ServerState state, String data)
+			throws IOException {
+		byte[] bytes = data.getBytes("UTF-8");
+		synchronized (state) {
+			state.bytesOut += bytes.length;
+		}
+		out.write(bytes);
+		out.flush();
+	}
+}
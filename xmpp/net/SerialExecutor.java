@@ -0,0 +1,113 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the tasks given to it one at a time, in the order they were given, in
+ * a pool of threads shared by all connections. Each connection has its own
+ * instance, used as its writer: tasks started by the shared timer (keepalives,
+ * rate-limited stanzas, held presences) are handed to it instead of writing
+ * in the timer thread, so a connection whose socket blocks (e.g., a half-open
+ * connection with a full send buffer, or one being re-established) only holds
+ * its own tasks, and not the timer of every other connection.
+ * 
+ * Threads are only used while a connection has tasks waiting, and are
+ * released after being idle for a while, so idle connections use no thread.
+ */
+class SerialExecutor implements Executor {
+
+	private static final ExecutorService sharedPool = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "Connection writer "
+							+ count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+	private boolean running = false;
+
+	private final Runnable runner = new Runnable() {
+		@Override
+		public void run() {
+			runTasks();
+		}
+	};
+
+	/**
+	 * Returns the pool of threads shared by all writers. Tasks given directly
+	 * to the pool run independently of any writer, e.g., to close a connection
+	 * whose writer is blocked.
+	 * 
+	 * @return The shared pool.
+	 */
+	static Executor getSharedPool() {
+		return sharedPool;
+	}
+
+	/**
+	 * Queues a task, to be run after the tasks given before it.
+	 * 
+	 * @param task
+	 *            Task to be run.
+	 */
+	@Override
+	public void execute(Runnable task) {
+		synchronized (tasks) {
+			tasks.add(task);
+			if (running)
+				return;
+			running = true;
+		}
+		sharedPool.execute(runner);
+	}
+
+	private void runTasks() {
+		while (true) {
+			Runnable task;
+			synchronized (tasks) {
+				task = tasks.poll();
+				if (task == null) {
+					running = false;
+					return;
+				}
+			}
+			boolean completed = false;
+			try {
+				task.run();
+				completed = true;
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				completed = true;
+			} finally {
+				// the remaining tasks are not lost if the thread dies
+				if (!completed)
+					sharedPool.execute(runner);
+			}
+		}
+	}
+}
@@ -0,0 +1,265 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Implementation of the SOCKS5 part of direct bytestreams (XEP-0065). Only
+ * the subset of SOCKS5 used by XMPP is supported: no authentication, and a
+ * CONNECT command whose destination is the SHA-1 hash identifying the
+ * stream. Once the handshake is done, file contents are moved between the
+ * file and the socket with <code>FileChannel.transferTo</code> and
+ * <code>transferFrom</code>, so the data is not copied through buffers in
+ * the Java heap.
+ */
+public class Socks5Bytestream {
+
+	public static final String NAMESPACE = "http://jabber.org/protocol/bytestreams";
+
+	private static final byte VERSION = 5;
+	private static final byte NO_AUTHENTICATION = 0;
+	private static final byte CONNECT = 1;
+	private static final byte DOMAIN_NAME = 3;
+	private static final byte IPV4 = 1;
+	private static final byte IPV6 = 4;
+	private static final byte SUCCEEDED = 0;
+	private static final byte NOT_ALLOWED = 2;
+
+	/**
+	 * Maximum number of bytes moved in a single call to transferTo or
+	 * transferFrom, so that progress is reported and cancellation is checked
+	 * regularly.
+	 */
+	private static final long CHUNK_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * Computes the destination address used in the SOCKS5 handshake, which
+	 * identifies the stream: the hex-encoded SHA-1 hash of the stream id, the
+	 * initiator's full JID and the target's full JID.
+	 * 
+	 * @param sid
+	 *            Stream id.
+	 * @param initiatorJid
+	 *            Full JID of the entity sending the file.
+	 * @param targetJid
+	 *            Full JID of the entity receiving the file.
+	 * @return The destination address.
+	 */
+	public static String getDestinationAddress(String sid, String initiatorJid,
+			String targetJid) {
+		try {
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			byte[] hash = sha1.digest((sid + initiatorJid + targetJid)
+					.getBytes("UTF-8"));
+			StringBuilder hex = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+				hex.append(Character.forDigit(b & 0xf, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Performs the server side of the handshake on a connection accepted by a
+	 * stream host.
+	 * 
+	 * @param channel
+	 *            Accepted connection, in blocking mode.
+	 * @param destinationAddress
+	 *            Expected destination address.
+	 * @throws IOException
+	 *             If the handshake fails, or the destination does not match.
+	 */
+	public static void acceptConnection(SocketChannel channel,
+			String destinationAddress) throws IOException {
+
+		ByteBuffer greeting = readFully(channel, 2);
+		if (greeting.get(0) != VERSION)
+			throw new IOException("Not a SOCKS5 connection.");
+		ByteBuffer methods = readFully(channel, greeting.get(1) & 0xff);
+		boolean noAuthentication = false;
+		while (methods.hasRemaining())
+			if (methods.get() == NO_AUTHENTICATION)
+				noAuthentication = true;
+		if (!noAuthentication) {
+			writeFully(channel, ByteBuffer.wrap(new byte[] { VERSION, (byte) 0xff }));
+			throw new IOException("SOCKS5 client requires authentication.");
+		}
+		writeFully(channel, ByteBuffer.wrap(new byte[] { VERSION, NO_AUTHENTICATION }));
+
+		ByteBuffer request = readFully(channel, 5);
+		if (request.get(0) != VERSION || request.get(1) != CONNECT
+				|| request.get(3) != DOMAIN_NAME)
+			throw new IOException("Unsupported SOCKS5 request.");
+		ByteBuffer address = readFully(channel, (request.get(4) & 0xff) + 2);
+		String destination = new String(address.array(), 0,
+				address.limit() - 2, "US-ASCII");
+		if (!destination.equals(destinationAddress)) {
+			writeFully(channel, createRequest(NOT_ALLOWED, destination));
+			throw new IOException("Unexpected SOCKS5 destination.");
+		}
+		writeFully(channel, createRequest(SUCCEEDED, destination));
+	}
+
+	/**
+	 * Performs the client side of the handshake on a connection to a stream
+	 * host.
+	 * 
+	 * @param channel
+	 *            Connection to the stream host, in blocking mode.
+	 * @param destinationAddress
+	 *            Destination address identifying the stream.
+	 * @throws IOException
+	 *             If the handshake fails, or the stream host refuses the
+	 *             connection.
+	 */
+	public static void connect(SocketChannel channel, String destinationAddress)
+			throws IOException {
+
+		writeFully(channel, ByteBuffer.wrap(new byte[] { VERSION, 1, NO_AUTHENTICATION }));
+		ByteBuffer method = readFully(channel, 2);
+		if (method.get(0) != VERSION || method.get(1) != NO_AUTHENTICATION)
+			throw new IOException("SOCKS5 stream host requires authentication.");
+
+		writeFully(channel, createRequest(CONNECT, destinationAddress));
+		ByteBuffer reply = readFully(channel, 5);
+		if (reply.get(0) != VERSION || reply.get(1) != SUCCEEDED)
+			throw new IOException("SOCKS5 stream host refused the connection.");
+		// the bound address is not used, but must be consumed; its first
+		// byte was already read with the header
+		int remaining;
+		switch (reply.get(3)) {
+		case DOMAIN_NAME:
+			remaining = (reply.get(4) & 0xff) + 2;
+			break;
+		case IPV4:
+			remaining = 4 - 1 + 2;
+			break;
+		case IPV6:
+			remaining = 16 - 1 + 2;
+			break;
+		default:
+			throw new IOException("Invalid SOCKS5 address type.");
+		}
+		readFully(channel, remaining);
+	}
+
+	/**
+	 * Sends the contents of a file through an established bytestream.
+	 * 
+	 * @param file
+	 *            Channel of the file being sent.
+	 * @param channel
+	 *            Established bytestream.
+	 * @param size
+	 *            Number of bytes to send.
+	 * @param transfer
+	 *            Transfer notified of the progress, or null.
+	 * @throws IOException
+	 *             If there is an error reading the file or sending the data,
+	 *             or if the transfer is cancelled.
+	 */
+	public static void sendFile(FileChannel file, SocketChannel channel,
+			long size, FileTransfer transfer) throws IOException {
+		long position = 0;
+		while (position < size) {
+			checkCancelled(transfer);
+			long sent = file.transferTo(position,
+					Math.min(CHUNK_SIZE, size - position), channel);
+			if (sent <= 0 && position >= file.size())
+				throw new EOFException("File is shorter than expected.");
+			position += sent;
+			if (transfer != null)
+				transfer.addTransferred(sent);
+		}
+	}
+
+	/**
+	 * Receives the contents of a file through an established bytestream.
+	 * 
+	 * @param channel
+	 *            Established bytestream.
+	 * @param file
+	 *            Channel of the file being written.
+	 * @param size
+	 *            Number of bytes to receive.
+	 * @param transfer
+	 *            Transfer notified of the progress, or null.
+	 * @throws IOException
+	 *             If there is an error receiving the data or writing the
+	 *             file, or if the transfer is cancelled.
+	 */
+	public static void receiveFile(SocketChannel channel, FileChannel file,
+			long size, FileTransfer transfer) throws IOException {
+		long position = 0;
+		while (position < size) {
+			checkCancelled(transfer);
+			// in blocking mode, no bytes are transferred only at end of stream
+			long received = file.transferFrom(channel, position,
+					Math.min(CHUNK_SIZE, size - position));
+			if (received <= 0)
+				throw new EOFException(
+						"Bytestream closed before the transfer was complete.");
+			position += received;
+			if (transfer != null)
+				transfer.addTransferred(received);
+		}
+	}
+
+	private static void checkCancelled(FileTransfer transfer)
+			throws IOException {
+		if (transfer != null && transfer.isDone())
+			throw new IOException("Transfer was " + transfer.getState() + ".");
+	}
+
+	private static ByteBuffer createRequest(byte command, String address)
+			throws IOException {
+		byte[] addressBytes = address.getBytes("US-ASCII");
+		ByteBuffer request = ByteBuffer.allocate(7 + addressBytes.length);
+		request.put(VERSION).put(command).put((byte) 0).put(DOMAIN_NAME);
+		request.put((byte) addressBytes.length).put(addressBytes);
+		request.putShort((short) 0);
+		request.flip();
+		return request;
+	}
+
+	private static ByteBuffer readFully(SocketChannel channel, int length)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining())
+			if (channel.read(buffer) < 0)
+				throw new EOFException("SOCKS5 connection closed.");
+		buffer.flip();
+		return buffer;
+	}
+
+	private static void writeFully(SocketChannel channel, ByteBuffer buffer)
+			throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * This class implements the zlib layer used by stream compression (XEP-0138).
+ * It wraps the socket streams with a deflater and an inflater, each with a
+ * single buffer that is reused for the lifetime of the connection. The output
+ * is flushed with SYNC_FLUSH at stanza boundaries (i.e., whenever the stream
+ * writer flushes), so that each stanza can be decompressed by the server as
+ * soon as it is received.
+ * 
+ * The class also keeps statistics about the compression ratio and the CPU
+ * time spent compressing outgoing stanzas. The deflater and inflater hold
+ * native memory, which is released by <code>end</code> once the stream is
+ * closed or replaced.
+ */
+public class StreamCompression {
+
+	/**
+	 * Namespace of the stream feature advertising compression.
+	 */
+	public static final String FEATURE_NAMESPACE = "http://jabber.org/features/compress";
+
+	/**
+	 * Namespace of the compression negotiation elements.
+	 */
+	public static final String PROTOCOL_NAMESPACE = "http://jabber.org/protocol/compress";
+
+	/**
+	 * Compression method implemented by this class.
+	 */
+	public static final String METHOD = "zlib";
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+	private Inflater inflater = new Inflater();
+
+	private long compressionNanos = 0;
+	private long flushCount = 0;
+
+	private boolean ended = false;
+	private long deflaterBytesRead;
+	private long deflaterBytesWritten;
+	private long inflaterBytesRead;
+	private long inflaterBytesWritten;
+
+	/**
+	 * Wraps the stream used to write data to the server.
+	 * 
+	 * @param stream
+	 *            The uncompressed socket output stream.
+	 * @return An output stream that compresses data before writing it.
+	 */
+	public OutputStream wrapOutputStream(OutputStream stream) {
+		return new TimedDeflaterOutputStream(stream);
+	}
+
+	/**
+	 * Wraps the stream used to read data from the server.
+	 * 
+	 * @param stream
+	 *            The uncompressed socket input stream.
+	 * @return An input stream that decompresses data as it is read.
+	 */
+	public InputStream wrapInputStream(InputStream stream) {
+		return new InflaterInputStream(stream, inflater, BUFFER_SIZE);
+	}
+
+	/**
+	 * Returns the ratio between the size of the data written to the stream and
+	 * the size of the compressed data actually sent.
+	 * 
+	 * @return The compression ratio for outgoing data, or 1 if nothing was
+	 *         sent.
+	 */
+	public synchronized double getOutgoingCompressionRatio() {
+		long written = ended ? deflaterBytesWritten : deflater.getBytesWritten();
+		long read = ended ? deflaterBytesRead : deflater.getBytesRead();
+		return written == 0 ? 1 : (double) read / written;
+	}
+
+	/**
+	 * Returns the ratio between the size of the data received after
+	 * decompression and the size of the compressed data actually received.
+	 * 
+	 * @return The compression ratio for incoming data, or 1 if nothing was
+	 *         received.
+	 */
+	public synchronized double getIncomingCompressionRatio() {
+		long read = ended ? inflaterBytesRead : inflater.getBytesRead();
+		long written = ended ? inflaterBytesWritten : inflater.getBytesWritten();
+		return read == 0 ? 1 : (double) written / read;
+	}
+
+	/**
+	 * Returns the average time spent in the compression layer for each flushed
+	 * unit of data, which usually corresponds to a single stanza. This
+	 * includes handing the compressed data to the socket, which is normally
+	 * negligible compared to the compression itself.
+	 * 
+	 * @return Average compression time per stanza, in nanoseconds.
+	 */
+	public synchronized long getAverageCompressionNanosPerStanza() {
+		return flushCount == 0 ? 0 : compressionNanos / flushCount;
+	}
+
+	/**
+	 * Releases the native memory of the deflater and inflater. Must be called
+	 * once the compressed stream is no longer used, i.e., after the socket is
+	 * closed, whether the connection is being closed or re-established. The
+	 * statistics remain available; calling this method again has no effect.
+	 */
+	public synchronized void end() {
+		if (ended)
+			return;
+		deflaterBytesRead = deflater.getBytesRead();
+		deflaterBytesWritten = deflater.getBytesWritten();
+		inflaterBytesRead = inflater.getBytesRead();
+		inflaterBytesWritten = inflater.getBytesWritten();
+		ended = true;
+		deflater.end();
+		inflater.end();
+	}
+
+	private class TimedDeflaterOutputStream extends DeflaterOutputStream {
+
+		public TimedDeflaterOutputStream(OutputStream stream) {
+			super(stream, deflater, BUFFER_SIZE, true);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			long start = System.nanoTime();
+			super.write(b, off, len);
+			addTime(start, false);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			long start = System.nanoTime();
+			super.flush();
+			addTime(start, true);
+		}
+
+		private void addTime(long start, boolean flushed) {
+			synchronized (StreamCompression.this) {
+				compressionNanos += System.nanoTime() - start;
+				if (flushed)
+					flushCount++;
+			}
+		}
+	}
+}
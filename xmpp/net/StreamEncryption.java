@@ -0,0 +1,171 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * This class implements the TLS layer negotiated with STARTTLS (RFC 6120,
+ * section 5). All connections share a single SSL context, so that TLS sessions
+ * established by one connection are cached and resumed by later ones (e.g.,
+ * after a reconnection). A resumed session skips the key exchange and
+ * certificate verification, which makes the handshake considerably cheaper.
+ * 
+ * Statistics about full and resumed handshakes are kept for all connections.
+ */
+public class StreamEncryption {
+
+	/**
+	 * Namespace of the STARTTLS feature and negotiation elements.
+	 */
+	public static final String NAMESPACE = "urn:ietf:params:xml:ns:xmpp-tls";
+
+	/**
+	 * Name of the session value holding the ID the session was established
+	 * with. TLS 1.2 resumes a session with the same ID, while TLS 1.3 gives
+	 * the resumed session a new ID, but in both cases the values of the cached
+	 * session are carried over.
+	 */
+	private static final String ESTABLISHED_ID = "ubc.cs317.xmpp.establishedId";
+
+	private static SSLContext sharedContext;
+
+	private static int fullHandshakes = 0;
+	private static int resumedHandshakes = 0;
+	private static long fullHandshakeNanos = 0;
+	private static long resumedHandshakeNanos = 0;
+
+	/**
+	 * Returns the SSL context shared by all connections, creating it if
+	 * needed.
+	 * 
+	 * @return The shared SSL context.
+	 * @throws GeneralSecurityException
+	 *             If the default SSL context cannot be initialised.
+	 */
+	private static synchronized SSLContext getSharedContext()
+			throws GeneralSecurityException {
+		if (sharedContext == null) {
+			sharedContext = SSLContext.getInstance("TLS");
+			sharedContext.init(null, null, null);
+		}
+		return sharedContext;
+	}
+
+	/**
+	 * Discards the shared SSL context, and with it every cached session, so
+	 * that the next handshake with each server is a full one. Used to measure
+	 * full handshakes.
+	 */
+	static synchronized void resetSharedContext() {
+		sharedContext = null;
+	}
+
+	/**
+	 * Layers TLS over an existing connected socket and performs the handshake.
+	 * The server certificate is verified against the provided host name. If a
+	 * previous session with the same server is cached, it is resumed.
+	 * 
+	 * @param socket
+	 *            Socket connected to the server.
+	 * @param host
+	 *            Name of the server, used to verify its certificate and to
+	 *            find a cached session.
+	 * @return A socket whose streams are encrypted.
+	 * @throws IOException
+	 *             If the handshake fails.
+	 */
+	public static SSLSocket startHandshake(Socket socket, String host)
+			throws IOException {
+		SSLSocket sslSocket;
+		try {
+			sslSocket = (SSLSocket) getSharedContext().getSocketFactory()
+					.createSocket(socket, host, socket.getPort(), true);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Could not initialise TLS: " + e.getMessage(),
+					e);
+		}
+
+		SSLParameters parameters = sslSocket.getSSLParameters();
+		parameters.setEndpointIdentificationAlgorithm("HTTPS");
+		sslSocket.setSSLParameters(parameters);
+
+		long start = System.nanoTime();
+		sslSocket.startHandshake();
+		long elapsed = System.nanoTime() - start;
+
+		// a new session is marked with its ID, a resumed one is already marked
+		SSLSession session = sslSocket.getSession();
+		boolean resumed = session.getValue(ESTABLISHED_ID) != null;
+		if (!resumed)
+			session.putValue(ESTABLISHED_ID, session.getId());
+		synchronized (StreamEncryption.class) {
+			if (resumed) {
+				resumedHandshakes++;
+				resumedHandshakeNanos += elapsed;
+			} else {
+				fullHandshakes++;
+				fullHandshakeNanos += elapsed;
+			}
+		}
+		System.out.println("\n" + (resumed ? "Resumed" : "Full")
+				+ " TLS handshake completed in " + elapsed / 1000000 + " ms.");
+		return sslSocket;
+	}
+
+	/**
+	 * Returns the number of full TLS handshakes performed by all connections.
+	 * 
+	 * @return Number of full handshakes.
+	 */
+	public static synchronized int getFullHandshakeCount() {
+		return fullHandshakes;
+	}
+
+	/**
+	 * Returns the number of TLS handshakes that resumed a cached session.
+	 * 
+	 * @return Number of resumed handshakes.
+	 */
+	public static synchronized int getResumedHandshakeCount() {
+		return resumedHandshakes;
+	}
+
+	/**
+	 * Returns the average duration of full TLS handshakes.
+	 * 
+	 * @return Average duration, in nanoseconds, or zero if none happened.
+	 */
+	public static synchronized long getAverageFullHandshakeNanos() {
+		return fullHandshakes == 0 ? 0 : fullHandshakeNanos / fullHandshakes;
+	}
+
+	/**
+	 * Returns the average duration of TLS handshakes that resumed a cached
+	 * session.
+	 * 
+	 * @return Average duration, in nanoseconds, or zero if none happened.
+	 */
+	public static synchronized long getAverageResumedHandshakeNanos() {
+		return resumedHandshakes == 0 ? 0 : resumedHandshakeNanos
+				/ resumedHandshakes;
+	}
+}
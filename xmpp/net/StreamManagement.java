@@ -0,0 +1,306 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * This class keeps the state associated to stream management (XEP-0198) for a
+ * single XMPP connection. It counts handled incoming stanzas, keeps a bounded
+ * buffer of outgoing stanzas that were not yet acknowledged by the server and
+ * stores the information needed to resume the stream after the underlying
+ * connection is lost.
+ * 
+ * Stanza counters are kept modulo 2^32, as required by the protocol.
+ */
+public class StreamManagement {
+
+	/**
+	 * Namespace used by stream management elements.
+	 */
+	public static final String NAMESPACE = "urn:xmpp:sm:3";
+
+	private static final long COUNTER_MASK = 0xFFFFFFFFL;
+
+	private ConnectionConfiguration configuration;
+
+	private boolean enabled = false;
+	private boolean resumable = false;
+	private String resumptionId;
+
+	private long inboundCount = 0;
+	private long acknowledgedCount = 0;
+	private int sentSinceAckRequest = 0;
+	private LinkedList<Element> unackedStanzas = new LinkedList<Element>();
+
+	/**
+	 * Creates the stream management state for a connection.
+	 * 
+	 * @param configuration
+	 *            Configuration with the buffer size and acknowledgement request
+	 *            interval to be used.
+	 */
+	public StreamManagement(ConnectionConfiguration configuration) {
+		this.configuration = configuration;
+	}
+
+	/**
+	 * Verifies if a set of stream features advertises stream management.
+	 * 
+	 * @param features
+	 *            The stream:features element sent by the server.
+	 * @return <code>true</code> if the server supports stream management,
+	 *         <code>false</code> otherwise.
+	 */
+	public static boolean isSupported(Element features) {
+		return features != null && findChild(features, "sm") != null;
+	}
+
+	/**
+	 * Indicates if an element received from the server belongs to the stream
+	 * management protocol (e.g., an ack request or answer).
+	 * 
+	 * @param element
+	 *            The element to verify.
+	 * @return <code>true</code> if the element is a stream management element.
+	 */
+	public static boolean isStreamManagementElement(Element element) {
+		return NAMESPACE.equals(element.getAttribute("xmlns"));
+	}
+
+	/**
+	 * Indicates if an element is a stanza (as opposed to a stream-level
+	 * element), and thus should be counted and acknowledged.
+	 * 
+	 * @param element
+	 *            The element to verify.
+	 * @return <code>true</code> if the element is an iq, message or presence.
+	 */
+	public static boolean isStanza(Element element) {
+		String tagName = element.getTagName();
+		return tagName.equals("iq") || tagName.equals("message")
+				|| tagName.equals("presence");
+	}
+
+	/**
+	 * Creates the request to enable stream management, asking for resumption
+	 * support.
+	 * 
+	 * @param writer
+	 *            Writer used to create the element.
+	 * @return An enable element.
+	 */
+	public Element createEnableRequest(XMPPStreamWriter writer) {
+		Element enable = writer.createElement("enable");
+		enable.setAttribute("xmlns", NAMESPACE);
+		enable.setAttribute("resume", "true");
+		return enable;
+	}
+
+	/**
+	 * Creates the request to resume a previous stream. Should only be called
+	 * if <code>isResumable</code> returns <code>true</code>.
+	 * 
+	 * @param writer
+	 *            Writer used to create the element.
+	 * @return A resume element.
+	 */
+	public synchronized Element createResumeRequest(XMPPStreamWriter writer) {
+		Element resume = writer.createElement("resume");
+		resume.setAttribute("xmlns", NAMESPACE);
+		resume.setAttribute("previd", resumptionId);
+		resume.setAttribute("h", Long.toString(inboundCount));
+		return resume;
+	}
+
+	/**
+	 * Creates a request for the server to acknowledge received stanzas.
+	 * 
+	 * @param writer
+	 *            Writer used to create the element.
+	 * @return An r element.
+	 */
+	public Element createAckRequest(XMPPStreamWriter writer) {
+		Element request = writer.createElement("r");
+		request.setAttribute("xmlns", NAMESPACE);
+		return request;
+	}
+
+	/**
+	 * Creates an answer to an acknowledgement request sent by the server,
+	 * containing the number of handled incoming stanzas.
+	 * 
+	 * @param writer
+	 *            Writer used to create the element.
+	 * @return An a element.
+	 */
+	public synchronized Element createAckAnswer(XMPPStreamWriter writer) {
+		Element answer = writer.createElement("a");
+		answer.setAttribute("xmlns", NAMESPACE);
+		answer.setAttribute("h", Long.toString(inboundCount));
+		return answer;
+	}
+
+	/**
+	 * Handles the server response to an enable request. Counters are reset, as
+	 * required by the protocol.
+	 * 
+	 * @param enabledElement
+	 *            The enabled element sent by the server.
+	 */
+	public synchronized void handleEnabled(Element enabledElement) {
+		String resume = enabledElement.getAttribute("resume");
+		enabled = true;
+		resumptionId = enabledElement.getAttribute("id");
+		resumable = ("true".equals(resume) || "1".equals(resume))
+				&& !resumptionId.equals("");
+		inboundCount = 0;
+		acknowledgedCount = 0;
+		sentSinceAckRequest = 0;
+		unackedStanzas.clear();
+	}
+
+	/**
+	 * Handles a successful resumption. Stanzas acknowledged by the server are
+	 * removed from the buffer, and the remaining ones are returned so that they
+	 * can be retransmitted. The returned stanzas are no longer in the buffer;
+	 * they are added back once they are sent again.
+	 * 
+	 * @param resumedElement
+	 *            The resumed element sent by the server.
+	 * @return List of stanzas that must be retransmitted, in order.
+	 */
+	public synchronized List<Element> handleResumed(Element resumedElement) {
+		handleAck(resumedElement);
+		List<Element> pending = new ArrayList<Element>(unackedStanzas);
+		unackedStanzas.clear();
+		sentSinceAckRequest = 0;
+		return pending;
+	}
+
+	/**
+	 * Handles an acknowledgement sent by the server, removing acknowledged
+	 * stanzas from the buffer.
+	 * 
+	 * @param ackElement
+	 *            The a (or resumed) element sent by the server.
+	 */
+	public synchronized void handleAck(Element ackElement) {
+		long h;
+		try {
+			h = Long.parseLong(ackElement.getAttribute("h")) & COUNTER_MASK;
+		} catch (NumberFormatException e) {
+			return;
+		}
+		long newlyAcked = (h - acknowledgedCount) & COUNTER_MASK;
+		for (long i = 0; i < newlyAcked && !unackedStanzas.isEmpty(); i++)
+			unackedStanzas.removeFirst();
+		acknowledgedCount = h;
+	}
+
+	/**
+	 * Registers an incoming stanza as handled.
+	 */
+	public synchronized void stanzaReceived() {
+		if (enabled)
+			inboundCount = (inboundCount + 1) & COUNTER_MASK;
+	}
+
+	/**
+	 * Registers an outgoing stanza, keeping it in the buffer until it is
+	 * acknowledged. If the buffer is full the oldest stanza is discarded and
+	 * the stream is no longer considered resumable.
+	 * 
+	 * @param stanza
+	 *            Stanza being sent.
+	 * @return <code>true</code> if an acknowledgement should be requested
+	 *         after this stanza, <code>false</code> otherwise.
+	 */
+	public synchronized boolean stanzaSent(Element stanza) {
+		if (!enabled)
+			return false;
+		unackedStanzas.addLast(stanza);
+		if (unackedStanzas.size() > configuration.getUnackedBufferSize()) {
+			unackedStanzas.removeFirst();
+			acknowledgedCount = (acknowledgedCount + 1) & COUNTER_MASK;
+			resumable = false;
+		}
+		if (++sentSinceAckRequest >= configuration.getAckRequestInterval()
+				|| unackedStanzas.size() >= configuration
+						.getUnackedBufferSize()) {
+			sentSinceAckRequest = 0;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Indicates if stream management is currently enabled on the stream.
+	 * 
+	 * @return <code>true</code> if enabled, <code>false</code> otherwise.
+	 */
+	public synchronized boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Indicates if the stream can be resumed in case the connection is lost.
+	 * 
+	 * @return <code>true</code> if the stream can be resumed,
+	 *         <code>false</code> otherwise.
+	 */
+	public synchronized boolean isResumable() {
+		return enabled && resumable;
+	}
+
+	/**
+	 * Returns the number of outgoing stanzas not yet acknowledged by the
+	 * server.
+	 * 
+	 * @return Number of unacknowledged stanzas.
+	 */
+	public synchronized int getUnackedCount() {
+		return unackedStanzas.size();
+	}
+
+	/**
+	 * Discards all stream management state. Used when resumption fails or the
+	 * connection is deliberately closed.
+	 */
+	public synchronized void reset() {
+		enabled = false;
+		resumable = false;
+		resumptionId = null;
+		inboundCount = 0;
+		acknowledgedCount = 0;
+		sentSinceAckRequest = 0;
+		unackedStanzas.clear();
+	}
+
+	private static Element findChild(Element parent, String tagName) {
+		for (Node node = parent.getFirstChild(); node != null; node = node
+				.getNextSibling()) {
+			if (node instanceof Element
+					&& ((Element) node).getTagName().equals(tagName)
+					&& NAMESPACE.equals(((Element) node).getAttribute("xmlns")))
+				return (Element) node;
+		}
+		return null;
+	}
+}
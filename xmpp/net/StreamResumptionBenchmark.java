@@ -0,0 +1,448 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ubc.cs317.xmpp.exception.XMPPException;
+import ubc.cs317.xmpp.model.Contact;
+import ubc.cs317.xmpp.model.ContactStatus;
+import ubc.cs317.xmpp.model.Message;
+import ubc.cs317.xmpp.model.Session;
+
+/**
+ * Kills the connection of a logged-in session while it sends messages, and
+ * verifies that every message reaches the server. A stub server on the local
+ * XMPP port accepts any password, binds the requested resource, supports
+ * stream management and closes the socket as soon as it has received a given
+ * number of messages, several times during the run; messages the client
+ * wrote after that point are lost with the socket. Once the client is
+ * connected again the stub reports which messages it received, counting
+ * those missing, received twice or out of order.
+ * 
+ * The run is done once with the stream resumed and once with resumption
+ * refused by the stub, so that each connection is recovered with a full
+ * login. For each, the time from the socket being closed until the first
+ * message on the new connection, the round trips and bytes of the
+ * recovery, and the longest time a call to send a message blocked are
+ * reported, with the number of calls that failed. The stub waits for the
+ * given latency before each reply to a request, to stand for a remote
+ * server. Needs the local XMPP port to be free.
+ * 
+ * Usage: StreamResumptionBenchmark [messages, default 2000] [kills, default
+ * 5] [latency in ms, default 20]
+ */
+public class StreamResumptionBenchmark {
+
+	private static final String STREAM_HEADER = "<?xml version='1.0'?>"
+			+ "<stream:stream xmlns='jabber:client' "
+			+ "xmlns:stream='http://etherx.jabber.org/streams' id='stub' "
+			+ "from='localhost' version='1.0'>";
+
+	private static final Pattern TAG_NAME = Pattern.compile("<([^\\s/>]+)");
+
+	private static final Pattern ID = Pattern
+			.compile("\\sid=['\"]([^'\"]*)['\"]");
+
+	private static final Pattern PREVID = Pattern
+			.compile("\\sprevid=['\"]([^'\"]*)['\"]");
+
+	private static final Pattern BODY = Pattern.compile("<body>(\\d+)</body>");
+
+	/**
+	 * Server-side session, kept across the connections of a run.
+	 */
+	private static class ServerState {
+
+		private final boolean resumable;
+		private final int[] killPoints;
+		private final long latency;
+
+		private int nextKill = 0;
+		private int sessionCount = 0;
+		private String resumptionId = null;
+		private long handled = 0;
+
+		private final List<Integer> received = new ArrayList<Integer>();
+		private long killedAt = 0;
+		private boolean recovering = false;
+		private int recoveryRoundTrips = 0;
+		private long recoveryBytes = 0;
+		private final List<Long> recoveryTimes = new ArrayList<Long>();
+
+		private ServerState(boolean resumable, int[] killPoints, long latency) {
+			this.resumable = resumable;
+			this.killPoints = killPoints;
+			this.latency = latency;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int kills = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		long latency = args.length > 2 ? Long.parseLong(args[2]) : 20;
+
+		// the session caches the roster and capabilities in the home directory
+		File home = File.createTempFile("resumption", "home");
+		home.delete();
+		home.mkdir();
+		System.setProperty("user.home", home.getPath());
+
+		int[] killPoints = new int[kills];
+		for (int i = 0; i < kills; i++)
+			killPoints[i] = messages * (i + 1) / (kills + 1);
+
+		// the connection logs every stanza
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+
+		out.printf("%d messages, socket closed %d times, %d ms latency\n",
+				messages, kills, latency);
+		for (boolean resumable : new boolean[] { true, false })
+			run(out, new ServerState(resumable, killPoints, latency), messages);
+		System.setOut(out);
+		System.exit(0);
+	}
+
+	private static void run(PrintStream out, final ServerState state,
+			int messages) throws Exception {
+
+		final ServerSocket server = new ServerSocket(
+				XMPPConnection.XMPP_DEFAULT_PORT);
+		Thread acceptor = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (true)
+						serve(server.accept(), state);
+				} catch (IOException e) {
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		ConnectionConfiguration configuration = new ConnectionConfiguration();
+		configuration.setReconnectEnabled(true);
+		configuration.setReconnectInitialDelay(10);
+		configuration.setTlsEnabled(false);
+		configuration.setCompressionEnabled(false);
+		Session session = new Session("user", "localhost", "bench", "secret",
+				ContactStatus.AVAILABLE, configuration, null);
+		Contact peer = new Contact("peer@localhost", null);
+
+		long longestSend = 0;
+		int failed = 0;
+		for (int i = 0; i < messages; i++) {
+			long start = System.nanoTime();
+			try {
+				session.sendMessage(new Message(null, peer, Integer
+						.toString(i)));
+			} catch (XMPPException e) {
+				// written to the broken socket, and not kept for resumption
+				failed++;
+			}
+			longestSend = Math.max(longestSend, System.nanoTime() - start);
+			// keeps the traffic going while the connection is recovered
+			Thread.sleep(1);
+		}
+
+		// waits for the last messages to arrive
+		long deadline = System.currentTimeMillis() + 10000;
+		synchronized (state) {
+			while (!hasAll(state, messages)
+					&& System.currentTimeMillis() < deadline)
+				state.wait(100);
+		}
+		session.closeConnection();
+		server.close();
+
+		synchronized (state) {
+			BitSet seen = new BitSet(messages);
+			int duplicates = 0;
+			int outOfOrder = 0;
+			int previous = -1;
+			for (int index : state.received) {
+				if (seen.get(index))
+					duplicates++;
+				else if (index < previous)
+					outOfOrder++;
+				seen.set(index);
+				previous = Math.max(previous, index);
+			}
+			long totalRecovery = 0;
+			long longestRecovery = 0;
+			for (long time : state.recoveryTimes) {
+				totalRecovery += time;
+				longestRecovery = Math.max(longestRecovery, time);
+			}
+			int recoveries = state.recoveryTimes.size();
+			out.printf("%s: %d of %d messages received, %d missing, %d "
+					+ "duplicates, %d out of order, %d server sessions\n",
+					state.resumable ? "stream resumed" : "full login", seen
+							.cardinality(), messages, messages
+							- seen.cardinality(), duplicates, outOfOrder,
+					state.sessionCount);
+			out.printf("    recovery: mean %.1f ms, max %.1f ms (from the "
+					+ "socket closed to the first message), %.1f round "
+					+ "trips and %d bytes each\n", recoveries == 0 ? 0
+					: totalRecovery / 1e6 / recoveries, longestRecovery / 1e6,
+					recoveries == 0 ? 0 : (double) state.recoveryRoundTrips
+							/ recoveries, recoveries == 0 ? 0
+							: state.recoveryBytes / recoveries);
+			out.printf("    longest call to send a message: %.1f ms, %d "
+					+ "failed\n", longestSend / 1e6, failed);
+		}
+	}
+
+	private static boolean hasAll(ServerState state, int messages) {
+		BitSet seen = new BitSet(messages);
+		for (int index : state.received)
+			seen.set(index);
+		return seen.cardinality() == messages;
+	}
+
+	/**
+	 * Serves one client connection, in its own thread.
+	 */
+	private static void serve(final Socket socket, final ServerState state) {
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					serveConnection(socket, state);
+				} catch (IOException e) {
+				} finally {
+					try {
+						socket.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static void serveConnection(Socket socket, ServerState state)
+			throws IOException {
+		InputStream in = socket.getInputStream();
+		OutputStream out = socket.getOutputStream();
+		StringBuilder received = new StringBuilder();
+		byte[] buffer = new byte[4096];
+		boolean authenticated = false;
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			received.append(new String(buffer, 0, read, "UTF-8"));
+			synchronized (state) {
+				if (state.recovering)
+					state.recoveryBytes += read;
+			}
+			String element;
+			while ((element = nextElement(received)) != null) {
+				if (element.startsWith("<stream:stream")) {
+					reply(out, state, STREAM_HEADER + "<stream:features>"
+							+ (authenticated ? "<bind xmlns='urn:ietf:params:"
+									+ "xml:ns:xmpp-bind'/><sm xmlns='"
+									+ StreamManagement.NAMESPACE + "'/>"
+									: "<mechanisms xmlns='urn:ietf:params:"
+											+ "xml:ns:xmpp-sasl'><mechanism>"
+											+ "PLAIN</mechanism></mechanisms>")
+							+ "</stream:features>", true);
+				} else if (element.startsWith("</stream:stream")) {
+					reply(out, state, "</stream:stream>", false);
+					return;
+				} else if (element.startsWith("<auth")) {
+					authenticated = true;
+					reply(out, state, "<success xmlns='urn:ietf:params:xml:"
+							+ "ns:xmpp-sasl'/>", true);
+				} else if (!processElement(element, out, state))
+					return;
+			}
+		}
+	}
+
+	/**
+	 * Handles an element received after authentication.
+	 * 
+	 * @return <code>false</code> if the socket must be closed.
+	 */
+	private static boolean processElement(String element, OutputStream out,
+			ServerState state) throws IOException {
+		Matcher tag = TAG_NAME.matcher(element);
+		tag.find();
+		String name = tag.group(1);
+		if (name.equals("enable")) {
+			synchronized (state) {
+				state.sessionCount++;
+				state.handled = 0;
+				state.resumptionId = state.resumable ? "session"
+						+ state.sessionCount : null;
+			}
+			reply(out, state, "<enabled xmlns='" + StreamManagement.NAMESPACE
+					+ "'" + (state.resumable ? " id='" + state.resumptionId
+					+ "' resume='true'" : "") + "/>", true);
+		} else if (name.equals("resume")) {
+			Matcher previd = PREVID.matcher(element);
+			long handled;
+			synchronized (state) {
+				if (!previd.find()
+						|| !previd.group(1).equals(state.resumptionId)) {
+					handled = -1;
+				} else
+					handled = state.handled;
+			}
+			reply(out, state, handled < 0 ? "<failed xmlns='"
+					+ StreamManagement.NAMESPACE + "'/>" : "<resumed xmlns='"
+					+ StreamManagement.NAMESPACE + "' previd='"
+					+ state.resumptionId + "' h='" + handled + "'/>", true);
+		} else if (name.equals("r")) {
+			long handled;
+			synchronized (state) {
+				handled = state.handled;
+			}
+			reply(out, state, "<a xmlns='" + StreamManagement.NAMESPACE
+					+ "' h='" + handled + "'/>", false);
+		} else if (name.equals("iq")) {
+			synchronized (state) {
+				state.handled++;
+			}
+			Matcher id = ID.matcher(element);
+			id.find();
+			if (element.contains("urn:ietf:params:xml:ns:xmpp-bind"))
+				reply(out, state, "<iq type='result' id='" + id.group(1)
+						+ "'><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'>"
+						+ "<jid>user@localhost/bench</jid></bind></iq>", true);
+			else if (!element.contains("type=\"result\"")
+					&& !element.contains("type=\"error\""))
+				reply(out, state, "<iq type='result' id='" + id.group(1)
+						+ "'/>", true);
+		} else if (name.equals("message")) {
+			Matcher body = BODY.matcher(element);
+			synchronized (state) {
+				state.handled++;
+				if (!body.find())
+					return true;
+				state.received.add(Integer.valueOf(body.group(1)));
+				if (state.recovering) {
+					// the first message on the new connection
+					state.recoveryTimes.add(System.nanoTime()
+							- state.killedAt);
+					state.recovering = false;
+				}
+				state.notifyAll();
+				if (state.nextKill < state.killPoints.length
+						&& state.received.size() == state.killPoints[state.nextKill]) {
+					// anything the client wrote after this is lost
+					state.nextKill++;
+					state.killedAt = System.nanoTime();
+					state.recovering = true;
+					return false;
+				}
+			}
+		} else if (name.equals("presence")) {
+			synchronized (state) {
+				state.handled++;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Removes the next complete element (or stream tag) from the received
+	 * data.
+	 * 
+	 * @return The element, or null if no element is complete yet.
+	 */
+	private static String nextElement(StringBuilder received) {
+		int start = 0;
+		while (start < received.length()
+				&& Character.isWhitespace(received.charAt(start)))
+			start++;
+		if (received.indexOf("<?xml", start) == start) {
+			int end = received.indexOf("?>", start);
+			if (end < 0)
+				return null;
+			start = end + 2;
+		}
+		received.delete(0, start);
+		if (received.length() == 0)
+			return null;
+
+		int tagEnd = received.indexOf(">");
+		if (tagEnd < 0)
+			return null;
+		String element;
+		if (received.indexOf("<stream:stream") == 0
+				|| received.indexOf("</") == 0
+				|| received.charAt(tagEnd - 1) == '/') {
+			element = received.substring(0, tagEnd + 1);
+		} else {
+			Matcher tag = TAG_NAME.matcher(received);
+			tag.find();
+			String close = "</" + tag.group(1) + ">";
+			int end = received.indexOf(close);
+			if (end < 0)
+				return null;
+			element = received.substring(0, end + close.length());
+		}
+		received.delete(0, element.length());
+		return element;
+	}
+
+	/**
+	 * Sends a reply, after the latency if it answers a request of the client
+	 * (as opposed to an acknowledgement).
+	 */
+	private static void reply(OutputStream out, ServerState state,
+			String data, boolean login) throws IOException {
+		if (login && state.latency > 0) {
+			try {
+				Thread.sleep(state.latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		byte[] bytes = data.getBytes("UTF-8");
+		synchronized (state) {
+			if (state.recovering) {
+				if (login)
+					state.recoveryRoundTrips++;
+				state.recoveryBytes += bytes.length;
+			}
+		}
+		out.write(bytes);
+		out.flush();
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+import ubc.cs317.xmpp.exception.XMPPException;
+
+/**
+ * Transport over a raw TCP connection (RFC 6120), where the XMPP stream is
+ * sent as is. TLS is negotiated with STARTTLS.
+ */
+public class TcpTransport implements Transport {
+
+	private String host;
+	private int port;
+	private int connectTimeout;
+	// created unconnected, so that closing it aborts a connect in progress
+	private volatile Socket socket = new Socket();
+	private boolean secure = false;
+
+	/**
+	 * Creates a TCP transport.
+	 * 
+	 * @param host
+	 *            DNS name (or IP string) of the server.
+	 * @param port
+	 *            Port of the server.
+	 * @param connectTimeout
+	 *            Time to wait for the connection to be established, in
+	 *            milliseconds, or zero to wait indefinitely.
+	 */
+	public TcpTransport(String host, int port, int connectTimeout) {
+		this.host = host;
+		this.port = port;
+		this.connectTimeout = connectTimeout;
+	}
+
+	@Override
+	public void connect() throws XMPPException {
+		try {
+			InetSocketAddress address = new InetSocketAddress(host, port);
+			if (address.isUnresolved())
+				throw new UnknownHostException(host);
+			socket.connect(address, connectTimeout);
+		} catch (UnknownHostException e) {
+			throw new XMPPException("Unkown host");
+		} catch (IOException e) {
+			throw new XMPPException("Coudn't get I/O for the connection to: " + host);
+		}
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return socket.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return socket.getOutputStream();
+	}
+
+	@Override
+	public boolean isSecure() {
+		return secure;
+	}
+
+	@Override
+	public boolean supportsStreamLayers() {
+		return true;
+	}
+
+	@Override
+	public void startTls(String host) throws IOException {
+		socket = StreamEncryption.startHandshake(socket, host);
+		secure = true;
+	}
+
+	@Override
+	public InetAddress getLocalAddress() {
+		return socket.getLocalAddress();
+	}
+
+	@Override
+	public boolean isClosed() {
+		return socket.isClosed();
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+}
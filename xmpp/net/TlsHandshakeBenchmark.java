@@ -0,0 +1,209 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Measures full and resumed TLS handshakes, as performed after STARTTLS by
+ * every connection, against a local TLS stub. A self-signed certificate for
+ * localhost is generated with keytool and trusted by the client. For each
+ * protocol version offered by the stub, the shared SSL context is discarded
+ * before each round, so the first handshake of a round is a full one and the
+ * following ones resume its session. The average duration of each kind of
+ * handshake, as measured by the TLS layer, is reported, together with the
+ * number of handshakes the layer detected as full and as resumed compared
+ * with the expected numbers. The first rounds are a warm-up and are not
+ * reported.
+ * 
+ * Usage: TlsHandshakeBenchmark [rounds, default 20] [handshakes per round,
+ * default 10]
+ */
+public class TlsHandshakeBenchmark {
+
+	private static final String PASSWORD = "benchmark";
+
+	private static final int WARM_UP_ROUNDS = 5;
+
+	public static void main(String[] args) throws Exception {
+
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		int handshakes = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		File keyStore = createKeyStore();
+		System.setProperty("javax.net.ssl.trustStore", keyStore.getPath());
+		System.setProperty("javax.net.ssl.trustStorePassword", PASSWORD);
+
+		KeyStore keys = KeyStore.getInstance("PKCS12");
+		InputStream keyIn = new FileInputStream(keyStore);
+		try {
+			keys.load(keyIn, PASSWORD.toCharArray());
+		} finally {
+			keyIn.close();
+		}
+		KeyManagerFactory keyManagers = KeyManagerFactory
+				.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagers.init(keys, PASSWORD.toCharArray());
+		SSLContext serverContext = SSLContext.getInstance("TLS");
+		serverContext.init(keyManagers.getKeyManagers(), null, null);
+
+		// the TLS layer logs every handshake
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+
+		out.printf("%d rounds of %d handshakes\n", rounds, handshakes);
+		for (String protocol : new String[] { "TLSv1.2", "TLSv1.3" })
+			run(out, serverContext, protocol, rounds, handshakes);
+		keyStore.delete();
+		System.setOut(out);
+		System.exit(0);
+	}
+
+	private static void run(PrintStream out, SSLContext serverContext,
+			String protocol, int rounds, int handshakes) throws Exception {
+		ServerSocket server = new ServerSocket(0);
+		startStub(server, serverContext, protocol);
+
+		int full = 0, resumed = 0;
+		long fullNanos = 0, resumedNanos = 0;
+		for (int round = 0; round < WARM_UP_ROUNDS + rounds; round++) {
+			int fullBefore = StreamEncryption.getFullHandshakeCount();
+			int resumedBefore = StreamEncryption.getResumedHandshakeCount();
+			long fullNanosBefore = fullBefore
+					* StreamEncryption.getAverageFullHandshakeNanos();
+			long resumedNanosBefore = resumedBefore
+					* StreamEncryption.getAverageResumedHandshakeNanos();
+
+			StreamEncryption.resetSharedContext();
+			for (int i = 0; i < handshakes; i++)
+				handshake(server.getLocalPort());
+
+			if (round >= WARM_UP_ROUNDS) {
+				int fullAfter = StreamEncryption.getFullHandshakeCount();
+				int resumedAfter = StreamEncryption.getResumedHandshakeCount();
+				full += fullAfter - fullBefore;
+				resumed += resumedAfter - resumedBefore;
+				fullNanos += fullAfter
+						* StreamEncryption.getAverageFullHandshakeNanos()
+						- fullNanosBefore;
+				resumedNanos += resumedAfter
+						* StreamEncryption.getAverageResumedHandshakeNanos()
+						- resumedNanosBefore;
+			}
+		}
+		server.close();
+
+		out.printf("%s: full %.2f ms (%d detected, %d expected), resumed "
+				+ "%.2f ms (%d detected, %d expected)\n", protocol,
+				full == 0 ? 0 : fullNanos / 1e6 / full, full, rounds,
+				resumed == 0 ? 0 : resumedNanos / 1e6 / resumed, resumed,
+				rounds * (handshakes - 1));
+	}
+
+	/**
+	 * Connects to the stub, performs the handshake as the TCP transport does
+	 * after STARTTLS, and reads the first byte sent by the stub, as the
+	 * stream reader does when the stream is restarted. TLS 1.3 servers send
+	 * the session ticket after the handshake, so it is only received then.
+	 */
+	private static void handshake(int port) throws IOException {
+		Socket socket = new Socket("localhost", port);
+		try {
+			SSLSocket sslSocket = StreamEncryption.startHandshake(socket,
+					"localhost");
+			sslSocket.getInputStream().read();
+			sslSocket.close();
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Starts a stub that performs the server side of the handshake on each
+	 * connection, offering only the given protocol, and then sends one byte.
+	 */
+	private static void startStub(final ServerSocket server,
+			final SSLContext context, final String protocol) {
+		Thread acceptor = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						Socket socket = server.accept();
+						try {
+							SSLSocket sslSocket = (SSLSocket) context
+									.getSocketFactory().createSocket(socket,
+											null, socket.getPort(), true);
+							sslSocket.setUseClientMode(false);
+							sslSocket.setEnabledProtocols(new String[] { protocol });
+							sslSocket.startHandshake();
+							sslSocket.getOutputStream().write('<');
+							sslSocket.getOutputStream().flush();
+							sslSocket.getInputStream().read();
+						} catch (IOException e) {
+						} finally {
+							socket.close();
+						}
+					}
+				} catch (IOException e) {
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Generates a key store with a self-signed certificate for localhost,
+	 * using the keytool of the running Java installation.
+	 */
+	private static File createKeyStore() throws Exception {
+		File keyStore = File.createTempFile("tls", ".p12");
+		keyStore.delete();
+		String keytool = System.getProperty("java.home") + File.separator
+				+ "bin" + File.separator + "keytool";
+		Process process = new ProcessBuilder(keytool, "-genkeypair",
+				"-keystore", keyStore.getPath(), "-storetype", "PKCS12",
+				"-storepass", PASSWORD, "-keypass", PASSWORD, "-alias",
+				"localhost", "-dname", "CN=localhost", "-ext",
+				"san=dns:localhost", "-keyalg", "RSA", "-keysize", "2048",
+				"-validity", "1").redirectErrorStream(true).start();
+		InputStream output = process.getInputStream();
+		while (output.read() >= 0)
+			;
+		if (process.waitFor() != 0)
+			throw new IOException("keytool failed");
+		return keyStore;
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+
+import ubc.cs317.xmpp.exception.XMPPException;
+
+/**
+ * Carries the XMPP stream between the client and the server. The connection
+ * handler reads and writes the stream as a single XML document, as over a
+ * raw TCP connection; transports that frame the stream differently, such as
+ * WebSocket (RFC 7395), translate it to and from their framing.
+ */
+public interface Transport {
+
+	/**
+	 * Connects to the server.
+	 * 
+	 * @throws XMPPException
+	 *             If the connection cannot be established.
+	 */
+	public void connect() throws XMPPException;
+
+	/**
+	 * Returns the stream of data received from the server.
+	 */
+	public InputStream getInputStream() throws IOException;
+
+	/**
+	 * Returns the stream of data sent to the server. Each flush of the stream
+	 * marks the end of a unit of the XMPP stream (the stream header, a
+	 * top-level element, a whitespace keepalive or the closing tag).
+	 */
+	public OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * Indicates if the transport is encrypted, either from the start or
+	 * after <code>startTls</code>.
+	 */
+	public boolean isSecure();
+
+	/**
+	 * Indicates if security and compression layers may be negotiated inside
+	 * the XMPP stream (STARTTLS and XEP-0138). Transports that provide them
+	 * at their own level do not support in-stream layers.
+	 */
+	public boolean supportsStreamLayers();
+
+	/**
+	 * Performs a TLS handshake over the transport, after the server accepted
+	 * STARTTLS. The input and output streams are replaced by encrypted ones.
+	 * 
+	 * @param host
+	 *            Domain of the server, used to verify its certificate.
+	 * @throws IOException
+	 *             If the handshake fails.
+	 */
+	public void startTls(String host) throws IOException;
+
+	/**
+	 * Returns the local address of the connection to the server.
+	 */
+	public InetAddress getLocalAddress();
+
+	public boolean isClosed();
+
+	public void close() throws IOException;
+}
@@ -0,0 +1,131 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the overhead of the WebSocket framing compared to a raw TCP
+ * stream, without a server: a sequence of typical stanzas (chat messages,
+ * presences and roster results) is framed as the client would send it, with
+ * and without per-message compression, and the frames are then decoded
+ * again. The bytes on the wire are compared with the size of the stanzas,
+ * which is what a TCP connection without compression sends.
+ * 
+ * Usage: WebSocketBenchmark [number of stanzas, default 100000]
+ */
+public class WebSocketBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		List<byte[]> stanzas = createStanzas(count);
+		long payload = 0;
+		for (byte[] stanza : stanzas)
+			payload += stanza.length;
+
+		System.out.printf("%d stanzas, %d bytes (TCP, no compression)\n",
+				count, payload);
+		benchmark("WebSocket", stanzas, payload, false);
+		benchmark("WebSocket + permessage-deflate", stanzas, payload, true);
+	}
+
+	private static void benchmark(String name, List<byte[]> stanzas,
+			long payload, boolean compression) throws IOException {
+
+		// warm up, then measure
+		run(stanzas, compression);
+		long start = System.nanoTime();
+		long wire = run(stanzas, compression);
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.printf("%s: %d bytes on the wire (%.1f%% of TCP, %+.2f "
+				+ "bytes per stanza), encode+decode %.1f MB/s\n", name, wire,
+				100.0 * wire / payload, (double) (wire - payload)
+						/ stanzas.size(), payload / seconds / (1024 * 1024));
+	}
+
+	/**
+	 * Frames and decodes all stanzas.
+	 * 
+	 * @return Bytes on the wire.
+	 */
+	private static long run(List<byte[]> stanzas, boolean compression)
+			throws IOException {
+		ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		WebSocketFraming writer = new WebSocketFraming(
+				new ByteArrayInputStream(new byte[0]), wire, true);
+		if (compression)
+			writer.enableCompression(false);
+
+		for (byte[] stanza : stanzas)
+			writer.writeMessage(stanza, 0, stanza.length);
+
+		WebSocketFraming reader = new WebSocketFraming(
+				new ByteArrayInputStream(wire.toByteArray()),
+				new ByteArrayOutputStream(), false);
+		if (compression)
+			reader.enableCompression(false);
+		for (byte[] stanza : stanzas) {
+			ByteBuffer message = reader.readMessage();
+			if (!message.equals(ByteBuffer.wrap(stanza)))
+				throw new IllegalStateException("Decoded message differs.");
+		}
+		return writer.getWireBytesSent();
+	}
+
+	private static List<byte[]> createStanzas(int count) throws IOException {
+		Random random = new Random(317);
+		String[] words = { "hello", "are", "you", "coming", "to", "the",
+				"lab", "tomorrow", "assignment", "is", "due", "on", "friday",
+				"I", "think", "so", "see", "you", "there", "thanks" };
+		List<byte[]> stanzas = new ArrayList<byte[]>(count);
+		for (int i = 0; i < count; i++) {
+			String contact = "user" + random.nextInt(50) + "@example.com";
+			String stanza;
+			switch (random.nextInt(4)) {
+			case 0:
+				stanza = "<presence from='" + contact + "/laptop' to='me@example.com/"
+						+ "SimpleChat'><show>" + (random.nextBoolean() ? "away" : "dnd")
+						+ "</show><c xmlns='http://jabber.org/protocol/caps' "
+						+ "hash='sha-1' node='http://example.com/client' "
+						+ "ver='QgayPKawpkPSDYmwT/WM94uAlu0='/></presence>";
+				break;
+			case 1:
+				stanza = "<iq type='result' id='ID" + i
+						+ "' to='me@example.com/SimpleChat'><query "
+						+ "xmlns='jabber:iq:roster'><item jid='" + contact
+						+ "' subscription='both' name='Contact'/></query></iq>";
+				break;
+			default:
+				StringBuilder body = new StringBuilder();
+				for (int w = 2 + random.nextInt(10); w > 0; w--)
+					body.append(words[random.nextInt(words.length)]).append(' ');
+				stanza = "<message to='" + contact + "' type='chat' id='ID" + i
+						+ "'><body>" + body.toString().trim()
+						+ "</body><active xmlns='http://jabber.org/protocol/"
+						+ "chatstates'/><request xmlns='urn:xmpp:receipts'/>"
+						+ "</message>";
+			}
+			stanzas.add(stanza.getBytes("UTF-8"));
+		}
+		return stanzas;
+	}
+}
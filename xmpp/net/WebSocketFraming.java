@@ -0,0 +1,371 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * WebSocket framing (RFC 6455) over an established connection, with optional
+ * per-message compression (RFC 7692). Each message is sent as a single
+ * frame. The buffers used to build outgoing frames and to assemble incoming
+ * messages are kept and reused, growing only when a larger message is seen,
+ * so the common case of small stanzas does not allocate per message.
+ * 
+ * Frames sent by a client are masked; frames received are unmasked if the
+ * peer masked them, so the same class can be used on either side.
+ */
+class WebSocketFraming {
+
+	static final int OPCODE_CONTINUATION = 0x0;
+	static final int OPCODE_TEXT = 0x1;
+	static final int OPCODE_BINARY = 0x2;
+	static final int OPCODE_CLOSE = 0x8;
+	static final int OPCODE_PING = 0x9;
+	static final int OPCODE_PONG = 0xa;
+
+	private static final int FIN = 0x80;
+	private static final int RSV1 = 0x40;
+	private static final int MASK = 0x80;
+
+	/**
+	 * Largest message accepted from the peer.
+	 */
+	private static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Trailer removed from compressed messages, and added back before
+	 * decompressing them (RFC 7692, section 7.2).
+	 */
+	private static final byte[] DEFLATE_TRAILER = { 0, 0, (byte) 0xff,
+			(byte) 0xff };
+
+	private final InputStream in;
+	private final OutputStream out;
+	private final boolean masking;
+	private final Random random = new SecureRandom();
+
+	private Deflater deflater;
+	private Inflater inflater;
+	private boolean resetDeflater;
+
+	private final Object writeLock = new Object();
+	private byte[] frameBuffer = new byte[4096];
+	private byte[] deflateBuffer = new byte[4096];
+	private final byte[] maskKey = new byte[4];
+
+	private byte[] messageBuffer = new byte[4096];
+	private byte[] inflateBuffer = new byte[4096];
+	private final byte[] header = new byte[8];
+	private final byte[] controlBuffer = new byte[125];
+
+	private long messagesSent = 0;
+	private long payloadBytesSent = 0;
+	private long wireBytesSent = 0;
+
+	/**
+	 * Creates the framing over a connection.
+	 * 
+	 * @param in
+	 *            Stream of data received, positioned after the handshake.
+	 * @param out
+	 *            Stream of data sent.
+	 * @param masking
+	 *            <code>true</code> if outgoing frames must be masked (i.e.,
+	 *            this is the client side).
+	 */
+	WebSocketFraming(InputStream in, OutputStream out, boolean masking) {
+		this.in = in;
+		this.out = out;
+		this.masking = masking;
+	}
+
+	/**
+	 * Enables per-message compression, once negotiated in the handshake.
+	 * 
+	 * @param noContextTakeover
+	 *            <code>true</code> if the compression context must be reset
+	 *            after each message sent.
+	 */
+	void enableCompression(boolean noContextTakeover) {
+		deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		inflater = new Inflater(true);
+		resetDeflater = noContextTakeover;
+	}
+
+	boolean isCompressionEnabled() {
+		return deflater != null;
+	}
+
+	/**
+	 * Sends a text message in a single frame.
+	 * 
+	 * @param data
+	 *            Buffer containing the UTF-8 encoded message.
+	 * @param offset
+	 *            Start of the message in the buffer.
+	 * @param length
+	 *            Length of the message.
+	 * @throws IOException
+	 *             If the frame cannot be sent.
+	 */
+	void writeMessage(byte[] data, int offset, int length) throws IOException {
+		synchronized (writeLock) {
+			int first = FIN | OPCODE_TEXT;
+			if (deflater != null) {
+				int compressed = deflate(data, offset, length);
+				payloadBytesSent += length;
+				data = deflateBuffer;
+				offset = 0;
+				length = compressed;
+				first |= RSV1;
+			} else
+				payloadBytesSent += length;
+			writeFrame(first, data, offset, length);
+			messagesSent++;
+		}
+	}
+
+	/**
+	 * Sends a control frame (ping, pong or close).
+	 */
+	void writeControl(int opcode, byte[] payload, int length)
+			throws IOException {
+		synchronized (writeLock) {
+			writeFrame(FIN | opcode, payload, 0, length);
+		}
+	}
+
+	/**
+	 * Reads the next data message. Pings are answered and pongs ignored.
+	 * The returned buffer is only valid until the next call.
+	 * 
+	 * @return The payload of the message, decompressed if needed, or null if
+	 *         the peer closed the connection.
+	 * @throws IOException
+	 *             If the connection is interrupted or a frame is invalid.
+	 */
+	ByteBuffer readMessage() throws IOException {
+		int length = 0;
+		boolean compressed = false;
+		boolean started = false;
+		while (true) {
+			readFully(header, 0, 2);
+			int first = header[0] & 0xff;
+			int opcode = first & 0x0f;
+			boolean fin = (first & FIN) != 0;
+			boolean masked = (header[1] & MASK) != 0;
+			long payloadLength = header[1] & 0x7f;
+			if (payloadLength == 126) {
+				readFully(header, 0, 2);
+				payloadLength = ((header[0] & 0xff) << 8) | (header[1] & 0xff);
+			} else if (payloadLength == 127) {
+				readFully(header, 0, 8);
+				payloadLength = ByteBuffer.wrap(header).getLong();
+			}
+			if (masked)
+				readFully(maskKey, 0, 4);
+
+			if (opcode >= OPCODE_CLOSE) {
+				if (!fin || payloadLength > controlBuffer.length)
+					throw new IOException("Invalid WebSocket control frame.");
+				int controlLength = (int) payloadLength;
+				readFully(controlBuffer, 0, controlLength);
+				if (masked)
+					mask(controlBuffer, 0, controlLength, maskKey);
+				if (opcode == OPCODE_CLOSE) {
+					try {
+						writeControl(OPCODE_CLOSE, controlBuffer,
+								Math.min(controlLength, 2));
+					} catch (IOException e) {
+						// the peer may close the connection right after
+					}
+					return null;
+				}
+				if (opcode == OPCODE_PING)
+					writeControl(OPCODE_PONG, controlBuffer, controlLength);
+				continue;
+			}
+
+			if ((opcode == OPCODE_CONTINUATION) != started)
+				throw new IOException("Unexpected WebSocket frame.");
+			if (!started) {
+				compressed = (first & RSV1) != 0;
+				if (compressed && inflater == null)
+					throw new IOException("Unexpected compressed frame.");
+				started = true;
+			}
+			if (length + payloadLength > MAX_MESSAGE_SIZE)
+				throw new IOException("WebSocket message too large.");
+			int needed = length + (int) payloadLength + DEFLATE_TRAILER.length;
+			if (needed > messageBuffer.length)
+				messageBuffer = grow(messageBuffer, needed);
+			readFully(messageBuffer, length, (int) payloadLength);
+			if (masked)
+				mask(messageBuffer, length, (int) payloadLength, maskKey);
+			length += payloadLength;
+			if (fin)
+				break;
+		}
+
+		if (!compressed)
+			return ByteBuffer.wrap(messageBuffer, 0, length);
+		System.arraycopy(DEFLATE_TRAILER, 0, messageBuffer, length,
+				DEFLATE_TRAILER.length);
+		return ByteBuffer.wrap(inflateBuffer, 0,
+				inflate(messageBuffer, length + DEFLATE_TRAILER.length));
+	}
+
+	/**
+	 * Returns the number of data messages sent.
+	 */
+	long getMessagesSent() {
+		synchronized (writeLock) {
+			return messagesSent;
+		}
+	}
+
+	/**
+	 * Returns the number of bytes of data messages sent, before compression
+	 * and framing.
+	 */
+	long getPayloadBytesSent() {
+		synchronized (writeLock) {
+			return payloadBytesSent;
+		}
+	}
+
+	/**
+	 * Returns the number of bytes written to the connection, including frame
+	 * headers and control frames.
+	 */
+	long getWireBytesSent() {
+		synchronized (writeLock) {
+			return wireBytesSent;
+		}
+	}
+
+	private void writeFrame(int first, byte[] data, int offset, int length)
+			throws IOException {
+		int headerLength = 2 + (length < 126 ? 0 : length <= 0xffff ? 2 : 8)
+				+ (masking ? 4 : 0);
+		if (headerLength + length > frameBuffer.length)
+			frameBuffer = grow(frameBuffer, headerLength + length);
+
+		byte[] frame = frameBuffer;
+		int position = 0;
+		frame[position++] = (byte) first;
+		int maskBit = masking ? MASK : 0;
+		if (length < 126)
+			frame[position++] = (byte) (maskBit | length);
+		else if (length <= 0xffff) {
+			frame[position++] = (byte) (maskBit | 126);
+			frame[position++] = (byte) (length >> 8);
+			frame[position++] = (byte) length;
+		} else {
+			frame[position++] = (byte) (maskBit | 127);
+			for (int shift = 56; shift >= 0; shift -= 8)
+				frame[position++] = (byte) ((long) length >> shift);
+		}
+		System.arraycopy(data, offset, frame, headerLength, length);
+		if (masking) {
+			random.nextBytes(maskKey);
+			System.arraycopy(maskKey, 0, frame, position, 4);
+			mask(frame, headerLength, length, maskKey);
+		}
+		out.write(frame, 0, headerLength + length);
+		out.flush();
+		wireBytesSent += headerLength + length;
+	}
+
+	/**
+	 * Compresses a message into deflateBuffer, removing the trailer of the
+	 * final sync flush.
+	 * 
+	 * @return Length of the compressed message.
+	 */
+	private int deflate(byte[] data, int offset, int length) {
+		deflater.setInput(data, offset, length);
+		int total = 0;
+		while (true) {
+			if (total == deflateBuffer.length)
+				deflateBuffer = grow(deflateBuffer, total * 2);
+			int n = deflater.deflate(deflateBuffer, total,
+					deflateBuffer.length - total, Deflater.SYNC_FLUSH);
+			total += n;
+			if (total < deflateBuffer.length && deflater.needsInput())
+				break;
+		}
+		if (resetDeflater)
+			deflater.reset();
+		return total - DEFLATE_TRAILER.length;
+	}
+
+	/**
+	 * Decompresses a message into inflateBuffer.
+	 * 
+	 * @return Length of the decompressed message.
+	 */
+	private int inflate(byte[] data, int length) throws IOException {
+		inflater.setInput(data, 0, length);
+		int total = 0;
+		try {
+			while (true) {
+				if (total == inflateBuffer.length) {
+					if (total >= MAX_MESSAGE_SIZE)
+						throw new IOException("WebSocket message too large.");
+					inflateBuffer = grow(inflateBuffer, total * 2);
+				}
+				int n = inflater.inflate(inflateBuffer, total,
+						inflateBuffer.length - total);
+				total += n;
+				if (n == 0 && (inflater.needsInput() || inflater.finished()))
+					break;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Invalid compressed message.", e);
+		}
+		return total;
+	}
+
+	private static void mask(byte[] data, int offset, int length, byte[] key) {
+		for (int i = 0; i < length; i++)
+			data[offset + i] ^= key[i & 3];
+	}
+
+	private static byte[] grow(byte[] buffer, int minimum) {
+		byte[] grown = new byte[Math.max(minimum, buffer.length * 2)];
+		System.arraycopy(buffer, 0, grown, 0, buffer.length);
+		return grown;
+	}
+
+	private void readFully(byte[] buffer, int offset, int length)
+			throws IOException {
+		while (length > 0) {
+			int read = in.read(buffer, offset, length);
+			if (read < 0)
+				throw new EOFException("WebSocket connection closed.");
+			offset += read;
+			length -= read;
+		}
+	}
+}
@@ -0,0 +1,264 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the WebSocket transport against a local stub server, with and
+ * without permessage-deflate. The stub performs the server side of the
+ * opening handshake, and then expects, in order: the open element
+ * translated from the stream header, a stanza with escaped and non-ASCII
+ * text (which it sends back), a ping from a whitespace keepalive, the close
+ * element translated from the closing tag, and a close frame. The client
+ * side checks the stream header translated from the stub's open element,
+ * the features, the stanza sent back and the closing tag. Each step is
+ * reported, and the exit status is non-zero if any of them failed.
+ * 
+ * Usage: WebSocketRoundTrip
+ */
+public class WebSocketRoundTrip {
+
+	private static final String FRAMING = WebSocketTransport.FRAMING_NAMESPACE;
+
+	private static final String STANZA = "<message to='friend@localhost' "
+			+ "type='chat' id='rt1'><body>a &lt; b &amp;&amp; c &gt; d, "
+			+ "\u00e9t\u00e9 \u00e0 M\u00fcnchen, \u65e5\u672c\u8a9e, "
+			+ "\ud83d\ude00</body></message>";
+
+	private static final String FEATURES = "<stream:features xmlns:stream="
+			+ "'http://etherx.jabber.org/streams'><mechanisms xmlns="
+			+ "'urn:ietf:params:xml:ns:xmpp-sasl'><mechanism>PLAIN</mechanism>"
+			+ "</mechanisms></stream:features>";
+
+	public static void main(String[] args) throws Exception {
+		boolean passed = run(false);
+		passed &= run(true);
+		System.exit(passed ? 0 : 1);
+	}
+
+	private static boolean run(boolean compression) throws Exception {
+		String name = compression ? "permessage-deflate" : "plain";
+		final ServerSocket server = new ServerSocket(0);
+		final AtomicInteger pongs = new AtomicInteger();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		Future<String> stub = executor.submit(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				Socket socket = server.accept();
+				try {
+					return serve(socket, pongs);
+				} finally {
+					socket.close();
+				}
+			}
+		});
+
+		String failure = null;
+		WebSocketTransport transport = new WebSocketTransport(new URI(
+				"ws://localhost:" + server.getLocalPort() + "/xmpp-websocket"),
+				"localhost", compression, 5000);
+		try {
+			transport.connect();
+			if (transport.isCompressionActive() != compression)
+				failure = "compression was "
+						+ (compression ? "not negotiated" : "negotiated");
+			InputStream in = transport.getInputStream();
+			OutputStream out = transport.getOutputStream();
+
+			write(out, "<?xml version='1.0'?><stream:stream to='localhost' "
+					+ "xmlns='jabber:client' xmlns:stream="
+					+ "'http://etherx.jabber.org/streams' version='1.0'>");
+			String header = read(in, "'>");
+			if (failure == null
+					&& (!header.startsWith("<?xml version='1.0'?>"
+							+ "<stream:stream xmlns='jabber:client'") || !header
+							.contains(" id='stub1'")))
+				failure = "unexpected stream header: " + header;
+			String features = read(in, "</stream:features>");
+			if (failure == null && !features.equals(FEATURES))
+				failure = "unexpected features: " + features;
+
+			write(out, STANZA);
+			String echoed = read(in, "</message>");
+			if (failure == null && !echoed.equals(STANZA))
+				failure = "stanza changed: " + echoed;
+
+			write(out, " ");
+			write(out, "</stream:stream>");
+			String closing = read(in, "</stream:stream>");
+			if (failure == null && !closing.equals("</stream:stream>"))
+				failure = "unexpected closing tag: " + closing;
+			if (failure == null && in.read() != -1)
+				failure = "data after the closing tag";
+		} catch (Exception e) {
+			failure = e.toString();
+		} finally {
+			transport.close();
+		}
+
+		String stubFailure;
+		try {
+			stubFailure = stub.get(5, TimeUnit.SECONDS);
+		} catch (Exception e) {
+			stubFailure = e.toString();
+		}
+		executor.shutdownNow();
+		server.close();
+
+		if (failure == null)
+			failure = stubFailure;
+		System.out.printf("%s: %s\n", name, failure == null ? "open, features, "
+				+ "stanza, ping and close round-tripped (" + pongs.get()
+				+ " pong)" : "FAILED, " + failure);
+		return failure == null;
+	}
+
+	/**
+	 * Runs the server side of the exchange.
+	 * 
+	 * @return null if the client behaved as expected, or the first problem.
+	 */
+	private static String serve(Socket socket, final AtomicInteger pongs)
+			throws IOException {
+		InputStream in = new BufferedInputStream(socket.getInputStream());
+		// each frame is written with a single call; pongs answer the client's
+		// pings
+		OutputStream out = new FilterOutputStream(socket.getOutputStream()) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				if (len > 0 && (b[off] & 0x0f) == WebSocketFraming.OPCODE_PONG)
+					pongs.incrementAndGet();
+				out.write(b, off, len);
+			}
+		};
+
+		String key = null;
+		boolean deflate = false;
+		String line;
+		while (!(line = readLine(in)).isEmpty()) {
+			int colon = line.indexOf(':');
+			if (colon < 0)
+				continue;
+			String header = line.substring(0, colon).trim();
+			String value = line.substring(colon + 1).trim();
+			if (header.equalsIgnoreCase("Sec-WebSocket-Key"))
+				key = value;
+			else if (header.equalsIgnoreCase("Sec-WebSocket-Extensions"))
+				deflate = value.contains("permessage-deflate");
+		}
+		if (key == null)
+			return "no Sec-WebSocket-Key";
+		String response = "HTTP/1.1 101 Switching Protocols\r\n"
+				+ "Upgrade: websocket\r\nConnection: Upgrade\r\n"
+				+ "Sec-WebSocket-Accept: "
+				+ WebSocketTransport.computeAccept(key) + "\r\n"
+				+ "Sec-WebSocket-Protocol: xmpp\r\n"
+				+ (deflate ? "Sec-WebSocket-Extensions: permessage-deflate\r\n"
+						: "") + "\r\n";
+		out.write(response.getBytes("US-ASCII"));
+		out.flush();
+
+		WebSocketFraming framing = new WebSocketFraming(in, out, false);
+		if (deflate)
+			framing.enableCompression(false);
+
+		String open = readMessage(framing);
+		if (!open.equals("<open xmlns='" + FRAMING
+				+ "' to='localhost' version='1.0'/>"))
+			return "unexpected open element: " + open;
+		writeMessage(framing, "<open xmlns='" + FRAMING + "' from='localhost' "
+				+ "id='stub1' xml:lang='en' version='1.0'/>");
+		writeMessage(framing, FEATURES);
+
+		String stanza = readMessage(framing);
+		if (!stanza.equals(STANZA))
+			return "stanza changed: " + stanza;
+		writeMessage(framing, stanza);
+
+		// the ping is answered while waiting for the close element
+		String close = readMessage(framing);
+		if (!close.equals("<close xmlns='" + FRAMING + "'/>"))
+			return "unexpected close element: " + close;
+		if (pongs.get() != 1)
+			return pongs.get() + " pings instead of 1";
+		writeMessage(framing, close);
+
+		if (framing.readMessage() != null)
+			return "no close frame";
+		return null;
+	}
+
+	private static void write(OutputStream out, String text)
+			throws IOException {
+		out.write(text.getBytes("UTF-8"));
+		out.flush();
+	}
+
+	/**
+	 * Reads from the stream presented by the transport until the given text
+	 * has been received.
+	 */
+	private static String read(InputStream in, String end) throws IOException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		String text = "";
+		while (!text.endsWith(end)) {
+			int b = in.read();
+			if (b < 0)
+				throw new IOException("Stream ended after: " + text);
+			data.write(b);
+			text = new String(data.toByteArray(), "UTF-8");
+		}
+		return text;
+	}
+
+	private static String readMessage(WebSocketFraming framing)
+			throws IOException {
+		ByteBuffer message = framing.readMessage();
+		if (message == null)
+			throw new IOException("Connection closed by the client.");
+		return new String(message.array(), message.position(),
+				message.remaining(), "UTF-8");
+	}
+
+	private static void writeMessage(WebSocketFraming framing, String message)
+			throws IOException {
+		byte[] data = message.getBytes("UTF-8");
+		framing.writeMessage(data, 0, data.length);
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = in.read()) >= 0 && b != '\n')
+			if (b != '\r')
+				line.append((char) b);
+		return line.toString();
+	}
+}
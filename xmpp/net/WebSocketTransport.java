@@ -0,0 +1,491 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.net;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.bind.DatatypeConverter;
+
+import ubc.cs317.xmpp.exception.XMPPException;
+
+/**
+ * Transport over a WebSocket connection (RFC 7395). Each message carries one
+ * unit of the XMPP stream: an open or close element, or a complete top-level
+ * element. The stream header and closing tag written by the connection are
+ * translated into the framing elements, and those received from the server
+ * back into a stream header and closing tag, so the rest of the client reads
+ * and writes the same document as over TCP. Whitespace keepalives are sent as
+ * WebSocket pings.
+ * 
+ * Security is provided by the WebSocket connection (wss), so STARTTLS and
+ * stream compression are not used; instead, per-message compression
+ * (permessage-deflate) is offered in the handshake if enabled.
+ */
+public class WebSocketTransport implements Transport {
+
+	public static final String FRAMING_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-framing";
+
+	private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	private static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+
+	private static final Pattern ATTRIBUTE_PATTERN = Pattern
+			.compile("([\\w:.-]+)\\s*=\\s*(?:'([^']*)'|\"([^\"]*)\")");
+
+	private URI uri;
+	private String domain;
+	private boolean compressionEnabled;
+	private int connectTimeout;
+
+	// created unconnected, so that closing it aborts a connect in progress
+	private volatile Socket socket = new Socket();
+	private WebSocketFraming framing;
+	private InputStream inputStream;
+	private OutputStream outputStream;
+
+	/**
+	 * Creates a WebSocket transport.
+	 * 
+	 * @param uri
+	 *            URI of the WebSocket endpoint, with scheme ws or wss.
+	 * @param domain
+	 *            Domain of the XMPP server, sent in the open element.
+	 * @param compressionEnabled
+	 *            <code>true</code> if permessage-deflate should be offered.
+	 * @param connectTimeout
+	 *            Time to wait for the connection to be established, in
+	 *            milliseconds, or zero to wait indefinitely.
+	 */
+	public WebSocketTransport(URI uri, String domain,
+			boolean compressionEnabled, int connectTimeout) {
+		this.uri = uri;
+		this.domain = domain;
+		this.compressionEnabled = compressionEnabled;
+		this.connectTimeout = connectTimeout;
+	}
+
+	@Override
+	public void connect() throws XMPPException {
+		boolean secure = "wss".equalsIgnoreCase(uri.getScheme());
+		String host = uri.getHost();
+		int port = uri.getPort() != -1 ? uri.getPort() : secure ? 443 : 80;
+		try {
+			InetSocketAddress address = new InetSocketAddress(host, port);
+			if (address.isUnresolved())
+				throw new UnknownHostException(host);
+			socket.connect(address, connectTimeout);
+			if (secure)
+				socket = StreamEncryption.startHandshake(socket, host);
+		} catch (UnknownHostException e) {
+			throw new XMPPException("Unkown host");
+		} catch (IOException e) {
+			throw new XMPPException("Coudn't get I/O for the connection to: " + host);
+		}
+
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			framing = new WebSocketFraming(in, out, true);
+			handshake(in, out, host, port);
+			inputStream = new FramingInputStream();
+			outputStream = new FramingOutputStream();
+		} catch (IOException e) {
+			try {
+				socket.close();
+			} catch (IOException e1) {
+			}
+			throw new XMPPException("WebSocket handshake failed: "
+					+ e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return inputStream;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return outputStream;
+	}
+
+	@Override
+	public boolean isSecure() {
+		return "wss".equalsIgnoreCase(uri.getScheme());
+	}
+
+	@Override
+	public boolean supportsStreamLayers() {
+		return false;
+	}
+
+	@Override
+	public void startTls(String host) throws IOException {
+		throw new IOException("STARTTLS is not supported over WebSocket.");
+	}
+
+	@Override
+	public InetAddress getLocalAddress() {
+		return socket.getLocalAddress();
+	}
+
+	@Override
+	public boolean isClosed() {
+		return socket.isClosed();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (socket.isClosed())
+			return;
+		try {
+			if (framing != null)
+				framing.writeControl(WebSocketFraming.OPCODE_CLOSE, new byte[] {
+						0x03, (byte) 0xe8 }, 2);
+		} catch (IOException e) {
+			// the connection is closed anyway
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Indicates if per-message compression was negotiated.
+	 */
+	public boolean isCompressionActive() {
+		return framing != null && framing.isCompressionEnabled();
+	}
+
+	/**
+	 * Returns the number of bytes of XMPP data sent, before compression and
+	 * framing.
+	 */
+	public long getPayloadBytesSent() {
+		return framing == null ? 0 : framing.getPayloadBytesSent();
+	}
+
+	/**
+	 * Returns the number of bytes written to the connection, including
+	 * WebSocket frame headers.
+	 */
+	public long getWireBytesSent() {
+		return framing == null ? 0 : framing.getWireBytesSent();
+	}
+
+	/**
+	 * Performs the opening handshake (RFC 6455, section 4.1).
+	 * 
+	 * Per-message compression is enabled on the framing if the server accepts
+	 * it.
+	 */
+	private void handshake(InputStream in, OutputStream out, String host,
+			int port) throws IOException {
+		byte[] nonce = new byte[16];
+		new SecureRandom().nextBytes(nonce);
+		String key = DatatypeConverter.printBase64Binary(nonce);
+
+		String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/"
+				: uri.getRawPath();
+		if (uri.getRawQuery() != null)
+			path += "?" + uri.getRawQuery();
+
+		StringBuilder request = new StringBuilder();
+		request.append("GET ").append(path).append(" HTTP/1.1\r\n");
+		request.append("Host: ").append(host).append(':').append(port)
+				.append("\r\n");
+		request.append("Upgrade: websocket\r\n");
+		request.append("Connection: Upgrade\r\n");
+		request.append("Sec-WebSocket-Key: ").append(key).append("\r\n");
+		request.append("Sec-WebSocket-Version: 13\r\n");
+		request.append("Sec-WebSocket-Protocol: xmpp\r\n");
+		if (compressionEnabled)
+			request.append("Sec-WebSocket-Extensions: ")
+					.append(PERMESSAGE_DEFLATE).append("\r\n");
+		request.append("\r\n");
+		out.write(request.toString().getBytes("US-ASCII"));
+		out.flush();
+
+		String status = readLine(in);
+		if (!status.startsWith("HTTP/1.1 101"))
+			throw new IOException("Unexpected response: " + status);
+
+		String accept = null;
+		String protocol = null;
+		String extensions = null;
+		String line;
+		while (!(line = readLine(in)).isEmpty()) {
+			int colon = line.indexOf(':');
+			if (colon < 0)
+				continue;
+			String name = line.substring(0, colon).trim();
+			String value = line.substring(colon + 1).trim();
+			if (name.equalsIgnoreCase("Sec-WebSocket-Accept"))
+				accept = value;
+			else if (name.equalsIgnoreCase("Sec-WebSocket-Protocol"))
+				protocol = value;
+			else if (name.equalsIgnoreCase("Sec-WebSocket-Extensions"))
+				extensions = extensions == null ? value : extensions + ", "
+						+ value;
+		}
+
+		if (!computeAccept(key).equals(accept))
+			throw new IOException("Invalid Sec-WebSocket-Accept.");
+		if (!"xmpp".equals(protocol))
+			throw new IOException("Server does not support the xmpp protocol.");
+
+		if (extensions == null)
+			return;
+		for (String extension : extensions.split(",")) {
+			String[] parameters = extension.split(";");
+			if (!parameters[0].trim().equals(PERMESSAGE_DEFLATE))
+				throw new IOException("Unexpected extension: " + extension);
+			if (!compressionEnabled)
+				throw new IOException("Extension was not offered: " + extension);
+			// the compression context is kept between messages, since
+			// consecutive stanzas share most of their markup, unless the
+			// server asks for it to be reset
+			boolean noContextTakeover = false;
+			for (int i = 1; i < parameters.length; i++) {
+				String parameter = parameters[i].trim();
+				if (parameter.equals("client_no_context_takeover"))
+					noContextTakeover = true;
+				// the window size requested for our messages is not supported
+				// by Deflater, which always uses the largest window
+				else if (parameter.startsWith("client_max_window_bits"))
+					throw new IOException("Unsupported parameter: " + parameter);
+			}
+			framing.enableCompression(noContextTakeover);
+			return;
+		}
+	}
+
+	static String computeAccept(String key) {
+		try {
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			return DatatypeConverter.printBase64Binary(sha1.digest((key + WEBSOCKET_GUID)
+					.getBytes("US-ASCII")));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c < 0)
+				throw new IOException("Connection closed during handshake.");
+			if (c != '\r')
+				line.append((char) c);
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Translates a unit of the XMPP stream written by the connection into the
+	 * WebSocket framing.
+	 * 
+	 * @return Message to send, or null if the unit is a whitespace keepalive.
+	 */
+	static String translateOutgoing(String unit, String domain) {
+		String trimmed = unit.trim();
+		if (trimmed.isEmpty())
+			return null;
+		if (trimmed.contains("<stream:stream"))
+			return "<open xmlns='" + FRAMING_NAMESPACE + "' to='" + domain
+					+ "' version='1.0'/>";
+		if (trimmed.equals("</stream:stream>"))
+			return "<close xmlns='" + FRAMING_NAMESPACE + "'/>";
+		return null;
+	}
+
+	/**
+	 * Translates a framing element received from the server into the
+	 * corresponding part of the XMPP stream.
+	 * 
+	 * @return The stream header or closing tag, or null if the message is not
+	 *         a framing element.
+	 */
+	static String translateIncoming(String message) {
+		if (message.startsWith("<open")) {
+			StringBuilder header = new StringBuilder(
+					"<?xml version='1.0'?><stream:stream xmlns='jabber:client' "
+							+ "xmlns:stream='http://etherx.jabber.org/streams'");
+			Matcher matcher = ATTRIBUTE_PATTERN.matcher(message);
+			while (matcher.find()) {
+				if (matcher.group(1).equals("xmlns"))
+					continue;
+				String value = matcher.group(2) != null ? matcher.group(2)
+						: matcher.group(3);
+				header.append(' ').append(matcher.group(1)).append("='")
+						.append(value.replace("'", "&apos;")).append('\'');
+			}
+			return header.append('>').toString();
+		}
+		if (message.startsWith("<close"))
+			return "</stream:stream>";
+		return null;
+	}
+
+	/**
+	 * Collects the bytes written until a flush, and sends them as a single
+	 * message.
+	 */
+	private class FramingOutputStream extends OutputStream {
+
+		private final ByteArrayOutputStream pending = new ByteArrayOutputStream(
+				1024);
+
+		@Override
+		public synchronized void write(int b) {
+			pending.write(b);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			pending.write(b, off, len);
+		}
+
+		@Override
+		public synchronized void flush() throws IOException {
+			if (pending.size() == 0)
+				return;
+			byte[] data = pending.toByteArray();
+			pending.reset();
+			// only the framing units need to be decoded; stanzas start
+			// directly with an element and are sent as is
+			int start = 0;
+			while (start < data.length && data[start] <= ' ')
+				start++;
+			if (start < data.length && data[start] == '<' && start + 1 < data.length
+					&& data[start + 1] != '?' && data[start + 1] != '/') {
+				if (!startsWith(data, start, "<stream:stream")) {
+					framing.writeMessage(data, start, data.length - start);
+					return;
+				}
+			}
+			String text = new String(data, "UTF-8");
+			String translated = translateOutgoing(text, domain);
+			if (translated != null) {
+				byte[] message = translated.getBytes("UTF-8");
+				framing.writeMessage(message, 0, message.length);
+			} else if (text.trim().isEmpty())
+				framing.writeControl(WebSocketFraming.OPCODE_PING, new byte[0], 0);
+			else
+				framing.writeMessage(data, 0, data.length);
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+
+	/**
+	 * Presents the messages received as a continuous XMPP stream.
+	 */
+	private class FramingInputStream extends InputStream {
+
+		private ByteBuffer current = ByteBuffer.allocate(0);
+		private boolean closed = false;
+
+		private boolean fill() throws IOException {
+			while (!current.hasRemaining()) {
+				if (closed)
+					return false;
+				ByteBuffer message = framing.readMessage();
+				if (message == null) {
+					closed = true;
+					current = ByteBuffer.wrap("</stream:stream>"
+							.getBytes("UTF-8"));
+					return true;
+				}
+				int position = message.position();
+				// framing elements are short; anything else is passed through
+				// without being decoded
+				if (message.remaining() < 512
+						&& (startsWith(message, position, "<open") || startsWith(
+								message, position, "<close"))) {
+					String translated = translateIncoming(new String(
+							message.array(), position, message.remaining(),
+							"UTF-8"));
+					if (translated.startsWith("</"))
+						closed = true;
+					current = ByteBuffer.wrap(translated.getBytes("UTF-8"));
+				} else
+					current = message;
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!fill())
+				return -1;
+			return current.get() & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!fill())
+				return -1;
+			int count = Math.min(len, current.remaining());
+			current.get(b, off, count);
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return current.remaining();
+		}
+	}
+
+	private static boolean startsWith(byte[] data, int offset, String prefix) {
+		if (data.length - offset < prefix.length())
+			return false;
+		for (int i = 0; i < prefix.length(); i++)
+			if (data[offset + i] != prefix.charAt(i))
+				return false;
+		return true;
+	}
+
+	private static boolean startsWith(ByteBuffer buffer, int offset,
+			String prefix) {
+		if (buffer.limit() - offset < prefix.length())
+			return false;
+		for (int i = 0; i < prefix.length(); i++)
+			if (buffer.get(offset + i) != prefix.charAt(i))
+				return false;
+		return true;
+	}
+}
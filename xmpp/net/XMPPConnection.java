@@ -14,9 +14,22 @@
 package ubc.cs317.xmpp.net;
 
 import java.io.IOException;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
 
 import javax.xml.bind.DatatypeConverter;
 
@@ -26,10 +39,13 @@ import org.w3c.dom.NodeList;
 
 
 import ubc.cs317.xmpp.exception.XMPPException;
+import ubc.cs317.xmpp.model.ChatRoom;
 import ubc.cs317.xmpp.model.Contact;
 import ubc.cs317.xmpp.model.ContactStatus;
 import ubc.cs317.xmpp.model.Conversation;
 import ubc.cs317.xmpp.model.Message;
+import ubc.cs317.xmpp.model.Occupant;
+import ubc.cs317.xmpp.model.RoomMessage;
 import ubc.cs317.xmpp.model.Session;
 
 /**
@@ -54,10 +70,10 @@ public class XMPPConnection {
 	private Session session;
 
 	/**
-	 * Socket object associated to the communication between this client and the
-	 * XMPP server.
+	 * Transport carrying the XMPP stream between this client and the XMPP
+	 * server (a TCP socket or a WebSocket connection).
 	 */
-	private Socket socket;
+	private Transport transport;
 
 	/**
 	 * XMPP reader helper, used to obtain XML nodes from the XMPP stream.
@@ -84,15 +100,179 @@ public class XMPPConnection {
 	 */
 	private String domain;
 	
-	/*
-	 * global variable for maintaining unique ids
+	/**
+	 * Generates unique stanza ids and matches iq responses to pending
+	 * requests.
+	 */
+	private final IQTracker iqTracker = new IQTracker();
+	private final FileTransferManager fileTransferManager;
+	private final EntityCapsManager entityCapsManager;
+
+	/**
+	 * Ids of recently received chat messages, used to drop messages received
+	 * both directly and as carbon copies, or again after a stream resumption.
+	 */
+	private final RecentIdFilter messageFilter;
+
+	/**
+	 * Queue limiting the rate at which stanzas are sent.
+	 */
+	private final OutboundQueue outboundQueue;
+
+	/**
+	 * Decides when changes of the user's status are sent.
+	 */
+	private final PresenceDebouncer presenceDebouncer;
+
+	/**
+	 * Progress of the initial connection, reported while the constructor runs
+	 * and cleared afterwards; reconnections are not reported.
+	 */
+	private ConnectionProgress progress;
+
+	/**
+	 * Password used to authenticate, kept so that the stream can be
+	 * re-established if the connection is lost.
+	 */
+	private String password;
+
+	/**
+	 * Optional settings for this connection.
+	 */
+	private ConnectionConfiguration configuration;
+
+	/**
+	 * Stream management (XEP-0198) state, used to acknowledge stanzas and to
+	 * resume the stream after the connection is lost.
+	 */
+	private StreamManagement streamManagement;
+
+	/**
+	 * Lock held while writing to the stream, so that stanzas sent from
+	 * different threads are not interleaved.
+	 */
+	private final Object writeLock = new Object();
+
+	/**
+	 * Writes, one at a time, what the shared timer decides to send (e.g.,
+	 * keepalives), so that the timer thread never blocks on this connection's
+	 * socket.
+	 */
+	private final SerialExecutor writer = new SerialExecutor();
+
+	/**
+	 * Indicates that the stream is established and stanzas can be written to
+	 * it. While the stream is being opened or re-established, stanzas are
+	 * held instead, so that senders do not wait for the whole login. Guarded
+	 * by the write lock.
 	 */
-	private static int incid = 0;
+	private boolean streamReady = false;
+
+	/**
+	 * Stanzas sent while the stream was not ready, in order. Guarded by the
+	 * write lock.
+	 */
+	private final List<Element> heldStanzas = new ArrayList<Element>();
+
+	/**
+	 * Indicates that the connection is being closed deliberately, in which case
+	 * the stream must not be resumed.
+	 */
+	private volatile boolean closing = false;
+
+	/**
+	 * Resource requested when the connection was created.
+	 */
+	private String resource;
+
+	/**
+	 * Manager of automatic reconnections, used when the connection is lost and
+	 * the stream cannot be resumed.
+	 */
+	private ReconnectManager reconnectManager;
+
+	/**
+	 * Compression layer (XEP-0138) of the current stream, or null if the
+	 * stream is not compressed.
+	 */
+	private volatile StreamCompression compression;
+
+	/**
+	 * Sends keepalives and detects dead connections.
+	 */
+	private KeepAliveManager keepAliveManager;
+
+	/**
+	 * Indicates that the connection was lost and is being recovered.
+	 */
+	private volatile boolean recovering = false;
+
+	/**
+	 * Namespace of XMPP pings (XEP-0199).
+	 */
+	private static final String PING_NAMESPACE = "urn:xmpp:ping";
 	
 	/*
 	 * error type, i don't know if it realy needs to be a static final but why not
 	 */
 	private static final String ERROR = "error";
+
+	/**
+	 * Namespace of roster queries.
+	 */
+	private static final String ROSTER_NAMESPACE = "jabber:iq:roster";
+
+	/**
+	 * Namespace of the stream feature advertising roster versioning.
+	 */
+	private static final String ROSTER_VERSIONING_NAMESPACE = "urn:xmpp:features:rosterver";
+
+	/**
+	 * Namespaces of multi-user chat (XEP-0045) join requests and of the
+	 * occupant information added by rooms.
+	 */
+	private static final String MUC_NAMESPACE = "http://jabber.org/protocol/muc";
+	private static final String MUC_USER_NAMESPACE = "http://jabber.org/protocol/muc#user";
+
+	/**
+	 * Namespace of delayed delivery information (XEP-0203), used in room
+	 * history.
+	 */
+	private static final String DELAY_NAMESPACE = "urn:xmpp:delay";
+
+	/**
+	 * Namespaces used to retrieve messages from the server archive: message
+	 * archive management (XEP-0313), result set management (XEP-0059),
+	 * stanza forwarding (XEP-0297) and unique stanza ids (XEP-0359).
+	 */
+	private static final String MAM_NAMESPACE = "urn:xmpp:mam:2";
+	private static final String RSM_NAMESPACE = "http://jabber.org/protocol/rsm";
+	private static final String FORWARD_NAMESPACE = "urn:xmpp:forward:0";
+	private static final String SID_NAMESPACE = "urn:xmpp:sid:0";
+
+	/**
+	 * Namespace of message carbons (XEP-0280).
+	 */
+	private static final String CARBONS_NAMESPACE = "urn:xmpp:carbons:2";
+
+	/**
+	 * Archive queries waiting for their results, indexed by query id. Results
+	 * are sent as individual messages before the response to the query.
+	 */
+	private final ConcurrentMap<String, ArchiveQuery> archiveQueries = new ConcurrentHashMap<String, ArchiveQuery>();
+
+	private static class ArchiveQuery {
+		private Contact contact;
+		private List<Message> messages = new ArrayList<Message>();
+	}
+
+	/**
+	 * Operations supported by bulk roster requests.
+	 */
+	private enum RosterOperation {
+		ADD, UPDATE, REMOVE
+	}
+
 	/**
 	 * Creates a new instance of the connection handler. This constructor will
 	 * creating the socket, initialise the reader and writer helpers, send
@@ -116,14 +296,183 @@ public class XMPPConnection {
 	 */
 	public XMPPConnection(String jidUser, String jidDomain, String resource,
 			String password, Session session) throws XMPPException {
-		
+		this(jidUser, jidDomain, resource, password, session,
+				new ConnectionConfiguration());
+	}
+
+	/**
+	 * Creates a new instance of the connection handler using the provided
+	 * configuration. This constructor behaves like the one above, but will
+	 * additionally enable optional features (such as stream management) if
+	 * they are enabled in the configuration and supported by the server.
+	 * 
+	 * @param jidUser
+	 *            User part of the Jabber ID.
+	 * @param jidDomain
+	 *            Domain part of the Jabber ID.
+	 * @param resource
+	 *            Resource to bind once authenticated. If null or empty, a new
+	 *            resource will be generated.
+	 * @param password
+	 *            Password for authentication.
+	 * @param session
+	 *            Instance of the session to communicate with other parts of the
+	 *            system.
+	 * @param configuration
+	 *            Optional settings for this connection.
+	 * @throws XMPPException
+	 *             If there is an error establishing the connection, sending or
+	 *             receiving necessary data, or while authenticating.
+	 */
+	public XMPPConnection(String jidUser, String jidDomain, String resource,
+			String password, Session session,
+			ConnectionConfiguration configuration) throws XMPPException {
+		this(jidUser, jidDomain, resource, password, session, configuration,
+				null);
+	}
+
+	/**
+	 * Creates a new instance of the connection handler, reporting each stage
+	 * of the connection establishment. This constructor behaves like the one
+	 * above, but the attempt can be cancelled from another thread through the
+	 * progress object, in which case an exception is thrown. The login waits
+	 * while the maximum number of logins across all connections are in
+	 * progress (see <code>ReconnectManager.setMaxConcurrentLogins</code>).
+	 * 
+	 * @param jidUser
+	 *            User part of the Jabber ID.
+	 * @param jidDomain
+	 *            Domain part of the Jabber ID.
+	 * @param resource
+	 *            Resource to bind once authenticated. If null or empty, a new
+	 *            resource will be generated.
+	 * @param password
+	 *            Password for authentication.
+	 * @param session
+	 *            Instance of the session to communicate with other parts of the
+	 *            system.
+	 * @param configuration
+	 *            Optional settings for this connection.
+	 * @param progress
+	 *            Progress of the connection, or null.
+	 * @throws XMPPException
+	 *             If there is an error establishing the connection, sending or
+	 *             receiving necessary data, or while authenticating, or if the
+	 *             attempt is cancelled.
+	 */
+	public XMPPConnection(String jidUser, String jidDomain, String resource,
+			String password, Session session,
+			ConnectionConfiguration configuration, ConnectionProgress progress)
+			throws XMPPException {
+
 		this.session = session;
+		this.progress = progress;
+		this.password = password;
+		this.resource = resource;
+		this.configuration = configuration;
+		this.streamManagement = new StreamManagement(configuration);
+		this.reconnectManager = new ReconnectManager(configuration);
+		this.fileTransferManager = new FileTransferManager(this, configuration);
+		this.entityCapsManager = new EntityCapsManager(this,
+				EntityCapsCache.getSharedCache(configuration.getCapsCacheSize()));
+		this.messageFilter = new RecentIdFilter(configuration.getMessageDedupSize());
+		this.outboundQueue = new OutboundQueue(new OutboundQueue.StanzaTarget() {
+			@Override
+			public boolean isWritable() {
+				return !closing && !recovering;
+			}
+
+			@Override
+			public void writeStanza(Element stanza) throws XMPPException {
+				XMPPConnection.this.writeStanza(stanza);
+			}
+		}, configuration, writer);
+		this.presenceDebouncer = new PresenceDebouncer(new PresenceDebouncer.PresenceTarget() {
+			@Override
+			public boolean isWritable() {
+				return !closing && !recovering;
+			}
+
+			@Override
+			public void sendPresence(ContactStatus status) throws XMPPException {
+				sendStatus(status);
+			}
+
+			@Override
+			public int getSubscriberCount() {
+				return XMPPConnection.this.session.getContacts().size();
+			}
+		}, configuration, writer);
+		this.keepAliveManager = new KeepAliveManager(new KeepAliveManager.KeepAliveTarget() {
+			@Override
+			public boolean isEstablished() {
+				return !closing && !recovering;
+			}
+
+			@Override
+			public void sendKeepAlive(boolean ping) {
+				XMPPConnection.this.sendKeepAlive(ping);
+			}
+
+			@Override
+			public void connectionDead() {
+				// the listening thread will notice and recover the connection
+				try {
+					transport.close();
+				} catch (IOException e) {
+				}
+			}
+		}, configuration, writer);
+
+		Semaphore loginPermits = ReconnectManager.acquireLoginPermit();
+		try {
+			openStream(jidUser, jidDomain);
+
+			bindResource(resource);
+
+			enableStreamManagement();
+		} finally {
+			loginPermits.release();
+		}
+
+		synchronized (writeLock) {
+			streamReady = true;
+		}
+
+		// after this point the connection is established, and closing it is
+		// up to the caller
+		reportStage(ConnectionProgress.Stage.ESTABLISHED);
+		this.progress = null;
+
+		startListeningThread();
+
+		enableCarbons();
+
+		keepAliveManager.start();
+	}
+
+	/**
+	 * Opens a new socket connection, initialises the reader and writer
+	 * helpers, sends the initial tags and authenticates the user. After this
+	 * method returns the stream is ready for resource binding or stream
+	 * resumption.
+	 * 
+	 * @param jidUser
+	 *            User part of the Jabber ID.
+	 * @param jidDomain
+	 *            Domain part of the Jabber ID.
+	 * @throws XMPPException
+	 *             If there is an error establishing the connection, sending or
+	 *             receiving necessary data, or while authenticating.
+	 */
+	private void openStream(String jidUser, String jidDomain)
+			throws XMPPException {
 
 		initializeConnection(jidDomain);
 
 		try {
-			xmppReader = new XMPPStreamReader(socket.getInputStream());
-			xmppWriter = new XMPPStreamWriter(socket.getOutputStream());
+			xmppReader = new XMPPStreamReader(transport.getInputStream());
+			xmppWriter = new XMPPStreamWriter(transport.getOutputStream());
 		} catch (XMPPException e) {
 			throw e;
 		} catch (Exception e) {
@@ -133,16 +482,162 @@ public class XMPPConnection {
 
 		initializeStreamAndFeatures(jidUser, jidDomain);
 
+		negotiateTls(jidDomain);
+
 		login(jidUser, password);
 
-		bindResource(resource);
+		negotiateCompression();
+	}
 
-		startListeningThread();
+	/**
+	 * Negotiates TLS using STARTTLS if it is enabled in the configuration and
+	 * offered by the server. Once the server allows it to proceed, the TLS
+	 * handshake is performed over the existing socket, which is then replaced
+	 * by the encrypted one, and the stream is restarted, retrieving the new set
+	 * of features. Cached TLS sessions are resumed when available, which makes
+	 * reconnections cheaper. Transports secured at their own level (e.g.,
+	 * WebSocket over TLS) do not negotiate STARTTLS.
+	 * 
+	 * @param jidDomain
+	 *            Domain of the server, used to verify its certificate.
+	 * @throws XMPPException
+	 *             If TLS is required but not available, or if there is an
+	 *             error during the negotiation or handshake.
+	 */
+	private void negotiateTls(String jidDomain) throws XMPPException {
+		Element startTlsFeature = getChildElement(features, "starttls");
+		if (!transport.supportsStreamLayers() || startTlsFeature == null
+				|| !StreamEncryption.NAMESPACE.equals(startTlsFeature
+						.getAttribute("xmlns")) || !configuration.isTlsEnabled()) {
+			if (configuration.isTlsRequired() && !transport.isSecure()) {
+				abortStream();
+				throw new XMPPException("Server does not support TLS");
+			}
+			return;
+		}
+
+		reportStage(ConnectionProgress.Stage.SECURING);
+		Element startTls = xmppWriter.createElement("starttls");
+		startTls.setAttribute("xmlns", StreamEncryption.NAMESPACE);
+		xmppWriter.writeIndividualElement(startTls);
+
+		Element response = xmppReader.readSecondLevelElement();
+		if (!response.getTagName().equals("proceed")) {
+			// the server closes the stream after a failure
+			abortStream();
+			throw new XMPPException("Server could not start TLS");
+		}
+
+		try {
+			transport.startTls(jidDomain);
+			xmppWriter.setOutputStream(transport.getOutputStream());
+			xmppReader.restartWithInputStream(transport.getInputStream());
+		} catch (IOException e) {
+			abortStream();
+			throw new XMPPException("TLS handshake failed ("
+					+ e.getMessage() + ")", e);
+		}
+
+		xmppWriter.writeRootElementWithoutClosingTag();
+		features = xmppReader.readSecondLevelElement();
+	}
+
+	/**
+	 * Closes the transport of a stream that failed to be established. Unlike
+	 * <code>closeConnection</code>, the connection itself is not closed, so
+	 * that a failed reconnection attempt leaves the reconnection manager
+	 * running; the caller decides what to do with the exception thrown.
+	 */
+	private void abortStream() {
+		try {
+			transport.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Enables stream compression (XEP-0138) if it is enabled in the
+	 * configuration and the server supports the zlib method. Once the server
+	 * confirms, both directions of the stream are wrapped in the compression
+	 * layer and the stream is restarted, retrieving the new set of features.
+	 * If the server refuses, the connection proceeds without compression.
+	 * 
+	 * @throws XMPPException
+	 *             If there is an error sending or receiving the data.
+	 */
+	private void negotiateCompression() throws XMPPException {
+		endCompression();
+		if (!configuration.isCompressionEnabled()
+				|| !transport.supportsStreamLayers() || !isCompressionSupported())
+			return;
+
+		Element compress = xmppWriter.createElement("compress");
+		compress.setAttribute("xmlns", StreamCompression.PROTOCOL_NAMESPACE);
+		Element method = xmppWriter.createElement("method");
+		method.setTextContent(StreamCompression.METHOD);
+		compress.appendChild(method);
+		xmppWriter.writeIndividualElement(compress);
+
+		Element response = xmppReader.readSecondLevelElement();
+		if (!response.getTagName().equals("compressed")) {
+			System.out.println("\n" + "Server refused to enable compression.");
+			return;
+		}
+
+		StreamCompression newCompression = new StreamCompression();
+		try {
+			xmppWriter.setOutputStream(newCompression
+					.wrapOutputStream(transport.getOutputStream()));
+			xmppReader.restartWithInputStream(newCompression
+					.wrapInputStream(transport.getInputStream()));
+		} catch (IOException e) {
+			throw new XMPPException("Could not enable compression ("
+					+ e.getMessage() + ")", e);
+		}
+		compression = newCompression;
+
+		xmppWriter.writeRootElementWithoutClosingTag();
+		features = xmppReader.readSecondLevelElement();
+		System.out.println("\n" + "Stream compression enabled.");
+	}
+
+	/**
+	 * Releases the compression layer of the previous stream, if any, once its
+	 * socket is closed.
+	 */
+	private void endCompression() {
+		StreamCompression previous = compression;
+		compression = null;
+		if (previous != null)
+			previous.end();
+	}
+
+	/**
+	 * Verifies if the server supports stream compression with the zlib method,
+	 * based on the features advertised after authentication.
+	 * 
+	 * @return <code>true</code> if zlib compression is supported,
+	 *         <code>false</code> otherwise.
+	 */
+	private boolean isCompressionSupported() {
+		Element compressionFeature = getChildElement(features, "compression");
+		if (compressionFeature == null
+				|| !StreamCompression.FEATURE_NAMESPACE.equals(compressionFeature
+						.getAttribute("xmlns")))
+			return false;
+		for (Node node = compressionFeature.getFirstChild(); node != null; node = node
+				.getNextSibling())
+			if (node instanceof Element
+					&& StreamCompression.METHOD.equals(node.getTextContent().trim()))
+				return true;
+		return false;
 	}
 
 	/**
 	 * Initialises the connection with the specified domain. This method sets
-	 * the socket field with an initialised socket.
+	 * the transport field with a connected transport: a WebSocket or BOSH
+	 * connection if an endpoint is set in the configuration, or a TCP socket
+	 * otherwise.
 	 * 
 	 * @param domain
 	 *            DNS name (or IP string) of the server to connect to.
@@ -152,14 +647,40 @@ public class XMPPConnection {
 	private void initializeConnection(String domain) throws XMPPException {
 		/* YOUR CODE HERE */
 
-		try {
-			socket = new Socket(domain, XMPP_DEFAULT_PORT);
-		} catch (UnknownHostException e) {
-			throw new XMPPException("Unkown host");
-		} catch (IOException e) {
-			throw new XMPPException("Coudn't get I/O for the connection to: " + domain);
+		reportStage(ConnectionProgress.Stage.CONNECTING);
+		if (configuration.getWebSocketUri() != null)
+			transport = new WebSocketTransport(
+					URI.create(configuration.getWebSocketUri()), domain,
+					configuration.isWebSocketCompressionEnabled(),
+					configuration.getConnectTimeout());
+		else if (configuration.getBoshUrl() != null) {
+			try {
+				transport = new BoshTransport(new URL(
+						configuration.getBoshUrl()), domain,
+						configuration.getBoshHold(),
+						configuration.getBoshWait(),
+						configuration.getConnectTimeout());
+			} catch (MalformedURLException e) {
+				throw new XMPPException("Invalid BOSH URL", e);
+			}
+		} else
+			transport = new TcpTransport(domain, XMPP_DEFAULT_PORT,
+					configuration.getConnectTimeout());
+		if (progress != null)
+			progress.setTransport(transport);
+		transport.connect();
+	}
 
-		}
+	/**
+	 * Reports a stage of the initial connection, if it is being followed.
+	 * 
+	 * @throws XMPPException
+	 *             If the connection attempt was cancelled.
+	 */
+	private void reportStage(ConnectionProgress.Stage stage)
+			throws XMPPException {
+		if (progress != null)
+			progress.stageReached(stage);
 	}
 
 	/**
@@ -236,8 +757,9 @@ public class XMPPConnection {
 	 */
 	private void login(String username, String password) throws XMPPException {
 		/* YOUR CODE HERE */
+		reportStage(ConnectionProgress.Stage.AUTHENTICATING);
 		if(!presentsPLAINMech()){
-			this.closeConnection();
+			abortStream();
 			throw new XMPPException("Can not authenticate with this server");
 		}
 		byte[] data = ("\u0000" + username + "\u0000" + password).getBytes();
@@ -271,6 +793,8 @@ public class XMPPConnection {
 				  Element response2 = xmppReader.readSecondLevelElement();
 				  System.out.println("\n" + "And this is what you'll get as a response: ");
 				  xmppWriter.debugElement(System.out, response2);
+				  // the features after the stream restart are the ones that matter from now on
+				  features = response2;
 		 }
 		
 	}
@@ -288,6 +812,7 @@ public class XMPPConnection {
 	 */
 	private void bindResource(String resource) throws XMPPException {
 		/* YOUR CODE HERE */
+		reportStage(ConnectionProgress.Stage.BINDING);
 		Element iq = xmppWriter.createElement("iq");
 		iq.setAttribute("type", "set");
 		Element bind = xmppWriter.createElement("bind");
@@ -339,18 +864,338 @@ public class XMPPConnection {
 	}
 
 	/**
-	 * Starts a thread that will keep listening for new messages asynchronously
-	 * from the main thread.
+	 * Enables stream management (XEP-0198) if it is enabled in the
+	 * configuration and advertised by the server. This function waits until the
+	 * server responds to the request. If the server refuses the request the
+	 * connection proceeds without stream management.
+	 * 
+	 * @throws XMPPException
+	 *             If there is an error sending or receiving the data.
 	 */
-	private void startListeningThread() {
-		Thread listeningThread = new Thread(new Runnable() {
+	private void enableStreamManagement() throws XMPPException {
+		if (!configuration.isStreamManagementEnabled()
+				|| !StreamManagement.isSupported(features))
+			return;
 
-			@Override
-			public void run() {
-				listeningProcess();
-			}
-		});
-		listeningThread.start();
+		xmppWriter.writeIndividualElement(streamManagement
+				.createEnableRequest(xmppWriter));
+
+		Element response = readStreamManagementResponse();
+		if (response.getTagName().equals("enabled")) {
+			streamManagement.handleEnabled(response);
+			System.out.println("\n" + "Stream management enabled. Resumable: "
+					+ streamManagement.isResumable());
+		} else
+			System.out.println("\n" + "Server refused to enable stream management.");
+	}
+
+	/**
+	 * Asks the server to send copies of the messages sent and received by the
+	 * other resources of the account (XEP-0280), if enabled in the
+	 * configuration. The request does not block; if the server refuses it,
+	 * the connection proceeds without carbons.
+	 * 
+	 * @throws XMPPException
+	 *             If there is an error sending the request.
+	 */
+	private void enableCarbons() throws XMPPException {
+		if (!configuration.isCarbonsEnabled())
+			return;
+
+		Element iq = xmppWriter.createElement("iq");
+		iq.setAttribute("type", "set");
+		Element enable = xmppWriter.createElement("enable");
+		enable.setAttribute("xmlns", CARBONS_NAMESPACE);
+		iq.appendChild(enable);
+		sendIQ(iq).addCallback(new IQFuture.Callback() {
+			@Override
+			public void completed(Element result) {
+				System.out.println("\n" + "Message carbons enabled.");
+			}
+
+			@Override
+			public void failed(XMPPException exception) {
+				System.out.println("\n" + "Server refused to enable message carbons.");
+			}
+		});
+	}
+
+	/**
+	 * Attempts to recover from a lost connection. If the stream is resumable
+	 * (XEP-0198), the stream is resumed first, which restores the session in a
+	 * single round trip. If that is not possible and automatic reconnection is
+	 * enabled, new attempts (including a full login) are made using the
+	 * reconnect manager's backoff policy. The session object, with its
+	 * contacts, conversations and listeners, is kept in either case.
+	 * 
+	 * @return <code>true</code> if the connection was recovered,
+	 *         <code>false</code> if the connection is being closed or could not
+	 *         be recovered.
+	 */
+	private boolean recoverConnection() {
+		if (closing)
+			return false;
+
+		System.out.println("\n" + "Connection lost, attempting to recover.");
+
+		recovering = true;
+		try {
+			boolean recovered = attemptRecovery();
+			keepAliveManager.activity();
+			return recovered;
+		} finally {
+			recovering = false;
+		}
+	}
+
+	private boolean attemptRecovery() {
+		if (!configuration.isReconnectEnabled()) {
+			if (!streamManagement.isResumable())
+				return false;
+			try {
+				reestablishStream(false);
+				return true;
+			} catch (XMPPException e) {
+				return false;
+			}
+		}
+
+		return reconnectManager.reconnect(new ReconnectManager.ReconnectTask() {
+			@Override
+			public void reconnect() throws XMPPException {
+				reestablishStream(true);
+			}
+		});
+	}
+
+	/**
+	 * Opens a new stream to replace one that was lost. If the previous stream
+	 * is resumable the new stream resumes it, retransmitting stanzas not yet
+	 * acknowledged by the server, and the resource binding, roster request and
+	 * initial presence are skipped, since the server keeps the previous session
+	 * state. Otherwise, if allowed, the resource is bound again and the session
+	 * is informed so that it can request the roster and send its presence.
+	 * The write lock is not held while the new stream is negotiated; stanzas
+	 * sent in the meantime are held and written once it is ready, after the
+	 * retransmitted ones.
+	 * 
+	 * @param allowNewSession
+	 *            <code>true</code> if a new session may be created if the
+	 *            stream cannot be resumed, <code>false</code> otherwise.
+	 * @throws XMPPException
+	 *             If the stream could not be re-established.
+	 */
+	private void reestablishStream(boolean allowNewSession)
+			throws XMPPException {
+
+		try {
+			transport.close();
+		} catch (IOException e) {
+			// Ignore, the connection is already broken
+		}
+		endCompression();
+		if (closing)
+			throw new XMPPException("Connection closed.");
+
+		synchronized (writeLock) {
+			streamReady = false;
+		}
+
+		boolean resumed;
+		Semaphore loginPermits = ReconnectManager.acquireLoginPermit();
+		try {
+			resumed = openLoginStream(allowNewSession);
+		} finally {
+			loginPermits.release();
+		}
+		if (resumed)
+			return;
+
+		// carbons are enabled per session, unlike with a resumed stream
+		enableCarbons();
+
+		// the new server-side session starts offline
+		presenceDebouncer.reset();
+		session.connectionReestablished();
+	}
+
+	/**
+	 * Opens and authenticates a new stream, then resumes the previous stream
+	 * or binds the resource again. Stanzas held while the stream was not
+	 * ready are written once it is.
+	 * 
+	 * @param allowNewSession
+	 *            <code>true</code> if a new session may be created if the
+	 *            stream cannot be resumed, <code>false</code> otherwise.
+	 * @return <code>true</code> if the previous stream was resumed,
+	 *         <code>false</code> if a new session was created.
+	 * @throws XMPPException
+	 *             If the stream could not be re-established.
+	 */
+	private boolean openLoginStream(boolean allowNewSession)
+			throws XMPPException {
+
+		openStream(userId, domain);
+
+		if (streamManagement.isResumable()) {
+			xmppWriter.writeIndividualElement(streamManagement
+					.createResumeRequest(xmppWriter));
+
+			Element response = readStreamManagementResponse();
+			if (response.getTagName().equals("resumed")) {
+				synchronized (writeLock) {
+					List<Element> pending = streamManagement
+							.handleResumed(response);
+					int held = heldStanzas.size();
+					streamReady = true;
+					for (Element stanza : pending)
+						writeStanza(stanza);
+					writeHeldStanzas();
+					System.out.println("\n" + "Stream resumed, retransmitted "
+							+ pending.size() + " stanza(s), sent " + held
+							+ " held stanza(s).");
+				}
+				return true;
+			}
+			streamManagement.reset();
+		}
+
+		if (!allowNewSession)
+			throw new XMPPException("Stream could not be resumed.");
+
+		// responses to requests sent in the previous session will never arrive
+		iqTracker.failAll(new XMPPException("Session lost before a response was received."));
+
+		// binds the same resource as before, so that the full JID is kept
+		String[] fullJid = session.getUserJid().split("/", 2);
+		bindResource(fullJid.length > 1 ? fullJid[1] : resource);
+		enableStreamManagement();
+		synchronized (writeLock) {
+			streamReady = true;
+			writeHeldStanzas();
+		}
+		return false;
+	}
+
+	/**
+	 * Waits for the server response to a stream management request (enable or
+	 * resume). Any stanza received before the response is processed normally.
+	 * 
+	 * @return The response element (enabled, resumed or failed).
+	 * @throws XMPPException
+	 *             If there is an error receiving the data.
+	 */
+	private Element readStreamManagementResponse() throws XMPPException {
+		while (true) {
+			Element response = xmppReader.readSecondLevelElement();
+			if (StreamManagement.isStreamManagementElement(response))
+				return response;
+			if (xmppReader.isBaseDocument(response))
+				throw new XMPPException("Stream closed by the server.");
+			processElement(response);
+		}
+	}
+
+	/**
+	 * Handles stream-level elements of the stream management protocol
+	 * received while listening, namely acknowledgement requests and answers.
+	 * 
+	 * @param element
+	 *            The stream management element to be processed.
+	 * @throws XMPPException
+	 *             If there is an error sending an acknowledgement.
+	 */
+	private void processStreamManagementElement(Element element)
+			throws XMPPException {
+		String tagName = element.getTagName();
+		if (tagName.equals("r")) {
+			synchronized (writeLock) {
+				xmppWriter.writeIndividualElement(streamManagement
+						.createAckAnswer(xmppWriter));
+			}
+		} else if (tagName.equals("a")) {
+			streamManagement.handleAck(element);
+		}
+	}
+
+	/**
+	 * Sends a stanza (iq, message or presence) through the outbound queue,
+	 * which writes it at once unless the configured send rate was reached.
+	 * 
+	 * @param stanza
+	 *            Stanza to be sent.
+	 * @throws XMPPException
+	 *             If the stanza was written at once and there was a problem
+	 *             writing it.
+	 */
+	void sendStanza(Element stanza) throws XMPPException {
+		outboundQueue.send(stanza);
+	}
+
+	/**
+	 * Writes a stanza (iq, message or presence) to the stream. If stream
+	 * management is enabled the stanza is kept until the server acknowledges
+	 * it, and an acknowledgement is periodically requested. If the stanza
+	 * cannot be written but the stream is resumable, no exception is thrown,
+	 * since the stanza will be retransmitted once the stream is resumed.
+	 * While the stream is being re-established the stanza is held, and written
+	 * once the stream is ready.
+	 * 
+	 * @param stanza
+	 *            Stanza to be sent.
+	 * @throws XMPPException
+	 *             If there was a problem writing the stanza, or if the stream
+	 *             is being re-established and too many stanzas are held.
+	 */
+	private void writeStanza(Element stanza) throws XMPPException {
+		synchronized (writeLock) {
+			if (!streamReady) {
+				if (heldStanzas.size() >= configuration.getUnackedBufferSize())
+					throw new XMPPException("Too many stanzas waiting for the connection to be recovered.");
+				heldStanzas.add(stanza);
+				return;
+			}
+			boolean requestAck = streamManagement.stanzaSent(stanza);
+			try {
+				xmppWriter.writeIndividualElement(stanza);
+				if (requestAck)
+					xmppWriter.writeIndividualElement(streamManagement
+							.createAckRequest(xmppWriter));
+			} catch (XMPPException e) {
+				if (!streamManagement.isResumable())
+					throw e;
+			}
+		}
+	}
+
+	/**
+	 * Writes the stanzas held while the stream was not ready, in the order
+	 * they were sent. Must be called with the write lock held, once the
+	 * stream is ready.
+	 * 
+	 * @throws XMPPException
+	 *             If there was a problem writing a stanza.
+	 */
+	private void writeHeldStanzas() throws XMPPException {
+		List<Element> held = new ArrayList<Element>(heldStanzas);
+		heldStanzas.clear();
+		for (Element stanza : held)
+			writeStanza(stanza);
+	}
+
+	/**
+	 * Starts a thread that will keep listening for new messages asynchronously
+	 * from the main thread.
+	 */
+	private void startListeningThread() {
+		Thread listeningThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				listeningProcess();
+			}
+		});
+		listeningThread.start();
 	}
 
 	/**
@@ -375,12 +1220,17 @@ public class XMPPConnection {
 			//2. or exception thrown waitinf for new messages
 				//if 2. happens then session.processRecievedException should be called
 				//and you want to close the connection :close connection on stream class
-		while(!xmppReader.isDocumentComplete()){
+		// the end of the stream is recognised by its closing tag, or by an
+		// exception if it is cut: the reader restarts parsing with an empty
+		// document when data stops in the middle of an element, so the
+		// document may look complete while the stream is being lost
+		while(true){
 			//catch exception if its thrown : if()
 			//
 
 			try {
 				Element toProcess = xmppReader.readSecondLevelElement();
+				keepAliveManager.activity();
 				String endTag = toProcess.getTagName();
 				if(endTag.equals("stream:stream")){
 					//but if you call close connecion on session then it will try to close the connection again...
@@ -389,10 +1239,17 @@ public class XMPPConnection {
 					//should call close connection
 					session.closeConnection();
 					break;
+				}else if(StreamManagement.isStreamManagementElement(toProcess)){
+					this.processStreamManagementElement(toProcess);
 				}else{
 					this.processElement(toProcess);
+					if(StreamManagement.isStanza(toProcess))
+						streamManagement.stanzaReceived();
 				}
 			} catch (XMPPException e) {
+				// a lost connection may be recovered without involving the session
+				if(recoverConnection())
+					continue;
 				session.processReceivedException(e);
 				session.closeConnection();
 				break;
@@ -415,8 +1272,6 @@ public class XMPPConnection {
 			this.processPresence(toProcess);
 		}else if(tagName.equals("message")){
 			this.processMessage(toProcess);
-		}else if(tagName.equals("ping")){
-			//TODO send a pong
 		}
 		
 	}
@@ -425,6 +1280,24 @@ public class XMPPConnection {
 		//TODO finish processing the message types
 		
 		String type = toProcess.getAttribute("type").toLowerCase();
+		Element archived = getChildElement(toProcess, "result", MAM_NAMESPACE);
+		if(archived != null){
+			this.processArchivedMessage(toProcess, archived);
+			return;
+		}
+		Element carbon = getChildElement(toProcess, "received", CARBONS_NAMESPACE);
+		if(carbon == null)
+			carbon = getChildElement(toProcess, "sent", CARBONS_NAMESPACE);
+		if(carbon != null){
+			this.processCarbon(toProcess, carbon);
+			return;
+		}
+		String[] roomJid = toProcess.getAttribute("from").split("/", 2);
+		ChatRoom room = session.getRoom(roomJid[0]);
+		if(room != null && (type.equals("groupchat") || type.equals(ERROR))){
+			this.processRoomMessage(toProcess, room, roomJid.length > 1 ? roomJid[1] : null);
+			return;
+		}
 		if(type.equals("chat")){
 			//do stuff
 			String fromContact = toProcess.getAttribute("from");
@@ -436,6 +1309,8 @@ public class XMPPConnection {
 				System.out.println("You're getting a message from a contact that isn't in your contact list"
 						+ "I'm deciding not to support that behavior because its unclear whether or not i need to");
 				System.out.println("\n" + "Reminder: I did allow OUTGOING messages to contacts that are unlisted, (meaning myself)");
+			}else if(isDuplicateMessage(toProcess)){
+				System.out.println("\n" + "Dropping duplicate message " + toProcess.getAttribute("id"));
 			}else{
 				Conversation convo = session.getConversation(fcontact);
 				String[] fullJID = toFullJID.split("/");
@@ -449,7 +1324,8 @@ public class XMPPConnection {
 				//assume its the first one you care about..
 				Element mess = (Element) messages.item(0);
 				String content = mess.getTextContent();
-				Message recievedMess = new Message(fcontact, null, content);
+				Message recievedMess = new Message(fcontact, null, content, new Date(),
+						getStanzaId(toProcess), getOriginId(toProcess));
 				convo.addIncomingMessage(recievedMess, resource);
 			}
 		}
@@ -458,6 +1334,22 @@ public class XMPPConnection {
 	private void processPresence(Element toProcess) {
 		String contact = toProcess.getAttribute("from");
 		String[] fullJID = contact.split("/");
+
+		//presence from a joined room describes one of its occupants
+		ChatRoom room = session.getRoom(fullJID[0]);
+		if(room != null){
+			this.processRoomPresence(toProcess, room, fullJID.length > 1 ? contact.substring(fullJID[0].length() + 1) : null);
+			return;
+		}
+		//capabilities (XEP-0115) are advertised per resource
+		if(fullJID.length > 1){
+			String presenceType = toProcess.getAttribute("type");
+			Element caps = getChildElement(toProcess, "c", EntityCapsManager.CAPS_NAMESPACE);
+			if(presenceType.equals("") && caps != null)
+				entityCapsManager.processCaps(contact, caps);
+			else if(presenceType.equalsIgnoreCase("unavailable"))
+				entityCapsManager.resourceUnavailable(contact);
+		}
 		Contact theContact = session.getContact(contact);
 		
 		if(toProcess.getAttribute("type").equalsIgnoreCase("subscribe")){
@@ -527,73 +1419,602 @@ public class XMPPConnection {
 
 	}
 
+	/**
+	 * Handles a presence received from a multi-user chat room, which updates
+	 * one of its occupants or reports the result of a join request.
+	 * 
+	 * @param presence
+	 *            The presence element.
+	 * @param room
+	 *            The room that sent the presence.
+	 * @param nick
+	 *            Nickname of the occupant, or null if the presence came from
+	 *            the room itself.
+	 */
+	private void processRoomPresence(Element presence, ChatRoom room, String nick) {
+		String type = presence.getAttribute("type");
+		if(type.equalsIgnoreCase(ERROR)){
+			Element error = getChildElement(presence, "error");
+			Element condition = error == null ? null : getFirstChildElement(error);
+			session.handleRoomLeft(room, "Could not join the room ("
+					+ (condition == null ? "unknown error" : condition.getTagName()) + ").");
+			return;
+		}
+		if(nick == null)
+			return;
+
+		Element x = getChildElement(presence, "x", MUC_USER_NAMESPACE);
+		Element item = x == null ? null : getChildElement(x, "item");
+		//status 110 marks the presence of the local user, whose nick may have been changed by the room
+		boolean self = hasStatusCode(x, "110") || nick.equals(room.getNick());
+
+		if(type.equalsIgnoreCase("unavailable")){
+			room.occupantLeft(nick);
+			//303 is a nick change, the new nick comes in the next presence
+			if(self && !hasStatusCode(x, "303")){
+				String reason = null;
+				if(hasStatusCode(x, "307"))
+					reason = "You were kicked from the room.";
+				else if(hasStatusCode(x, "301"))
+					reason = "You were banned from the room.";
+				else if(hasStatusCode(x, "332"))
+					reason = "The room service is shutting down.";
+				session.handleRoomLeft(room, reason);
+			}
+			return;
+		}
+
+		ContactStatus status = ContactStatus.AVAILABLE;
+		Element show = getChildElement(presence, "show");
+		if(show != null){
+			try {
+				status = ContactStatus.getContactStatus(show.getTextContent().trim());
+			} catch (IllegalArgumentException e) {
+				//unknown show values are treated as available
+			}
+		}
+		room.occupantPresence(new Occupant(nick,
+				item == null ? null : item.getAttribute("role"),
+				item == null ? null : item.getAttribute("affiliation"),
+				item == null || !item.hasAttribute("jid") ? null : item.getAttribute("jid"),
+				status));
+		if(self)
+			room.joined(nick);
+	}
+
+	/**
+	 * Handles a message received from a multi-user chat room, which may be a
+	 * message from an occupant (possibly from the room history) or a subject
+	 * change.
+	 * 
+	 * @param message
+	 *            The message element.
+	 * @param room
+	 *            The room that sent the message.
+	 * @param nick
+	 *            Nickname of the sender, or null if the message came from the
+	 *            room itself.
+	 */
+	private void processRoomMessage(Element message, ChatRoom room, String nick) {
+		if(message.getAttribute("type").equalsIgnoreCase(ERROR)){
+			Element error = getChildElement(message, "error");
+			Element condition = error == null ? null : getFirstChildElement(error);
+			System.out.println("\n" + "Message to room " + room + " failed: "
+					+ (condition == null ? "unknown error" : condition.getTagName()));
+			return;
+		}
+
+		Element subject = getChildElement(message, "subject");
+		Element body = getChildElement(message, "body");
+		if(subject != null && body == null){
+			room.setSubject(subject.getTextContent());
+			return;
+		}
+		if(body == null)
+			return;
+
+		Date timestamp = new Date();
+		boolean delayed = false;
+		Element delay = getChildElement(message, "delay", DELAY_NAMESPACE);
+		if(delay != null && delay.hasAttribute("stamp")){
+			try {
+				timestamp = DatatypeConverter.parseDateTime(delay.getAttribute("stamp")).getTime();
+				delayed = true;
+			} catch (IllegalArgumentException e) {
+				//keeps the local time if the stamp is malformed
+			}
+		}
+		room.addIncomingMessage(new RoomMessage(nick, body.getTextContent(), timestamp, delayed));
+	}
+
+	/**
+	 * Sends a request for a page of the messages exchanged with a contact and
+	 * stored in the server archive (XEP-0313). The request does not block: the
+	 * callback is called once the page is complete.
+	 * 
+	 * @param contact
+	 *            Contact whose messages are requested.
+	 * @param before
+	 *            Archive id of the oldest message already retrieved, or an
+	 *            empty string to request the most recent messages.
+	 * @param callback
+	 *            Callback called when the page is received.
+	 * @throws XMPPException
+	 *             If there was a problem sending the request.
+	 */
+	public void requestArchivePage(Contact contact, String before,
+			final ArchivePage.Callback callback) throws XMPPException {
+		final String queryId = this.getUniqueIdValue();
+
+		Element iq = xmppWriter.createElement("iq");
+		iq.setAttribute("type", "set");
+		Element query = xmppWriter.createElement("query");
+		query.setAttribute("xmlns", MAM_NAMESPACE);
+		query.setAttribute("queryid", queryId);
+		Element form = xmppWriter.createElement("x");
+		form.setAttribute("xmlns", "jabber:x:data");
+		form.setAttribute("type", "submit");
+		form.appendChild(createFormField("FORM_TYPE", "hidden", MAM_NAMESPACE));
+		form.appendChild(createFormField("with", null, contact.getBareJid()));
+		query.appendChild(form);
+		Element set = xmppWriter.createElement("set");
+		set.setAttribute("xmlns", RSM_NAMESPACE);
+		Element max = xmppWriter.createElement("max");
+		max.setTextContent(String.valueOf(configuration.getArchivePageSize()));
+		set.appendChild(max);
+		Element beforeElement = xmppWriter.createElement("before");
+		beforeElement.setTextContent(before == null ? "" : before);
+		set.appendChild(beforeElement);
+		query.appendChild(set);
+		iq.appendChild(query);
+
+		final ArchiveQuery pending = new ArchiveQuery();
+		pending.contact = contact;
+		archiveQueries.put(queryId, pending);
+		IQFuture response;
+		try {
+			response = sendIQ(iq);
+		} catch (XMPPException e) {
+			archiveQueries.remove(queryId);
+			throw e;
+		}
+		response.addCallback(new IQFuture.Callback() {
+			@Override
+			public void completed(Element result) {
+				archiveQueries.remove(queryId);
+				Element fin = getChildElement(result, "fin", MAM_NAMESPACE);
+				Element resultSet = fin == null ? null : getChildElement(fin, "set", RSM_NAMESPACE);
+				Element first = resultSet == null ? null : getChildElement(resultSet, "first");
+				boolean complete = fin == null || "true".equals(fin.getAttribute("complete"))
+						|| pending.messages.isEmpty();
+				callback.pageReceived(new ArchivePage(pending.messages,
+						first == null ? null : first.getTextContent(), complete));
+			}
+
+			@Override
+			public void failed(XMPPException exception) {
+				archiveQueries.remove(queryId);
+				callback.pageFailed(exception);
+			}
+		});
+	}
+
+	private Element createFormField(String var, String type, String value) {
+		Element field = xmppWriter.createElement("field");
+		field.setAttribute("var", var);
+		if(type != null)
+			field.setAttribute("type", type);
+		Element valueElement = xmppWriter.createElement("value");
+		valueElement.setTextContent(value);
+		field.appendChild(valueElement);
+		return field;
+	}
+
+	/**
+	 * Handles a message containing a result of an archive query, adding it to
+	 * the page being collected for that query.
+	 * 
+	 * @param message
+	 *            The message received from the server.
+	 * @param result
+	 *            The result element inside the message.
+	 */
+	private void processArchivedMessage(Element message, Element result) {
+		//results can only come from our own archive, anything else is spoofed
+		String from = message.getAttribute("from");
+		if(!from.equals("") && !from.equals(session.getUserBareJid()))
+			return;
+		ArchiveQuery query = archiveQueries.get(result.getAttribute("queryid"));
+		if(query == null)
+			return;
+
+		Element forwarded = getChildElement(result, "forwarded", FORWARD_NAMESPACE);
+		Element original = forwarded == null ? null : getChildElement(forwarded, "message");
+		Element body = original == null ? null : getChildElement(original, "body");
+		if(body == null)
+			return;
+
+		Date timestamp = new Date();
+		Element delay = getChildElement(forwarded, "delay", DELAY_NAMESPACE);
+		if(delay != null && delay.hasAttribute("stamp")){
+			try {
+				timestamp = DatatypeConverter.parseDateTime(delay.getAttribute("stamp")).getTime();
+			} catch (IllegalArgumentException e) {
+				//keeps the local time if the stamp is malformed
+			}
+		}
+
+		boolean outgoing = original.getAttribute("from").split("/")[0].equals(session.getUserBareJid());
+		query.messages.add(new Message(outgoing ? null : query.contact,
+				outgoing ? query.contact : null, body.getTextContent(), timestamp,
+				result.getAttribute("id"), getOriginId(original)));
+	}
+
+	/**
+	 * Handles a carbon copy (XEP-0280) of a chat message sent or received by
+	 * another resource of the account, adding it to the conversation with the
+	 * contact unless the same message was already received.
+	 * 
+	 * @param message
+	 *            The message received from the server.
+	 * @param carbon
+	 *            The sent or received element inside the message.
+	 */
+	private void processCarbon(Element message, Element carbon) {
+		//carbons can only come from our own account, anything else is spoofed
+		String from = message.getAttribute("from");
+		if(!from.equals("") && !from.equals(session.getUserBareJid()))
+			return;
+
+		Element forwarded = getChildElement(carbon, "forwarded", FORWARD_NAMESPACE);
+		Element original = forwarded == null ? null : getChildElement(forwarded, "message");
+		Element body = original == null ? null : getChildElement(original, "body");
+		if(body == null || !original.getAttribute("type").equalsIgnoreCase("chat"))
+			return;
+		if(isDuplicateMessage(original)){
+			System.out.println("\n" + "Dropping duplicate carbon " + original.getAttribute("id"));
+			return;
+		}
+
+		boolean sent = carbon.getTagName().equals("sent");
+		String peer = original.getAttribute(sent ? "to" : "from");
+		Contact contact = session.getContact(peer);
+		if(contact == null)
+			return;
+		Conversation convo = session.getConversation(contact);
+		if(sent){
+			convo.addSentCopy(new Message(null, contact, body.getTextContent(), new Date(),
+					getStanzaId(original), getOriginId(original)));
+		}else{
+			String[] fullJID = peer.split("/", 2);
+			convo.addIncomingMessage(new Message(contact, null, body.getTextContent(), new Date(),
+					getStanzaId(original), getOriginId(original)), fullJID.length > 1 ? fullJID[1] : null);
+		}
+	}
+
+	/**
+	 * Checks if a chat message was already received recently, directly or as
+	 * a carbon copy. Copies of the same message do not always carry the same
+	 * ids (the server may add its own id to only one of them), so all ids
+	 * available are checked: the server's stanza id, the sender's origin id,
+	 * and the id attribute qualified by the sender's bare JID.
+	 */
+	private boolean isDuplicateMessage(Element message) {
+		String sender = message.getAttribute("from").split("/", 2)[0];
+		String stanzaId = getStanzaId(message);
+		String originId = getOriginId(message);
+		String id = message.getAttribute("id");
+		return messageFilter.isDuplicate(
+				stanzaId == null ? null : "s " + stanzaId,
+				originId == null ? null : "o " + sender + " " + originId,
+				id.equals("") ? null : "i " + sender + " " + id);
+	}
+
+	/**
+	 * Returns the id assigned by our server archive to a live message
+	 * (XEP-0359), which is the same id used when the message is retrieved
+	 * from the archive.
+	 */
+	private String getStanzaId(Element message) {
+		for(Node node = message.getFirstChild(); node != null; node = node.getNextSibling())
+			if(node instanceof Element && ((Element) node).getTagName().equals("stanza-id")
+					&& SID_NAMESPACE.equals(((Element) node).getAttribute("xmlns"))
+					&& session.getUserBareJid().equals(((Element) node).getAttribute("by")))
+				return ((Element) node).getAttribute("id");
+		return null;
+	}
+
+	/**
+	 * Returns the id assigned to a message by the client that sent it
+	 * (XEP-0359).
+	 */
+	private static String getOriginId(Element message) {
+		Element originId = getChildElement(message, "origin-id", SID_NAMESPACE);
+		return originId == null ? null : originId.getAttribute("id");
+	}
+
+	private static boolean hasStatusCode(Element mucUser, String code) {
+		if(mucUser == null)
+			return false;
+		for(Node node = mucUser.getFirstChild(); node != null; node = node.getNextSibling())
+			if(node instanceof Element && ((Element) node).getTagName().equals("status")
+					&& code.equals(((Element) node).getAttribute("code")))
+				return true;
+		return false;
+	}
+
 	private void processIQ(Element toProcess) {
 		//at this point, this is trivial and should be taken out...
 		
 		String iqType = toProcess.getAttribute("type"); 
-		//assuming it has an element child because all iq elements seem to at least have one child
-		Element iqChild = (Element) toProcess.getFirstChild();
+		//not all iq elements have a child (e.g. results of a roster set), and the first child may be whitespace
+		Element iqChild = getFirstChildElement(toProcess);
+
+		if((iqType.equalsIgnoreCase("result") || iqType.equalsIgnoreCase(ERROR))
+				&& iqTracker.handleResponse(toProcess, session.getUserJid()))
+			return;
 
 		if(iqType.equalsIgnoreCase("result")){
-			if(iqChild != null){
-				//maybe don't include the if statement?
-				if(iqChild.getTagName().equalsIgnoreCase("query")){
-					System.out.println("This is your list of contacts, both acepted and not accepted");
-					this.addContacts(toProcess, true);
-				}
-			}else{
-				
-			//if it is null then you probably succesfully added a contact
-				System.out.println("\n" + "Hopefully this means you successfully added a contact.");
-			}	
+			//results of requests sent without sendIQ, e.g. adding a contact
+			System.out.println("\n" + "Hopefully this means you successfully added a contact.");
 		}else if(iqType.equalsIgnoreCase(ERROR)){
 			//then the child of the iq should have its own child which is the error specific info
-			//i.e. two children in... this is a leap in logic as it assumes that all errors have two nested children
-			//but this whole thing is rife with assumptions so why not add another one
-			Element itemNotFound = (Element) iqChild.getFirstChild();
-			//this this should have a nested item not found element
-			System.out.println("Attempted to request a roster that doesn't exist: Error of type" 
-			+ iqChild.getAttribute("type") + " and " + itemNotFound.getLocalName() + " description");
+			Element error = getChildElement(toProcess, "error");
+			Element condition = error == null ? null : getFirstChildElement(error);
+			System.out.println("Received an error of type " 
+			+ (error == null ? "unknown" : error.getAttribute("type")) + " and " 
+			+ (condition == null ? "no" : condition.getTagName()) + " description");
 		}else if(iqType.equalsIgnoreCase("set")){
-			this.addContacts(toProcess, false);
+			if(iqChild != null && ROSTER_NAMESPACE.equals(iqChild.getAttribute("xmlns")))
+				this.processRosterPush(toProcess, iqChild);
+			else if(fileTransferManager.processIQ(toProcess))
+				return;
+			else
+				this.sendIQError(toProcess, "service-unavailable");
 		}else if(iqType.equalsIgnoreCase("get")){
-			
+			if(iqChild != null && iqChild.getTagName().equals("ping") && PING_NAMESPACE.equals(iqChild.getAttribute("xmlns")))
+				this.sendIQResult(toProcess);
+			else if(iqChild != null && iqChild.getTagName().equals("query") && EntityCapsManager.DISCO_INFO_NAMESPACE.equals(iqChild.getAttribute("xmlns"))){
+				try {
+					entityCapsManager.processDiscoInfoRequest(toProcess);
+				} catch (XMPPException e) {
+					session.processReceivedException(e);
+				}
+			}
+			else
+				this.sendIQError(toProcess, "service-unavailable");
 		}
 			
 	}
 
-	private void addContacts(Element toProcess, boolean isARosterResult) {
-		NodeList contacts = toProcess.getElementsByTagName("item");
-		for(int i = 0; i < contacts.getLength(); i++){
-			Element elem = (Element) contacts.item(i);
+	/**
+	 * Sends an empty result in response to an iq request.
+	 * 
+	 * @param request
+	 *            The iq request being answered.
+	 */
+	void sendIQResult(Element request) {
+		Element result = xmppWriter.createElement("iq");
+		result.setAttribute("id", request.getAttribute("id"));
+		result.setAttribute("type", "result");
+		if(request.hasAttribute("from"))
+			result.setAttribute("to", request.getAttribute("from"));
+		try {
+			sendStanza(result);
+		} catch (XMPPException e) {
+			session.processReceivedException(e);
+		}
+	}
+
+	/**
+	 * Sends an error in response to an iq request that is not supported, as
+	 * required by RFC 6120 for requests of type get and set.
+	 * 
+	 * @param request
+	 *            The iq request being answered.
+	 * @param condition
+	 *            The defined error condition (e.g., service-unavailable).
+	 */
+	void sendIQError(Element request, String condition) {
+		Element result = xmppWriter.createElement("iq");
+		result.setAttribute("id", request.getAttribute("id"));
+		result.setAttribute("type", ERROR);
+		if(request.hasAttribute("from"))
+			result.setAttribute("to", request.getAttribute("from"));
+		Element error = xmppWriter.createElement("error");
+		error.setAttribute("type", "cancel");
+		Element conditionElement = xmppWriter.createElement(condition);
+		conditionElement.setAttribute("xmlns", "urn:ietf:params:xml:ns:xmpp-stanzas");
+		error.appendChild(conditionElement);
+		result.appendChild(error);
+		try {
+			sendStanza(result);
+		} catch (XMPPException e) {
+			session.processReceivedException(e);
+		}
+	}
+
+	/**
+	 * Sends a keepalive to the server: either a ping (XEP-0199), which the
+	 * server must answer, or a single whitespace character. Errors are
+	 * ignored, since a broken connection is handled by the listening thread.
+	 * 
+	 * @param ping
+	 *            <code>true</code> if a ping should be sent, <code>false</code>
+	 *            if whitespace should be sent.
+	 */
+	private void sendKeepAlive(boolean ping) {
+		try {
+			if(ping){
+				Element iq = xmppWriter.createElement("iq");
+				iq.setAttribute("id", this.getUniqueIdValue());
+				iq.setAttribute("type", "get");
+				iq.setAttribute("to", domain);
+				Element pingElement = xmppWriter.createElement("ping");
+				pingElement.setAttribute("xmlns", PING_NAMESPACE);
+				iq.appendChild(pingElement);
+				// the response only matters as activity on the stream
+				sendIQ(iq, configuration.getPingTimeout());
+			}else{
+				synchronized (writeLock) {
+					// the stream being re-established is activity enough
+					if (streamReady)
+						xmppWriter.writeWhitespaceKeepAlive();
+				}
+			}
+		} catch (XMPPException e) {
+			// Ignore, the listening thread will detect the broken connection
+		}
+	}
+
+	/**
+	 * Handles the response to the request for the contact list. If the response
+	 * has no query element, the roster did not change since the version cached
+	 * locally, so the cached contacts are kept. Otherwise the response contains
+	 * the complete list of contacts, which replaces the local copy.
+	 * 
+	 * @param query
+	 *            The query element in the response, or null if there is none.
+	 * @param requestTime
+	 *            Time when the request was sent.
+	 */
+	private void processRosterResult(Element query, long requestTime) {
+		Session.ContactBatch batch = session.beginContactBatch();
+		try {
+			applyRosterResult(query);
+		} finally {
+			session.endContactBatch(batch);
+		}
+		session.saveRosterCache();
+		System.out.println("\n" + "Contact list ready with " + session.getContacts().size()
+				+ " contacts, " + (System.currentTimeMillis() - requestTime) + " ms after request.");
+	}
+
+	private void applyRosterResult(Element query) {
+		if(query == null){
+			System.out.println("\n" + "Contact list unchanged since version "
+					+ session.getRosterVersion());
+		}else{
+			Set<String> receivedJids = new HashSet<String>();
+			this.addContacts(query, receivedJids);
+			session.retainContacts(receivedJids);
+			if(query.hasAttribute("ver"))
+				session.setRosterVersion(query.getAttribute("ver"));
+		}
+	}
+
+	/**
+	 * Handles a roster push, i.e., a change in the list of contacts sent by the
+	 * server. The change is applied to the local copy, the roster version is
+	 * updated (if provided) and the push is acknowledged, as required by RFC
+	 * 6121. The roster cache is saved shortly after.
+	 * 
+	 * @param iq
+	 *            The iq element containing the push.
+	 * @param query
+	 *            The query element inside the iq.
+	 */
+	private void processRosterPush(Element iq, Element query) {
+		//pushes can only come from the server or our own account, anything else is spoofed
+		String from = iq.getAttribute("from");
+		if(!from.equals("") && !from.equals(session.getUserBareJid()) && !from.equals(session.getUserJid()))
+			return;
+
+		this.addContacts(query, null);
+		if(query.hasAttribute("ver"))
+			session.setRosterVersion(query.getAttribute("ver"));
+		session.saveRosterCacheLater();
+
+		this.sendIQResult(iq);
+	}
+
+	/**
+	 * Applies the items of a roster query (either a complete list or a push)
+	 * to the local list of contacts.
+	 * 
+	 * @param query
+	 *            The query element containing the items.
+	 * @param receivedJids
+	 *            If not null, the bare JIDs of the contacts kept in the list
+	 *            are added to this set.
+	 */
+	private void addContacts(Element query, Set<String> receivedJids) {
+		for(Node node = query.getFirstChild(); node != null; node = node.getNextSibling()){
+			if(!(node instanceof Element) || !((Element) node).getTagName().equals("item"))
+				continue;
+			Element elem = (Element) node;
+			String user = elem.getAttribute("jid");
 			String subscription = elem.getAttribute("subscription");
 			String ask = elem.getAttribute("ask");
-			if((subscription != null)){
-				String user = elem.getAttribute("jid");
-				Contact nullIfNew = session.getContact(user);
-//				if(ask.equalsIgnoreCase("subscribe")){
-//					//session.
-//					session.handleReceivedSubscriptionRequest(user);
-//					//TODO: figure out if you need to add the contact now, or later
-//				}
-				if(subscription.equalsIgnoreCase("both") || subscription.equalsIgnoreCase("to") || ask.equalsIgnoreCase("ask")){
-					String alias = elem.getAttribute("name");
-					//the following would be more efficient. but i have a feeling you can't do it like this
-					if(nullIfNew == null){
-						session.addReceivedContact(new Contact(user, alias));
-					}
-				}else if(subscription.equalsIgnoreCase("remove")){
-					if(nullIfNew == null){
-						session.removeContact(nullIfNew);
+			String alias = elem.getAttribute("name");
+			Set<String> groups = getGroups(elem);
+			Contact existing = session.getContact(user);
+
+			if(subscription.equalsIgnoreCase("both") || subscription.equalsIgnoreCase("to") || ask.equalsIgnoreCase("subscribe")){
+				if(receivedJids != null)
+					receivedJids.add(user);
+				if(existing == null){
+					try{
+						session.addReceivedContact(new Contact(user, alias, groups));
+					}catch(InvalidParameterException e){
+						//server-side entities (without a local part) are not shown as contacts
 					}
-				}else if(ask.equalsIgnoreCase("subscribe") && !isARosterResult){
-					//then you got a request foa contact i think
+				}else if(!alias.equals(existing.getAlias()) || !groups.equals(existing.getGroups())){
+					session.updateReceivedContact(existing, alias, groups);
 				}
-				
+			}else if(existing != null){
+				//removed, or no longer subscribed to the contact's presence
+				session.removeContact(existing);
 			}
-			
 		}
-		
+	}
+
+	/**
+	 * Returns the names of the groups listed in the group children of a roster
+	 * item (RFC 6121, section 2.1.2.5).
+	 */
+	private static Set<String> getGroups(Element item) {
+		Set<String> groups = new TreeSet<String>();
+		for(Node node = item.getFirstChild(); node != null; node = node.getNextSibling())
+			if(node instanceof Element && ((Element) node).getTagName().equals("group")){
+				String group = node.getTextContent().trim();
+				if(!group.isEmpty())
+					groups.add(group);
+			}
+		return groups;
+	}
+
+	/**
+	 * Adds one group child to a roster item for each group of the contact.
+	 */
+	private void appendGroups(Element item, Contact contact) {
+		for(String group : contact.getGroups()){
+			Element groupElement = xmppWriter.createElement("group");
+			groupElement.setTextContent(group);
+			item.appendChild(groupElement);
+		}
+	}
+
+	private static Element getFirstChildElement(Element parent) {
+		for(Node node = parent.getFirstChild(); node != null; node = node.getNextSibling())
+			if(node instanceof Element)
+				return (Element) node;
+		return null;
+	}
+
+	private static Element getChildElement(Element parent, String tagName) {
+		for(Node node = parent.getFirstChild(); node != null; node = node.getNextSibling())
+			if(node instanceof Element && ((Element) node).getTagName().equals(tagName))
+				return (Element) node;
+		return null;
+	}
+
+	private static Element getChildElement(Element parent, String tagName, String namespace) {
+		for(Node node = parent.getFirstChild(); node != null; node = node.getNextSibling())
+			if(node instanceof Element && ((Element) node).getTagName().equals(tagName)
+					&& namespace.equals(((Element) node).getAttribute("xmlns")))
+				return (Element) node;
+		return null;
 	}
 
 	/**
@@ -612,37 +2033,50 @@ public class XMPPConnection {
 		 * check if the connection has already been closed and, if so, return without taking any action.
 		 */
 		/* YOUR CODE HERE */
-		if(!socket.isClosed()){
-			Element presence = null;
-			//i think you only send a presence if the document is INCOMPLETE
-			if(!xmppReader.isDocumentComplete()){
-				presence = xmppWriter.createElement("presence");
-				presence.setAttribute("type", "unavailable");
-				Element status = xmppWriter.createElement("status");
-				status.setTextContent("leaving");
-				presence.appendChild(status);
-			}
-			
+		closing = true;
+		reconnectManager.cancel();
+		synchronized (writeLock) {
+			// stanzas sent while the connection was being recovered
+			heldStanzas.clear();
+		}
+		keepAliveManager.stop();
+		iqTracker.failAll(new XMPPException("Connection closed."));
+		fileTransferManager.shutdown();
+		System.out.println("\n" + "Entity capabilities cache: " + entityCapsManager);
+		System.out.println("\n" + "Duplicate message filter: " + messageFilter);
+		if(!transport.isClosed())
+			outboundQueue.flush();
+		System.out.println("\n" + "Outbound queue: " + outboundQueue);
+		System.out.println("\n" + "Presence: " + presenceDebouncer);
+		if(!transport.isClosed()){
+			// the unavailable presence was already sent by the session, through
+			// the presence debouncer, and written by the flush above
 			//now actually close the stream
 			try {
-				if(presence != null) 
-					xmppWriter.writeIndividualElement(presence);
-				xmppWriter.writeCloseTagRootElement();
+				synchronized (writeLock) {
+					// stanzas sent from now on are not written after the
+					// closing tag
+					streamReady = false;
+					xmppWriter.writeCloseTagRootElement();
+				}
 				System.out.println();
 				System.out.println("Closing socket connection: debugging");
-				xmppWriter.debugElement(System.out, presence);
 				xmppReader.waitForCloseDocument();
 				System.out.println("Is doc complete? " + xmppReader.isDocumentComplete());
 			} catch (XMPPException e) {
 				e.printStackTrace();
 			} finally {
 				try {
-					socket.close();
+					transport.close();
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
 			}
 		}
+		// the statistics stay available after the connection is closed
+		StreamCompression current = compression;
+		if (current != null)
+			current.end();
 
 		
 	}
@@ -669,26 +2103,212 @@ public class XMPPConnection {
 		contactLR.setAttribute("id", this.getUniqueIdValue());
 		contactLR.setAttribute("type", "get");
 		Element query = xmppWriter.createElement("query");
-		query.setAttribute("xmlns", "jabber:iq:roster");
+		query.setAttribute("xmlns", ROSTER_NAMESPACE);
+		//with roster versioning the server only sends what changed since the cached version
+		if(isRosterVersioningSupported()){
+			String version = session.getRosterVersion();
+			query.setAttribute("ver", version == null ? "" : version);
+		}
 		contactLR.appendChild(query);
-		xmppWriter.writeIndividualElement(contactLR);
+		final long requestTime = System.currentTimeMillis();
+		IQFuture response = sendIQ(contactLR);
 		System.out.println("\n" + "Sending request for contact list: ");
 		xmppWriter.debugElement(System.out, contactLR);
+		response.addCallback(new IQFuture.Callback() {
+			@Override
+			public void completed(Element result) {
+				processRosterResult(getFirstChildElement(result), requestTime);
+			}
+
+			@Override
+			public void failed(XMPPException exception) {
+				System.out.println("\n" + "Could not retrieve contact list: "
+						+ exception.getMessage());
+			}
+		});
+	}
+
+	/**
+	 * Sends an iq request and returns a future that is completed when the
+	 * matching response is received. Requests are not blocking, so many of
+	 * them may be outstanding at the same time. If the request has no id, a
+	 * unique id is assigned. The request fails if no response is received
+	 * within the iq timeout in the configuration, or if the session is lost.
+	 * 
+	 * @param iq
+	 *            The iq element to be sent, of type get or set.
+	 * @return The future response.
+	 * @throws XMPPException
+	 *             If there was a problem sending the request.
+	 */
+	public IQFuture sendIQ(Element iq) throws XMPPException {
+		return sendIQ(iq, configuration.getIqTimeout());
+	}
+
+	/**
+	 * Sends an iq request and returns a future that is completed when the
+	 * matching response is received, or fails if no response is received
+	 * within the specified timeout.
+	 * 
+	 * @param iq
+	 *            The iq element to be sent, of type get or set.
+	 * @param timeoutMillis
+	 *            Time to wait for the response, in milliseconds.
+	 * @return The future response.
+	 * @throws XMPPException
+	 *             If there was a problem sending the request.
+	 */
+	public IQFuture sendIQ(Element iq, long timeoutMillis) throws XMPPException {
+		if(iq.getAttribute("id").length() == 0)
+			iq.setAttribute("id", this.getUniqueIdValue());
+		String id = iq.getAttribute("id");
+		// registers before sending, since the response may arrive before sendStanza returns
+		IQFuture response = iqTracker.register(id, iq.getAttribute("to"),
+				timeoutMillis);
+		try {
+			sendStanza(iq);
+		} catch (XMPPException e) {
+			iqTracker.unregister(id);
+			throw e;
+		}
+		return response;
+	}
+
+	/**
+	 * Creates a new element that can be sent through this connection, e.g.,
+	 * as a request with <code>sendIQ</code>.
+	 * 
+	 * @param tagName
+	 *            Name of the element.
+	 * @return The new element.
+	 */
+	public Element createElement(String tagName) {
+		return xmppWriter.createElement(tagName);
+	}
+
+	/**
+	 * Returns the manager of file transfers for this connection.
+	 * 
+	 * @return The file transfer manager.
+	 */
+	public FileTransferManager getFileTransferManager() {
+		return fileTransferManager;
+	}
+
+	/**
+	 * Returns the entity capabilities manager for this connection, which
+	 * knows the features supported by other resources.
+	 * 
+	 * @return The entity capabilities manager.
+	 */
+	public EntityCapsManager getEntityCapsManager() {
+		return entityCapsManager;
+	}
+
+	/**
+	 * Returns the full JID bound to this connection.
+	 */
+	String getLocalJid() {
+		return session.getUserJid();
+	}
+
+	/**
+	 * Returns the local address of the connection to the server, which is
+	 * the address most likely reachable by other clients for direct
+	 * connections.
+	 */
+	InetAddress getLocalAddress() {
+		return transport.getLocalAddress();
+	}
+
+	/**
+	 * Returns the number of iq requests waiting for a response.
+	 * 
+	 * @return Number of pending requests.
+	 */
+	public int getPendingRequestCount() {
+		return iqTracker.getPendingCount();
+	}
+
+	/**
+	 * Returns the manager of automatic reconnections for this connection,
+	 * which also keeps reconnection metrics.
+	 * 
+	 * @return The reconnect manager.
+	 */
+	public ReconnectManager getReconnectManager() {
+		return reconnectManager;
+	}
+
+	/**
+	 * Verifies if the server supports roster versioning (XEP-0237), based on
+	 * the features advertised after authentication.
+	 * 
+	 * @return <code>true</code> if roster versioning is supported,
+	 *         <code>false</code> otherwise.
+	 */
+	private boolean isRosterVersioningSupported() {
+		NodeList versionFeatures = features.getElementsByTagName("ver");
+		for(int i = 0; i < versionFeatures.getLength(); i++)
+			if(ROSTER_VERSIONING_NAMESPACE.equals(((Element) versionFeatures.item(i)).getAttribute("xmlns")))
+				return true;
+		return false;
 	}
 
-	private String getUniqueIdValue() {
-		return "sammy" + incid++;
+	/**
+	 * Returns the compression layer of the current stream, which keeps
+	 * statistics about the compression ratio and cost.
+	 * 
+	 * @return The compression layer, or null if the stream is not compressed.
+	 */
+	public StreamCompression getStreamCompression() {
+		return compression;
+	}
+
+	/**
+	 * Returns the queue limiting the rate at which stanzas are sent, which
+	 * keeps statistics about the time stanzas waited.
+	 * 
+	 * @return The outbound queue.
+	 */
+	public OutboundQueue getOutboundQueue() {
+		return outboundQueue;
+	}
+
+	/**
+	 * Returns the object deciding when changes of the user's status are sent,
+	 * which keeps statistics about the presences sent and suppressed.
+	 * 
+	 * @return The presence debouncer.
+	 */
+	public PresenceDebouncer getPresenceDebouncer() {
+		return presenceDebouncer;
+	}
+
+	String getUniqueIdValue() {
+		return iqTracker.nextId();
+	}
+
+	/**
+	 * Returns a random id for a stanza seen by other entities, from which
+	 * the ids of pending requests cannot be guessed.
+	 * 
+	 * @return A new unique id.
+	 */
+	String getStanzaIdValue() {
+		return iqTracker.nextStanzaId();
 	}
 
 	/**
 	 * Sends an updated status information to the server, based on the status
-	 * currently attributed to the session.
+	 * currently attributed to the session. The status is not sent if it was
+	 * already sent, and rapid changes are combined (see PresenceDebouncer).
 	 * 
 	 * @throws XMPPException
 	 *             If there was a problem sending the status.
 	 */
 	public void sendCurrentStatus() throws XMPPException {
-		sendStatus(session.getCurrentStatus());
+		presenceDebouncer.statusChanged(session.getCurrentStatus());
 	}
 
 	/**
@@ -709,6 +2329,7 @@ public class XMPPConnection {
 				showElem.setTextContent(showString);
 				presence.appendChild(showElem);
 			}
+			presence.appendChild(entityCapsManager.createCapsElement());
 		}else{
 			presence.setAttribute("type", "unavailable");
 		}
@@ -719,7 +2340,7 @@ public class XMPPConnection {
 			userContent.setTextContent(userMes);
 			presence.appendChild(userContent);
 		}
-		xmppWriter.writeIndividualElement(presence);
+		sendStanza(presence);
 		System.out.println("\n" + "And here is the presence that was sent (hopefully): " + presence);
 		xmppWriter.debugElement(System.out, presence);
 	}
@@ -750,16 +2371,16 @@ public class XMPPConnection {
 		
 		Element item = xmppWriter.createElement("item");
 		item.setAttribute("jid", contact.getBareJid());
-		item.setAttribute("group", "groupname");
 		
 		if(contact.getAlias() !=null){
 			item.setAttribute("name", contact.getAlias());
 		}
+		appendGroups(item, contact);
 		
 		query.appendChild(item);
 		iq.appendChild(query);
 		
-		xmppWriter.writeIndividualElement(iq);
+		sendStanza(iq);
 		System.out.println("\n" + "Request for contact: ");
 		xmppWriter.debugElement(System.out, iq);
 		//also simultaneously want to send a request for the subscription
@@ -769,11 +2390,11 @@ public class XMPPConnection {
 
 	private void sendRequestForSubscription(Contact contact) throws XMPPException {
 		Element presence = xmppWriter.createElement("presence");
-		presence.setAttribute("id", this.getUniqueIdValue());
+		presence.setAttribute("id", this.getStanzaIdValue());
 		presence.setAttribute("to", contact.getBareJid());
 		presence.setAttribute("type", "subscribe");
 		
-		xmppWriter.writeIndividualElement(presence);
+		sendStanza(presence);
 		
 		System.out.println("\n" + "THis will be the request for the presence that comes with the request for the contact");
 		xmppWriter.debugElement(System.out, presence);
@@ -795,13 +2416,13 @@ public class XMPPConnection {
 	public void respondContactRequest(String jid, boolean accepted)
 			throws XMPPException {
 		Element presence = xmppWriter.createElement("presence");
-		presence.setAttribute("id", this.getUniqueIdValue());
+		presence.setAttribute("id", this.getStanzaIdValue());
 		if(accepted){
 			presence.setAttribute("type", "subscribed");
 		}else{
 			presence.setAttribute("type", "unsubscribed");
 		}
-		xmppWriter.writeIndividualElement(presence);
+		sendStanza(presence);
 		
 		/* YOUR CODE HERE */
 	}
@@ -822,16 +2443,265 @@ public class XMPPConnection {
 	 */
 	public void removeAndUnsubscribeContact(Contact contact)
 			throws XMPPException {
+		//the server cancels the subscriptions in both directions when the item is removed (RFC 6121, 2.5.2)
+		sendIQ(createRosterItemRequest(contact, true));
+	}
+
+	/**
+	 * Sends requests that many contacts be added to the list of contacts, and
+	 * requests authorization to receive their status updates. See
+	 * <code>sendRosterBatch</code> for how requests are pipelined.
+	 * 
+	 * @param contacts
+	 *            Contacts to be requested.
+	 * @return The outcome of the request for each contact, completed when all
+	 *         requests are answered.
+	 */
+	public RosterBatchResult sendNewContactRequests(Collection<Contact> contacts) {
+		return sendRosterBatch(contacts, RosterOperation.ADD);
+	}
+
+	/**
+	 * Sends requests that the alias of many contacts be changed in the list
+	 * of contacts stored in the server.
+	 * 
+	 * @param contacts
+	 *            Contacts with their new aliases.
+	 * @return The outcome of the request for each contact, completed when all
+	 *         requests are answered.
+	 */
+	public RosterBatchResult sendContactUpdates(Collection<Contact> contacts) {
+		return sendRosterBatch(contacts, RosterOperation.UPDATE);
+	}
+
+	/**
+	 * Sends requests that many contacts be removed from the list of contacts,
+	 * which also cancels the subscriptions in both directions.
+	 * 
+	 * @param contacts
+	 *            Contacts to be removed.
+	 * @return The outcome of the request for each contact, completed when all
+	 *         requests are answered.
+	 */
+	public RosterBatchResult removeAndUnsubscribeContacts(
+			Collection<Contact> contacts) {
+		return sendRosterBatch(contacts, RosterOperation.REMOVE);
+	}
+
+	/**
+	 * Sends one roster request per contact without waiting for each response,
+	 * but with at most the configured window of requests waiting for a
+	 * response at any time. Requests are written by the connection's writer,
+	 * which sends the next ones as responses arrive, so this method returns
+	 * immediately and the caller (which may be the listening thread itself)
+	 * never waits for the responses. The result is completed when all
+	 * requests are answered (or time out).
+	 * 
+	 * @param contacts
+	 *            Contacts included in the operation.
+	 * @param operation
+	 *            Operation applied to each contact.
+	 * @return The outcome of the request for each contact.
+	 */
+	private RosterBatchResult sendRosterBatch(Collection<Contact> contacts,
+			RosterOperation operation) {
+		RosterBatch batch = new RosterBatch(contacts, operation);
+		writer.execute(batch);
+		return batch.result;
+	}
+
+	/**
+	 * State of a bulk roster operation, run in the connection's writer each
+	 * time requests can be sent.
+	 */
+	private class RosterBatch implements Runnable {
+
+		private final RosterBatchResult result = new RosterBatchResult();
+		private final Iterator<Contact> pending;
+		private final int total;
+		private final RosterOperation operation;
+		private final long start = System.currentTimeMillis();
+		private int inFlight = 0;
+
+		private RosterBatch(Collection<Contact> contacts,
+				RosterOperation operation) {
+			this.pending = new ArrayList<Contact>(contacts).iterator();
+			this.total = contacts.size();
+			this.operation = operation;
+		}
+
+		@Override
+		public void run() {
+			int window = configuration.getRosterBatchWindow();
+			while (true) {
+				final Contact contact;
+				synchronized (this) {
+					if (!pending.hasNext()) {
+						if (inFlight > 0)
+							return;
+						break;
+					}
+					if (inFlight >= window)
+						return;
+					contact = pending.next();
+					inFlight++;
+				}
+				IQFuture response;
+				try {
+					response = sendIQ(createRosterItemRequest(contact, operation == RosterOperation.REMOVE));
+				} catch (XMPPException e) {
+					result.addFailure(contact.getBareJid(), e);
+					synchronized (this) {
+						inFlight--;
+					}
+					continue;
+				}
+				// the next requests, and the subscription request for an added
+				// contact, are sent by the writer, not by the thread that
+				// completes the response (listening thread or timer); each
+				// contact records exactly one outcome
+				response.addCallback(new IQFuture.Callback() {
+					@Override
+					public void completed(Element iq) {
+						if (operation != RosterOperation.ADD) {
+							result.addSuccess(contact.getBareJid());
+							responded();
+							return;
+						}
+						writer.execute(new Runnable() {
+							@Override
+							public void run() {
+								try {
+									sendRequestForSubscription(contact);
+									result.addSuccess(contact.getBareJid());
+								} catch (XMPPException e) {
+									result.addFailure(contact.getBareJid(), e);
+								}
+								responded();
+							}
+						});
+					}
+
+					@Override
+					public void failed(XMPPException exception) {
+						result.addFailure(contact.getBareJid(), exception);
+						responded();
+					}
+				});
+			}
+
+			if (result.isDone())
+				return;
+			System.out.println("\n" + "Roster " + operation.name().toLowerCase() + " of "
+					+ total + " contacts: " + result + " in "
+					+ (System.currentTimeMillis() - start) + " ms.");
+			result.complete();
+		}
+
+		private void responded() {
+			synchronized (this) {
+				inFlight--;
+			}
+			writer.execute(this);
+		}
+	}
+
+	/**
+	 * Creates a roster set request for a single contact.
+	 * 
+	 * @param contact
+	 *            Contact to be added, changed or removed.
+	 * @param remove
+	 *            <code>true</code> if the contact should be removed.
+	 * @return The iq element, without an id.
+	 */
+	private Element createRosterItemRequest(Contact contact, boolean remove) {
 		Element iq = xmppWriter.createElement("iq");
-		iq.setAttribute("id", this.getUniqueIdValue());
 		iq.setAttribute("type", "set");
 		Element query = xmppWriter.createElement("query");
-		query.setAttribute("xmlns", "jabber:iq:roster");
+		query.setAttribute("xmlns", ROSTER_NAMESPACE);
 		Element item = xmppWriter.createElement("item");
 		item.setAttribute("jid", contact.getBareJid());
-		item.setAttribute("subscription", "remove");
+		if(remove)
+			item.setAttribute("subscription", "remove");
+		else{
+			if(contact.getAlias() != null)
+				item.setAttribute("name", contact.getAlias());
+			// a roster set replaces the whole item, so the groups are sent
+			// again, or the contact would be removed from them
+			appendGroups(item, contact);
+		}
 		query.appendChild(item);
 		iq.appendChild(query);
+		return iq;
+	}
+
+	/**
+	 * Sends a request to join a multi-user chat room, using the nickname
+	 * associated to the room. The room history is requested with as many
+	 * messages as the room keeps locally. The room is joined once the room
+	 * sends back the presence of the local user, which is handled by the
+	 * listening process.
+	 * 
+	 * @param room
+	 *            The room to be joined.
+	 * @throws XMPPException
+	 *             If there was a problem sending the request.
+	 */
+	public void sendRoomJoin(ChatRoom room) throws XMPPException {
+		Element presence = xmppWriter.createElement("presence");
+		presence.setAttribute("id", this.getStanzaIdValue());
+		presence.setAttribute("to", room.getRoomJid() + "/" + room.getNick());
+		String show = session.getCurrentStatus() == null ? null : session.getCurrentStatus().getXmppShow();
+		if(show != null){
+			Element showElem = xmppWriter.createElement("show");
+			showElem.setTextContent(show);
+			presence.appendChild(showElem);
+		}
+		Element x = xmppWriter.createElement("x");
+		x.setAttribute("xmlns", MUC_NAMESPACE);
+		Element history = xmppWriter.createElement("history");
+		history.setAttribute("maxstanzas", String.valueOf(room.getHistory().getCapacity()));
+		x.appendChild(history);
+		presence.appendChild(x);
+		sendStanza(presence);
+	}
+
+	/**
+	 * Sends a notification that the local user is leaving a multi-user chat
+	 * room.
+	 * 
+	 * @param room
+	 *            The room being left.
+	 * @throws XMPPException
+	 *             If there was a problem sending the notification.
+	 */
+	public void sendRoomLeave(ChatRoom room) throws XMPPException {
+		Element presence = xmppWriter.createElement("presence");
+		presence.setAttribute("to", room.getRoomJid() + "/" + room.getNick());
+		presence.setAttribute("type", "unavailable");
+		sendStanza(presence);
+	}
+
+	/**
+	 * Sends a message to all occupants of a multi-user chat room.
+	 * 
+	 * @param room
+	 *            The room where the message is sent.
+	 * @param text
+	 *            Body of the message.
+	 * @throws XMPPException
+	 *             If there was a problem sending the message.
+	 */
+	public void sendRoomMessage(ChatRoom room, String text) throws XMPPException {
+		Element message = xmppWriter.createElement("message");
+		message.setAttribute("to", room.getRoomJid());
+		message.setAttribute("type", "groupchat");
+		message.setAttribute("id", this.getStanzaIdValue());
+		Element body = xmppWriter.createElement("body");
+		body.setTextContent(text);
+		message.appendChild(body);
+		sendStanza(message);
 	}
 
 	/**
@@ -850,7 +2720,7 @@ public class XMPPConnection {
 		Element toSend = xmppWriter.createElement("message");
 		toSend.setAttribute("type", "chat");	
 		toSend.setAttribute("xml:lang", "en");
-		toSend.setAttribute("id", this.getUniqueIdValue() + message.getTimestamp().getTime());
+		toSend.setAttribute("id", this.getStanzaIdValue());
 		
 		//--- SETTING FROM ---
 		Contact fromContact = message.getFrom();
@@ -906,7 +2776,14 @@ public class XMPPConnection {
 		Element body = xmppWriter.createElement("body");
 		body.setTextContent(message.getTextMessage());
 		toSend.appendChild(body);
-		xmppWriter.writeIndividualElement(toSend);
+		//the origin id lets the message be recognised when it comes back from the archive
+		if(message.getOriginId() == null)
+			message.setOriginId(toSend.getAttribute("id"));
+		Element originId = xmppWriter.createElement("origin-id");
+		originId.setAttribute("xmlns", SID_NAMESPACE);
+		originId.setAttribute("id", message.getOriginId());
+		toSend.appendChild(originId);
+		sendStanza(toSend);
 		System.out.println("\n" + "THis is what you're sending as the message info");
 		xmppWriter.debugElement(System.out, toSend);
 		
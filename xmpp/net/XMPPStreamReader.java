@@ -14,10 +14,14 @@
 package ubc.cs317.xmpp.net;
 
 import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Queue;
+import java.util.Set;
 import java.util.Stack;
 
 import javax.xml.parsers.DocumentBuilder;
@@ -44,6 +48,14 @@ public class XMPPStreamReader {
 
 	private static final int MARK_READLIMIT = 10000;
 
+	/**
+	 * Second level elements after which the server starts using a new layer
+	 * over the byte stream (e.g. TLS or compression). Reading is suspended after one
+	 * of these elements is received, until a new input stream is provided.
+	 */
+	private static final Set<String> STREAM_LAYER_SWITCH_TAGS = new HashSet<String>(
+			Arrays.asList("proceed", "compressed"));
+
 	private Document baseDocument;
 	private Stack<Element> currentElementContainerStack = new Stack<Element>();
 	private Queue<Element> firstOrSecondLevelQueue = new LinkedList<Element>();
@@ -51,6 +63,7 @@ public class XMPPStreamReader {
 	private boolean receivedOneCompleteElement;
 
 	private InputStream inputStream;
+	private InputStream replacementStream = null;
 	private Thread readingThread;
 
 	/**
@@ -122,6 +135,23 @@ public class XMPPStreamReader {
 		}
 	}
 
+	/**
+	 * Provides the input stream from which reading should continue after
+	 * reading was suspended by an element that switches the stream layer (such
+	 * as the element confirming that compression was enabled). The new stream
+	 * is expected to start a new XML document (i.e., a new stream header).
+	 * 
+	 * @param stream
+	 *            InputStream corresponding to the new layer over the source of
+	 *            the XMPP stream.
+	 */
+	public void restartWithInputStream(InputStream stream) {
+		synchronized (this) {
+			this.replacementStream = stream;
+			this.notifyAll();
+		}
+	}
+
 	/**
 	 * Checks if a given element corresponds to the base document. This method
 	 * is useful to identify if a element retrieved from the stream corresponds
@@ -156,6 +186,12 @@ public class XMPPStreamReader {
 		}
 	}
 
+	private class SuspendProcessingException extends SAXException {
+		public SuspendProcessingException() {
+			super();
+		}
+	}
+
 	private class XMPPHandler extends DefaultHandler {
 
 		@Override
@@ -227,6 +263,12 @@ public class XMPPStreamReader {
 
 			inputStream.mark(MARK_READLIMIT);
 			receivedOneCompleteElement = true;
+
+			// Nothing else can be read from the current stream once the
+			// server switches to a new layer, so parsing stops here.
+			if (currentElementContainerStack.size() == 1
+					&& STREAM_LAYER_SWITCH_TAGS.contains(qName))
+				throw new SuspendProcessingException();
 		}
 
 		@Override
@@ -264,13 +306,33 @@ public class XMPPStreamReader {
 		try {
 			SAXParserFactory saxFactory = SAXParserFactory.newInstance();
 			SAXParser saxParser = saxFactory.newSAXParser();
-			saxParser.parse(inputStream, new XMPPHandler());
+			// the parser closes its input when it stops, but parsing is
+			// restarted on the same stream
+			saxParser.parse(new FilterInputStream(inputStream) {
+				@Override
+				public void close() {
+				}
+			}, new XMPPHandler());
 		} catch (RestartProcessingException ex) {
 			// This exception is used only to restart the XML
 			// processing.
 			// It is not an error.
 			System.out.println("Processing restart requested.");
 			saxReadingProcess();
+		} catch (SuspendProcessingException ex) {
+			// The stream layer is changing. Waits for the new input stream
+			// and continues reading from it.
+			synchronized (this) {
+				while (replacementStream == null) {
+					try {
+						this.wait();
+					} catch (InterruptedException e) {
+					}
+				}
+				inputStream = new BufferedInputStream(replacementStream);
+				replacementStream = null;
+			}
+			saxReadingProcess();
 		} catch (Exception ex) {
 			setOutstandingException(new XMPPException(
 					"Communication interrupted."
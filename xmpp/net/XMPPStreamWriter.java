@@ -84,6 +84,20 @@ public class XMPPStreamWriter {
 		}
 	}
 
+	/**
+	 * Replaces the output stream to which elements are written. This is used
+	 * when a new layer (e.g. compression) is negotiated over the existing
+	 * stream. Any data already written should be flushed before this method is
+	 * called.
+	 * 
+	 * @param stream
+	 *            OutputStream corresponding to the new destination of the XMPP
+	 *            stream.
+	 */
+	public void setOutputStream(OutputStream stream) {
+		this.stream = stream;
+	}
+
 	/**
 	 * Creates a new element.
 	 * 
@@ -147,6 +161,7 @@ public class XMPPStreamWriter {
 							+ "[^>]*>", "");
 
 			stream.write(result.getBytes());
+			stream.flush();
 
 		} catch (Exception e) {
 			throw new XMPPException("Could not send opening tag: "
@@ -170,6 +185,9 @@ public class XMPPStreamWriter {
 			Source src = new DOMSource(element);
 			Result dest = new StreamResult(stream);
 			transformerNoDeclaration.transform(src, dest);
+			// flushing marks the end of a stanza for layers that buffer data
+			// (e.g. compression)
+			stream.flush();
 
 		} catch (Exception e) {
 			throw new XMPPException(
@@ -177,6 +195,25 @@ public class XMPPStreamWriter {
 		}
 	}
 
+	/**
+	 * Writes a single whitespace character to the stream, which is used as a
+	 * keepalive between elements.
+	 * 
+	 * @throws XMPPException
+	 *             If there was a problem writing the whitespace.
+	 */
+	public void writeWhitespaceKeepAlive() throws XMPPException {
+
+		try {
+			stream.write(' ');
+			stream.flush();
+
+		} catch (Exception e) {
+			throw new XMPPException("Could not send keepalive: "
+					+ e.getMessage(), e);
+		}
+	}
+
 	/**
 	 * Writes the closing tag for the root element of the XML stream document.
 	 * 
@@ -188,6 +225,7 @@ public class XMPPStreamWriter {
 		try {
 			Element root = baseDocument.getDocumentElement();
 			stream.write(("</" + root.getTagName() + ">").getBytes());
+			stream.flush();
 
 		} catch (Exception e) {
 			throw new XMPPException("Could not send closing tag: "
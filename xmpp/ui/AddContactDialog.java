@@ -18,8 +18,10 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
+import java.util.Collections;
 
 import javax.swing.JButton;
+import javax.swing.JComboBox;
 import javax.swing.JDialog;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
@@ -32,8 +34,9 @@ public class AddContactDialog extends JDialog implements ActionListener {
 
 	private MainWindow mainWindow;
 
-	private JLabel jidFirstLabel, jidAtLabel, aliasLabel;
+	private JLabel jidFirstLabel, jidAtLabel, aliasLabel, groupLabel;
 	private JTextField jidUsernameField, jidDomainField, aliasField;
+	private JComboBox<String> groupField;
 	private JButton addButton;
 	private JButton cancelButton;
 
@@ -71,6 +74,13 @@ public class AddContactDialog extends JDialog implements ActionListener {
 		aliasField = new JTextField(10);
 		aliasLabel.setLabelFor(aliasField);
 
+		groupLabel = new JLabel("Group: ");
+		groupField = new JComboBox<String>(mainWindow.getSession().getGroups()
+				.toArray(new String[0]));
+		groupField.setEditable(true);
+		groupField.setSelectedItem("");
+		groupLabel.setLabelFor(groupField);
+
 		addButton = new JButton("Add");
 		addButton.addActionListener(this);
 
@@ -92,6 +102,7 @@ public class AddContactDialog extends JDialog implements ActionListener {
 		formPanel.addLineOfFields(jidFirstLabel, jidUsernameField, jidAtLabel,
 				jidDomainField);
 		formPanel.addLineOfFields(aliasLabel, aliasField);
+		formPanel.addLineOfFields(groupLabel, groupField);
 
 		formPanel.addButton(addButton);
 		formPanel.addButton(cancelButton);
@@ -100,7 +111,7 @@ public class AddContactDialog extends JDialog implements ActionListener {
 
 		this.getRootPane().setDefaultButton(addButton);
 
-		this.setSize(600, 200);
+		this.setSize(600, 230);
 		this.setLocation((mainWindow.getWidth() - this.getWidth()) / 2,
 				(mainWindow.getHeight() - this.getHeight()) / 2);
 
@@ -112,8 +123,11 @@ public class AddContactDialog extends JDialog implements ActionListener {
 
 		try {
 
+			Object group = groupField.getEditor().getItem();
 			Contact contact = new Contact(jidUsernameField.getText() + "@"
-					+ jidDomainField.getText(), aliasField.getText());
+					+ jidDomainField.getText(), aliasField.getText(),
+					group == null ? Collections.<String> emptySet()
+							: Collections.singleton(group.toString()));
 			mainWindow.getSession().sendNewContactRequest(contact);
 			this.setVisible(false);
 
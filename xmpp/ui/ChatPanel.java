@@ -16,25 +16,29 @@ package ubc.cs317.xmpp.ui;
 import java.awt.BorderLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.AdjustmentEvent;
+import java.awt.event.AdjustmentListener;
 import java.awt.event.FocusAdapter;
 import java.awt.event.FocusEvent;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
-import java.io.IOException;
 import java.text.DateFormat;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
 
 import javax.swing.JButton;
-import javax.swing.JEditorPane;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JScrollBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTextField;
+import javax.swing.JTextPane;
+import javax.swing.SwingUtilities;
 import javax.swing.text.BadLocationException;
-import javax.swing.text.Element;
-import javax.swing.text.StyleConstants;
-import javax.swing.text.html.HTML;
-import javax.swing.text.html.HTMLDocument;
-import javax.swing.text.html.HTMLEditorKit;
+import javax.swing.text.DefaultStyledDocument;
+import javax.swing.text.StyledDocument;
 
 import ubc.cs317.xmpp.exception.XMPPException;
 import ubc.cs317.xmpp.model.Contact;
@@ -42,6 +46,14 @@ import ubc.cs317.xmpp.model.Conversation;
 import ubc.cs317.xmpp.model.Message;
 import ubc.cs317.xmpp.model.listener.MessageListener;
 
+/**
+ * Panel showing a conversation with a contact. A panel is created as an empty
+ * placeholder, and its components are only built the first time it is shown.
+ * While hidden behind another tab, the panel does not render new messages:
+ * it counts unread messages, and the chat area is rebuilt when the panel is
+ * shown again. The document of a hidden panel is discarded, so only the
+ * visible conversation keeps one in memory.
+ */
 public class ChatPanel extends JPanel implements MessageListener {
 
 	public static final DateFormat TIMESTAMP_FORMAT = DateFormat
@@ -51,10 +63,33 @@ public class ChatPanel extends JPanel implements MessageListener {
 
 	private Conversation conversation;
 
-	private JEditorPane chatArea;
+	private JTextPane chatArea;
+	private JScrollPane chatScrollPane;
 	private JPanel sendMessagePanel;
 	private JTextField sendMessageText;
 	private JButton sendMessageButton;
+	private JButton sendFileButton;
+
+	private boolean built = false;
+	private boolean shown = false;
+	private int unreadCount = 0;
+
+	/**
+	 * Messages currently in the chat area. A page of archived messages may
+	 * already be included by a rebuild that ran before its insertion, in
+	 * which case it is not inserted again.
+	 */
+	private final Set<Message> documentMessages = Collections
+			.newSetFromMap(new IdentityHashMap<Message, Boolean>());
+
+	private final Runnable chatAreaUpdate = new Runnable() {
+		@Override
+		public void run() {
+			// hidden panels are rebuilt when shown again
+			if (shown)
+				updateChatArea();
+		}
+	};
 
 	public ChatPanel(MainWindow mainWindow, Contact contact) {
 
@@ -63,11 +98,27 @@ public class ChatPanel extends JPanel implements MessageListener {
 		conversation = main.getSession().getConversation(contact);
 		conversation.addMessageListener(this);
 
-		chatArea = new JEditorPane();
+		this.setLayout(new BorderLayout());
+
+		this.addFocusListener(new FocusAdapter() {
+			@Override
+			public void focusGained(FocusEvent e) {
+				if (sendMessageText != null)
+					sendMessageText.grabFocus();
+				main.updateChatPanelTitle(ChatPanel.this, false);
+			}
+		});
+	}
+
+	/**
+	 * Creates the components of the panel. Called the first time the panel is
+	 * shown.
+	 */
+	private void build() {
+
+		chatArea = new JTextPane();
 		chatArea.setAutoscrolls(true);
 		chatArea.setEditable(false);
-		chatArea.setContentType("text/html");
-		chatArea.setText("<html><body style='margin: 0'></body></html>");
 		chatArea.addKeyListener(new KeyAdapter() {
 			@Override
 			public void keyTyped(KeyEvent e) {
@@ -106,68 +157,177 @@ public class ChatPanel extends JPanel implements MessageListener {
 			}
 		});
 
-		sendMessagePanel.setLayout(new BorderLayout());
-		sendMessagePanel.add(sendMessageText, BorderLayout.CENTER);
-		sendMessagePanel.add(sendMessageButton, BorderLayout.EAST);
+		sendFileButton = new JButton("Send file");
+		sendFileButton.addActionListener(new ActionListener() {
 
-		this.setLayout(new BorderLayout());
-		this.add(new JScrollPane(chatArea), BorderLayout.CENTER);
-		this.add(sendMessagePanel, BorderLayout.SOUTH);
-
-		this.addFocusListener(new FocusAdapter() {
 			@Override
-			public void focusGained(FocusEvent e) {
-				sendMessageText.grabFocus();
-				main.updateChatPanelTitle(ChatPanel.this, false);
+			public void actionPerformed(ActionEvent arg0) {
+				main.showSendFileDialog(conversation.getContact());
 			}
 		});
 
-		updateChatArea();
+		JPanel buttonPanel = new JPanel(new BorderLayout());
+		buttonPanel.add(sendMessageButton, BorderLayout.WEST);
+		buttonPanel.add(sendFileButton, BorderLayout.EAST);
+
+		sendMessagePanel.setLayout(new BorderLayout());
+		sendMessagePanel.add(sendMessageText, BorderLayout.CENTER);
+		sendMessagePanel.add(buttonPanel, BorderLayout.EAST);
+
+		chatScrollPane = new JScrollPane(chatArea);
+		// older messages are loaded from the archive when the user scrolls
+		// close to the top
+		chatScrollPane.getVerticalScrollBar().addAdjustmentListener(
+				new AdjustmentListener() {
+					@Override
+					public void adjustmentValueChanged(AdjustmentEvent e) {
+						JScrollBar bar = (JScrollBar) e.getAdjustable();
+						if (shown
+								&& bar.getValue() - bar.getMinimum() < bar
+								.getVisibleAmount()
+								&& conversation.hasOlderMessages())
+							conversation.loadOlderMessages();
+					}
+				});
+
+		this.add(chatScrollPane, BorderLayout.CENTER);
+		this.add(sendMessagePanel, BorderLayout.SOUTH);
+		this.revalidate();
+
+		built = true;
+		conversation.loadOlderMessages();
 	}
 
 	public Contact getContact() {
 		return conversation.getContact();
 	}
 
+	/**
+	 * Informs the panel if its tab is selected. A panel being shown is built
+	 * if needed, and its chat area is brought up to date; a panel being hidden
+	 * releases its document. Must be called in the event dispatch thread.
+	 * 
+	 * @param shown
+	 *            <code>true</code> if the panel is now visible.
+	 */
+	public void setShown(boolean shown) {
+		if (this.shown == shown)
+			return;
+		this.shown = shown;
+		if (shown) {
+			if (!built)
+				build();
+			updateChatArea();
+			unreadCount = 0;
+		} else if (built) {
+			chatArea.setDocument(new DefaultStyledDocument());
+			documentMessages.clear();
+		}
+	}
+
+	public boolean isShown() {
+		return shown;
+	}
+
+	/**
+	 * Counts a message received while the panel is hidden. Must be called in
+	 * the event dispatch thread.
+	 */
+	public void addUnreadMessage() {
+		if (!shown)
+			unreadCount++;
+	}
+
+	/**
+	 * Returns the number of messages received since the panel was last
+	 * shown.
+	 * 
+	 * @return Number of unread messages.
+	 */
+	public int getUnreadCount() {
+		return unreadCount;
+	}
+
+	/**
+	 * Rebuilds the chat area with all messages of the conversation. The
+	 * document is built before it is attached to the text pane, so no events
+	 * are processed while it is filled.
+	 */
 	public synchronized void updateChatArea() {
-		HTMLDocument doc = (HTMLDocument) new HTMLEditorKit()
-				.createDefaultDocument();
-		Element body = doc.getElement(doc.getDefaultRootElement(),
-				StyleConstants.NameAttribute, HTML.Tag.BODY);
-		for (Message message : conversation.getMessageList()) {
-			try {
-				doc.insertBeforeEnd(
-						body,
-						"<P style='margin: 0'>("
-								+ TIMESTAMP_FORMAT.format(message
-										.getTimestamp())
-								+ ") <b>"
-								+ (message.getFrom() == null ? "me" : message
-										.getFrom()) + "</b>: "
-								+ message.getTextMessage() + "</P>");
-			} catch (BadLocationException e) {
-				e.printStackTrace();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+		StyledDocument doc = new DefaultStyledDocument();
+		List<Message> messages = conversation.getMessageList();
+		int offset = 0;
+		try {
+			for (Message message : messages)
+				offset = MessageRenderer.insertInto(doc, offset, message);
+		} catch (BadLocationException e) {
+			e.printStackTrace();
 		}
+		documentMessages.clear();
+		documentMessages.addAll(messages);
 		chatArea.setDocument(doc);
 		chatArea.setCaretPosition(doc.getLength());
 	}
 
+	/**
+	 * Inserts older messages at the top of the chat area, keeping the
+	 * messages currently visible in the same position on screen. Nothing is
+	 * inserted if the chat area was rebuilt after the messages were added to
+	 * the conversation.
+	 */
+	private synchronized void insertArchivedMessages(List<Message> messages) {
+		if (messages.isEmpty() || documentMessages.contains(messages.get(0)))
+			return;
+		documentMessages.addAll(messages);
+		StyledDocument doc = chatArea.getStyledDocument();
+
+		final JScrollBar bar = chatScrollPane.getVerticalScrollBar();
+		final int oldValue = bar.getValue();
+		final int oldMaximum = bar.getMaximum();
+		int offset = 0;
+		try {
+			for (Message message : messages)
+				offset = MessageRenderer.insertInto(doc, offset, message);
+		} catch (BadLocationException e) {
+			e.printStackTrace();
+		}
+		// the new height is only known after the layout is updated
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				bar.setValue(oldValue + bar.getMaximum() - oldMaximum);
+			}
+		});
+	}
+
 	private synchronized void sendMessage(Message message) throws XMPPException {
 		conversation.addOutgoingMessage(message);
 	}
 
 	@Override
 	public void messageReceived(Message message) {
-		updateChatArea();
-		main.updateChatPanelTitle(this, true);
+		// the whole area is rebuilt from the conversation, so a rebuild still
+		// waiting already includes this message; unread messages are counted
+		// by the main window
+		main.getEventBridge().update(this, "messages", chatAreaUpdate);
 	}
 
 	@Override
 	public void messageSent(Message message) {
-		updateChatArea();
+		main.getEventBridge().update(this, "messages", chatAreaUpdate);
+	}
+
+	@Override
+	public void archivedMessagesLoaded(Conversation conversation,
+			final List<Message> messages) {
+		main.getEventBridge().invoke(new Runnable() {
+			@Override
+			public void run() {
+				// hidden panels include archived messages when rebuilt
+				if (shown)
+					insertArchivedMessages(messages);
+			}
+		});
 	}
 
 	public Conversation getConversation() {
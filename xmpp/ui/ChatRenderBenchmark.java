@@ -0,0 +1,142 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.ui;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultStyledDocument;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyledDocument;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLDocument;
+import javax.swing.text.html.HTMLEditorKit;
+
+import ubc.cs317.xmpp.model.Contact;
+import ubc.cs317.xmpp.model.Message;
+
+/**
+ * Compares the time to build a chat area document with the HTML messages
+ * previously used by ChatPanel, parsed by HTMLDocument.insertBeforeEnd, and
+ * with the styled runs of MessageRenderer. Two cases are measured: a
+ * conversation with a pasted message of about 1 MB (source code, with markup
+ * characters and many lines), and a conversation with many short messages.
+ * Only document construction is measured, not layout or painting. Runs
+ * headless.
+ * 
+ * Usage: ChatRenderBenchmark [paste size in KB, default 1024] [short
+ * messages, default 2000]
+ */
+public class ChatRenderBenchmark {
+
+	private static final String PASTED_LINE = "\tif (a < b && c > d) { out.write(\"<message to='x'>\"); } // &amp;\n";
+
+	public static void main(String[] args) throws Exception {
+
+		int pasteKb = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+		int shortMessages = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+		Contact peer = new Contact("peer@example.com", "Peer");
+
+		StringBuilder paste = new StringBuilder();
+		while (paste.length() < pasteKb * 1024)
+			paste.append(PASTED_LINE);
+
+		// warm up both paths
+		run(peer, 64 * 1024, 200, false);
+
+		System.out.printf("pasted message of %d KB:\n", paste.length() / 1024);
+		List<Message> pasted = new ArrayList<Message>();
+		pasted.add(new Message(peer, null, "can you look at this?"));
+		pasted.add(new Message(peer, null, paste.toString()));
+		pasted.add(new Message(null, peer, "looking"));
+		measure(pasted);
+
+		System.out.printf("%d short messages:\n", shortMessages);
+		List<Message> conversation = new ArrayList<Message>();
+		for (int i = 0; i < shortMessages; i++)
+			conversation.add(i % 2 == 0 ? new Message(peer, null,
+					"message number " + i + ", are you coming tomorrow?")
+					: new Message(null, peer, "reply number " + i));
+		measure(conversation);
+	}
+
+	private static void run(Contact peer, int pasteSize, int messages,
+			boolean print) throws Exception {
+		List<Message> list = new ArrayList<Message>();
+		StringBuilder paste = new StringBuilder();
+		while (paste.length() < pasteSize)
+			paste.append(PASTED_LINE);
+		list.add(new Message(peer, null, paste.toString()));
+		for (int i = 0; i < messages; i++)
+			list.add(new Message(peer, null, "message " + i));
+		for (int i = 0; i < 3; i++) {
+			buildHtml(list, false);
+			buildHtml(list, true);
+			buildStyled(list);
+		}
+	}
+
+	private static void measure(List<Message> messages) throws Exception {
+		long start = System.nanoTime();
+		Document doc = buildHtml(messages, false);
+		report("HTML, unescaped (before)", start, doc);
+
+		start = System.nanoTime();
+		doc = buildHtml(messages, true);
+		report("HTML, escaped", start, doc);
+
+		start = System.nanoTime();
+		doc = buildStyled(messages);
+		report("styled runs", start, doc);
+	}
+
+	private static void report(String name, long start, Document doc) {
+		System.out.printf("  %-26s %8.1f ms, %d characters\n", name,
+				(System.nanoTime() - start) / 1e6, doc.getLength());
+	}
+
+	private static Document buildHtml(List<Message> messages, boolean escape)
+			throws BadLocationException, IOException {
+		HTMLDocument doc = (HTMLDocument) new HTMLEditorKit()
+				.createDefaultDocument();
+		Element body = doc.getElement(doc.getDefaultRootElement(),
+				StyleConstants.NameAttribute, HTML.Tag.BODY);
+		for (Message message : messages) {
+			String text = message.getTextMessage();
+			if (escape)
+				text = text.replace("&", "&amp;").replace("<", "&lt;")
+						.replace(">", "&gt;").replace("\n", "<br>");
+			doc.insertBeforeEnd(body, "<P style='margin: 0'>("
+					+ ChatPanel.TIMESTAMP_FORMAT.format(message.getTimestamp())
+					+ ") <b>"
+					+ (message.getFrom() == null ? "me" : message.getFrom())
+					+ "</b>: " + text + "</P>");
+		}
+		return doc;
+	}
+
+	private static Document buildStyled(List<Message> messages)
+			throws BadLocationException {
+		StyledDocument doc = new DefaultStyledDocument();
+		int offset = 0;
+		for (Message message : messages)
+			offset = MessageRenderer.insertInto(doc, offset, message);
+		return doc;
+	}
+}
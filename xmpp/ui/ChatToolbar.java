@@ -24,6 +24,7 @@ public class ChatToolbar extends JToolBar {
 	private MainWindow main;
 	private JButton addContactButton;
 	private JButton disconnectButton;
+	private JButton joinRoomButton;
 
 	public ChatToolbar(MainWindow mainWindow) {
 		
@@ -50,6 +51,16 @@ public class ChatToolbar extends JToolBar {
 			}
 		});
 		this.add(addContactButton);
+
+		joinRoomButton = new JButton("Join room");
+		joinRoomButton.addActionListener(new ActionListener() {
+			
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				main.showJoinRoomDialog();
+			}
+		});
+		this.add(joinRoomButton);
 	}
 	
 }
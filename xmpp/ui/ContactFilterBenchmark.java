@@ -0,0 +1,180 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.ui;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import javax.swing.SwingUtilities;
+
+import ubc.cs317.xmpp.model.Contact;
+
+/**
+ * Measures the time to filter the contact list on each keystroke, with
+ * synthetic rosters of several sizes. Names are typed one character at a
+ * time, and for each keystroke the filter of a ContactListModel is set in the
+ * event dispatch thread (index lookup and selection from the sorted list,
+ * without painting). For comparison, the same queries are answered by
+ * scanning all contacts and comparing text. The time to index a roster and
+ * to reindex a renamed contact is also shown. Runs headless.
+ * 
+ * Usage: ContactFilterBenchmark [queries, default 200]
+ */
+public class ContactFilterBenchmark {
+
+	private static final String[] FIRST = { "maria", "mario", "mark", "john",
+			"joanna", "jonatan", "li", "liam", "lucas", "sofia", "sophie",
+			"ana", "andre", "wei", "yuki", "olivia", "oliver", "noah", "emma",
+			"ethan", "ava", "mia", "zoe", "carlos", "chen", "fatima", "omar",
+			"ivan", "irina", "priya" };
+	private static final String[] LAST = { "smith", "schroeder", "silva",
+			"santos", "kim", "krieger", "khan", "nguyen", "garcia", "gonzalez",
+			"wang", "wong", "tanaka", "muller", "martin", "martinez", "brown",
+			"baker", "lee", "lopez", "patel", "park", "rossi", "ricci",
+			"ivanova", "jensen", "novak", "cohen", "dubois", "hall" };
+
+	public static void main(String[] args) throws Exception {
+
+		int queries = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+
+		for (int size : new int[] { 2000, 20000, 100000 }) {
+			run(size, queries / 4, false);
+			run(size, queries, true);
+		}
+		System.exit(0);
+	}
+
+	private static void run(int size, int queries, boolean print)
+			throws Exception {
+
+		Random random = new Random(317);
+		final List<Contact> roster = new ArrayList<Contact>(size);
+		for (int i = 0; i < size; i++) {
+			String first = FIRST[random.nextInt(FIRST.length)];
+			String last = LAST[random.nextInt(LAST.length)];
+			roster.add(new Contact(first + "." + last + i + "@server"
+					+ random.nextInt(50) + ".example.com", capitalize(first)
+					+ " " + capitalize(last)));
+		}
+
+		long start = System.nanoTime();
+		ContactIndex index = new ContactIndex();
+		for (Contact contact : roster)
+			index.add(contact);
+		double indexMs = (System.nanoTime() - start) / 1e6;
+
+		// a rename moves the contact to other words, and back
+		start = System.nanoTime();
+		for (int i = 0; i < 1000; i++) {
+			Contact contact = roster.get(i % size);
+			String alias = contact.getAlias();
+			contact.setAlias("Renamed " + i);
+			index.add(contact);
+			contact.setAlias(alias);
+			index.add(contact);
+		}
+		double renameUs = (System.nanoTime() - start) / 1e3 / 2000;
+
+		final ContactListModel model = new ContactListModel(null,
+				new UiEventBridge());
+		model.contactsUpdated(roster, Collections.<Contact> emptyList(),
+				Collections.<Contact> emptyList());
+		final List<Contact> sorted = new ArrayList<Contact>(roster);
+		Collections.sort(sorted);
+
+		final List<String> keystrokes = new ArrayList<String>();
+		for (int q = 0; q < queries; q++) {
+			String name = random.nextBoolean() ? FIRST[random
+					.nextInt(FIRST.length)] : LAST[random.nextInt(LAST.length)];
+			if (random.nextInt(3) == 0)
+				name += " " + LAST[random.nextInt(LAST.length)].substring(0, 2);
+			for (int i = 1; i <= name.length(); i++)
+				keystrokes.add(name.substring(0, i));
+		}
+
+		final long[] indexed = new long[keystrokes.size()];
+		final long[] scanned = new long[keystrokes.size()];
+		final long[] matches = new long[1];
+		SwingUtilities.invokeAndWait(new Runnable() {
+			@Override
+			public void run() {
+				model.setFilter("");
+				for (int i = 0; i < keystrokes.size(); i++) {
+					long start = System.nanoTime();
+					model.setFilter(keystrokes.get(i));
+					indexed[i] = System.nanoTime() - start;
+					matches[0] += model.getSize();
+
+					start = System.nanoTime();
+					scan(sorted, keystrokes.get(i));
+					scanned[i] = System.nanoTime() - start;
+				}
+				model.setFilter("");
+			}
+		});
+
+		if (!print)
+			return;
+		System.out.printf("%d contacts: indexed in %.0f ms, rename %.1f us, "
+				+ "%d keystrokes, %.0f matches on average\n", size, indexMs,
+				renameUs, keystrokes.size(), (double) matches[0]
+						/ keystrokes.size());
+		report("  prefix index", indexed);
+		report("  linear scan ", scanned);
+	}
+
+	private static void report(String name, long[] times) {
+		long[] sorted = times.clone();
+		Arrays.sort(sorted);
+		long total = 0;
+		for (long time : sorted)
+			total += time;
+		System.out.printf("%s: average %.3f ms, median %.3f ms, "
+				+ "99th percentile %.3f ms, max %.3f ms per keystroke\n",
+				name, total / 1e6 / sorted.length,
+				sorted[sorted.length / 2] / 1e6,
+				sorted[sorted.length * 99 / 100] / 1e6,
+				sorted[sorted.length - 1] / 1e6);
+	}
+
+	/**
+	 * Filters by comparing the text of every contact, with the same
+	 * semantics as the index.
+	 */
+	private static List<Contact> scan(List<Contact> contacts, String query) {
+		String[] tokens = query.toLowerCase().split("[^\\p{L}\\p{Nd}]+");
+		List<Contact> result = new ArrayList<Contact>();
+		for (Contact contact : contacts) {
+			String jid = contact.getBareJid().toLowerCase();
+			String text = " " + contact.getAlias().toLowerCase() + " "
+					+ jid.substring(0, jid.indexOf('@')).replace('.', ' ');
+			boolean match = true;
+			for (String token : tokens)
+				if (!token.isEmpty() && !text.contains(" " + token)) {
+					match = false;
+					break;
+				}
+			if (match)
+				result.add(contact);
+		}
+		return result;
+	}
+
+	private static String capitalize(String word) {
+		return Character.toUpperCase(word.charAt(0)) + word.substring(1);
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.ui;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import ubc.cs317.xmpp.model.Contact;
+
+/**
+ * Index of contacts by the words of their alias and the user part of their
+ * bare JID, used to filter the contact list as the user types. Words are kept
+ * in a sorted map, so the contacts with a word starting with some prefix are
+ * found in a range of the map, without looking at the contacts that do not
+ * match. The index is updated one contact at a time as contacts are added,
+ * changed or removed.
+ * 
+ * A query matches a contact if every word of the query is a prefix of some
+ * word of the contact. The query, alias and JID are split into words at
+ * spaces and punctuation, so "john.sm" and "smi jo" both match
+ * john.smith@example.com. The domain of the JID is not indexed, since it is
+ * shared by many contacts and would make short queries match most of the
+ * roster. Matching ignores case.
+ * 
+ * This class is not thread safe.
+ */
+class ContactIndex {
+
+	private final TreeMap<String, Set<Contact>> words = new TreeMap<String, Set<Contact>>();
+	private final Map<Contact, Set<String>> indexed = new HashMap<Contact, Set<String>>();
+
+	/**
+	 * Adds a contact to the index, or updates its words if it is already
+	 * indexed.
+	 * 
+	 * @param contact
+	 *            Contact to be indexed.
+	 * @return <code>true</code> if the words of the contact changed.
+	 */
+	boolean add(Contact contact) {
+		Set<String> keys = keysOf(contact);
+		Set<String> old = indexed.get(contact);
+		if (keys.equals(old))
+			return false;
+		if (old != null)
+			removeKeys(contact, old);
+		indexed.put(contact, keys);
+		for (String key : keys) {
+			Set<Contact> contacts = words.get(key);
+			if (contacts == null) {
+				contacts = new HashSet<Contact>(2);
+				words.put(key, contacts);
+			}
+			contacts.add(contact);
+		}
+		return true;
+	}
+
+	/**
+	 * Removes a contact from the index.
+	 * 
+	 * @param contact
+	 *            Contact to be removed.
+	 */
+	void remove(Contact contact) {
+		Set<String> old = indexed.remove(contact);
+		if (old != null)
+			removeKeys(contact, old);
+	}
+
+	void clear() {
+		words.clear();
+		indexed.clear();
+	}
+
+	int size() {
+		return indexed.size();
+	}
+
+	/**
+	 * Finds the contacts matching a query.
+	 * 
+	 * @param query
+	 *            Text typed by the user.
+	 * @return Contacts matching every word of the query, in no particular
+	 *         order, or null if the query has no words.
+	 */
+	Set<Contact> find(String query) {
+		Set<Contact> result = null;
+		for (String token : split(query.toLowerCase())) {
+			Set<Contact> matches = new HashSet<Contact>();
+			for (Set<Contact> contacts : prefixRange(token).values()) {
+				if (result == null)
+					matches.addAll(contacts);
+				else
+					// only contacts matching the previous words are kept
+					for (Contact contact : contacts)
+						if (result.contains(contact))
+							matches.add(contact);
+			}
+			result = matches;
+			if (result.isEmpty())
+				break;
+		}
+		return result;
+	}
+
+	boolean contains(Contact contact) {
+		return indexed.containsKey(contact);
+	}
+
+	private Map<String, Set<Contact>> prefixRange(String prefix) {
+		return words.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+	}
+
+	private void removeKeys(Contact contact, Set<String> keys) {
+		for (String key : keys) {
+			Set<Contact> contacts = words.get(key);
+			if (contacts != null) {
+				contacts.remove(contact);
+				if (contacts.isEmpty())
+					words.remove(key);
+			}
+		}
+	}
+
+	private static Set<String> keysOf(Contact contact) {
+		String jid = contact.getBareJid().toLowerCase();
+		Set<String> keys = split(jid.substring(0, jid.indexOf('@')));
+		if (contact.getAlias() != null)
+			keys.addAll(split(contact.getAlias().toLowerCase()));
+		return keys;
+	}
+
+	private static Set<String> split(String text) {
+		Set<String> parts = new HashSet<String>();
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean letter = i < text.length()
+					&& Character.isLetterOrDigit(text.charAt(i));
+			if (letter && start < 0)
+				start = i;
+			else if (!letter && start >= 0) {
+				parts.add(text.substring(start, i));
+				start = -1;
+			}
+		}
+		return parts;
+	}
+}
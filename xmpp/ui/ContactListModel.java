@@ -14,68 +14,287 @@
 package ubc.cs317.xmpp.ui;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.swing.AbstractListModel;
-import javax.swing.SwingUtilities;
 
 import ubc.cs317.xmpp.model.Contact;
 import ubc.cs317.xmpp.model.Session;
-import ubc.cs317.xmpp.model.listener.ContactListener;
+import ubc.cs317.xmpp.model.listener.ContactBatchListener;
 
-public class ContactListModel extends AbstractListModel implements
-		ContactListener {
+/**
+ * List of contacts shown in the contact list panel. Contact events arrive in
+ * the connection thread and change a list owned by the model; the list shown
+ * by Swing is a sorted snapshot of it, replaced in the event dispatch thread
+ * at most once per frame, however many contacts changed in between.
+ * 
+ * The list may be filtered by text typed by the user. Contacts are kept in a
+ * prefix index, updated as each contact changes, so filtering only looks up
+ * the typed words in the index, and puts the matches in order by their
+ * positions in the sorted snapshot, without comparing names or looking at
+ * the contacts that do not match.
+ */
+public class ContactListModel extends AbstractListModel<Contact> implements
+		ContactBatchListener {
+
+	private UiEventBridge eventBridge;
+
+	/**
+	 * Contacts of the session, changed in the connection thread.
+	 */
+	private final List<Contact> contacts = new ArrayList<Contact>();
+
+	/**
+	 * Index of the contacts, guarded by the lock of the contact list.
+	 */
+	private final ContactIndex index = new ContactIndex();
+
+	/**
+	 * Indicates if contacts were added, removed or renamed since the sorted
+	 * snapshot was taken. Guarded by the lock of the contact list.
+	 */
+	private boolean contactsChanged = true;
+
+	/**
+	 * Contacts whose rows must be repainted, without a change in their order.
+	 * Guarded by the lock of the contact list.
+	 */
+	private Set<Contact> changedRows = new HashSet<Contact>();
+
+	/**
+	 * Sorted snapshot of all contacts, only used in the event dispatch thread.
+	 */
+	private List<Contact> sortedContacts = Collections.emptyList();
+
+	/**
+	 * Position of each contact in the sorted snapshot, used to put the
+	 * contacts matching the filter in order without comparing their names.
+	 */
+	private Map<Contact, Integer> positions = Collections.emptyMap();
+
+	private String filter = "";
 
-	private List<Contact> contactList;
+	/**
+	 * Contacts shown in the list (the sorted snapshot, or the contacts in it
+	 * matching the filter), only used in the event dispatch thread.
+	 */
+	private List<Contact> contactList = Collections.emptyList();
 
-	public ContactListModel(Session session) {
+	/**
+	 * Positions in the sorted snapshot of the contacts shown, in order, if the
+	 * list is filtered; null if all contacts are shown.
+	 */
+	private int[] shownPositions = null;
+
+	private final Runnable refreshTask = new Runnable() {
+		@Override
+		public void run() {
+			refresh();
+		}
+	};
+
+	private final Runnable rowsTask = new Runnable() {
+		@Override
+		public void run() {
+			repaintChangedRows();
+		}
+	};
+
+	public ContactListModel(Session session, UiEventBridge eventBridge) {
+		this.eventBridge = eventBridge;
 		this.setSession(session);
 	}
 
 	@Override
-	public synchronized int getSize() {
+	public int getSize() {
 		return contactList.size();
 	}
 
 	@Override
-	public synchronized Object getElementAt(int index) {
+	public Contact getElementAt(int index) {
 		return contactList.get(index);
 	}
 
+	/**
+	 * Shows the contacts of a session. Must be called in the event dispatch
+	 * thread.
+	 * 
+	 * @param session
+	 *            Session whose contacts are shown, or null.
+	 */
 	public void setSession(Session session) {
-		this.contactList = Collections.emptyList();
-		if (session != null)
-			this.contactList = new ArrayList<Contact>(session.getContacts());
-		fireContentsChanged(this, 0, getSize());
+		synchronized (contacts) {
+			contacts.clear();
+			index.clear();
+			if (session != null)
+				contacts.addAll(session.getContacts());
+			for (Contact contact : contacts)
+				index.add(contact);
+			contactsChanged = true;
+		}
+		refresh();
 
 		if (session != null) {
 			session.addContactListener(this);
 		}
 	}
 
-	@Override
-	public synchronized void contactAdded(Contact contact) {
-		contactList.add(contact);
-		Collections.sort(contactList);
-		SwingUtilities.invokeLater(new Runnable() {
-			@Override
-			public void run() {
-				fireContentsChanged(this, 0, getSize());
+	/**
+	 * Shows only the contacts matching some text, as the user types it. Must
+	 * be called in the event dispatch thread.
+	 * 
+	 * @param filter
+	 *            Words to be matched by the start of words of the alias or JID
+	 *            of the contacts shown; if empty, all contacts are shown.
+	 */
+	public void setFilter(String filter) {
+		this.filter = filter;
+		refresh();
+	}
+
+	/**
+	 * Replaces the list shown with a snapshot of the current contacts
+	 * matching the filter. Must be called in the event dispatch thread.
+	 */
+	private void refresh() {
+		List<Contact> snapshot = null;
+		Set<Contact> matches;
+		synchronized (contacts) {
+			if (contactsChanged) {
+				snapshot = new ArrayList<Contact>(contacts);
+				contactsChanged = false;
 			}
-		});
+			matches = index.find(filter);
+		}
+		if (snapshot != null) {
+			// a single sort for all changes since the last refresh, instead of
+			// one per contact
+			Collections.sort(snapshot);
+			sortedContacts = snapshot;
+			positions = new HashMap<Contact, Integer>(snapshot.size() * 4 / 3 + 1);
+			for (int i = 0; i < snapshot.size(); i++)
+				positions.put(snapshot.get(i), i);
+		}
+		if (matches == null) {
+			snapshot = sortedContacts;
+			shownPositions = null;
+		} else {
+			int[] matchPositions = new int[matches.size()];
+			int count = 0;
+			for (Contact contact : matches) {
+				Integer position = positions.get(contact);
+				if (position != null)
+					matchPositions[count++] = position;
+			}
+			Arrays.sort(matchPositions, 0, count);
+			snapshot = new ArrayList<Contact>(count);
+			for (int i = 0; i < count; i++)
+				snapshot.add(sortedContacts.get(matchPositions[i]));
+			shownPositions = Arrays.copyOf(matchPositions, count);
+		}
+		show(snapshot);
+	}
+
+	/**
+	 * Repaints the rows of the contacts changed since the last call, finding
+	 * each row from the position of the contact in the sorted snapshot. Must
+	 * be called in the event dispatch thread.
+	 */
+	private void repaintChangedRows() {
+		Set<Contact> changed;
+		synchronized (contacts) {
+			changed = changedRows;
+			changedRows = new HashSet<Contact>();
+		}
+		for (Contact contact : changed) {
+			Integer position = positions.get(contact);
+			if (position == null)
+				continue;
+			int row = position;
+			if (shownPositions != null)
+				row = Arrays.binarySearch(shownPositions, position);
+			if (row >= 0 && row < contactList.size()
+					&& contactList.get(row) == contact)
+				fireContentsChanged(this, row, row);
+		}
+	}
+
+	private void show(List<Contact> snapshot) {
+		int oldSize = contactList.size();
+		contactList = snapshot;
+		int newSize = contactList.size();
+		if (newSize < oldSize)
+			fireIntervalRemoved(this, newSize, oldSize - 1);
+		else if (newSize > oldSize)
+			fireIntervalAdded(this, oldSize, newSize - 1);
+		if (newSize > 0)
+			fireContentsChanged(this, 0, newSize - 1);
 	}
 
 	@Override
-	public synchronized void contactChanged(Contact contact) {
-		int pos = contactList.indexOf(contact);
-		fireContentsChanged(ContactListModel.this, pos, pos);
+	public void contactAdded(Contact contact) {
+		synchronized (contacts) {
+			contacts.add(contact);
+			index.add(contact);
+			contactsChanged = true;
+		}
+		eventBridge.update(this, "contacts", refreshTask);
 	}
 
 	@Override
-	public synchronized void contactRemoved(Contact contact) {
-		int pos = contactList.indexOf(contact);
-		contactList.remove(pos);
-		fireIntervalRemoved(ContactListModel.this, pos, pos);
+	public void contactChanged(Contact contact) {
+		// a renamed contact may change its position or match the filter
+		boolean renamed;
+		synchronized (contacts) {
+			renamed = index.contains(contact) && index.add(contact);
+			if (renamed)
+				contactsChanged = true;
+			else
+				changedRows.add(contact);
+		}
+		if (renamed)
+			eventBridge.update(this, "contacts", refreshTask);
+		else
+			// all rows changed in a burst are repainted by a single update
+			eventBridge.update(this, "contact rows", rowsTask);
+	}
+
+	@Override
+	public void contactRemoved(Contact contact) {
+		synchronized (contacts) {
+			contacts.remove(contact);
+			index.remove(contact);
+			contactsChanged = true;
+		}
+		eventBridge.update(this, "contacts", refreshTask);
+	}
+
+	@Override
+	public void contactsUpdated(Collection<Contact> added,
+			Collection<Contact> changed, Collection<Contact> removed) {
+		synchronized (contacts) {
+			if (!removed.isEmpty())
+				contacts.removeAll(new HashSet<Contact>(removed));
+			contacts.addAll(added);
+			for (Contact contact : removed)
+				index.remove(contact);
+			for (Contact contact : added)
+				index.add(contact);
+			boolean renamed = false;
+			for (Contact contact : changed)
+				if (index.contains(contact) && index.add(contact))
+					renamed = true;
+			if (renamed || !added.isEmpty() || !removed.isEmpty())
+				contactsChanged = true;
+		}
+		// the refresh also repaints the changed contacts
+		eventBridge.update(this, "contacts", refreshTask);
 	}
 }
\ No newline at end of file
@@ -17,8 +17,11 @@ import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Component;
 import java.awt.Dimension;
+import java.awt.Font;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 
@@ -30,26 +33,37 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JPopupMenu;
 import javax.swing.JScrollPane;
+import javax.swing.JTextField;
+import javax.swing.JTree;
 import javax.swing.ListCellRenderer;
 import javax.swing.ListSelectionModel;
 import javax.swing.ScrollPaneConstants;
 import javax.swing.SwingConstants;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.tree.TreeCellRenderer;
+import javax.swing.tree.TreePath;
+import javax.swing.tree.TreeSelectionModel;
 
 import ubc.cs317.xmpp.exception.XMPPException;
 import ubc.cs317.xmpp.model.Contact;
 import ubc.cs317.xmpp.model.ContactStatus;
 import ubc.cs317.xmpp.model.Session;
 
-public class ContactListPanel extends JPanel implements ListCellRenderer {
+public class ContactListPanel extends JPanel implements
+		ListCellRenderer<Object> {
 
 	private static final int STATUS_ICON_SIZE = 40;
 
 	private MainWindow main;
 
-	private JList contactList;
+	private JList<Contact> contactList;
+	private JTree contactTree;
 	private JScrollPane contactListScrollPane;
-	private JComboBox statusSelect;
+	private JComboBox<ContactStatus> statusSelect;
+	private JTextField filterField;
 	private ContactListModel contactListModel;
+	private ContactTreeModel contactTreeModel;
 	private JPopupMenu contactPopup;
 	private JMenuItem contactRemoveMenuItem;
 
@@ -57,18 +71,27 @@ public class ContactListPanel extends JPanel implements ListCellRenderer {
 
 		this.main = mainWindow;
 
-		contactListModel = new ContactListModel(mainWindow.getSession());
+		contactListModel = new ContactListModel(mainWindow.getSession(),
+				mainWindow.getEventBridge());
 
-		contactList = new JList(contactListModel);
+		contactTreeModel = new ContactTreeModel(mainWindow.getSession(),
+				mainWindow.getEventBridge());
+
+		contactList = new JList<Contact>(contactListModel);
 		contactList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
 		contactList.setCellRenderer(this);
-		contactList.addMouseListener(new MouseAdapter() {
+		// all cells have the size of the prototype, so the list does not
+		// render every contact to find its size
+		contactList.setPrototypeCellValue(new Contact(
+				"prototype@example.com", "A contact with a long name"));
+		MouseAdapter contactMouseListener = new MouseAdapter() {
 			@Override
 			public void mouseClicked(MouseEvent x) {
 				if (x.getClickCount() == 2
 						&& x.getButton() == MouseEvent.BUTTON1) {
-					Contact contact = (Contact) contactList.getSelectedValue();
-					main.createChatPanel(contact, true);
+					Contact contact = getSelectedContact();
+					if (contact != null)
+						main.createChatPanel(contact, true);
 				}
 			}
 
@@ -85,10 +108,45 @@ public class ContactListPanel extends JPanel implements ListCellRenderer {
 			}
 
 			private void showContactPopup(MouseEvent e) {
-				contactList.setSelectedIndex(contactList.locationToIndex(e.getPoint()));
-				contactPopup.show(e.getComponent(), e.getX(), e.getY());
+				if (e.getComponent() == contactTree)
+					contactTree.setSelectionPath(contactTree
+							.getClosestPathForLocation(e.getX(), e.getY()));
+				else
+					contactList.setSelectedIndex(contactList.locationToIndex(e
+							.getPoint()));
+				if (getSelectedContact() != null)
+					contactPopup.show(e.getComponent(), e.getX(), e.getY());
+			}
+		};
+		contactList.addMouseListener(contactMouseListener);
+
+		contactTree = new JTree(contactTreeModel);
+		contactTree.setRootVisible(false);
+		contactTree.setShowsRootHandles(true);
+		contactTree.getSelectionModel().setSelectionMode(
+				TreeSelectionModel.SINGLE_TREE_SELECTION);
+		// with a fixed row height, the tree only asks the model for the rows
+		// it paints, instead of every row of an expanded group
+		contactTree.setRowHeight(STATUS_ICON_SIZE);
+		contactTree.setLargeModel(true);
+		contactTree.addTreeWillExpandListener(contactTreeModel);
+		contactTree.addTreeExpansionListener(contactTreeModel);
+		// group rows share one label, updated for each row painted
+		final JLabel groupLabel = new JLabel();
+		groupLabel.setFont(groupLabel.getFont().deriveFont(Font.BOLD));
+		contactTree.setCellRenderer(new TreeCellRenderer() {
+			@Override
+			public Component getTreeCellRendererComponent(JTree tree,
+					Object value, boolean selected, boolean expanded,
+					boolean leaf, int row, boolean hasFocus) {
+				if (value instanceof Contact)
+					return getListCellRendererComponent(null, value, row,
+							selected, hasFocus);
+				groupLabel.setText(value.toString());
+				return groupLabel;
 			}
 		});
+		contactTree.addMouseListener(contactMouseListener);
 
 		contactPopup = new JPopupMenu();
 		contactRemoveMenuItem = new JMenuItem("Remove contact");
@@ -96,10 +154,10 @@ public class ContactListPanel extends JPanel implements ListCellRenderer {
 		contactRemoveMenuItem.addActionListener(new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent ev) {
-				if (contactList.getSelectedValue() != null)
+				if (getSelectedContact() != null)
 					try {
 						main.getSession().sendRequestToRemoveContact(
-								(Contact) contactList.getSelectedValue());
+								getSelectedContact());
 					} catch (XMPPException e) {
 						JOptionPane.showMessageDialog(main,
 								"Contact could not be removed. Cause: " + e);
@@ -107,12 +165,12 @@ public class ContactListPanel extends JPanel implements ListCellRenderer {
 			}
 		});
 
-		contactListScrollPane = new JScrollPane(contactList,
+		contactListScrollPane = new JScrollPane(contactTree,
 				ScrollPaneConstants.VERTICAL_SCROLLBAR_AS_NEEDED,
 				ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
 		contactListScrollPane.setPreferredSize(new Dimension(200, 1));
 
-		statusSelect = new JComboBox(
+		statusSelect = new JComboBox<ContactStatus>(
 				new ContactStatus[] { ContactStatus.AVAILABLE,
 						ContactStatus.AWAY, ContactStatus.DND });
 		statusSelect.addActionListener(new ActionListener() {
@@ -128,13 +186,78 @@ public class ContactListPanel extends JPanel implements ListCellRenderer {
 			}
 		});
 
+		filterField = new JTextField();
+		filterField.setToolTipText("Type to search contacts");
+		filterField.getDocument().addDocumentListener(new DocumentListener() {
+			@Override
+			public void insertUpdate(DocumentEvent e) {
+				setFilter(filterField.getText());
+			}
+
+			@Override
+			public void removeUpdate(DocumentEvent e) {
+				setFilter(filterField.getText());
+			}
+
+			@Override
+			public void changedUpdate(DocumentEvent e) {
+			}
+		});
+		filterField.addKeyListener(new KeyAdapter() {
+			@Override
+			public void keyPressed(KeyEvent e) {
+				if (e.getKeyCode() == KeyEvent.VK_ESCAPE)
+					filterField.setText("");
+				else if (e.getKeyCode() == KeyEvent.VK_ENTER) {
+					// opens the selected contact, or the first match while
+					// filtering; with an empty filter only a contact selected
+					// in the tree is opened
+					Contact contact = getSelectedContact();
+					if (contact == null
+							&& contactListScrollPane.getViewport().getView() == contactList
+							&& contactListModel.getSize() > 0)
+						contact = contactListModel.getElementAt(0);
+					if (contact != null)
+						main.createChatPanel(contact, true);
+				}
+			}
+		});
+
+		JPanel topPanel = new JPanel(new BorderLayout());
+		topPanel.add(statusSelect, BorderLayout.NORTH);
+		topPanel.add(filterField, BorderLayout.SOUTH);
+
 		this.setLayout(new BorderLayout());
 		this.add(contactListScrollPane);
-		this.add(statusSelect, BorderLayout.NORTH);
+		this.add(topPanel, BorderLayout.NORTH);
+	}
+
+	/**
+	 * Filters the contacts shown. Matching contacts are shown in a flat list,
+	 * in place of the tree of groups, while there is text in the filter.
+	 */
+	private void setFilter(String filter) {
+		contactListModel.setFilter(filter);
+		Component view = filter.trim().isEmpty() ? contactTree : contactList;
+		if (contactListScrollPane.getViewport().getView() != view)
+			contactListScrollPane.setViewportView(view);
+	}
+
+	/**
+	 * Returns the contact selected in the view currently shown, or null if no
+	 * contact is selected.
+	 */
+	private Contact getSelectedContact() {
+		if (contactListScrollPane.getViewport().getView() == contactList)
+			return contactList.getSelectedValue();
+		TreePath path = contactTree.getSelectionPath();
+		if (path != null && path.getLastPathComponent() instanceof Contact)
+			return (Contact) path.getLastPathComponent();
+		return null;
 	}
 
 	@Override
-	public Component getListCellRendererComponent(final JList list,
+	public Component getListCellRendererComponent(final JList<?> list,
 			final Object value, final int index, final boolean isSelected,
 			final boolean hasFocus) {
 
@@ -149,6 +272,7 @@ public class ContactListPanel extends JPanel implements ListCellRenderer {
 
 	public void setSession(Session session) {
 		contactListModel.setSession(session);
+		contactTreeModel.setSession(session);
 	}
 
 	public ContactStatus getSelectedStatus() {
@@ -0,0 +1,209 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.ui;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.swing.JTree;
+import javax.swing.SwingUtilities;
+import javax.swing.tree.TreePath;
+
+import ubc.cs317.xmpp.model.Contact;
+import ubc.cs317.xmpp.model.ContactStatus;
+
+/**
+ * Measures the cost of applying contact changes to the contact tree for a
+ * large roster, with a tree attached to the model as in the contact list
+ * panel: presence changes in collapsed and expanded groups, and contacts
+ * moved between groups. For comparison, it also measures rebuilding every
+ * group (sorting its members and counting those online), which is what a
+ * model without incremental updates does for each change. At the end the
+ * group counts and rows kept by the model are checked against a rebuild.
+ * Runs headless.
+ * 
+ * Usage: ContactTreeBenchmark [contacts, default 20000] [groups, default 40]
+ * [changes, default 20000]
+ */
+public class ContactTreeBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		final int size = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		final int groupCount = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+		final int changes = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+
+		SwingUtilities.invokeAndWait(new Runnable() {
+			@Override
+			public void run() {
+				benchmark(size, groupCount, changes);
+			}
+		});
+		System.exit(0);
+	}
+
+	private static void benchmark(int size, int groupCount, int changes) {
+		Random random = new Random(317);
+		List<Contact> contacts = new ArrayList<Contact>();
+		for (int i = 0; i < size; i++) {
+			List<String> groups = new ArrayList<String>();
+			// some contacts are in two groups, some in none
+			if (i % 20 != 0)
+				groups.add("group " + random.nextInt(groupCount));
+			if (i % 10 == 1)
+				groups.add("group " + random.nextInt(groupCount));
+			Contact contact = new Contact("user" + i + "@example.com",
+					"Contact " + Integer.toHexString(random.nextInt()), groups);
+			if (random.nextInt(3) == 0)
+				contact.setStatus("home", ContactStatus.AVAILABLE);
+			contacts.add(contact);
+		}
+
+		ContactTreeModel model = new ContactTreeModel(null, new UiEventBridge());
+		JTree tree = new JTree(model);
+		tree.setRootVisible(false);
+		tree.setShowsRootHandles(true);
+		tree.setRowHeight(40);
+		tree.setLargeModel(true);
+		tree.addTreeWillExpandListener(model);
+		tree.addTreeExpansionListener(model);
+
+		long start = System.nanoTime();
+		for (Contact contact : contacts) {
+			contact.addContactListener(model);
+			model.contactAdded(contact);
+		}
+		model.applyChanges();
+		System.out.printf("%d contacts in %d groups loaded in %.1f ms\n",
+				size, model.getGroups().size(),
+				(System.nanoTime() - start) / 1e6);
+
+		ContactTreeModel.Group expanded = model.getGroups().get(0);
+		start = System.nanoTime();
+		tree.expandPath(new TreePath(new Object[] { model.getRoot(), expanded }));
+		System.out.printf("expanding a group of %d contacts: %.2f ms\n",
+				expanded.getSize(), (System.nanoTime() - start) / 1e6);
+
+		List<Contact> inExpanded = new ArrayList<Contact>();
+		List<Contact> inCollapsed = new ArrayList<Contact>();
+		for (Contact contact : contacts)
+			if (contact.getGroups().contains(expanded.getName()))
+				inExpanded.add(contact);
+			else
+				inCollapsed.add(contact);
+
+		System.out.printf("presence change, collapsed group: %.2f us\n",
+				togglePresence(model, inCollapsed, changes, random));
+		System.out.printf("presence change, expanded group:  %.2f us\n",
+				togglePresence(model, inExpanded, changes, random));
+
+		start = System.nanoTime();
+		for (int i = 0; i < changes; i++) {
+			Contact contact = contacts.get(random.nextInt(size));
+			contact.setGroups(Arrays.asList(random.nextBoolean() ? expanded
+					.getName() : "group " + random.nextInt(groupCount)));
+			model.applyChanges();
+		}
+		System.out.printf("group move:                        %.2f us\n",
+				(System.nanoTime() - start) / 1e3 / changes);
+
+		int rebuilds = 20;
+		start = System.nanoTime();
+		Map<String, List<Object>> rebuilt = null;
+		for (int i = 0; i < rebuilds; i++)
+			rebuilt = rebuild(contacts);
+		System.out.printf("rebuilding all groups:             %.2f us\n",
+				(System.nanoTime() - start) / 1e3 / rebuilds);
+
+		System.out.println("consistent with a rebuild: "
+				+ check(model, rebuilt));
+	}
+
+	private static double togglePresence(ContactTreeModel model,
+			List<Contact> contacts, int changes, Random random) {
+		long start = System.nanoTime();
+		for (int i = 0; i < changes; i++) {
+			Contact contact = contacts.get(random.nextInt(contacts.size()));
+			contact.setStatus("home",
+					contact.getStatus() == ContactStatus.OFFLINE ? ContactStatus.AWAY
+							: ContactStatus.OFFLINE);
+			model.applyChanges();
+		}
+		return (System.nanoTime() - start) / 1e3 / changes;
+	}
+
+	/**
+	 * Groups all contacts from scratch, returning for each group its members
+	 * in order, with the number of members online in the first position.
+	 */
+	private static Map<String, List<Object>> rebuild(List<Contact> contacts) {
+		Map<String, List<Contact>> groups = new HashMap<String, List<Contact>>();
+		for (Contact contact : contacts) {
+			List<String> names = new ArrayList<String>(contact.getGroups());
+			if (names.isEmpty())
+				names.add(ContactTreeModel.UNGROUPED);
+			for (String name : names) {
+				List<Contact> members = groups.get(name);
+				if (members == null)
+					groups.put(name, members = new ArrayList<Contact>());
+				members.add(contact);
+			}
+		}
+		Map<String, List<Object>> result = new HashMap<String, List<Object>>();
+		for (Map.Entry<String, List<Contact>> group : groups.entrySet()) {
+			List<Contact> members = group.getValue();
+			Collections.sort(members, new Comparator<Contact>() {
+				@Override
+				public int compare(Contact c1, Contact c2) {
+					int order = c1.compareTo(c2);
+					return order != 0 ? order : c1.getBareJid().compareTo(
+							c2.getBareJid());
+				}
+			});
+			int online = 0;
+			for (Contact contact : members)
+				if (contact.getStatus() != ContactStatus.OFFLINE)
+					online++;
+			List<Object> entry = new ArrayList<Object>(members.size() + 1);
+			entry.add(online);
+			entry.addAll(members);
+			result.put(group.getKey(), entry);
+		}
+		return result;
+	}
+
+	private static boolean check(ContactTreeModel model,
+			Map<String, List<Object>> rebuilt) {
+		if (model.getGroups().size() != rebuilt.size())
+			return false;
+		for (ContactTreeModel.Group group : model.getGroups()) {
+			List<Object> expected = rebuilt.get(group.getName());
+			if (expected == null
+					|| group.getSize() != expected.size() - 1
+					|| group.getOnlineCount() != (Integer) expected.get(0))
+				return false;
+			if (group.isMaterialized())
+				for (int i = 0; i < group.getSize(); i++)
+					if (model.getChild(group, i) != expected.get(i + 1))
+						return false;
+		}
+		return true;
+	}
+}
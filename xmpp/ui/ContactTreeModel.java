@@ -0,0 +1,513 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.ui;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.swing.event.EventListenerList;
+import javax.swing.event.TreeExpansionEvent;
+import javax.swing.event.TreeExpansionListener;
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import javax.swing.event.TreeWillExpandListener;
+import javax.swing.tree.TreeModel;
+import javax.swing.tree.TreePath;
+
+import ubc.cs317.xmpp.model.Contact;
+import ubc.cs317.xmpp.model.ContactStatus;
+import ubc.cs317.xmpp.model.Session;
+import ubc.cs317.xmpp.model.listener.ContactBatchListener;
+
+/**
+ * Contacts shown in the contact tree, grouped by their roster groups.
+ * Contacts that are in several groups are shown in each of them, and contacts
+ * without groups are shown in a group of their own, after the others.
+ * 
+ * Contact events arrive in the connection thread and only mark the contact as
+ * changed; the changed contacts are applied to the tree in the event dispatch
+ * thread at most once per frame. Each change is applied by comparing the
+ * contact with what the model recorded about it (its groups, name and if it
+ * was online), so it only touches the groups the contact was or is in: the
+ * number of online contacts of each group is kept up to date by adding or
+ * subtracting one, and the rows of a group, in order, only exist while the
+ * group is expanded, so changes in collapsed groups do not sort or search
+ * anything. The model must be registered as an expansion listener of the
+ * tree to know which groups are expanded.
+ */
+public class ContactTreeModel implements TreeModel, ContactBatchListener,
+		TreeWillExpandListener, TreeExpansionListener {
+
+	/**
+	 * Name of the group showing the contacts that are not in any group. The
+	 * group is kept apart from any roster group with the same name.
+	 */
+	public static final String UNGROUPED = "Other contacts";
+
+	/**
+	 * A roster group, shown as a node of the tree.
+	 */
+	public static class Group {
+
+		/**
+		 * Name of the roster group, or null for the contacts without groups.
+		 */
+		private final String key;
+		private final String name;
+		private final boolean ungrouped;
+		private final Set<Contact> members = new HashSet<Contact>();
+		private int online = 0;
+
+		/**
+		 * Members of the group in the order they are shown, or null if the
+		 * group is not expanded.
+		 */
+		private List<Contact> rows;
+
+		private Group(String key) {
+			this.key = key;
+			this.name = key == null ? UNGROUPED : key;
+			this.ungrouped = key == null;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getSize() {
+			return members.size();
+		}
+
+		public int getOnlineCount() {
+			return online;
+		}
+
+		/**
+		 * Checks if the rows of the group are currently kept by the model.
+		 */
+		boolean isMaterialized() {
+			return rows != null;
+		}
+
+		@Override
+		public String toString() {
+			return name + " (" + online + "/" + members.size() + ")";
+		}
+	}
+
+	/**
+	 * What the model knows about a contact in the tree, compared with the
+	 * contact when it changes.
+	 */
+	private static class Entry {
+		private String name;
+		private Set<String> groups;
+		private boolean online;
+	}
+
+	private final Object root = new Object() {
+		@Override
+		public String toString() {
+			return "Contacts";
+		}
+	};
+
+	private final EventListenerList listenerList = new EventListenerList();
+
+	private UiEventBridge eventBridge;
+
+	/**
+	 * Contacts of the session, changed in the connection thread.
+	 */
+	private final Set<Contact> contacts = new HashSet<Contact>();
+
+	/**
+	 * Contacts changed since the tree was last updated, guarded by the lock
+	 * of the set of contacts.
+	 */
+	private Set<Contact> dirty = new LinkedHashSet<Contact>();
+
+	// The fields below are only used in the event dispatch thread
+
+	private final Map<Contact, Entry> entries = new HashMap<Contact, Entry>();
+	private final Map<String, Group> groups = new HashMap<String, Group>();
+	private final List<Group> groupList = new ArrayList<Group>();
+
+	/**
+	 * Groups whose online or total count changed during an update, repainted
+	 * once at the end of it.
+	 */
+	private final Set<Group> changedGroups = new LinkedHashSet<Group>();
+
+	private final Comparator<Contact> rowOrder = new Comparator<Contact>() {
+		@Override
+		public int compare(Contact c1, Contact c2) {
+			// uses the names recorded in the entries, so a renamed contact
+			// can still be found at its old position
+			int result = entries.get(c1).name.compareToIgnoreCase(entries
+					.get(c2).name);
+			return result != 0 ? result : c1.getBareJid().compareTo(
+					c2.getBareJid());
+		}
+	};
+
+	private final Comparator<Group> groupOrder = new Comparator<Group>() {
+		@Override
+		public int compare(Group g1, Group g2) {
+			if (g1.ungrouped != g2.ungrouped)
+				return g1.ungrouped ? 1 : -1;
+			int result = g1.name.compareToIgnoreCase(g2.name);
+			return result != 0 ? result : g1.name.compareTo(g2.name);
+		}
+	};
+
+	private final Runnable applyTask = new Runnable() {
+		@Override
+		public void run() {
+			applyChanges();
+		}
+	};
+
+	public ContactTreeModel(Session session, UiEventBridge eventBridge) {
+		this.eventBridge = eventBridge;
+		this.setSession(session);
+	}
+
+	/**
+	 * Shows the contacts of a session. Must be called in the event dispatch
+	 * thread.
+	 * 
+	 * @param session
+	 *            Session whose contacts are shown, or null.
+	 */
+	public void setSession(Session session) {
+		synchronized (contacts) {
+			contacts.clear();
+			dirty.clear();
+			if (session != null) {
+				contacts.addAll(session.getContacts());
+				dirty.addAll(contacts);
+			}
+		}
+		entries.clear();
+		groups.clear();
+		groupList.clear();
+		fireTreeStructureChanged(new TreeModelEvent(this, new Object[] { root }));
+		applyChanges();
+
+		if (session != null) {
+			session.addContactListener(this);
+		}
+	}
+
+	/**
+	 * Returns the groups shown in the tree, in order. Must be called in the
+	 * event dispatch thread.
+	 */
+	public List<Group> getGroups() {
+		return Collections.unmodifiableList(groupList);
+	}
+
+	/**
+	 * Applies the contacts changed since the last update to the tree. Must be
+	 * called in the event dispatch thread.
+	 */
+	void applyChanges() {
+		Set<Contact> current;
+		Set<Contact> stillInSession = new HashSet<Contact>();
+		synchronized (contacts) {
+			if (dirty.isEmpty())
+				return;
+			current = dirty;
+			dirty = new LinkedHashSet<Contact>();
+			for (Contact contact : current)
+				if (contacts.contains(contact))
+					stillInSession.add(contact);
+		}
+		for (Contact contact : current)
+			apply(contact, stillInSession.contains(contact));
+		for (Group group : changedGroups) {
+			int index = Collections.binarySearch(groupList, group, groupOrder);
+			if (index >= 0 && groupList.get(index) == group)
+				fireTreeNodesChanged(new TreeModelEvent(this,
+						new Object[] { root }, new int[] { index },
+						new Object[] { group }));
+		}
+		changedGroups.clear();
+	}
+
+	private void apply(Contact contact, boolean inSession) {
+		Entry entry = entries.get(contact);
+		if (!inSession) {
+			if (entry != null) {
+				for (String name : entry.groups)
+					removeFromGroup(groups.get(name), contact, entry);
+				entries.remove(contact);
+			}
+			return;
+		}
+
+		String name = contact.toString();
+		Set<String> contactGroups = contact.getGroups();
+		if (contactGroups.isEmpty())
+			contactGroups = Collections.singleton(null);
+		boolean online = contact.getStatus() != ContactStatus.OFFLINE;
+
+		if (entry == null) {
+			entry = new Entry();
+			entry.name = name;
+			entry.groups = contactGroups;
+			entry.online = online;
+			entries.put(contact, entry);
+			for (String group : contactGroups)
+				addToGroup(group, contact, entry);
+		} else if (!name.equals(entry.name)
+				|| !contactGroups.equals(entry.groups)) {
+			// moved within or between groups
+			for (String group : entry.groups)
+				removeFromGroup(groups.get(group), contact, entry);
+			entry.name = name;
+			entry.groups = contactGroups;
+			entry.online = online;
+			for (String group : contactGroups)
+				addToGroup(group, contact, entry);
+		} else {
+			boolean onlineChanged = online != entry.online;
+			entry.online = online;
+			for (String key : entry.groups) {
+				Group group = groups.get(key);
+				if (onlineChanged) {
+					group.online += online ? 1 : -1;
+					fireGroupChanged(group);
+				}
+				if (group.rows != null) {
+					int index = Collections.binarySearch(group.rows, contact,
+							rowOrder);
+					fireTreeNodesChanged(new TreeModelEvent(this,
+							new Object[] { root, group }, new int[] { index },
+							new Object[] { contact }));
+				}
+			}
+		}
+	}
+
+	private void addToGroup(String name, Contact contact, Entry entry) {
+		Group group = groups.get(name);
+		if (group == null) {
+			group = new Group(name);
+			groups.put(name, group);
+			int index = -Collections.binarySearch(groupList, group, groupOrder) - 1;
+			groupList.add(index, group);
+			fireTreeNodesInserted(new TreeModelEvent(this,
+					new Object[] { root }, new int[] { index },
+					new Object[] { group }));
+		}
+		group.members.add(contact);
+		if (entry.online)
+			group.online++;
+		if (group.rows != null) {
+			int index = -Collections.binarySearch(group.rows, contact,
+					rowOrder) - 1;
+			group.rows.add(index, contact);
+			fireTreeNodesInserted(new TreeModelEvent(this, new Object[] {
+					root, group }, new int[] { index },
+					new Object[] { contact }));
+		}
+		fireGroupChanged(group);
+	}
+
+	private void removeFromGroup(Group group, Contact contact, Entry entry) {
+		if (group.rows != null) {
+			int index = Collections.binarySearch(group.rows, contact, rowOrder);
+			group.rows.remove(index);
+			fireTreeNodesRemoved(new TreeModelEvent(this, new Object[] { root,
+					group }, new int[] { index }, new Object[] { contact }));
+		}
+		group.members.remove(contact);
+		if (entry.online)
+			group.online--;
+		if (group.members.isEmpty()) {
+			int index = Collections.binarySearch(groupList, group, groupOrder);
+			groupList.remove(index);
+			groups.remove(group.key);
+			fireTreeNodesRemoved(new TreeModelEvent(this,
+					new Object[] { root }, new int[] { index },
+					new Object[] { group }));
+		} else
+			fireGroupChanged(group);
+	}
+
+	/**
+	 * Creates the rows of a group, sorted, when it is first needed.
+	 */
+	private List<Contact> getRows(Group group) {
+		if (group.rows == null) {
+			group.rows = new ArrayList<Contact>(group.members);
+			Collections.sort(group.rows, rowOrder);
+		}
+		return group.rows;
+	}
+
+	private void fireGroupChanged(Group group) {
+		changedGroups.add(group);
+	}
+
+	@Override
+	public Object getRoot() {
+		return root;
+	}
+
+	@Override
+	public Object getChild(Object parent, int index) {
+		if (parent == root)
+			return groupList.get(index);
+		return getRows((Group) parent).get(index);
+	}
+
+	@Override
+	public int getChildCount(Object parent) {
+		if (parent == root)
+			return groupList.size();
+		if (parent instanceof Group)
+			return ((Group) parent).members.size();
+		return 0;
+	}
+
+	@Override
+	public boolean isLeaf(Object node) {
+		return node instanceof Contact;
+	}
+
+	@Override
+	public int getIndexOfChild(Object parent, Object child) {
+		if (parent == root)
+			return child instanceof Group ? Collections.binarySearch(
+					groupList, (Group) child, groupOrder) : -1;
+		if (!(parent instanceof Group) || !(child instanceof Contact)
+				|| !((Group) parent).members.contains(child))
+			return -1;
+		return Collections.binarySearch(getRows((Group) parent),
+				(Contact) child, rowOrder);
+	}
+
+	@Override
+	public void valueForPathChanged(TreePath path, Object newValue) {
+		// the tree is not editable
+	}
+
+	@Override
+	public void treeWillExpand(TreeExpansionEvent event) {
+		Object node = event.getPath().getLastPathComponent();
+		if (node instanceof Group)
+			getRows((Group) node);
+	}
+
+	@Override
+	public void treeWillCollapse(TreeExpansionEvent event) {
+	}
+
+	@Override
+	public void treeExpanded(TreeExpansionEvent event) {
+	}
+
+	@Override
+	public void treeCollapsed(TreeExpansionEvent event) {
+		// rows of collapsed groups are not kept up to date
+		Object node = event.getPath().getLastPathComponent();
+		if (node instanceof Group)
+			((Group) node).rows = null;
+	}
+
+	@Override
+	public void addTreeModelListener(TreeModelListener l) {
+		listenerList.add(TreeModelListener.class, l);
+	}
+
+	@Override
+	public void removeTreeModelListener(TreeModelListener l) {
+		listenerList.remove(TreeModelListener.class, l);
+	}
+
+	private void fireTreeNodesChanged(TreeModelEvent event) {
+		for (TreeModelListener l : listenerList
+				.getListeners(TreeModelListener.class))
+			l.treeNodesChanged(event);
+	}
+
+	private void fireTreeNodesInserted(TreeModelEvent event) {
+		for (TreeModelListener l : listenerList
+				.getListeners(TreeModelListener.class))
+			l.treeNodesInserted(event);
+	}
+
+	private void fireTreeNodesRemoved(TreeModelEvent event) {
+		for (TreeModelListener l : listenerList
+				.getListeners(TreeModelListener.class))
+			l.treeNodesRemoved(event);
+	}
+
+	private void fireTreeStructureChanged(TreeModelEvent event) {
+		for (TreeModelListener l : listenerList
+				.getListeners(TreeModelListener.class))
+			l.treeStructureChanged(event);
+	}
+
+	private void contactsChanged(Collection<Contact> contacts) {
+		synchronized (this.contacts) {
+			dirty.addAll(contacts);
+		}
+		eventBridge.update(this, "tree", applyTask);
+	}
+
+	@Override
+	public void contactAdded(Contact contact) {
+		synchronized (contacts) {
+			contacts.add(contact);
+		}
+		contactsChanged(Collections.singleton(contact));
+	}
+
+	@Override
+	public void contactChanged(Contact contact) {
+		contactsChanged(Collections.singleton(contact));
+	}
+
+	@Override
+	public void contactRemoved(Contact contact) {
+		synchronized (contacts) {
+			contacts.remove(contact);
+		}
+		contactsChanged(Collections.singleton(contact));
+	}
+
+	@Override
+	public void contactsUpdated(Collection<Contact> added,
+			Collection<Contact> changed, Collection<Contact> removed) {
+		synchronized (contacts) {
+			contacts.removeAll(removed);
+			contacts.addAll(added);
+		}
+		contactsChanged(removed);
+		contactsChanged(added);
+		contactsChanged(changed);
+	}
+}
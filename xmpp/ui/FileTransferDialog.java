@@ -0,0 +1,157 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.ui;
+
+import java.awt.BorderLayout;
+import java.awt.Dialog;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+
+import ubc.cs317.xmpp.net.FileTransfer;
+
+/**
+ * Non-modal dialog showing the progress and throughput of a file transfer.
+ * Progress notifications come from the transfer thread; a single update of
+ * the dialog is scheduled for any number of notifications received before
+ * the event dispatch thread handles it.
+ */
+public class FileTransferDialog extends JDialog implements
+		FileTransfer.ProgressListener {
+
+	private FileTransfer transfer;
+	private UiEventBridge eventBridge;
+
+	private JLabel statusLabel;
+	private JProgressBar progressBar;
+	private JButton cancelButton;
+
+	private final Runnable updateTask = new Runnable() {
+		@Override
+		public void run() {
+			update();
+		}
+	};
+
+	public FileTransferDialog(MainWindow mainWindow, FileTransfer fileTransfer) {
+
+		super(mainWindow, Dialog.ModalityType.MODELESS);
+
+		this.transfer = fileTransfer;
+		this.eventBridge = mainWindow.getEventBridge();
+		this.setTitle(transfer.toString());
+
+		statusLabel = new JLabel();
+		progressBar = new JProgressBar(0, 1000);
+		progressBar.setStringPainted(true);
+
+		cancelButton = new JButton("Cancel");
+		cancelButton.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				if (transfer.isDone())
+					FileTransferDialog.this.dispose();
+				else
+					transfer.cancel();
+			}
+		});
+
+		JPanel panel = new JPanel(new BorderLayout(5, 5));
+		panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+		panel.add(statusLabel, BorderLayout.NORTH);
+		panel.add(progressBar, BorderLayout.CENTER);
+		panel.add(cancelButton, BorderLayout.SOUTH);
+		this.add(panel);
+
+		this.setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+		this.setSize(400, 140);
+		this.setLocationRelativeTo(mainWindow);
+
+		transfer.addProgressListener(this);
+		update();
+		this.setVisible(true);
+	}
+
+	@Override
+	public void dispose() {
+		transfer.removeProgressListener(this);
+		super.dispose();
+	}
+
+	/**
+	 * Updates the dialog with the current state of the transfer. Must be
+	 * called in the event dispatch thread.
+	 */
+	private void update() {
+		this.setTitle(transfer.toString());
+		progressBar.setValue((int) (transfer.getProgress() * 1000));
+
+		String status;
+		switch (transfer.getState()) {
+		case NEGOTIATING:
+			status = "Waiting for " + transfer.getPeerJid() + "...";
+			break;
+		case IN_PROGRESS:
+			status = formatSize(transfer.getTransferred()) + " of "
+					+ formatSize(transfer.getSize()) + " at "
+					+ formatSize(transfer.getThroughput()) + "/s ("
+					+ transfer.getMethod() + ")";
+			break;
+		case COMPLETED:
+			status = "Completed: " + formatSize(transfer.getSize())
+					+ " at " + formatSize(transfer.getThroughput()) + "/s";
+			break;
+		case FAILED:
+			status = "Failed: " + transfer.getFailureReason();
+			break;
+		default:
+			status = transfer.getState() == FileTransfer.State.REJECTED
+					? "Rejected by " + transfer.getPeerJid() : "Cancelled";
+		}
+		statusLabel.setText(status);
+		if (transfer.isDone())
+			cancelButton.setText("Close");
+	}
+
+	private void scheduleUpdate() {
+		eventBridge.update(this, "progress", updateTask);
+	}
+
+	private static String formatSize(long bytes) {
+		if (bytes < 1024)
+			return bytes + " B";
+		if (bytes < 1024 * 1024)
+			return String.format("%.1f KB", bytes / 1024.0);
+		if (bytes < 1024 * 1024 * 1024)
+			return String.format("%.1f MB", bytes / (1024.0 * 1024));
+		return String.format("%.2f GB", bytes / (1024.0 * 1024 * 1024));
+	}
+
+	@Override
+	public void progressChanged(FileTransfer transfer) {
+		scheduleUpdate();
+	}
+
+	@Override
+	public void stateChanged(FileTransfer transfer) {
+		scheduleUpdate();
+	}
+}
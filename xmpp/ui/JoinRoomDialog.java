@@ -0,0 +1,106 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.ui;
+
+import java.awt.Dialog;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JTextField;
+
+import ubc.cs317.xmpp.exception.XMPPException;
+import ubc.cs317.xmpp.model.ChatRoom;
+
+public class JoinRoomDialog extends JDialog implements ActionListener {
+
+	private MainWindow mainWindow;
+
+	private JLabel roomLabel, nickLabel;
+	private JTextField roomField, nickField;
+	private JButton joinButton;
+	private JButton cancelButton;
+
+	private GenericFormPanel formPanel;
+
+	public JoinRoomDialog(MainWindow mainWindow) {
+
+		super(mainWindow, Dialog.ModalityType.APPLICATION_MODAL);
+
+		this.mainWindow = mainWindow;
+
+		roomLabel = new JLabel("Room ID (JID): ");
+		roomField = new JTextField(20);
+		roomLabel.setLabelFor(roomField);
+
+		nickLabel = new JLabel("Nickname: ");
+		nickField = new JTextField(mainWindow.getSession().getUserBareJid()
+				.split("@")[0], 10);
+		nickLabel.setLabelFor(nickField);
+
+		joinButton = new JButton("Join");
+		joinButton.addActionListener(this);
+
+		cancelButton = new JButton("Cancel");
+		cancelButton.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				JoinRoomDialog.this.dispose();
+			}
+		});
+
+		this.setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+
+		formPanel = new GenericFormPanel();
+		formPanel.addLineOfFields(roomLabel, roomField);
+		formPanel.addLineOfFields(nickLabel, nickField);
+
+		formPanel.addButton(joinButton);
+		formPanel.addButton(cancelButton);
+
+		this.add(formPanel);
+
+		this.getRootPane().setDefaultButton(joinButton);
+
+		this.setSize(600, 200);
+		this.setLocation((mainWindow.getWidth() - this.getWidth()) / 2,
+				(mainWindow.getHeight() - this.getHeight()) / 2);
+
+		this.setVisible(true);
+	}
+
+	@Override
+	public void actionPerformed(ActionEvent event) {
+
+		String roomJid = roomField.getText().trim();
+		String nick = nickField.getText().trim();
+		if (!roomJid.contains("@") || nick.equals("")) {
+			JOptionPane.showMessageDialog(mainWindow,
+					"Please inform a room JID and a nickname.");
+			return;
+		}
+
+		try {
+			ChatRoom room = mainWindow.getSession().joinRoom(roomJid, nick);
+			mainWindow.createRoomPanel(room, true);
+			this.dispose();
+		} catch (XMPPException e) {
+			JOptionPane.showMessageDialog(mainWindow, e);
+		}
+	}
+}
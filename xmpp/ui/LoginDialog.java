@@ -26,6 +26,8 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
@@ -33,10 +35,14 @@ import javax.swing.JDialog;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPasswordField;
+import javax.swing.JProgressBar;
 import javax.swing.JTextField;
+import javax.swing.SwingWorker;
 
-import ubc.cs317.xmpp.exception.XMPPException;
+import ubc.cs317.xmpp.model.ContactStatus;
 import ubc.cs317.xmpp.model.Session;
+import ubc.cs317.xmpp.net.ConnectionConfiguration;
+import ubc.cs317.xmpp.net.ConnectionProgress;
 
 public class LoginDialog extends JDialog implements ActionListener {
 
@@ -48,9 +54,12 @@ public class LoginDialog extends JDialog implements ActionListener {
 	private JCheckBox savePasswordCheckbox;
 	private JButton connectButton;
 	private JButton cancelButton;
+	private JProgressBar progressBar;
 
 	private GenericFormPanel formPanel;
 
+	private LoginWorker loginWorker;
+
 	public LoginDialog(MainWindow mainWindow) {
 
 		super(mainWindow, Dialog.ModalityType.APPLICATION_MODAL);
@@ -103,10 +112,18 @@ public class LoginDialog extends JDialog implements ActionListener {
 
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				System.exit(0);
+				if (loginWorker != null)
+					cancelLogin();
+				else
+					System.exit(0);
 			}
 		});
 
+		progressBar = new JProgressBar(0,
+				ConnectionProgress.Stage.values().length - 1);
+		progressBar.setStringPainted(true);
+		progressBar.setVisible(false);
+
 		this.setDefaultCloseOperation(DO_NOTHING_ON_CLOSE);
 		this.addWindowListener(new WindowAdapter() {
 			@Override
@@ -124,6 +141,7 @@ public class LoginDialog extends JDialog implements ActionListener {
 		formPanel.addLineOfFields(resourceLabel, resourceField);
 		formPanel.addLineOfFields(passwordLabel, passwordField);
 		formPanel.addLineOfFields(null, savePasswordCheckbox);
+		formPanel.addLineOfFields(null, progressBar);
 
 		formPanel.addButton(connectButton);
 		formPanel.addButton(cancelButton);
@@ -132,7 +150,7 @@ public class LoginDialog extends JDialog implements ActionListener {
 
 		this.getRootPane().setDefaultButton(connectButton);
 
-		this.setSize(600, 200);
+		this.setSize(600, 230);
 		this.setLocation((mainWindow.getWidth() - this.getWidth()) / 2,
 				(mainWindow.getHeight() - this.getHeight()) / 2);
 
@@ -145,20 +163,121 @@ public class LoginDialog extends JDialog implements ActionListener {
 	@Override
 	public void actionPerformed(ActionEvent event) {
 
-		try {
+		if (loginWorker != null)
+			return;
+
+		saveInfo();
+
+		setFormEnabled(false);
+		showStage(ConnectionProgress.Stage.CONNECTING);
+		progressBar.setVisible(true);
+
+		loginWorker = new LoginWorker(jidUsernameField.getText(),
+				jidDomainField.getText(), resourceField.getText(), new String(
+						passwordField.getPassword()),
+				mainWindow.getSelectedStatus());
+		loginWorker.execute();
+	}
+
+	/**
+	 * Aborts the login in progress, closing its connection, and allows the
+	 * user to change the login information and try again.
+	 */
+	private void cancelLogin() {
+		loginWorker.getConnectionProgress().cancel();
+		resetLogin();
+	}
+
+	private void resetLogin() {
+		loginWorker = null;
+		progressBar.setVisible(false);
+		setFormEnabled(true);
+	}
+
+	private void setFormEnabled(boolean enabled) {
+		jidUsernameField.setEnabled(enabled);
+		jidDomainField.setEnabled(enabled);
+		resourceField.setEnabled(enabled);
+		passwordField.setEnabled(enabled);
+		savePasswordCheckbox.setEnabled(enabled);
+		connectButton.setEnabled(enabled);
+	}
+
+	private void showStage(ConnectionProgress.Stage stage) {
+		progressBar.setValue(stage.ordinal());
+		progressBar.setString(stage + "...");
+	}
 
-			saveInfo();
+	/**
+	 * Establishes the session in a background thread, so that the user
+	 * interface remains responsive while connecting, and the attempt can be
+	 * cancelled. Each stage of the connection is shown in the progress bar.
+	 */
+	private class LoginWorker extends
+			SwingWorker<Session, ConnectionProgress.Stage> implements
+			ConnectionProgress.Listener {
+
+		private String jidUser, jidDomain, resource, password;
+		private ContactStatus status;
+		private ConnectionProgress progress;
+
+		private LoginWorker(String jidUser, String jidDomain, String resource,
+				String password, ContactStatus status) {
+			this.jidUser = jidUser;
+			this.jidDomain = jidDomain;
+			this.resource = resource;
+			this.password = password;
+			this.status = status;
+			this.progress = new ConnectionProgress(this);
+		}
+
+		private ConnectionProgress getConnectionProgress() {
+			return progress;
+		}
+
+		@Override
+		public void stageReached(ConnectionProgress.Stage stage) {
+			publish(stage);
+		}
+
+		@Override
+		protected Session doInBackground() throws Exception {
+			return new Session(jidUser, jidDomain, resource, password, status,
+					new ConnectionConfiguration(), progress);
+		}
+
+		@Override
+		protected void process(List<ConnectionProgress.Stage> stages) {
+			if (loginWorker == this)
+				showStage(stages.get(stages.size() - 1));
+		}
+
+		@Override
+		protected void done() {
+
+			Session session;
+			try {
+				session = get();
+			} catch (ExecutionException e) {
+				if (loginWorker == this) {
+					resetLogin();
+					JOptionPane.showMessageDialog(mainWindow, e.getCause());
+				}
+				return;
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			// cancelled after the connection was already established
+			if (loginWorker != this) {
+				session.closeConnection();
+				return;
+			}
 
-			Session session = new Session(jidUsernameField.getText(),
-					jidDomainField.getText(), resourceField.getText(),
-					new String(passwordField.getPassword()),
-					mainWindow.getSelectedStatus());
+			loginWorker = null;
 			mainWindow.setSession(session);
-			this.setVisible(false);
+			LoginDialog.this.setVisible(false);
 			mainWindow.setVisible(true);
-
-		} catch (XMPPException e) {
-			JOptionPane.showMessageDialog(mainWindow, e);
 		}
 	}
 
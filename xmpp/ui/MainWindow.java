@@ -16,10 +16,14 @@ package ubc.cs317.xmpp.ui;
 import java.awt.BorderLayout;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.File;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.swing.Icon;
+import javax.swing.JComponent;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import javax.swing.JTabbedPane;
@@ -27,21 +31,26 @@ import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
 import ubc.cs317.xmpp.exception.XMPPException;
+import ubc.cs317.xmpp.model.ChatRoom;
 import ubc.cs317.xmpp.model.Contact;
 import ubc.cs317.xmpp.model.ContactStatus;
+import ubc.cs317.xmpp.model.Conversation;
 import ubc.cs317.xmpp.model.Message;
 import ubc.cs317.xmpp.model.Session;
 import ubc.cs317.xmpp.model.listener.ContactListener;
+import ubc.cs317.xmpp.model.listener.FileTransferListener;
 import ubc.cs317.xmpp.model.listener.MessageListener;
 import ubc.cs317.xmpp.model.listener.SessionListener;
 import ubc.cs317.xmpp.model.listener.SubscriptionRequestListener;
+import ubc.cs317.xmpp.net.FileTransfer;
 import ubc.cs317.xmpp.ui.images.AvailableIcon;
 import ubc.cs317.xmpp.ui.images.AwayIcon;
 import ubc.cs317.xmpp.ui.images.BusyIcon;
 import ubc.cs317.xmpp.ui.images.OfflineIcon;
 
 public class MainWindow extends JFrame implements MessageListener,
-		ContactListener, SubscriptionRequestListener, SessionListener {
+		ContactListener, SubscriptionRequestListener, SessionListener,
+		FileTransferListener {
 
 	private Session session;
 
@@ -49,9 +58,21 @@ public class MainWindow extends JFrame implements MessageListener,
 
 	private JTabbedPane chatTabbedPanel = null;
 	private Map<Contact, ChatPanel> chatPanels = new HashMap<Contact, ChatPanel>();
+	private Map<ChatRoom, RoomPanel> roomPanels = new HashMap<ChatRoom, RoomPanel>();
 
 	private ChatToolbar chatToolbar;
 
+	/**
+	 * Chat panel in the selected tab, if any.
+	 */
+	private ChatPanel shownChatPanel = null;
+
+	/**
+	 * Carries events from the model, received in the connection thread, to
+	 * the components of this window.
+	 */
+	private final UiEventBridge eventBridge = new UiEventBridge();
+
 	public MainWindow() {
 
 		super("Simple Chat Client");
@@ -78,8 +99,17 @@ public class MainWindow extends JFrame implements MessageListener,
 
 			@Override
 			public void stateChanged(ChangeEvent e) {
-				ChatPanel panel = (ChatPanel) chatTabbedPanel
+				JComponent panel = (JComponent) chatTabbedPanel
 						.getSelectedComponent();
+				// only the chat panel in the selected tab renders messages
+				if (shownChatPanel != null && shownChatPanel != panel)
+					shownChatPanel.setShown(false);
+				shownChatPanel = panel instanceof ChatPanel ? (ChatPanel) panel
+						: null;
+				if (shownChatPanel != null) {
+					shownChatPanel.setShown(true);
+					updateChatPanelTitle(shownChatPanel, false);
+				}
 				if (panel != null)
 					panel.grabFocus();
 			}
@@ -123,10 +153,39 @@ public class MainWindow extends JFrame implements MessageListener,
 			updateChatPanelTitle(chatPanel, false);
 		}
 
-		this.contactChanged(contact);
+		updateChatPanelIcon(contact);
 		return chatPanel;
 	}
 
+	public RoomPanel createRoomPanel(ChatRoom room, boolean bringToFront) {
+
+		RoomPanel roomPanel = roomPanels.get(room);
+
+		if (roomPanel == null) {
+			roomPanel = new RoomPanel(this, room);
+			roomPanels.put(room, roomPanel);
+			chatTabbedPanel.addTab("# " + room.getRoomJid(), roomPanel);
+		}
+
+		if (bringToFront) {
+			chatTabbedPanel.setSelectedComponent(roomPanel);
+			roomPanel.grabFocus();
+		}
+		return roomPanel;
+	}
+
+	public void closeRoomPanel(RoomPanel roomPanel) {
+		ChatRoom room = roomPanel.getRoom();
+		room.removeChatRoomListener(roomPanel);
+		roomPanels.remove(room);
+		chatTabbedPanel.remove(roomPanel);
+		try {
+			session.leaveRoom(room);
+		} catch (XMPPException e) {
+			JOptionPane.showMessageDialog(this, e.getMessage());
+		}
+	}
+
 	public Session getSession() {
 		return this.session;
 	}
@@ -138,6 +197,7 @@ public class MainWindow extends JFrame implements MessageListener,
 		contactListPanel.setSession(session);
 		chatTabbedPanel.removeAll();
 		chatPanels.clear();
+		roomPanels.clear();
 		
 		if (session == null)
 			this.setTitle("Simple Chat Client");
@@ -147,9 +207,14 @@ public class MainWindow extends JFrame implements MessageListener,
 			session.addSubscriptionRequestListener(this);
 			session.addMessageListener(this);
 			session.addSessionListener(this);
+			session.addFileTransferListener(this);
 		}
 	}
 
+	UiEventBridge getEventBridge() {
+		return eventBridge;
+	}
+
 	public ContactStatus getSelectedStatus() {
 		return contactListPanel.getSelectedStatus();
 	}
@@ -158,6 +223,23 @@ public class MainWindow extends JFrame implements MessageListener,
 		new AddContactDialog(this, "");
 	}
 
+	public void showSendFileDialog(Contact contact) {
+		JFileChooser chooser = new JFileChooser();
+		if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION)
+			return;
+		try {
+			FileTransfer transfer = session.sendFile(contact,
+					chooser.getSelectedFile());
+			new FileTransferDialog(this, transfer);
+		} catch (XMPPException e) {
+			JOptionPane.showMessageDialog(this, e.getMessage());
+		}
+	}
+
+	public void showJoinRoomDialog() {
+		new JoinRoomDialog(this);
+	}
+
 	public synchronized void disconnect(boolean showNewLoginDialog) {
 		if (session != null) {
 			// Removes the session listener so that the confirmation dialog and
@@ -176,12 +258,16 @@ public class MainWindow extends JFrame implements MessageListener,
 
 		Contact contact = chatPanel.getConversation().getContact();
 		int index = chatTabbedPanel.indexOfComponent(chatPanel);
+		if (index < 0)
+			return;
 
 		if (unread)
 			this.toFront();
 
-		if (unread && chatTabbedPanel.getSelectedIndex() != index)
-			chatTabbedPanel.setTitleAt(index, "* " + contact.toString());
+		int unreadCount = chatPanel.getUnreadCount();
+		if (unreadCount > 0)
+			chatTabbedPanel.setTitleAt(index, "(" + unreadCount + ") "
+					+ contact.toString());
 		else
 			chatTabbedPanel.setTitleAt(index, contact.toString());
 	}
@@ -203,19 +289,43 @@ public class MainWindow extends JFrame implements MessageListener,
 		}
 	}
 
-	@Override
-	public void messageReceived(Message message) {
-		if (chatPanels.get(message.getFrom()) == null) {
-			createChatPanel(message.getFrom(), false);
-			updateChatPanelTitle(chatPanels.get(message.getFrom()), true);
+	private void updateChatPanelIcon(Contact contact) {
+		ChatPanel chatPanel = chatPanels.get(contact);
+		if (chatPanel != null) {
+			int index = chatTabbedPanel.indexOfComponent(chatPanel);
+			if (index >= 0)
+				chatTabbedPanel.setIconAt(index,
+						getStatusIcon(contact.getStatus(), 20));
 		}
 	}
 
+	@Override
+	public void messageReceived(final Message message) {
+		eventBridge.invoke(new Runnable() {
+			@Override
+			public void run() {
+				// a panel for a new conversation is a placeholder until its
+				// tab is selected
+				ChatPanel chatPanel = chatPanels.get(message.getFrom());
+				if (chatPanel == null)
+					chatPanel = createChatPanel(message.getFrom(), false);
+				chatPanel.addUnreadMessage();
+				updateChatPanelTitle(chatPanel, true);
+			}
+		});
+	}
+
 	@Override
 	public void messageSent(Message message) {
 		// Nothing to do
 	}
 
+	@Override
+	public void archivedMessagesLoaded(Conversation conversation,
+			List<Message> messages) {
+		// Nothing to do
+	}
+
 	@Override
 	public void contactAdded(Contact contact) {
 		// Nothing to do
@@ -227,18 +337,26 @@ public class MainWindow extends JFrame implements MessageListener,
 	}
 
 	@Override
-	public void contactChanged(Contact contact) {
-		ChatPanel chatPanel = chatPanels.get(contact);
-		if (chatPanel != null) {
-			int index = chatTabbedPanel.indexOfComponent(chatPanel);
-			if (index >= 0)
-				chatTabbedPanel.setIconAt(index,
-						getStatusIcon(contact.getStatus(), 20));
-		}
+	public void contactChanged(final Contact contact) {
+		eventBridge.update(contact, "tab icon", new Runnable() {
+			@Override
+			public void run() {
+				updateChatPanelIcon(contact);
+			}
+		});
 	}
 
 	@Override
-	public void subscriptionRequested(String jid) {
+	public void subscriptionRequested(final String jid) {
+		eventBridge.invokeDialog(new Runnable() {
+			@Override
+			public void run() {
+				askSubscription(jid);
+			}
+		});
+	}
+
+	private void askSubscription(String jid) {
 
 		int result = JOptionPane.showConfirmDialog(this, "The user " + jid
 				+ " wants to know when you are online. Do you want to accept?",
@@ -259,16 +377,60 @@ public class MainWindow extends JFrame implements MessageListener,
 	}
 
 	@Override
-	public void readingExceptionThrown(XMPPException exception) {
-		JOptionPane.showMessageDialog(this, exception.getMessage());
+	public void fileTransferRequested(final FileTransfer transfer) {
+		// the offer is answered later, so the listening thread is not blocked
+		// while the user decides
+		eventBridge.invokeDialog(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					int result = JOptionPane.showConfirmDialog(MainWindow.this,
+							transfer.getPeerJid() + " wants to send you the file "
+									+ transfer.getFileName() + " ("
+									+ transfer.getSize()
+									+ " bytes). Do you want to accept?",
+							"File transfer", JOptionPane.YES_NO_OPTION);
+					if (result != JOptionPane.YES_OPTION) {
+						transfer.reject();
+						return;
+					}
+					JFileChooser chooser = new JFileChooser();
+					chooser.setSelectedFile(new File(transfer.getFileName()));
+					if (chooser.showSaveDialog(MainWindow.this) != JFileChooser.APPROVE_OPTION) {
+						transfer.reject();
+						return;
+					}
+					transfer.accept(chooser.getSelectedFile());
+					new FileTransferDialog(MainWindow.this, transfer);
+				} catch (XMPPException e) {
+					JOptionPane.showMessageDialog(MainWindow.this, e.getMessage());
+				}
+			}
+		});
+	}
+
+	@Override
+	public void readingExceptionThrown(final XMPPException exception) {
+		eventBridge.invokeDialog(new Runnable() {
+			@Override
+			public void run() {
+				JOptionPane.showMessageDialog(MainWindow.this,
+						exception.getMessage());
+			}
+		});
 	}
 
 	@Override
 	public void sessionClosed() {
-		disconnect(JOptionPane
-				.showConfirmDialog(
-						this,
-						"The connection with the server was closed. Do you want to start a new connection?",
-						"Confirmation", JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION);
+		eventBridge.invokeDialog(new Runnable() {
+			@Override
+			public void run() {
+				disconnect(JOptionPane
+						.showConfirmDialog(
+								MainWindow.this,
+								"The connection with the server was closed. Do you want to start a new connection?",
+								"Confirmation", JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION);
+			}
+		});
 	}
 }
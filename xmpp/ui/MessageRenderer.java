@@ -0,0 +1,70 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.ui;
+
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyledDocument;
+
+import ubc.cs317.xmpp.model.Message;
+
+/**
+ * Formats chat messages for display, as runs of text with their styles. Runs
+ * are inserted into a StyledDocument as plain text, without parsing HTML, so
+ * the message text needs no escaping and its size does not affect the cost of
+ * parsing.
+ */
+class MessageRenderer {
+
+	private static final AttributeSet PLAIN_STYLE = new SimpleAttributeSet();
+	private static final SimpleAttributeSet SENDER_STYLE = new SimpleAttributeSet();
+
+	static {
+		StyleConstants.setBold(SENDER_STYLE, true);
+	}
+
+	/**
+	 * Inserts a message into a document. Must be called in the event dispatch
+	 * thread, since the timestamp format is shared.
+	 * 
+	 * @param document
+	 *            Document where the message is inserted.
+	 * @param offset
+	 *            Position of the document where the message is inserted.
+	 * @param message
+	 *            Message to be displayed.
+	 * @return Position right after the inserted message.
+	 * @throws BadLocationException
+	 *             If the offset is not a valid position of the document.
+	 */
+	static int insertInto(StyledDocument document, int offset, Message message)
+			throws BadLocationException {
+		String sender = message.getFrom() == null ? "me" : message.getFrom()
+				.toString();
+		offset = insert(document, offset, "("
+				+ ChatPanel.TIMESTAMP_FORMAT.format(message.getTimestamp())
+				+ ") ", PLAIN_STYLE);
+		offset = insert(document, offset, sender, SENDER_STYLE);
+		return insert(document, offset, ": " + message.getTextMessage() + "\n",
+				PLAIN_STYLE);
+	}
+
+	private static int insert(StyledDocument document, int offset,
+			String text, AttributeSet style) throws BadLocationException {
+		document.insertString(offset, text, style);
+		return offset + text.length();
+	}
+}
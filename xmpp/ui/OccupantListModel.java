@@ -0,0 +1,54 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.ui;
+
+import java.util.Collection;
+
+import javax.swing.AbstractListModel;
+
+import ubc.cs317.xmpp.model.Occupant;
+
+public class OccupantListModel extends AbstractListModel<Occupant> {
+
+	private Occupant[] occupants = new Occupant[0];
+
+	@Override
+	public int getSize() {
+		return occupants.length;
+	}
+
+	@Override
+	public Occupant getElementAt(int index) {
+		return occupants[index];
+	}
+
+	/**
+	 * Replaces the list with a snapshot of the occupants of a room. Must be
+	 * called in the event dispatch thread.
+	 * 
+	 * @param current
+	 *            Current occupants of the room, already sorted.
+	 */
+	public void update(Collection<Occupant> current) {
+		int oldSize = occupants.length;
+		occupants = current.toArray(new Occupant[0]);
+		int newSize = occupants.length;
+		if (newSize < oldSize)
+			fireIntervalRemoved(this, newSize, oldSize - 1);
+		else if (newSize > oldSize)
+			fireIntervalAdded(this, oldSize, newSize - 1);
+		if (newSize > 0)
+			fireContentsChanged(this, 0, newSize - 1);
+	}
+}
@@ -0,0 +1,294 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.ui;
+
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.FocusAdapter;
+import java.awt.event.FocusEvent;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+import javax.swing.JButton;
+import javax.swing.JEditorPane;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextField;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLDocument;
+import javax.swing.text.html.HTMLEditorKit;
+
+import ubc.cs317.xmpp.exception.XMPPException;
+import ubc.cs317.xmpp.model.ChatRoom;
+import ubc.cs317.xmpp.model.Occupant;
+import ubc.cs317.xmpp.model.RingBuffer;
+import ubc.cs317.xmpp.model.RoomMessage;
+import ubc.cs317.xmpp.model.listener.ChatRoomListener;
+
+/**
+ * Panel showing a multi-user chat room. Unlike ChatPanel, which rebuilds the
+ * whole document for every message, this panel only appends the messages
+ * received since the last update, and removes the oldest ones once the
+ * document holds as many messages as the room history. Bursts of messages
+ * are rendered in a single update of the event dispatch thread.
+ */
+public class RoomPanel extends JPanel implements ChatRoomListener {
+
+	private MainWindow main;
+
+	private ChatRoom room;
+
+	private JLabel subjectLabel;
+	private JEditorPane chatArea;
+	private HTMLDocument document;
+	private JList<Occupant> occupantList;
+	private OccupantListModel occupantListModel;
+	private JPanel sendMessagePanel;
+	private JTextField sendMessageText;
+	private JButton sendMessageButton;
+	private JButton leaveButton;
+
+	private long renderedSequence = 0;
+	private int renderedMessages = 0;
+
+	public RoomPanel(MainWindow mainWindow, ChatRoom chatRoom) {
+
+		this.main = mainWindow;
+		this.room = chatRoom;
+
+		subjectLabel = new JLabel();
+
+		document = (HTMLDocument) new HTMLEditorKit().createDefaultDocument();
+		chatArea = new JEditorPane();
+		chatArea.setEditable(false);
+		chatArea.setContentType("text/html");
+		chatArea.setDocument(document);
+		chatArea.addKeyListener(new KeyAdapter() {
+			@Override
+			public void keyTyped(KeyEvent e) {
+				sendMessageText.grabFocus();
+				sendMessageText.dispatchEvent(e);
+			}
+		});
+
+		occupantListModel = new OccupantListModel();
+		occupantList = new JList<Occupant>(occupantListModel);
+		JScrollPane occupantScroll = new JScrollPane(occupantList);
+		occupantScroll.setPreferredSize(new Dimension(160, 0));
+
+		sendMessagePanel = new JPanel();
+
+		sendMessageText = new JTextField();
+		sendMessageText.addKeyListener(new KeyAdapter() {
+			@Override
+			public void keyTyped(KeyEvent e) {
+				if (e.getKeyChar() == '\n')
+					sendMessageButton.doClick();
+			}
+		});
+
+		sendMessageButton = new JButton("Send");
+		sendMessageButton.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent arg0) {
+				if (!sendMessageText.getText().trim().equals("")) {
+					try {
+						room.sendMessage(sendMessageText.getText());
+						sendMessageText.setText("");
+					} catch (XMPPException e) {
+						JOptionPane.showMessageDialog(main, e.getMessage());
+					}
+				}
+				sendMessageText.grabFocus();
+			}
+		});
+
+		leaveButton = new JButton("Leave");
+		leaveButton.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent arg0) {
+				main.closeRoomPanel(RoomPanel.this);
+			}
+		});
+
+		sendMessagePanel.setLayout(new BorderLayout());
+		sendMessagePanel.add(sendMessageText, BorderLayout.CENTER);
+		sendMessagePanel.add(sendMessageButton, BorderLayout.EAST);
+
+		JPanel topPanel = new JPanel(new BorderLayout());
+		topPanel.add(subjectLabel, BorderLayout.CENTER);
+		topPanel.add(leaveButton, BorderLayout.EAST);
+
+		this.setLayout(new BorderLayout());
+		this.add(topPanel, BorderLayout.NORTH);
+		this.add(new JScrollPane(chatArea), BorderLayout.CENTER);
+		this.add(occupantScroll, BorderLayout.EAST);
+		this.add(sendMessagePanel, BorderLayout.SOUTH);
+
+		this.addFocusListener(new FocusAdapter() {
+			@Override
+			public void focusGained(FocusEvent e) {
+				sendMessageText.grabFocus();
+			}
+		});
+
+		room.addChatRoomListener(this);
+		sendMessageButton.setEnabled(room.isJoined());
+		updateSubject();
+		occupantListModel.update(room.getOccupants());
+		renderNewMessages();
+	}
+
+	public ChatRoom getRoom() {
+		return room;
+	}
+
+	private void updateSubject() {
+		String subject = room.getSubject();
+		subjectLabel.setText(" " + (subject == null ? room.getRoomJid() : subject)
+				+ " (" + room.getOccupantCount() + " occupants)");
+	}
+
+	/**
+	 * Appends to the document the messages added to the room history since
+	 * the last call. Must be called in the event dispatch thread.
+	 */
+	private void renderNewMessages() {
+		RingBuffer<RoomMessage> history = room.getHistory();
+		List<RoomMessage> messages;
+		synchronized (history) {
+			messages = history.getSince(renderedSequence);
+			renderedSequence = history.getNextSequence();
+		}
+		if (messages.isEmpty())
+			return;
+
+		StringBuilder html = new StringBuilder();
+		for (RoomMessage message : messages) {
+			html.append("<P style='margin: 0'>");
+			if (message.isDelayed())
+				html.append("<font color='gray'>");
+			html.append("(").append(ChatPanel.TIMESTAMP_FORMAT.format(message.getTimestamp())).append(") ");
+			if (message.getNick() != null)
+				html.append("<b>").append(escape(message.getNick())).append("</b>: ");
+			html.append(escape(message.getTextMessage()));
+			if (message.isDelayed())
+				html.append("</font>");
+			html.append("</P>");
+		}
+
+		Element body = document.getElement(document.getDefaultRootElement(),
+				StyleConstants.NameAttribute, HTML.Tag.BODY);
+		try {
+			document.insertBeforeEnd(body, html.toString());
+			renderedMessages += messages.size();
+			// keeps as many messages in the document as in the room history
+			int excess = renderedMessages - history.getCapacity();
+			if (excess > 0 && body.getElementCount() > excess) {
+				int end = body.getElement(excess - 1).getEndOffset();
+				int start = body.getElement(0).getStartOffset();
+				document.remove(start, end - start);
+				renderedMessages -= excess;
+			}
+		} catch (BadLocationException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		chatArea.setCaretPosition(document.getLength());
+	}
+
+	private static String escape(String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;")
+				.replace(">", "&gt;");
+	}
+
+	@Override
+	public void roomJoined(ChatRoom room) {
+		main.getEventBridge().invoke(new Runnable() {
+			@Override
+			public void run() {
+				sendMessageButton.setEnabled(true);
+				leaveButton.setText("Leave");
+			}
+		});
+	}
+
+	@Override
+	public void roomLeft(ChatRoom room, final String reason) {
+		main.getEventBridge().invoke(new Runnable() {
+			@Override
+			public void run() {
+				sendMessageButton.setEnabled(false);
+				leaveButton.setText("Close");
+			}
+		});
+		if (reason != null)
+			main.getEventBridge().invokeDialog(new Runnable() {
+				@Override
+				public void run() {
+					JOptionPane.showMessageDialog(main, reason);
+				}
+			});
+	}
+
+	@Override
+	public void occupantsChanged(final ChatRoom room,
+			Collection<Occupant> present, Collection<String> left) {
+		// presence is already coalesced by the room, so the list is rebuilt
+		// from a snapshot at most a few times per second
+		main.getEventBridge().update(this, "occupants", new Runnable() {
+			@Override
+			public void run() {
+				occupantListModel.update(room.getOccupants());
+				updateSubject();
+			}
+		});
+	}
+
+	@Override
+	public void roomMessageReceived(ChatRoom room, RoomMessage message) {
+		// a single render is run for any number of messages received before
+		// the event dispatch thread handles it
+		main.getEventBridge().update(this, "messages", new Runnable() {
+			@Override
+			public void run() {
+				renderNewMessages();
+			}
+		});
+	}
+
+	@Override
+	public void subjectChanged(ChatRoom room, String subject) {
+		main.getEventBridge().update(this, "subject", new Runnable() {
+			@Override
+			public void run() {
+				updateSubject();
+			}
+		});
+	}
+}
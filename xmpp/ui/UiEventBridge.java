@@ -0,0 +1,252 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.ui;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Carries model events, received in the connection's listening thread, to
+ * the event dispatch thread, where Swing components may be safely changed.
+ * 
+ * Updates are not handed to the event dispatch thread one by one: they are
+ * collected and run together at most once per display frame, so a burst of
+ * events results in a single entry in the event queue. Updates posted for a
+ * target and aspect (e.g., the message area of a chat panel) replace any
+ * update for the same target and aspect still waiting, since only the last
+ * one would be visible, and take its place at the end of the batch; other
+ * updates are all run, in the order they were posted. Updates that may
+ * block the event dispatch thread, such as modal dialogs, must be posted
+ * with {@link #invokeDialog(Runnable)}: a modal dialog runs a nested event
+ * loop, which would run newer batches before the rest of its own.
+ */
+class UiEventBridge {
+
+	/**
+	 * Default interval between batches of updates, in milliseconds (about 60
+	 * frames per second).
+	 */
+	public static final int DEFAULT_FRAME_INTERVAL = 16;
+
+	private static final ScheduledExecutorService timer = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "UI event bridge");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final long frameInterval;
+
+	private final Map<Object, Runnable> pending = new LinkedHashMap<Object, Runnable>();
+	private boolean scheduled = false;
+	private long lastFlush = 0;
+
+	private long posted = 0;
+	private long superseded = 0;
+	private long flushes = 0;
+	private int maxPending = 0;
+
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	private final Runnable scheduleTask = new Runnable() {
+		@Override
+		public void run() {
+			SwingUtilities.invokeLater(flushTask);
+		}
+	};
+
+	/**
+	 * Creates a bridge running updates at the default frame rate.
+	 */
+	UiEventBridge() {
+		this(DEFAULT_FRAME_INTERVAL);
+	}
+
+	/**
+	 * Creates a bridge.
+	 * 
+	 * @param frameInterval
+	 *            Minimum interval between batches of updates, in
+	 *            milliseconds.
+	 */
+	UiEventBridge(int frameInterval) {
+		this.frameInterval = TimeUnit.MILLISECONDS.toNanos(frameInterval);
+	}
+
+	/**
+	 * Runs an update in the event dispatch thread. The update is never
+	 * dropped, and runs after all updates posted before it.
+	 * 
+	 * @param update
+	 *            Update to run.
+	 */
+	void invoke(Runnable update) {
+		enqueue(new Object(), update);
+	}
+
+	/**
+	 * Runs an update that may block the event dispatch thread, such as one
+	 * showing a modal dialog. The update is started after all updates posted
+	 * before it, but as a separate event, after the batch it was posted in
+	 * has completed.
+	 * 
+	 * @param update
+	 *            Update to run.
+	 */
+	void invokeDialog(final Runnable update) {
+		invoke(new Runnable() {
+			@Override
+			public void run() {
+				SwingUtilities.invokeLater(update);
+			}
+		});
+	}
+
+	/**
+	 * Runs an update of some aspect of a component in the event dispatch
+	 * thread. If another update of the same aspect of the same target is still
+	 * waiting, it is replaced by this one, so the update must reflect the
+	 * current state of the model when it runs, not the event that caused it.
+	 * The update runs after all updates posted before it.
+	 * 
+	 * @param target
+	 *            Object being updated, compared by identity.
+	 * @param aspect
+	 *            Part of the object being updated.
+	 * @param update
+	 *            Update to run.
+	 */
+	void update(Object target, String aspect, Runnable update) {
+		enqueue(new Key(target, aspect), update);
+	}
+
+	private void enqueue(Object key, Runnable update) {
+		long delay;
+		synchronized (this) {
+			posted++;
+			// a replaced update is removed first, so the new one runs after
+			// the updates posted since
+			if (pending.remove(key) != null)
+				superseded++;
+			pending.put(key, update);
+			maxPending = Math.max(maxPending, pending.size());
+			if (scheduled)
+				return;
+			scheduled = true;
+			delay = lastFlush + frameInterval - System.nanoTime();
+		}
+		if (delay <= 0)
+			SwingUtilities.invokeLater(flushTask);
+		else
+			timer.schedule(scheduleTask, delay, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Runs all waiting updates. Called in the event dispatch thread.
+	 */
+	private void flush() {
+		List<Runnable> updates;
+		synchronized (this) {
+			updates = new ArrayList<Runnable>(pending.values());
+			pending.clear();
+			scheduled = false;
+			lastFlush = System.nanoTime();
+			flushes++;
+		}
+		for (Runnable update : updates) {
+			try {
+				update.run();
+			} catch (RuntimeException e) {
+				// one failing component does not prevent others from being
+				// updated
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of updates posted to this bridge.
+	 */
+	synchronized long getPosted() {
+		return posted;
+	}
+
+	/**
+	 * Returns the number of updates dropped because a newer update of the
+	 * same aspect was posted before they ran.
+	 */
+	synchronized long getSuperseded() {
+		return superseded;
+	}
+
+	/**
+	 * Returns the number of batches run in the event dispatch thread.
+	 */
+	synchronized long getFlushes() {
+		return flushes;
+	}
+
+	/**
+	 * Returns the largest number of updates waiting at the same time.
+	 */
+	synchronized int getMaxPending() {
+		return maxPending;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return posted + " updates posted, " + superseded + " superseded, "
+				+ flushes + " batches run";
+	}
+
+	private static class Key {
+
+		private Object target;
+		private String aspect;
+
+		private Key(Object target, String aspect) {
+			this.target = target;
+			this.aspect = aspect;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return target == other.target && aspect.equals(other.aspect);
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(target) * 31 + aspect.hashCode();
+		}
+	}
+}
@@ -0,0 +1,253 @@
+/*
+ * University of British Columbia
+ * Department of Computer Science
+ * CPSC317 - Internet Programming
+ * Assignment 1
+ * 
+ * Author: Jonatan Schroeder
+ * January 2012
+ * 
+ * This code may not be used without written consent of the authors, except for 
+ * current and future projects and assignments of the CPSC317 course at UBC.
+ */
+
+package ubc.cs317.xmpp.ui;
+
+import java.awt.AWTEvent;
+import java.awt.EventQueue;
+import java.awt.Toolkit;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.swing.SwingUtilities;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLDocument;
+import javax.swing.text.html.HTMLEditorKit;
+
+/**
+ * Measures the load on the event dispatch thread during a simulated storm of
+ * incoming messages, spread over several conversations, when each event is
+ * handed to the event dispatch thread with its own invokeLater (as the
+ * chat panels did) and when events go through the UI event bridge. Each
+ * update rebuilds an HTML document with the most recent messages of the
+ * conversation, like ChatPanel.updateChatArea. The length of the event queue
+ * is measured by a counting queue installed in place of the system one, and
+ * responsiveness by the delay of a probe event posted every few
+ * milliseconds. Runs headless.
+ * 
+ * Usage: UiEventBridgeBenchmark [messages, default 20000] [conversations,
+ * default 20] [messages per second, default 20000]
+ */
+public class UiEventBridgeBenchmark {
+
+	private static final int RENDERED_MESSAGES = 30;
+
+	public static void main(String[] args) throws Exception {
+
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int conversations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		int rate = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+
+		CountingEventQueue queue = new CountingEventQueue();
+		Toolkit.getDefaultToolkit().getSystemEventQueue().push(queue);
+
+		// warm up the document code
+		System.out.println("warm-up, invokeLater per event:");
+		run(queue, null, messages / 4, conversations, rate);
+
+		System.out.println("invokeLater per event:");
+		run(queue, null, messages, conversations, rate);
+		UiEventBridge bridge = new UiEventBridge();
+		System.out.println("UI event bridge:");
+		run(queue, bridge, messages, conversations, rate);
+		System.out.printf("  %d updates superseded, at most %d waiting\n",
+				bridge.getSuperseded(), bridge.getMaxPending());
+		System.exit(0);
+	}
+
+	private static void run(CountingEventQueue queue,
+			final UiEventBridge bridge, int messages, int conversations,
+			int rate) throws Exception {
+
+		final List<List<String>> histories = new ArrayList<List<String>>();
+		for (int i = 0; i < conversations; i++)
+			histories.add(new ArrayList<String>());
+		final AtomicLong renders = new AtomicLong();
+
+		queue.reset();
+		Probe probe = new Probe();
+		probe.start();
+
+		long start = System.nanoTime();
+		long interval = 1000000000L / rate;
+		for (int i = 0; i < messages; i++) {
+			final List<String> history = histories.get(i % conversations);
+			synchronized (history) {
+				history.add("message " + i + " with some text in it");
+			}
+			Runnable update = new Runnable() {
+				@Override
+				public void run() {
+					render(history);
+					renders.incrementAndGet();
+				}
+			};
+			if (bridge == null)
+				SwingUtilities.invokeLater(update);
+			else
+				bridge.update(history, "messages", update);
+			// paces the storm at the given rate
+			while (System.nanoTime() - start < (i + 1) * interval)
+				;
+		}
+		double postSeconds = (System.nanoTime() - start) / 1e9;
+
+		final CountDownLatch drained = new CountDownLatch(1);
+		Runnable marker = new Runnable() {
+			@Override
+			public void run() {
+				drained.countDown();
+			}
+		};
+		if (bridge == null)
+			SwingUtilities.invokeLater(marker);
+		else
+			bridge.invoke(marker);
+		drained.await();
+		double drainSeconds = (System.nanoTime() - start) / 1e9 - postSeconds;
+		probe.halt();
+
+		System.out.printf("  %d messages in %.2f s, %d renders, "
+				+ "%.2f s to drain after the storm\n", messages, postSeconds,
+				renders.get(), drainSeconds);
+		System.out.printf("  event queue: at most %d events, %d dispatched\n",
+				queue.getMaxLength(), queue.getDispatched());
+		System.out.printf("  probe delay: average %.1f ms, max %.1f ms\n",
+				probe.getAverageDelay(), probe.getMaxDelay());
+	}
+
+	private static void render(List<String> history) {
+		List<String> recent;
+		synchronized (history) {
+			recent = new ArrayList<String>(history.subList(
+					Math.max(0, history.size() - RENDERED_MESSAGES),
+					history.size()));
+		}
+		HTMLDocument doc = (HTMLDocument) new HTMLEditorKit()
+				.createDefaultDocument();
+		Element body = doc.getElement(doc.getDefaultRootElement(),
+				StyleConstants.NameAttribute, HTML.Tag.BODY);
+		for (String message : recent) {
+			try {
+				doc.insertBeforeEnd(body, "<P style='margin: 0'><b>peer</b>: "
+						+ message + "</P>");
+			} catch (BadLocationException e) {
+				e.printStackTrace();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Event queue counting the events waiting to be dispatched.
+	 */
+	private static class CountingEventQueue extends EventQueue {
+
+		private final AtomicInteger length = new AtomicInteger();
+		private final AtomicInteger maxLength = new AtomicInteger();
+		private final AtomicLong dispatched = new AtomicLong();
+
+		@Override
+		public void postEvent(AWTEvent event) {
+			int current = length.incrementAndGet();
+			int max;
+			while ((max = maxLength.get()) < current
+					&& !maxLength.compareAndSet(max, current))
+				;
+			super.postEvent(event);
+		}
+
+		@Override
+		protected void dispatchEvent(AWTEvent event) {
+			length.decrementAndGet();
+			dispatched.incrementAndGet();
+			super.dispatchEvent(event);
+		}
+
+		private void reset() {
+			maxLength.set(length.get());
+			dispatched.set(0);
+		}
+
+		private int getMaxLength() {
+			return maxLength.get();
+		}
+
+		private long getDispatched() {
+			return dispatched.get();
+		}
+	}
+
+	/**
+	 * Posts an event every few milliseconds and measures how long it waits to
+	 * be dispatched.
+	 */
+	private static class Probe extends Thread {
+
+		private volatile boolean running = true;
+		private long samples = 0;
+		private long totalDelay = 0;
+		private long maxDelay = 0;
+
+		private Probe() {
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				final long posted = System.nanoTime();
+				final CountDownLatch done = new CountDownLatch(1);
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						long delay = System.nanoTime() - posted;
+						synchronized (Probe.this) {
+							samples++;
+							totalDelay += delay;
+							maxDelay = Math.max(maxDelay, delay);
+						}
+						done.countDown();
+					}
+				});
+				try {
+					done.await();
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		private void halt() throws InterruptedException {
+			running = false;
+			join();
+		}
+
+		private synchronized double getAverageDelay() {
+			return samples == 0 ? 0 : totalDelay / 1e6 / samples;
+		}
+
+		private synchronized double getMaxDelay() {
+			return maxDelay / 1e6;
+		}
+	}
+}